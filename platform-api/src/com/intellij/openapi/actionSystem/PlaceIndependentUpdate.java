@@ -0,0 +1,16 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.actionSystem;
+
+import org.jetbrains.annotations.ApiStatus;
+
+/**
+ * Implement this in actions or action groups to flag that the presentation their {@link AnAction#update} produces depends only on
+ * the project of the event and the application state, not on {@link AnActionEvent#getPlace()}, on other data of the context component
+ * or on the presentation state before the update.<p></p>
+ *
+ * The result of one update is then reused by the other toolbars updated for the same project within the same IDE event,
+ * instead of calling {@link AnAction#update} once per toolbar.
+ */
+@ApiStatus.Experimental
+public interface PlaceIndependentUpdate {
+}
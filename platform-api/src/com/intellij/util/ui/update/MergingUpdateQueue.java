@@ -19,10 +19,9 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Use this class to postpone task execution and optionally merge identical tasks. This is needed e.g. to reflect in UI status of some
@@ -31,6 +30,10 @@ import java.util.TreeMap;
  *
  * <p/>
  * Create instance of this class and use {@link #queue(Update)} method to add new tasks.
+ * <p/>
+ * Adding a task doesn't block: tasks are collected in a concurrent inbox and merged into the scheduled ones when the queue is flushed
+ * (or when the inbox grows large). Equal tasks are merged by a hash lookup, and {@link Update#canEat} is only consulted for tasks of
+ * the same priority.
  */
 public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
   public static final JComponent ANY_COMPONENT = new JComponent() {
@@ -39,7 +42,25 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
   private volatile boolean myActive;
   private volatile boolean mySuspended;
 
-  private final Map<Integer, Map<Update, Update>> myScheduledUpdates = new TreeMap<>();
+  private static final int INBOX_DRAIN_THRESHOLD = 256;
+  private static final ClassValue<Boolean> OVERRIDES_CAN_EAT = new ClassValue<Boolean>() {
+    @Override
+    protected Boolean computeValue(Class<?> type) {
+      try {
+        return type.getMethod("canEat", Update.class).getDeclaringClass() != Update.class;
+      }
+      catch (NoSuchMethodException e) {
+        return true;
+      }
+    }
+  };
+
+  private final Map<Integer, PriorityBucket> myScheduledUpdates = new TreeMap<>();
+  private volatile boolean myHasScheduledUpdates; // !myScheduledUpdates.isEmpty(), readable without the lock
+
+  // updates queued but not yet merged into myScheduledUpdates; the size is incremented before offering, so it's never less than the actual one
+  private final Queue<Update> myInbox = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger myInboxSize = new AtomicInteger();
 
   private final Alarm myWaiterForMerge;
 
@@ -137,6 +158,7 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
 
   public void cancelAllUpdates() {
     synchronized (myScheduledUpdates) {
+      drainInbox();
       for (Update each : getAllScheduledUpdates()) {
         try {
           each.setRejected();
@@ -145,13 +167,15 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
         }
       }
       myScheduledUpdates.clear();
+      myHasScheduledUpdates = false;
       finishActivity();
     }
+    restartTimerIfQueuedConcurrently();
   }
 
   @NotNull
   private List<Update> getAllScheduledUpdates() {
-    return ContainerUtil.concat(myScheduledUpdates.values(), map -> map.keySet());
+    return ContainerUtil.concat(myScheduledUpdates.values(), bucket -> bucket.myUpdates.keySet());
   }
 
   public final boolean isPassThrough() {
@@ -243,11 +267,9 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
   }
 
   public void flush() {
-    synchronized (myScheduledUpdates) {
-      if (myScheduledUpdates.isEmpty()) {
-        finishActivity();
-        return;
-      }
+    if (isEmpty()) {
+      finishActivity();
+      return;
     }
     if (myFlushing) {
       return;
@@ -262,9 +284,12 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
         final List<Update> all;
 
         synchronized (myScheduledUpdates) {
+          drainInbox();
           all = getAllScheduledUpdates();
           myScheduledUpdates.clear();
+          myHasScheduledUpdates = false;
         }
+        restartTimerIfQueuedConcurrently();
 
         for (Update each : all) {
           each.setProcessed();
@@ -350,60 +375,109 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
       return;
     }
 
-    final boolean active = myActive;
-    synchronized (myScheduledUpdates) {
-      try {
-        if (eatThisOrOthers(update)) {
-          return;
-        }
+    int inboxSize = myInboxSize.incrementAndGet();
+    myInbox.offer(update);
 
-        if (active && myScheduledUpdates.isEmpty()) {
-          restartTimer();
-        }
-        put(update);
-
-        if (myRestartOnAdd) {
-          restartTimer();
-        }
+    if (inboxSize == 1 && !myHasScheduledUpdates || myRestartOnAdd) {
+      restartTimer();
+    }
+    if (inboxSize >= INBOX_DRAIN_THRESHOLD) {
+      // merge now to not accumulate duplicates while the queue is inactive
+      synchronized (myScheduledUpdates) {
+        drainInbox();
       }
-      finally {
-        if (isEmpty()) {
-          finishActivity();
-        }
+    }
+  }
+
+  /**
+   * Merges the queued updates into the scheduled ones in the order they were queued.
+   */
+  private void drainInbox() {
+    int count = 0;
+    Update update;
+    while ((update = myInbox.poll()) != null) {
+      count++;
+      if (!eatThisOrOthers(update)) {
+        put(update);
       }
     }
+    myHasScheduledUpdates = !myScheduledUpdates.isEmpty();
+    myInboxSize.addAndGet(-count);
+  }
+
+  /**
+   * An update queued while the inbox was being drained by {@link #flush()} or {@link #cancelAllUpdates()} could see the queue non-empty
+   * and skip restarting the timer, so the timer is restarted after the drain instead.
+   */
+  private void restartTimerIfQueuedConcurrently() {
+    if (myInboxSize.get() > 0) {
+      restartTimer();
+    }
   }
 
   private boolean eatThisOrOthers(@NotNull Update update) {
-    Map<Update, Update> updates = myScheduledUpdates.get(update.getPriority());
-    if (updates != null && updates.containsKey(update)) {
+    PriorityBucket bucket = myScheduledUpdates.get(update.getPriority());
+    if (bucket == null || bucket.myUpdates.containsKey(update)) {
       return false;
     }
 
-    for (Update eachInQueue : getAllScheduledUpdates()) {
-      if (eachInQueue.canEat(update)) {
-        return true;
+    if (overridesCanEat(update)) {
+      for (Iterator<Update> iterator = bucket.myUpdates.keySet().iterator(); iterator.hasNext(); ) {
+        Update eachInQueue = iterator.next();
+        if (eachInQueue.canEat(update)) {
+          return true;
+        }
+        if (update.canEat(eachInQueue)) {
+          iterator.remove();
+          if (overridesCanEat(eachInQueue)) {
+            bucket.myEaters.remove(eachInQueue);
+          }
+          eachInQueue.setRejected();
+        }
       }
-      if (update.canEat(eachInQueue)) {
-        myScheduledUpdates.get(eachInQueue.getPriority()).remove(eachInQueue);
-        eachInQueue.setRejected();
+    }
+    else {
+      // only the updates overriding canEat may eat this one
+      for (Update eater : bucket.myEaters) {
+        if (eater.canEat(update)) {
+          return true;
+        }
       }
     }
     return false;
   }
 
+  private static boolean overridesCanEat(@NotNull Update update) {
+    return OVERRIDES_CAN_EAT.get(update.getClass());
+  }
+
   public final void run(@NotNull Update update) {
     execute(new Update[]{update});
   }
 
   private void put(@NotNull Update update) {
-    Map<Update, Update> updates = myScheduledUpdates.computeIfAbsent(update.getPriority(), __ -> new LinkedHashMap<>());
-    final Update existing = updates.remove(update);
+    PriorityBucket bucket = myScheduledUpdates.computeIfAbsent(update.getPriority(), __ -> new PriorityBucket());
+    final Update existing = bucket.myUpdates.remove(update);
     if (existing != null && existing != update) {
       existing.setProcessed();
       existing.setRejected();
     }
-    updates.put(update, update);
+    if (existing != null && overridesCanEat(existing)) {
+      bucket.myEaters.remove(existing);
+    }
+    bucket.myUpdates.put(update, update);
+    if (overridesCanEat(update)) {
+      bucket.myEaters.add(update);
+    }
+  }
+
+  /**
+   * Scheduled updates of the same priority in the order of addition. The ones overriding {@link Update#canEat} are also kept
+   * in {@code myEaters}, so a new update is checked against them only.
+   */
+  private static final class PriorityBucket {
+    private final Map<Update, Update> myUpdates = new LinkedHashMap<>();
+    private final List<Update> myEaters = new ArrayList<>();
   }
 
   public boolean isActive() {
@@ -425,7 +499,7 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
   @Override
   public String toString() {
     synchronized (myScheduledUpdates) {
-      return myName + " active=" + myActive + " scheduled=" + getAllScheduledUpdates().size();
+      return myName + " active=" + myActive + " scheduled=" + getAllScheduledUpdates().size() + " queued=" + myInboxSize.get();
     }
   }
 
@@ -458,9 +532,7 @@ public class MergingUpdateQueue implements Runnable, Disposable, Activatable {
   }
 
   public boolean isEmpty() {
-    synchronized (myScheduledUpdates) {
-      return myScheduledUpdates.isEmpty();
-    }
+    return myInboxSize.get() == 0 && !myHasScheduledUpdates;
   }
 
   public void sendFlush() {
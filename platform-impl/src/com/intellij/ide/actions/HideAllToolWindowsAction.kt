@@ -4,11 +4,12 @@ package com.intellij.ide.actions
 import com.intellij.ide.IdeBundle
 import com.intellij.openapi.actionSystem.AnAction
 import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.actionSystem.PlaceIndependentUpdate
 import com.intellij.openapi.project.DumbAware
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.wm.ex.ToolWindowManagerEx
 
-internal class HideAllToolWindowsAction : AnAction(), DumbAware {
+internal class HideAllToolWindowsAction : AnAction(), DumbAware, PlaceIndependentUpdate {
   override fun actionPerformed(e: AnActionEvent) {
     performAction(e.project ?: return)
   }
@@ -3,6 +3,7 @@ package com.intellij.ide.actions;
 
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlaceIndependentUpdate;
 import com.intellij.openapi.actionSystem.Presentation;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
@@ -14,7 +15,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * @author Vladimir Kondratyev
  */
-public final class RestoreDefaultLayoutAction extends AnAction implements DumbAware {
+public final class RestoreDefaultLayoutAction extends AnAction implements DumbAware, PlaceIndependentUpdate {
   @Override
   public void actionPerformed(@NotNull AnActionEvent e){
     Project project = e.getProject();
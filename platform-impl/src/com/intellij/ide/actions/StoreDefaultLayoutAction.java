@@ -3,6 +3,7 @@ package com.intellij.ide.actions;
 
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlaceIndependentUpdate;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.wm.ex.ToolWindowManagerEx;
@@ -10,7 +11,7 @@ import com.intellij.openapi.wm.ex.WindowManagerEx;
 import com.intellij.openapi.wm.impl.DesktopLayout;
 import org.jetbrains.annotations.NotNull;
 
-public final class StoreDefaultLayoutAction extends AnAction implements DumbAware {
+public final class StoreDefaultLayoutAction extends AnAction implements DumbAware, PlaceIndependentUpdate {
   @Override
   public void actionPerformed(@NotNull AnActionEvent e) {
     Project project = e.getProject();
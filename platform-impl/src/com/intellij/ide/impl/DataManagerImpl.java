@@ -316,14 +316,15 @@ public class DataManagerImpl extends DataManager {
    * @deprecated use {@link DataManager#getDataContext(Component)} instead
    */
   @Deprecated
+  // thread-safe: ActionUpdater queries the same context from several threads when it updates actions in parallel
   public static class MyDataContext implements DataContext, UserDataHolder {
     private int myEventCount;
     // To prevent memory leak we have to wrap passed component into
     // the weak reference. For example, Swing often remembers menu items
     // that have DataContext as a field.
     private final Reference<Component> myRef;
-    private Map<Key<?>, Object> myUserData;
-    private final Map<String, Object> myCachedData = ContainerUtil.createWeakValueMap();
+    private volatile Map<Key<?>, Object> myUserData;
+    private final Map<String, Object> myCachedData = ContainerUtil.createConcurrentWeakValueMap();
 
     public MyDataContext(@Nullable Component component) {
       myEventCount = -1;
@@ -402,14 +403,24 @@ public class DataManagerImpl extends DataManager {
 
     @Override
     public <T> void putUserData(@NotNull Key<T> key, @Nullable T value) {
-      getOrCreateMap().put(key, value);
+      if (value == null) {
+        getOrCreateMap().remove(key);
+      }
+      else {
+        getOrCreateMap().put(key, value);
+      }
     }
 
     @NotNull
     private Map<Key<?>, Object> getOrCreateMap() {
       Map<Key<?>, Object> userData = myUserData;
       if (userData == null) {
-        myUserData = userData = ContainerUtil.createWeakValueMap();
+        synchronized (myCachedData) {
+          userData = myUserData;
+          if (userData == null) {
+            myUserData = userData = ContainerUtil.createConcurrentWeakValueMap();
+          }
+        }
       }
       return userData;
     }
@@ -45,6 +45,7 @@ import com.intellij.util.ArrayUtilRt
 import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.util.concurrency.NonUrgentExecutor
 import com.intellij.util.io.write
+import com.intellij.util.lang.ClassPath
 import com.intellij.util.ui.AsyncProcessIcon
 import com.intellij.util.ui.accessibility.ScreenReader
 import net.miginfocom.layout.PlatformDefaults
@@ -487,6 +488,7 @@ open class IdeStarter : ApplicationStarter {
     }
 
     StartUpMeasurer.compareAndSetCurrentState(LoadingState.COMPONENTS_LOADED, LoadingState.APP_STARTED)
+    LOG.info("Class loading at startup: ${ClassPath.getLoadingStatistics()}")
 
     if (PluginManagerCore.isRunningFromSources()) {
       NonUrgentExecutor.getInstance().execute {
@@ -0,0 +1,122 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.actionSystem.impl;
+
+import com.intellij.ide.IdeEventQueue;
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Presentations updated by {@link PlaceIndependentUpdate} actions, shared between the {@link ActionUpdater}s created within the same
+ * IDE event for the same project, e.g. by all the toolbars of a project frame. Each toolbar has its own context component,
+ * so the presentations are keyed by the project of the data context. Only the results of the latest event are kept.
+ */
+final class ActionUpdateCache {
+  private static final AtomicReference<Generation> ourGeneration = new AtomicReference<>(new Generation(0));
+
+  private ActionUpdateCache() {
+  }
+
+  /**
+   * @return the key of the presentations updated with the given context now, or null if they can't be shared
+   */
+  @Nullable
+  static Snapshot createSnapshot(@NotNull DataContext dataContext, boolean modalContext, boolean contextMenuAction, boolean toolbarAction) {
+    if (!ApplicationManager.getApplication().isDispatchThread()) return null;
+
+    Project project = dataContext.getData(CommonDataKeys.PROJECT);
+    return new Snapshot(IdeEventQueue.getInstance().getEventCount(), project, modalContext, contextMenuAction, toolbarAction);
+  }
+
+  @Nullable
+  static Presentation get(@NotNull Snapshot snapshot, @NotNull AnAction action) {
+    Generation generation = ourGeneration.get();
+    return generation.eventCount == snapshot.eventCount ? generation.presentations.get(new CacheKey(snapshot, action)) : null;
+  }
+
+  static void put(@NotNull Snapshot snapshot, @NotNull AnAction action, @NotNull Presentation presentation) {
+    Generation generation = ourGeneration.get();
+    while (generation.eventCount != snapshot.eventCount) {
+      if (generation.eventCount - snapshot.eventCount > 0) return; // a late background update, don't drop the newer results
+      Generation newGeneration = new Generation(snapshot.eventCount);
+      generation = ourGeneration.compareAndSet(generation, newGeneration) ? newGeneration : ourGeneration.get();
+    }
+    generation.presentations.putIfAbsent(new CacheKey(snapshot, action), presentation);
+  }
+
+  static final class Snapshot {
+    private final int eventCount;
+    @Nullable private final Project project;
+    private final boolean modalContext;
+    private final boolean contextMenuAction;
+    private final boolean toolbarAction;
+
+    Snapshot(int eventCount, @Nullable Project project, boolean modalContext, boolean contextMenuAction, boolean toolbarAction) {
+      this.eventCount = eventCount;
+      this.project = project;
+      this.modalContext = modalContext;
+      this.contextMenuAction = contextMenuAction;
+      this.toolbarAction = toolbarAction;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Snapshot)) return false;
+      Snapshot snapshot = (Snapshot)o;
+      return eventCount == snapshot.eventCount &&
+             project == snapshot.project &&
+             modalContext == snapshot.modalContext &&
+             contextMenuAction == snapshot.contextMenuAction &&
+             toolbarAction == snapshot.toolbarAction;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = eventCount;
+      result = 31 * result + System.identityHashCode(project);
+      result = 31 * result + (modalContext ? 1 : 0);
+      result = 31 * result + (contextMenuAction ? 1 : 0);
+      result = 31 * result + (toolbarAction ? 1 : 0);
+      return result;
+    }
+  }
+
+  private static final class CacheKey {
+    private final Snapshot snapshot;
+    private final AnAction action;
+
+    private CacheKey(@NotNull Snapshot snapshot, @NotNull AnAction action) {
+      this.snapshot = snapshot;
+      this.action = action;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CacheKey)) return false;
+      CacheKey key = (CacheKey)o;
+      return action == key.action && snapshot.equals(key.snapshot);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * snapshot.hashCode() + System.identityHashCode(action);
+    }
+  }
+
+  private static final class Generation {
+    private final int eventCount;
+    private final Map<CacheKey, Presentation> presentations = ContainerUtil.newConcurrentMap();
+
+    private Generation(int eventCount) {
+      this.eventCount = eventCount;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.actionSystem.impl;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the time spent in {@link AnAction#update} by {@link ActionUpdater} per action class, to find slow implementations.
+ * The first update of a class slower than {@link #SLOW_UPDATE_MS} is logged.
+ */
+public final class ActionUpdateTimings {
+  private static final Logger LOG = Logger.getInstance(ActionUpdateTimings.class);
+  private static final long SLOW_UPDATE_MS = 100;
+
+  // keyed by class name to not hold unloaded plugin classes
+  private static final Map<String, Timing> ourTimings = ContainerUtil.newConcurrentMap();
+
+  private ActionUpdateTimings() {
+  }
+
+  static void record(@NotNull AnAction action, long nanos) {
+    String className = action.getClass().getName();
+    Timing timing = ourTimings.computeIfAbsent(className, __ -> new Timing());
+    timing.count.increment();
+    timing.totalNanos.add(nanos);
+    timing.maxNanos.accumulateAndGet(nanos, Math::max);
+
+    long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+    if (ms > SLOW_UPDATE_MS && timing.reported.compareAndSet(false, true)) {
+      LOG.info("Slow update of " + className + ": " + ms + "ms" +
+               (SwingUtilities.isEventDispatchThread() ? " in EDT" : " in background"));
+    }
+  }
+
+  /**
+   * @return the action classes with the largest total update time, one per line: total, count and max update time
+   */
+  @NotNull
+  public static String getStatistics(int limit) {
+    List<Map.Entry<String, Timing>> entries = new ArrayList<>(ourTimings.entrySet());
+    entries.sort(Comparator.comparingLong((Map.Entry<String, Timing> entry) -> entry.getValue().totalNanos.sum()).reversed());
+
+    StringBuilder result = new StringBuilder("AnAction.update() timings:");
+    for (Map.Entry<String, Timing> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+      Timing timing = entry.getValue();
+      result.append("\n  ").append(entry.getKey())
+        .append(": total ").append(TimeUnit.NANOSECONDS.toMillis(timing.totalNanos.sum())).append("ms")
+        .append(", count ").append(timing.count.sum())
+        .append(", max ").append(TimeUnit.NANOSECONDS.toMillis(timing.maxNanos.get())).append("ms");
+    }
+    return result.toString();
+  }
+
+  private static final class Timing {
+    final LongAdder count = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final AtomicLong maxNanos = new AtomicLong();
+    final AtomicBoolean reported = new AtomicBoolean();
+  }
+}
@@ -1,6 +1,7 @@
 // Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package com.intellij.openapi.actionSystem.impl;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.concurrency.SensitiveProgressWrapper;
 import com.intellij.ide.DataManager;
 import com.intellij.ide.IdeEventQueue;
@@ -39,6 +40,7 @@ import java.awt.event.PaintEvent;
 import java.util.List;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
@@ -55,11 +57,14 @@ class ActionUpdater {
   private final boolean myTransparentOnly;
 
   private final Map<AnAction, Presentation> myUpdatedPresentations = ContainerUtil.newConcurrentMap();
+  private final Map<AnAction, Presentation> myPresentationClones = ContainerUtil.newConcurrentMap();
+  private final Map<AnAction, Object> myUpdateLocks = ContainerUtil.newConcurrentMap();
   private final Map<ActionGroup, List<AnAction>> myGroupChildren = ContainerUtil.newConcurrentMap();
   private final Map<ActionGroup, Boolean> myCanBePerformedCache = ContainerUtil.newConcurrentMap();
   private final UpdateStrategy myRealUpdateStrategy;
   private final UpdateStrategy myCheapStrategy;
   private final Utils.ActionGroupVisitor myVisitor;
+  private final ActionUpdateCache.Snapshot myCacheSnapshot;
 
   private boolean myAllowPartialExpand = true;
 
@@ -85,13 +90,25 @@ class ActionUpdater {
     myContextMenuAction = isContextMenuAction;
     myToolbarAction = isToolbarAction;
     myTransparentOnly = transparentOnly;
+    // the visitor may supply a custom component's data context for an action
+    myCacheSnapshot = visitor == null ? ActionUpdateCache.createSnapshot(dataContext, isInModalContext, isContextMenuAction, isToolbarAction) : null;
     myRealUpdateStrategy = new UpdateStrategy(
       action -> {
         // clone the presentation to avoid partially changing the cached one if update is interrupted
-        Presentation presentation = ActionUpdateEdtExecutor.computeOnEdt(() -> myFactory.getPresentation(action).clone());
+        Presentation presentation = getPresentationClone(action);
+        boolean shared = myCacheSnapshot != null && action instanceof PlaceIndependentUpdate;
+        Presentation sharedResult = shared ? ActionUpdateCache.get(myCacheSnapshot, action) : null;
+        if (sharedResult != null) {
+          presentation.copyFrom(sharedResult);
+          return presentation;
+        }
+
         presentation.setEnabledAndVisible(true);
         Supplier<Boolean> doUpdate = () -> doUpdate(myModalContext, action, createActionEvent(action, presentation), myVisitor);
         boolean success = callAction(action, "update", doUpdate);
+        if (success && shared) {
+          ActionUpdateCache.put(myCacheSnapshot, action, presentation.clone());
+        }
         return success ? presentation : null;
       },
       group -> callAction(group, "getChildren", () -> group.getChildren(createActionEvent(group, orDefault(group, myUpdatedPresentations.get(group))))),
@@ -99,6 +116,30 @@ class ActionUpdater {
     myCheapStrategy = new UpdateStrategy(myFactory::getPresentation, group -> group.getChildren(null), group -> true);
   }
 
+  private Presentation getPresentationClone(AnAction action) {
+    Presentation clone = myPresentationClones.remove(action);
+    return clone != null ? clone : ActionUpdateEdtExecutor.computeOnEdt(() -> myFactory.getPresentation(action).clone());
+  }
+
+  /**
+   * Clones the presentations of the actions about to be updated in one EDT hop, instead of a hop per action in {@link #myRealUpdateStrategy}
+   */
+  private void prefetchPresentationClones(List<? extends AnAction> actions, UpdateStrategy strategy) {
+    if (strategy != myRealUpdateStrategy || ApplicationManager.getApplication().isDispatchThread()) return;
+
+    List<AnAction> toClone = ContainerUtil.filter(actions, action -> (!myTransparentOnly || action.isTransparentUpdate()) &&
+                                                                     !myUpdatedPresentations.containsKey(action) &&
+                                                                     !myPresentationClones.containsKey(action));
+    if (toClone.size() < 2) return;
+
+    ActionUpdateEdtExecutor.computeOnEdt(() -> {
+      for (AnAction action : toClone) {
+        myPresentationClones.putIfAbsent(action, myFactory.getPresentation(action).clone());
+      }
+      return null;
+    });
+  }
+
   private void applyPresentationChanges() {
     for (Map.Entry<AnAction, Presentation> entry : myUpdatedPresentations.entrySet()) {
       Presentation original = myFactory.getPresentation(entry.getKey());
@@ -270,6 +311,10 @@ class ActionUpdater {
       }
 
       List<AnAction> children = getGroupChildren(group, strategy);
+      prefetchPresentationClones(children, strategy);
+      if (canExpandInParallel(children)) {
+        return expandChildrenInParallel(children, hideDisabled, strategy);
+      }
       return ContainerUtil.concat(children, child -> expandGroupChild(child, hideDisabled, strategy));
     } finally {
       if (myVisitor != null) {
@@ -278,6 +323,47 @@ class ActionUpdater {
     }
   }
 
+  private boolean canExpandInParallel(List<? extends AnAction> children) {
+    // the visitor tracks the current node, and the EDT can't wait for the children which update on EDT
+    if (myVisitor != null || !myAllowPartialExpand || ApplicationManager.getApplication().isDispatchThread() ||
+        !Registry.is("actionSystem.update.actions.parallel.expand")) {
+      return false;
+    }
+    int subgroups = 0;
+    for (AnAction child : children) {
+      if (child instanceof ActionGroup && ++subgroups > 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Expands the children in the fork/join pool under the current read action and progress, keeping their order in the result.
+   * A child which can't get the read action because of a pending write action is expanded in this thread.
+   */
+  private List<AnAction> expandChildrenInParallel(List<? extends AnAction> children, boolean hideDisabled, UpdateStrategy strategy) {
+    List<Integer> indices = new ArrayList<>(children.size());
+    for (int i = 0; i < children.size(); i++) {
+      indices.add(i);
+    }
+    List<List<AnAction>> expanded = new ArrayList<>(Collections.nCopies(children.size(), null));
+    boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+      indices, ProgressManager.getInstance().getProgressIndicator(), true, true, i -> {
+        expanded.set(i, expandGroupChild(children.get(i), hideDisabled, strategy));
+        return true;
+      });
+    if (!completed) {
+      throw new ProcessCanceledException();
+    }
+
+    List<AnAction> result = new ArrayList<>();
+    for (List<AnAction> list : expanded) {
+      result.addAll(list);
+    }
+    return result;
+  }
+
   private List<AnAction> getGroupChildren(ActionGroup group, UpdateStrategy strategy) {
     return myGroupChildren.computeIfAbsent(group, __ -> {
       AnAction[] children = strategy.getChildren.fun(group);
@@ -380,7 +466,9 @@ class ActionUpdater {
       return true;
     }
 
-    for (AnAction anAction : getGroupChildren(group, strategy)) {
+    List<AnAction> children = getGroupChildren(group, strategy);
+    prefetchPresentationClones(children, strategy);
+    for (AnAction anAction : children) {
       ProgressManager.checkCanceled();
       if (anAction instanceof Separator) {
         continue;
@@ -430,11 +518,19 @@ class ActionUpdater {
       return cached;
     }
 
-    Presentation presentation = strategy.update.fun(action);
-    if (presentation != null) {
-      myUpdatedPresentations.put(action, presentation);
+    // the same action can be reached concurrently from parallel expanded groups, update() it only once
+    synchronized (myUpdateLocks.computeIfAbsent(action, __ -> new Object())) {
+      cached = myUpdatedPresentations.get(action);
+      if (cached != null) {
+        return cached;
+      }
+
+      Presentation presentation = strategy.update.fun(action);
+      if (presentation != null) {
+        myUpdatedPresentations.put(action, presentation);
+      }
+      return presentation;
     }
-    return presentation;
   }
 
   // returns false if exception was thrown and handled
@@ -445,7 +541,7 @@ class ActionUpdater {
       return true;
     }
 
-    long startTime = System.currentTimeMillis();
+    long startTime = System.nanoTime();
     final boolean result;
     try {
       result = !ActionUtil.performDumbAwareUpdate(isInModalContext, action, e, false);
@@ -457,13 +553,14 @@ class ActionUpdater {
       handleUpdateException(action, e.getPresentation(), exc);
       return false;
     } finally {
+      ActionUpdateTimings.record(action, System.nanoTime() - startTime);
       if (visitor != null) {
         visitor.endUpdate(action);
       }
     }
-    long endTime = System.currentTimeMillis();
-    if (endTime - startTime > 10 && LOG.isDebugEnabled()) {
-      LOG.debug("Action " + action + ": updated in " + (endTime - startTime) + " ms");
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    if (elapsed > 10 && LOG.isDebugEnabled()) {
+      LOG.debug("Action " + action + ": updated in " + elapsed + " ms");
     }
     return result;
   }
@@ -16,6 +16,7 @@ import com.intellij.idea.ApplicationLoader;
 import com.intellij.idea.Main;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.ex.ActionUtil;
+import com.intellij.openapi.actionSystem.impl.ActionUpdateTimings;
 import com.intellij.openapi.application.*;
 import com.intellij.openapi.application.ex.ApplicationEx;
 import com.intellij.openapi.application.ex.ApplicationUtil;
@@ -341,6 +342,7 @@ public class ApplicationImpl extends PlatformComponentManagerImpl implements App
       //noinspection TestOnlyProblems
       LOG.info(writeActionStatistics());
       LOG.info(ActionUtil.ActionPauses.STAT.statistics());
+      LOG.info(ActionUpdateTimings.getStatistics(20));
       //noinspection TestOnlyProblems
       LOG.info(service.statistics()
                + "; ProcessIOExecutorService threads: " + ((ProcessIOExecutorService)ProcessIOExecutorService.INSTANCE).getThreadCounter());
@@ -34,6 +34,7 @@ public class LaterInvocator {
   private static final Logger LOG = Logger.getInstance(LaterInvocator.class);
   private static final boolean DEBUG = LOG.isDebugEnabled();
 
+  // guards the consumer side: the queue of received items and the skipped ones; producers only offer to ourInbox
   private static final Object LOCK = new Object();
 
   private LaterInvocator() { }
@@ -43,6 +44,7 @@ public class LaterInvocator {
     @NotNull private final ModalityState modalityState;
     @NotNull private final Condition<?> expired;
     @Nullable private final ActionCallback callback;
+    private long order; // of receiving from ourInbox, to merge skipped items back into ourQueue; protected by LOCK
 
     @Async.Schedule
     RunnableInfo(@NotNull Runnable runnable,
@@ -74,8 +76,11 @@ public class LaterInvocator {
   private static final Map<Project, Stack<ModalityState>> projectToModalEntitiesStack = ContainerUtil.createWeakMap();
 
   private static final Stack<ModalityStateEx> ourModalityStack = new Stack<>((ModalityStateEx)ModalityState.NON_MODAL);
-  private static final List<RunnableInfo> ourSkippedItems = new ArrayList<>(); //protected by LOCK
+  private static final MpscLinkedQueue<RunnableInfo> ourInbox = new MpscLinkedQueue<>(); // polled under LOCK
+  // items of modality states dominated by the current one, by the states; protected by LOCK
+  private static final Map<ModalityState, ArrayDeque<RunnableInfo>> ourSkippedItems = new IdentityHashMap<>();
   private static final ArrayDeque<RunnableInfo> ourQueue = new ArrayDeque<>(); //protected by LOCK
+  private static long ourReceivedCount; //protected by LOCK
   private static final FlushQueue ourFlushQueueRunnable = new FlushQueue();
 
   private static final EventDispatcher<ModalityStateListener> ourModalityStateMulticaster = EventDispatcher.create(ModalityStateListener.class);
@@ -134,10 +139,7 @@ public class LaterInvocator {
       }
       return;
     }
-    RunnableInfo runnableInfo = new RunnableInfo(runnable, modalityState, expired, callback);
-    synchronized (LOCK) {
-      ourQueue.add(runnableInfo);
-    }
+    ourInbox.offer(new RunnableInfo(runnable, modalityState, expired, callback));
     requestFlush();
   }
 
@@ -290,12 +292,43 @@ public class LaterInvocator {
     ModalityStateEx.unmarkTransparent(modalEntity);
   }
 
+  /**
+   * Returns skipped items of the modality states that aren't dominated by the current one anymore to the queue. All the items are returned
+   * off EDT, where the current modality state isn't known.
+   */
   private static void reincludeSkippedItems() {
     synchronized (LOCK) {
-      for (int i = ourSkippedItems.size() - 1; i >= 0; i--) {
-        ourQueue.addFirst(ourSkippedItems.get(i));
+      if (ourSkippedItems.isEmpty()) return;
+      ModalityState currentModality = isDispatchThread() ? getCurrentModalityState() : null;
+
+      List<RunnableInfo> reincluded = new ArrayList<>(ourQueue);
+      for (Iterator<Map.Entry<ModalityState, ArrayDeque<RunnableInfo>>> iterator = ourSkippedItems.entrySet().iterator(); iterator.hasNext(); ) {
+        Map.Entry<ModalityState, ArrayDeque<RunnableInfo>> entry = iterator.next();
+        if (currentModality == null || !currentModality.dominates(entry.getKey())) {
+          reincluded.addAll(entry.getValue());
+          iterator.remove();
+        }
+      }
+      if (reincluded.size() == ourQueue.size()) return;
+
+      reincluded.sort(Comparator.comparingLong(info -> info.order));
+      ourQueue.clear();
+      ourQueue.addAll(reincluded);
+    }
+  }
+
+  // moves the items offered since the last call to the queue, or right to skipped ones if their modality state is already known to be skipped
+  private static void receiveItems() {
+    RunnableInfo info;
+    while ((info = ourInbox.poll()) != null) {
+      info.order = ourReceivedCount++;
+      ArrayDeque<RunnableInfo> skipped = ourSkippedItems.get(info.modalityState);
+      if (skipped != null) {
+        skipped.add(info);
+      }
+      else {
+        ourQueue.add(info);
       }
-      ourSkippedItems.clear();
     }
   }
 
@@ -384,6 +417,7 @@ public class LaterInvocator {
   private static RunnableInfo getNextEvent(boolean remove) {
     synchronized (LOCK) {
       ModalityState currentModality = getCurrentModalityState();
+      receiveItems();
 
       while (!ourQueue.isEmpty()) {
         RunnableInfo info = ourQueue.getFirst();
@@ -400,7 +434,7 @@ public class LaterInvocator {
           }
           return info;
         }
-        ourSkippedItems.add(ourQueue.removeFirst());
+        ourSkippedItems.computeIfAbsent(info.modalityState, __ -> new ArrayDeque<>()).add(ourQueue.removeFirst());
       }
 
       return null;
@@ -477,6 +511,7 @@ public class LaterInvocator {
   @NotNull
   public static Collection<RunnableInfo> getLaterInvocatorQueue() {
     synchronized (LOCK) {
+      receiveItems();
       // used by leak hunter as root, so we must not copy it here to another list
       // to avoid walking over obsolete queue
       return Collections.unmodifiableCollection(ourQueue);
@@ -485,21 +520,31 @@ public class LaterInvocator {
 
   public static void purgeExpiredItems() {
     synchronized (LOCK) {
+      receiveItems();
       reincludeSkippedItems();
 
-      List<RunnableInfo> alive = new ArrayList<>(ourQueue.size());
-      for (RunnableInfo info : ourQueue) {
-        if (info.expired.value(null)) {
-          info.markDone();
-        }
-        else {
-          alive.add(info);
-        }
+      purgeExpiredItems(ourQueue);
+      for (Iterator<ArrayDeque<RunnableInfo>> iterator = ourSkippedItems.values().iterator(); iterator.hasNext(); ) {
+        ArrayDeque<RunnableInfo> skipped = iterator.next();
+        purgeExpiredItems(skipped);
+        if (skipped.isEmpty()) iterator.remove();
       }
-      if (alive.size() < ourQueue.size()) {
-        ourQueue.clear();
-        ourQueue.addAll(alive);
+    }
+  }
+
+  private static void purgeExpiredItems(@NotNull ArrayDeque<RunnableInfo> queue) {
+    List<RunnableInfo> alive = new ArrayList<>(queue.size());
+    for (RunnableInfo info : queue) {
+      if (info.expired.value(null)) {
+        info.markDone();
       }
+      else {
+        alive.add(info);
+      }
+    }
+    if (alive.size() < queue.size()) {
+      queue.clear();
+      queue.addAll(alive);
     }
   }
 
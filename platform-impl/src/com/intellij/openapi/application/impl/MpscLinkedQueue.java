@@ -0,0 +1,56 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.application.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded multi-producer single-consumer queue: {@link #offer} is wait-free (a single atomic exchange of the tail), {@link #poll}
+ * must not be called concurrently with itself.
+ * <p>
+ * An element becomes visible to the consumer when its producer links it to the previous one, so while a producer is between the exchange
+ * and the link, {@link #poll} may return null for it and for the elements offered after it. Producers are expected to notify the consumer
+ * after {@link #offer} returns, as {@link LaterInvocator} requests a flush.
+ */
+final class MpscLinkedQueue<T> {
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<MpscLinkedQueue, Node> TAIL =
+    AtomicReferenceFieldUpdater.newUpdater(MpscLinkedQueue.class, Node.class, "myTail");
+
+  private Node<T> myHead; // consumer only, its value is already taken
+  private volatile Node<T> myTail;
+
+  MpscLinkedQueue() {
+    Node<T> stub = new Node<>(null);
+    myHead = stub;
+    myTail = stub;
+  }
+
+  void offer(@NotNull T value) {
+    Node<T> node = new Node<>(value);
+    @SuppressWarnings("unchecked")
+    Node<T> previous = TAIL.getAndSet(this, node);
+    previous.myNext = node;
+  }
+
+  @Nullable
+  T poll() {
+    Node<T> next = myHead.myNext;
+    if (next == null) return null;
+    T value = next.myValue;
+    next.myValue = null;
+    myHead = next;
+    return value;
+  }
+
+  private static final class Node<T> {
+    private T myValue;
+    private volatile Node<T> myNext;
+
+    Node(@Nullable T value) {
+      myValue = value;
+    }
+  }
+}
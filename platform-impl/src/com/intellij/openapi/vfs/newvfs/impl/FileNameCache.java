@@ -18,9 +18,8 @@ package com.intellij.openapi.vfs.newvfs.impl;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
-import com.intellij.util.IntSLRUCache;
-import com.intellij.util.containers.IntObjectLinkedMap;
 import com.intellij.util.text.ByteArrayCharSequence;
+import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
@@ -28,25 +27,19 @@ import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Names of VFS files by their ids. All names ever requested are kept in the off-heap {@link FileNameTable},
+ * recently requested {@link CharSequence}s are additionally cached on-heap.
+ *
  * @author peter
  */
 public class FileNameCache {
-
-  @SuppressWarnings("unchecked") private static final IntSLRUCache<CharSequence>[] ourNameCache = new IntSLRUCache[16];
-
-  static {
-    final int protectedSize = 40000 / ourNameCache.length;
-    final int probationalSize = 20000 / ourNameCache.length;
-    for(int i = 0; i < ourNameCache.length; ++i) {
-      ourNameCache[i] = new IntSLRUCache<>(protectedSize, probationalSize);
-    }
-  }
+  private static final FileNameTable ourNameTable = new FileNameTable();
 
   private static final String FS_SEPARATORS = "/" + (File.separatorChar == '/' ? "" : File.separatorChar);
   public static int storeName(@NotNull String name) {
     assertShortFileName(name);
     final int idx = FSRecords.getNameId(name);
-    cacheData(name, idx, calcStripeIdFromNameId(idx));
+    cacheData(name, idx);
     return idx;
   }
 
@@ -63,39 +56,31 @@ public class FileNameCache {
   }
 
   @NotNull
-  private static IntObjectLinkedMap.MapEntry<CharSequence> cacheData(String name, int id, int stripe) {
+  private static CharSequence cacheData(String name, int id) {
     if (name == null) {
       FSRecords.handleError(new RuntimeException("VFS name enumerator corrupted"));
     }
 
-    CharSequence rawName = ByteArrayCharSequence.convertToBytesIfPossible(name);
-    IntSLRUCache<CharSequence> cache = ourNameCache[stripe];
-    //noinspection SynchronizationOnLocalVariableOrMethodParameter
-    synchronized (cache) {
-      return cache.cacheEntry(id, rawName);
-    }
-  }
-
-  private static int calcStripeIdFromNameId(int id) {
-    int h = id;
-    h -= h<<6;
-    h ^= h>>17;
-    h -= h<<9;
-    h ^= h<<4;
-    h -= h<<3;
-    h ^= h<<10;
-    h ^= h>>15;
-    return h % ourNameCache.length;
+    ourNameTable.put(id, name);
+    return ByteArrayCharSequence.convertToBytesIfPossible(name);
   }
 
   private static final boolean ourTrackStats = false;
   private static final int ourLOneSize = 1024;
-  @SuppressWarnings("unchecked")
-  private static final IntObjectLinkedMap.MapEntry<CharSequence>[] ourArrayCache = new IntObjectLinkedMap.MapEntry[ourLOneSize];
+  private static final NameEntry[] ourArrayCache = new NameEntry[ourLOneSize];
 
   private static final AtomicInteger ourQueries = new AtomicInteger();
   private static final AtomicInteger ourMisses = new AtomicInteger();
 
+  private static final class NameEntry {
+    final int nameId;
+    final CharSequence name;
+
+    NameEntry(int nameId, @NotNull CharSequence name) {
+      this.nameId = nameId;
+      this.name = name;
+    }
+  }
 
   @FunctionalInterface
   public interface NameComputer {
@@ -118,27 +103,23 @@ public class FileNameCache {
     }
 
     int l1 = nameId % ourLOneSize;
-    IntObjectLinkedMap.MapEntry<CharSequence> entry = ourArrayCache[l1];
-    if (entry != null && entry.key == nameId) {
-      return entry.value;
+    NameEntry entry = ourArrayCache[l1];
+    if (entry != null && entry.nameId == nameId) {
+      return entry.name;
     }
 
     if (ourTrackStats) {
       ourMisses.incrementAndGet();
     }
 
-    final int stripe = calcStripeIdFromNameId(nameId);
-    IntSLRUCache<CharSequence> cache = ourNameCache[stripe];
-    //noinspection SynchronizationOnLocalVariableOrMethodParameter
-    synchronized (cache) {
-      entry = cache.getCachedEntry(nameId);
-    }
-    if (entry == null) {
-      entry = cacheData(computeName.compute(nameId), nameId, stripe);
+    CharSequence name = ourNameTable.getName(nameId);
+    if (name == null) {
+      name = cacheData(computeName.compute(nameId), nameId);
     }
-    ourArrayCache[l1] = entry;
-    return entry.value;
+    ourArrayCache[l1] = new NameEntry(nameId, name);
+    return name;
   }
+
   @NotNull
   public static CharSequence getVFileName(int nameId) {
     try {
@@ -148,4 +129,28 @@ public class FileNameCache {
       throw new RuntimeException(e); // actually will be caught in getNameByNameId
     }
   }
+
+  /**
+   * Same as {@code getVFileName(nameId).length()}, but doesn't allocate when the name has been requested before.
+   */
+  public static int getVFileNameLength(int nameId) {
+    assert nameId > 0 : nameId;
+    int length = ourNameTable.getLength(nameId);
+    return length >= 0 ? length : getVFileName(nameId).length();
+  }
+
+  /**
+   * Copies the name to {@code dest} at {@code destPos} without allocation when the name has been requested before.
+   *
+   * @return position after the copied name
+   */
+  public static int copyVFileName(int nameId, char @NotNull [] dest, int destPos) {
+    assert nameId > 0 : nameId;
+    int end = ourNameTable.copyChars(nameId, dest, destPos);
+    if (end >= 0) return end;
+
+    CharSequence name = getVFileName(nameId);
+    CharArrayUtil.getChars(name, dest, 0, destPos, name.length());
+    return destPos + name.length();
+  }
 }
@@ -0,0 +1,201 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.impl;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.text.ByteArrayCharSequence;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Append-only table of file names indexed by name id. Names are kept off-heap in Latin-1 when possible and in UTF-8 otherwise,
+ * so the table holds all names of the VFS without burdening the garbage collector.
+ * <p>
+ * Names are added under the table lock and published by a volatile write of their address to the on-heap index,
+ * so {@link #getLength} and {@link #copyChars} neither lock nor allocate, which makes them suitable for building paths.
+ */
+final class FileNameTable {
+  private static final int INDEX_CHUNK_BITS = 16;
+  private static final int INDEX_CHUNK_MASK = (1 << INDEX_CHUNK_BITS) - 1;
+  private static final int DATA_CHUNK_BITS = 20;
+  private static final int DATA_CHUNK_SIZE = 1 << DATA_CHUNK_BITS;
+  private static final int DATA_CHUNK_MASK = DATA_CHUNK_SIZE - 1;
+  // addresses plus one must be positive ints
+  private static final int MAX_DATA_CHUNKS = (1 << (31 - DATA_CHUNK_BITS)) - 1;
+  // header of a name is its length in chars, the flag, and, for UTF-8, the length in bytes
+  private static final int UTF8_FLAG = 0x80000000;
+  private static final int HEADER_SIZE = 4;
+  private static final int UTF8_HEADER_SIZE = 8;
+
+  // addresses of names in data chunks plus one, 0 for absent names
+  private volatile AtomicIntegerArray[] myIndexChunks = new AtomicIntegerArray[0];
+  private volatile ByteBuffer[] myDataChunks = new ByteBuffer[0];
+  // address of the next name in the last data chunk, guarded by this
+  private int myDataEnd = 0;
+
+  /**
+   * @return length of the name, or -1 if it is not in the table
+   */
+  int getLength(int nameId) {
+    int address = getAddress(nameId);
+    if (address < 0) return -1;
+    return myDataChunks[address >>> DATA_CHUNK_BITS].getInt(address & DATA_CHUNK_MASK) & ~UTF8_FLAG;
+  }
+
+  /**
+   * Copies chars of the name to {@code dest} starting with {@code destPos}.
+   *
+   * @return position after the copied chars, or -1 if the name is not in the table
+   */
+  int copyChars(int nameId, char @NotNull [] dest, int destPos) {
+    int address = getAddress(nameId);
+    if (address < 0) return -1;
+    ByteBuffer data = myDataChunks[address >>> DATA_CHUNK_BITS];
+    int offset = address & DATA_CHUNK_MASK;
+    int header = data.getInt(offset);
+    int length = header & ~UTF8_FLAG;
+    if ((header & UTF8_FLAG) == 0) {
+      offset += HEADER_SIZE;
+      for (int i = 0; i < length; i++) {
+        dest[destPos + i] = (char)(data.get(offset + i) & 0xFF);
+      }
+      return destPos + length;
+    }
+    int byteLength = data.getInt(offset + HEADER_SIZE);
+    return decodeUtf8(data, offset + UTF8_HEADER_SIZE, byteLength, dest, destPos);
+  }
+
+  /**
+   * @return the name in the same form as {@link ByteArrayCharSequence#convertToBytesIfPossible} produces, or null if it's not in the table
+   */
+  @Nullable
+  CharSequence getName(int nameId) {
+    int address = getAddress(nameId);
+    if (address < 0) return null;
+    ByteBuffer data = myDataChunks[address >>> DATA_CHUNK_BITS];
+    int offset = address & DATA_CHUNK_MASK;
+    int header = data.getInt(offset);
+    if ((header & UTF8_FLAG) == 0) {
+      byte[] bytes = new byte[header];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = data.get(offset + HEADER_SIZE + i);
+      }
+      // see JEP 254: Compact Strings
+      return SystemInfo.IS_AT_LEAST_JAVA9 || bytes.length == 0 ? new String(bytes, StandardCharsets.ISO_8859_1) : new ByteArrayCharSequence(bytes);
+    }
+    char[] chars = new char[header & ~UTF8_FLAG];
+    decodeUtf8(data, offset + UTF8_HEADER_SIZE, data.getInt(offset + HEADER_SIZE), chars, 0);
+    return new String(chars);
+  }
+
+  /**
+   * Adds the name unless there's already a name with this id. Names longer than a data chunk are not added.
+   */
+  synchronized void put(int nameId, @NotNull CharSequence name) {
+    assert nameId > 0 : nameId;
+    if (getAddress(nameId) >= 0) return;
+
+    int length = name.length();
+    boolean latin1 = isLatin1(name);
+    byte[] utf8 = latin1 ? null : name.toString().getBytes(StandardCharsets.UTF_8);
+    // unpaired surrogates are not encodable, such names are not worth a separate format
+    if (utf8 != null && !StringUtil.equals(new String(utf8, StandardCharsets.UTF_8), name)) return;
+    int size = latin1 ? HEADER_SIZE + length : UTF8_HEADER_SIZE + utf8.length;
+    if (size > DATA_CHUNK_SIZE) return;
+
+    int address = allocate(size);
+    if (address < 0) return;
+    ByteBuffer data = myDataChunks[address >>> DATA_CHUNK_BITS];
+    int offset = address & DATA_CHUNK_MASK;
+    if (latin1) {
+      data.putInt(offset, length);
+      for (int i = 0; i < length; i++) {
+        data.put(offset + HEADER_SIZE + i, (byte)name.charAt(i));
+      }
+    }
+    else {
+      data.putInt(offset, length | UTF8_FLAG);
+      data.putInt(offset + HEADER_SIZE, utf8.length);
+      for (int i = 0; i < utf8.length; i++) {
+        data.put(offset + UTF8_HEADER_SIZE + i, utf8[i]);
+      }
+    }
+
+    // the volatile write publishes the name written above
+    ensureIndexChunk(nameId >>> INDEX_CHUNK_BITS).set(nameId & INDEX_CHUNK_MASK, address + 1);
+  }
+
+  private int getAddress(int nameId) {
+    AtomicIntegerArray[] indexChunks = myIndexChunks;
+    int chunk = nameId >>> INDEX_CHUNK_BITS;
+    if (chunk >= indexChunks.length) return -1;
+    AtomicIntegerArray index = indexChunks[chunk];
+    return index == null ? -1 : index.get(nameId & INDEX_CHUNK_MASK) - 1;
+  }
+
+  // returns -1 when the table is full
+  private int allocate(int size) {
+    ByteBuffer[] dataChunks = myDataChunks;
+    if (dataChunks.length == 0 || (myDataEnd & DATA_CHUNK_MASK) + size > DATA_CHUNK_SIZE || myDataEnd == dataChunks.length << DATA_CHUNK_BITS) {
+      if (dataChunks.length == MAX_DATA_CHUNKS) return -1;
+      dataChunks = Arrays.copyOf(dataChunks, dataChunks.length + 1);
+      dataChunks[dataChunks.length - 1] = ByteBuffer.allocateDirect(DATA_CHUNK_SIZE);
+      myDataChunks = dataChunks;
+      myDataEnd = (dataChunks.length - 1) << DATA_CHUNK_BITS;
+    }
+    int address = myDataEnd;
+    myDataEnd += size;
+    return address;
+  }
+
+  @NotNull
+  private AtomicIntegerArray ensureIndexChunk(int chunk) {
+    AtomicIntegerArray[] indexChunks = myIndexChunks;
+    if (chunk >= indexChunks.length) {
+      indexChunks = Arrays.copyOf(indexChunks, chunk + 1);
+    }
+    else if (indexChunks[chunk] != null) {
+      return indexChunks[chunk];
+    }
+    else {
+      indexChunks = indexChunks.clone();
+    }
+    AtomicIntegerArray index = indexChunks[chunk] = new AtomicIntegerArray(INDEX_CHUNK_MASK + 1);
+    myIndexChunks = indexChunks;
+    return index;
+  }
+
+  private static boolean isLatin1(@NotNull CharSequence name) {
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) > 0xFF) return false;
+    }
+    return true;
+  }
+
+  private static int decodeUtf8(@NotNull ByteBuffer data, int offset, int byteLength, char @NotNull [] dest, int destPos) {
+    int end = offset + byteLength;
+    while (offset < end) {
+      int b = data.get(offset++) & 0xFF;
+      if (b < 0x80) {
+        dest[destPos++] = (char)b;
+      }
+      else if (b < 0xE0) {
+        dest[destPos++] = (char)((b & 0x1F) << 6 | data.get(offset++) & 0x3F);
+      }
+      else if (b < 0xF0) {
+        dest[destPos++] = (char)((b & 0x0F) << 12 | (data.get(offset++) & 0x3F) << 6 | data.get(offset++) & 0x3F);
+      }
+      else {
+        int codePoint = (b & 0x07) << 18 | (data.get(offset++) & 0x3F) << 12 | (data.get(offset++) & 0x3F) << 6 | data.get(offset++) & 0x3F;
+        dest[destPos++] = Character.highSurrogate(codePoint);
+        dest[destPos++] = Character.lowSurrogate(codePoint);
+      }
+    }
+    return destPos;
+  }
+}
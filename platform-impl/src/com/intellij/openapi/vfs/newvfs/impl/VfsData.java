@@ -27,11 +27,14 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry.ALL_FLAGS_MASK;
+import static com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry.CHILDREN_CACHED;
 import static com.intellij.util.ObjectUtils.assertNotNull;
 
 /**
@@ -78,6 +81,8 @@ public class VfsData {
   private boolean myHasChangedParents; // synchronized by read-write lock; clients outside read-action deserve to get outdated result
   private final IntObjectMap<VirtualDirectoryImpl> myChangedParents = ContainerUtil.createConcurrentIntObjectMap();
 
+  private volatile VfsSnapshot mySnapshot;
+
   public VfsData() {
     ApplicationManager.getApplication().addApplicationListener(new ApplicationListener() {
       @Override
@@ -216,6 +221,52 @@ public class VfsData {
     }
   }
 
+  /**
+   * Maps the snapshot of directories loaded in the previous session, see {@link VfsSnapshot}.
+   * Must be called before any file is loaded.
+   */
+  public void readSnapshot(@NotNull File file, long creationTimestamp, int modCount) {
+    mySnapshot = VfsSnapshot.read(file, creationTimestamp, modCount);
+    if (mySnapshot != null) LOG.info("VFS snapshot is read from " + file);
+  }
+
+  public void writeSnapshot(@NotNull File file, long creationTimestamp, int modCount) {
+    try {
+      VfsSnapshot.write(file, creationTimestamp, modCount, this);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot write VFS snapshot", e);
+    }
+  }
+
+  @Nullable
+  VfsSnapshot getSnapshot() {
+    return mySnapshot;
+  }
+
+  void processLoadedDirectories(@NotNull VfsSnapshot.DirectoryConsumer consumer) throws IOException {
+    int[] keys = mySegments.keys();
+    Arrays.sort(keys);
+    for (int key : keys) {
+      Segment segment = mySegments.get(key);
+      for (int offset = 0; offset < SEGMENT_SIZE; offset++) {
+        int id = key << SEGMENT_BITS | offset;
+        if (id == 0 || !isFileValid(id)) continue;
+        Object o = segment.myObjectArray.get(offset);
+        if (o instanceof DirectoryData && segment.getFlag(id, CHILDREN_CACHED)) {
+          consumer.consume(id, ((DirectoryData)o).myChildrenIds);
+        }
+      }
+    }
+  }
+
+  boolean isLoadedEmptyDirectory(int id) {
+    Segment segment = getSegment(id, false);
+    if (segment == null) return false;
+    Object o = segment.myObjectArray.get(getOffset(id));
+    return o instanceof DirectoryData && segment.getFlag(id, CHILDREN_CACHED) && ((DirectoryData)o).myChildrenIds.length == 0;
+  }
+
   static class Segment {
     // user data for files, DirectoryData for folders
     private final AtomicReferenceArray<Object> myObjectArray = new AtomicReferenceArray<>(SEGMENT_SIZE);
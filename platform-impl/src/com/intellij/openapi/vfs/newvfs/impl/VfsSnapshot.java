@@ -0,0 +1,160 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
+import gnu.trove.TIntIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact image of directories whose children were loaded in the previous session: ids, name ids and attributes of their children,
+ * in the order of {@link VfsData.DirectoryData#myChildrenIds}. It's written at shutdown and mapped at start, so a directory is populated
+ * from one contiguous part of the snapshot instead of reading the children list, names and flags of every child from {@link FSRecords}.
+ * <p>
+ * The snapshot is valid only for the {@link FSRecords} storage it was written against, which is checked by the creation timestamp and
+ * the global modification count of the storage. During the session it's used for a directory unless {@link FSRecords#isChangedInSession}
+ * for the directory or any of its children.
+ */
+final class VfsSnapshot {
+  private static final Logger LOG = Logger.getInstance(VfsSnapshot.class);
+
+  private static final int FORMAT_VERSION = 1;
+  // format version, storage creation timestamp, global modification count
+  private static final int HEADER_SIZE = 4 + 8 + 4;
+  // id and children count
+  private static final int DIRECTORY_HEADER_SIZE = 4 + 4;
+  // id, name id and persistent attributes with EMPTY_DIRECTORY_FLAG
+  private static final int CHILD_SIZE = 4 + 4 + 4;
+  private static final int EMPTY_DIRECTORY_FLAG = 0x8000_0000;
+
+  interface DirectoryConsumer {
+    void consume(int id, int @NotNull [] childrenIds) throws IOException;
+  }
+
+  private final ByteBuffer myBuffer;
+  private final TIntIntHashMap myDirectoryOffsets;
+
+  private VfsSnapshot(@NotNull ByteBuffer buffer, @NotNull TIntIntHashMap directoryOffsets) {
+    myBuffer = buffer;
+    myDirectoryOffsets = directoryOffsets;
+  }
+
+  /**
+   * @return offset of the directory in the snapshot, or -1 if it's not in the snapshot or has changed since the snapshot was written
+   */
+  int findDirectory(int id) {
+    if (!myDirectoryOffsets.containsKey(id) || FSRecords.isChangedInSession(id)) return -1;
+    int offset = myDirectoryOffsets.get(id);
+    for (int i = 0, count = getChildCount(offset); i < count; i++) {
+      if (FSRecords.isChangedInSession(getChildId(offset, i))) return -1;
+    }
+    return offset;
+  }
+
+  int getChildCount(int directoryOffset) {
+    return myBuffer.getInt(directoryOffset + 4);
+  }
+
+  int getChildId(int directoryOffset, int index) {
+    return myBuffer.getInt(getChildOffset(directoryOffset, index));
+  }
+
+  int getChildNameId(int directoryOffset, int index) {
+    return myBuffer.getInt(getChildOffset(directoryOffset, index) + 4);
+  }
+
+  @SuppressWarnings("MagicConstant")
+  @PersistentFS.Attributes
+  int getChildAttributes(int directoryOffset, int index) {
+    return myBuffer.getInt(getChildOffset(directoryOffset, index) + 8) & ~EMPTY_DIRECTORY_FLAG;
+  }
+
+  boolean isEmptyDirectory(int directoryOffset, int index) {
+    return (myBuffer.getInt(getChildOffset(directoryOffset, index) + 8) & EMPTY_DIRECTORY_FLAG) != 0;
+  }
+
+  private static int getChildOffset(int directoryOffset, int index) {
+    return directoryOffset + DIRECTORY_HEADER_SIZE + index * CHILD_SIZE;
+  }
+
+  /**
+   * Maps the snapshot and indexes its directories.
+   *
+   * @return null if there's no snapshot, or it was written against another state of {@link FSRecords}
+   */
+  @Nullable
+  static VfsSnapshot read(@NotNull File file, long creationTimestamp, int modCount) {
+    // the previous snapshot may still be mapped while the new one is written, so the new one is put in place here
+    File newFile = getNewFile(file);
+    if (newFile.isFile() && (!file.exists() || file.delete())) {
+      //noinspection ResultOfMethodCallIgnored
+      newFile.renameTo(file);
+    }
+    if (!file.isFile()) return null;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.limit() < HEADER_SIZE ||
+          buffer.getInt(0) != FORMAT_VERSION ||
+          buffer.getLong(4) != creationTimestamp ||
+          buffer.getInt(12) != modCount) {
+        LOG.info("VFS snapshot is stale");
+        return null;
+      }
+
+      TIntIntHashMap offsets = new TIntIntHashMap();
+      int offset = HEADER_SIZE;
+      while (offset < buffer.limit()) {
+        if (offset + DIRECTORY_HEADER_SIZE > buffer.limit()) throw new IOException("Truncated directory at " + offset);
+        int count = buffer.getInt(offset + 4);
+        int next = offset + DIRECTORY_HEADER_SIZE + count * CHILD_SIZE;
+        if (count < 0 || next > buffer.limit()) throw new IOException("Truncated children at " + offset);
+        offsets.put(buffer.getInt(offset), offset);
+        offset = next;
+      }
+      return new VfsSnapshot(buffer, offsets);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read VFS snapshot", e);
+      return null;
+    }
+  }
+
+  static void write(@NotNull File file, long creationTimestamp, int modCount, @NotNull VfsData data) throws IOException {
+    File newFile = getNewFile(file);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(creationTimestamp);
+      out.writeInt(modCount);
+      data.processLoadedDirectories((id, childrenIds) -> {
+        out.writeInt(id);
+        out.writeInt(childrenIds.length);
+        for (int childId : childrenIds) {
+          VfsData.Segment segment = data.getSegment(childId, false);
+          if (segment == null) throw new IOException("No data for child " + childId + " of " + id);
+          out.writeInt(childId);
+          out.writeInt(segment.getNameId(childId));
+          int attributes = PersistentFS.getInstance().getFileAttributes(childId);
+          out.writeInt(data.isLoadedEmptyDirectory(childId) ? attributes | EMPTY_DIRECTORY_FLAG : attributes);
+        }
+      });
+    }
+    catch (IOException e) {
+      //noinspection ResultOfMethodCallIgnored
+      newFile.delete();
+      throw e;
+    }
+  }
+
+  @NotNull
+  private static File getNewFile(@NotNull File file) {
+    return new File(file.getPath() + ".new");
+  }
+}
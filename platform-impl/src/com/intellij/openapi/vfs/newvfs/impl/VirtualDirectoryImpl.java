@@ -359,6 +359,11 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
     NewVirtualFileSystem delegate = getFileSystem();
     boolean caseSensitive = delegate.isCaseSensitive();
     synchronized (myData) {
+      VirtualFile[] snapshotChildren = loadChildrenFromSnapshot(delegate);
+      if (snapshotChildren != null) {
+        return snapshotChildren;
+      }
+
       final boolean wasChildrenLoaded = ourPersistence.areChildrenLoaded(this);
       final FSRecords.NameId[] childrenIds = ourPersistence.listAll(this);
       int[] result = ArrayUtil.newIntArray(childrenIds.length);
@@ -421,6 +426,43 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
     }
   }
 
+  // children sorted by name along with their attributes are taken from the snapshot of the previous session as is, see VfsSnapshot
+  private VirtualFile @Nullable [] loadChildrenFromSnapshot(@NotNull NewVirtualFileSystem delegate) {
+    VfsSnapshot snapshot = mySegment.vfsData.getSnapshot();
+    if (snapshot == null) return null;
+    int directory = snapshot.findDirectory(myId);
+    if (directory < 0) return null;
+
+    int count = snapshot.getChildCount(directory);
+    int[] result = ArrayUtil.newIntArray(count);
+    for (int i = 0; i < count; i++) {
+      result[i] = snapshot.getChildId(directory, i);
+    }
+    // children found before all of them are loaded must be among the loaded ones
+    TIntHashSet snapshotIds = new TIntHashSet(result);
+    for (int id : myData.myChildrenIds) {
+      if (!snapshotIds.contains(id)) return null;
+    }
+
+    VirtualFile[] files = count == 0 ? VirtualFile.EMPTY_ARRAY : new VirtualFile[count];
+    for (int i = 0; i < count; i++) {
+      VirtualFileSystemEntry file = mySegment.vfsData.getFileById(result[i], this, true);
+      if (file == null) {
+        FileAttributes attributes = PersistentFS.toFileAttributes(snapshot.getChildAttributes(directory, i));
+        file = createChild(result[i], snapshot.getChildNameId(directory, i), delegate, attributes, snapshot.isEmptyDirectory(directory, i));
+      }
+      files[i] = file;
+    }
+
+    myData.clearAdoptedNames();
+    myData.myChildrenIds = result;
+    setChildrenLoaded();
+    if (CHECK) {
+      assertConsistency(delegate.isCaseSensitive(), "snapshot");
+    }
+    return files;
+  }
+
   private void assertConsistency(boolean caseSensitive, @NotNull Object details) {
     if (!CHECK || ApplicationInfoImpl.isInStressTest()) return;
     int[] childrenIds = myData.myChildrenIds;
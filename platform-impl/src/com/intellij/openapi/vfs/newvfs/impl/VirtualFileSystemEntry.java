@@ -158,12 +158,12 @@ public abstract class VirtualFileSystemEntry extends NewVirtualFile {
   }
 
   protected char @NotNull [] appendPathOnFileSystem(int accumulatedPathLength, int[] positionRef) {
-    CharSequence name = getNameSequence();
+    int nameId = getNameId();
 
-    char[] chars = getParent().appendPathOnFileSystem(accumulatedPathLength + 1 + name.length(), positionRef);
+    char[] chars = getParent().appendPathOnFileSystem(accumulatedPathLength + 1 + FileNameCache.getVFileNameLength(nameId), positionRef);
     int i = positionRef[0];
     chars[i] = '/';
-    positionRef[0] = copyString(chars, i + 1, name);
+    positionRef[0] = FileNameCache.copyVFileName(nameId, chars, i + 1);
 
     return chars;
   }
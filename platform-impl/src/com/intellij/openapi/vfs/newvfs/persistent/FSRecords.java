@@ -6,6 +6,7 @@ import com.intellij.openapi.application.ApplicationNamesInfo;
 import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteArraySequence;
@@ -19,6 +20,7 @@ import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
 import com.intellij.util.*;
 import com.intellij.util.concurrency.SequentialTaskExecutor;
+import com.intellij.util.containers.ConcurrentBitSet;
 import com.intellij.util.containers.ConcurrentIntObjectMap;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.hash.ContentHashEnumerator;
@@ -40,7 +42,9 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * @author max
@@ -56,6 +60,9 @@ public class FSRecords {
   private static final boolean inlineAttributes = SystemProperties.getBooleanProperty("idea.inline.vfs.attributes", true);
   private static final boolean bulkAttrReadSupport = SystemProperties.getBooleanProperty("idea.bulk.attr.read", false);
   private static final boolean useCompressionUtil = SystemProperties.getBooleanProperty("idea.use.lightweight.compression.for.vfs", false);
+  // records are marked by their codec, so changing it doesn't require rebuilding the contents storage
+  private static final RecordCompressionCodec contentCodec =
+    ObjectUtils.notNull(RecordCompressionCodec.findByName(System.getProperty("idea.vfs.content.codec", "")), RecordCompressionCodec.DEFLATE);
   private static final boolean useSmallAttrTable = SystemProperties.getBooleanProperty("idea.use.small.attr.table.for.vfs", true);
   private static final boolean ourStoreRootsSeparately = SystemProperties.getBooleanProperty("idea.store.roots.separately", false);
 
@@ -106,11 +113,23 @@ public class FSRecords {
   private static final FileAttribute ourSymlinkTargetAttr = new FileAttribute("FsRecords.SYMLINK_TARGET_2");
   private static final FileAttribute ourSymlinkTargetAttr_old = new FileAttribute("FsRecords.SYMLINK_TARGET");
 
+  // Every modification is done under w, so writers of different storages are serialized and see consistent state.
+  // Readers take the lock of the storage they read instead:
+  // - fields of the records table are read under the read lock of ourRecordsLock, which writers hold around every record update;
+  // - attributes are read under ourAttributesLock, which writers of attributes take in addition to w;
+  // - names, contents and content hashes are read under the own locks of their storages.
+  // All of them also hold the read lock of ourStoragesLifetimeLock, so storages are not closed under them.
+  // r is left for reads that need a consistent view of several fields or storages, e.g. the validity and the content of a file, or flushing.
   private static final ReentrantReadWriteLock lock;
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
+  private static final StampedLock ourRecordsLock = new StampedLock();
+  private static final ReentrantReadWriteLock ourStoragesLifetimeLock = new ReentrantReadWriteLock();
+  private static final ReentrantReadWriteLock ourAttributesLock = new ReentrantReadWriteLock();
 
   private static volatile int ourLocalModificationCount;
+  // ids of records whose fields or children lists were modified after connecting, i.e. which may differ from the VFS snapshot
+  private static final ConcurrentBitSet ourChangedRecords = new ConcurrentBitSet();
   private static volatile boolean ourIsDisposed;
 
   private static final int FREE_RECORD_FLAG = 0x100;
@@ -165,6 +184,8 @@ public class FSRecords {
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static volatile boolean myDirty;
+    // unaligned values are read through the shared buffer of the records storage, so its readers must be exclusive
+    private static boolean myRecordsAligned;
     /** accessed under {@link #r}/{@link #w} */
     private static ScheduledFuture<?> myFlushingFuture;
     /** accessed under {@link #r}/{@link #w} */
@@ -268,7 +289,8 @@ public class FSRecords {
           }
         };
 
-        myContents = new RefCountingStorage(contentsFile.getPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH, useCompressionUtil) {
+        myContents = new RefCountingStorage(contentsFile.getPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH,
+                                            useCompressionUtil ? null : contentCodec) {
           @NotNull
           @Override
           protected ExecutorService createExecutor() {
@@ -281,6 +303,7 @@ public class FSRecords {
 
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
         if (!aligned) LOG.error("Buffer size " + PagedFileStorage.BUFFER_SIZE + " is not aligned for record size " + RECORD_SIZE);
+        myRecordsAligned = aligned;
         myRecords = new ResizeableMappedFile(recordsFile.toPath(), 20 * 1024, storageLockContext,
                                              PagedFileStorage.BUFFER_SIZE, aligned, IOUtil.BYTE_BUFFERS_USE_NATIVE_BYTE_ORDER);
 
@@ -452,7 +475,13 @@ public class FSRecords {
     }
 
     static void cleanRecord(int id) {
-      myRecords.put(((long)id) * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      long stamp = ourRecordsLock.writeLock();
+      try {
+        myRecords.put(((long)id) * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      }
+      finally {
+        ourRecordsLock.unlockWrite(stamp);
+      }
     }
 
     private static PersistentStringEnumerator getNames() {
@@ -460,6 +489,16 @@ public class FSRecords {
     }
 
     private static void closeFiles() throws IOException {
+      ourStoragesLifetimeLock.writeLock().lock();
+      try {
+        doCloseFiles();
+      }
+      finally {
+        ourStoragesLifetimeLock.writeLock().unlock();
+      }
+    }
+
+    private static void doCloseFiles() throws IOException {
       if (myFlushingFuture != null) {
         myFlushingFuture.cancel(false);
         myFlushingFuture = null;
@@ -549,7 +588,7 @@ public class FSRecords {
   }
 
   public static long getCreationTimestamp() {
-    return readAndHandleErrors(DbConnection::getTimestamp);
+    return readRecordsAndHandleErrors(DbConnection::getTimestamp);
   }
 
   private static ResizeableMappedFile getRecords() {
@@ -576,7 +615,7 @@ public class FSRecords {
 
   // todo: Address  / capacity store in records table, size store with payload
   public static int createRecord() {
-    return writeAndHandleErrors(() -> {
+    return writeAttributesAndHandleErrors(() -> {
       DbConnection.markDirty();
 
       final int free = DbConnection.getFreeRecord();
@@ -639,7 +678,7 @@ public class FSRecords {
   }
 
   private static void deleteRecord(final int id) {
-    writeAndHandleErrors(() -> {
+    writeAttributesAndHandleErrors(() -> {
       DbConnection.markDirty();
       deleteContentAndAttributes(id);
 
@@ -746,7 +785,7 @@ public class FSRecords {
   }
 
   static int findRootRecord(@NotNull String rootUrl) {
-    return writeAndHandleErrors(() -> {
+    return writeAttributesAndHandleErrors(() -> {
       if (ourStoreRootsSeparately) {
         try (@SuppressWarnings("ImplicitDefaultCharsetUsage") LineNumberReader stream =
                new LineNumberReader(new BufferedReader(new InputStreamReader(new FileInputStream(DbConnection.myRootsFile))))) {
@@ -814,7 +853,7 @@ public class FSRecords {
   }
 
   static void deleteRootRecord(int id) {
-    writeAndHandleErrors(() -> {
+    writeAttributesAndHandleErrors(() -> {
       DbConnection.markDirty();
       if (ourStoreRootsSeparately) {
         List<String> rootsThatLeft = new ArrayList<>();
@@ -872,7 +911,7 @@ public class FSRecords {
   }
 
   static int @NotNull [] list(int id) {
-    return readAndHandleErrors(() -> {
+    return readAttributesAndHandleErrors(() -> {
       try (final DataInputStream input = readAttribute(id, ourChildrenAttr)) {
         if (input == null) return ArrayUtilRt.EMPTY_INT_ARRAY;
         final int count = DataInputOutputUtil.readINT(input);
@@ -887,7 +926,7 @@ public class FSRecords {
   }
 
   static boolean mayHaveChildren(int id) {
-    return readAndHandleErrors(() -> {
+    return readAttributesAndHandleErrors(() -> {
       try (final DataInputStream input = readAttribute(id, ourChildrenAttr)) {
         if (input == null) return true;
         final int count = DataInputOutputUtil.readINT(input);
@@ -919,7 +958,7 @@ public class FSRecords {
   // returns NameId[] sorted by NameId.id
   public static NameId @NotNull [] listAll(int parentId) {
     assert parentId > 0 : parentId;
-    return readAndHandleErrors(() -> {
+    return readAttributesAndHandleErrors(() -> {
       try (final DataInputStream input = readAttribute(parentId, ourChildrenAttr)) {
         if (input == null) return NameId.EMPTY_ARRAY;
 
@@ -938,7 +977,7 @@ public class FSRecords {
   }
 
   static boolean wereChildrenAccessed(int id) {
-    return readAndHandleErrors(() -> findAttributePage(id, ourChildrenAttr, false) != 0);
+    return readAttributesAndHandleErrors(() -> findAttributePage(id, ourChildrenAttr, false) != 0);
   }
 
   private static <T> T readAndHandleErrors(@NotNull ThrowableComputable<T, ?> action) {
@@ -958,6 +997,62 @@ public class FSRecords {
     }
   }
 
+  // reads the records table and storages guarded by their own locks, for single fields only: writers are not excluded
+  private static <T> T readRecordsAndHandleErrors(@NotNull ThrowableComputable<T, ?> action) {
+    assert lock.getReadHoldCount() == 0; // otherwise DbConnection.handleError(e) (requires write lock) could fail
+    try {
+      ourStoragesLifetimeLock.readLock().lock();
+      try {
+        return action.compute();
+      }
+      finally {
+        ourStoragesLifetimeLock.readLock().unlock();
+      }
+    }
+    catch (Throwable e) {
+      DbConnection.handleError(e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static <T> T readAttributesAndHandleErrors(@NotNull ThrowableComputable<T, ?> action) {
+    assert lock.getReadHoldCount() == 0; // otherwise DbConnection.handleError(e) (requires write lock) could fail
+    try {
+      ourStoragesLifetimeLock.readLock().lock();
+      ourAttributesLock.readLock().lock();
+      try {
+        return action.compute();
+      }
+      finally {
+        ourAttributesLock.readLock().unlock();
+        ourStoragesLifetimeLock.readLock().unlock();
+      }
+    }
+    catch (Throwable e) {
+      DbConnection.handleError(e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static <T> T writeAttributesAndHandleErrors(@NotNull ThrowableComputable<T, ?> action) {
+    return writeAndHandleErrors(() -> {
+      ourAttributesLock.writeLock().lock();
+      try {
+        return action.compute();
+      }
+      finally {
+        ourAttributesLock.writeLock().unlock();
+      }
+    });
+  }
+
+  private static void writeAttributesAndHandleErrors(@NotNull ThrowableRunnable<?> action) {
+    writeAttributesAndHandleErrors(() -> {
+      action.run();
+      return null;
+    });
+  }
+
   private static <T> T writeAndHandleErrors(@NotNull ThrowableComputable<T, ?> action) {
     try {
       w.lock();
@@ -988,8 +1083,9 @@ public class FSRecords {
   static void updateList(int id, int @NotNull [] childIds) {
     assert id > 0 : id;
     Arrays.sort(childIds);
-    writeAndHandleErrors(() -> {
+    writeAttributesAndHandleErrors(() -> {
       DbConnection.markDirty();
+      ourChangedRecords.set(id);
       try (DataOutputStream record = writeAttribute(id, ourChildrenAttr)) {
         DataInputOutputUtil.writeINT(record, childIds.length);
 
@@ -1012,7 +1108,7 @@ public class FSRecords {
 
   @Nullable
   static String readSymlinkTarget(int id) {
-    return readAndHandleErrors(() -> {
+    return readAttributesAndHandleErrors(() -> {
       try (DataInputStream stream = readAttribute(id, ourSymlinkTargetAttr)) {
         if (stream != null) return StringUtil.nullize(IOUtil.readUTF(stream));
       }
@@ -1024,7 +1120,7 @@ public class FSRecords {
   }
 
   static void storeSymlinkTarget(int id, @Nullable String symlinkTarget) {
-    writeAndHandleErrors(() -> {
+    writeAttributesAndHandleErrors(() -> {
       DbConnection.markDirty();
       try (DataOutputStream stream = writeAttribute(id, ourSymlinkTargetAttr)) {
         IOUtil.writeUTF(stream, StringUtil.notNullize(symlinkTarget));
@@ -1034,8 +1130,9 @@ public class FSRecords {
 
   private static void incModCount(int id) {
     incLocalModCount();
+    ourChangedRecords.set(id);
     final int count = doGetModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    putRecordsInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
 
     setModCount(id, count);
   }
@@ -1052,15 +1149,22 @@ public class FSRecords {
   }
 
   static int getModCount() {
-    return readAndHandleErrors(FSRecords::doGetModCount);
+    return readRecordsAndHandleErrors(FSRecords::doGetModCount);
+  }
+
+  /**
+   * @return whether the fields of the record or the list of its children were modified after the storage was connected
+   */
+  public static boolean isChangedInSession(int id) {
+    return ourChangedRecords.get(id);
   }
 
   private static int doGetModCount() {
-    return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
+    return getRecordsInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
   }
 
   public static int getParent(int id) {
-    return readAndHandleErrors(() -> {
+    return readRecordsAndHandleErrors(() -> {
       final int parentId = getRecordInt(id, PARENT_OFFSET);
       if (parentId == id) {
         LOG.error("Cyclic parent child relations in the database. id = " + id);
@@ -1126,6 +1230,7 @@ public class FSRecords {
     }
 
     ParentFinder finder = new ParentFinder();
+    // under r: the path of parents must not change while it is walked
     readAndHandleErrors(finder);
     return finder.findDescendantByIdPath();
   }
@@ -1143,7 +1248,7 @@ public class FSRecords {
   }
 
   public static int getNameId(int id) {
-    return readAndHandleErrors(() -> doGetNameId(id));
+    return readRecordsAndHandleErrors(() -> doGetNameId(id));
   }
 
   private static int doGetNameId(int id) {
@@ -1151,7 +1256,7 @@ public class FSRecords {
   }
 
   public static int getNameId(@NotNull String name) {
-    return readAndHandleErrors(() -> getNames().enumerate(name));
+    return readRecordsAndHandleErrors(() -> getNames().enumerate(name));
   }
 
   public static String getName(int id) {
@@ -1160,7 +1265,7 @@ public class FSRecords {
 
   @NotNull
   static CharSequence getNameSequence(int id) {
-    return readAndHandleErrors(() -> doGetNameSequence(id));
+    return readRecordsAndHandleErrors(() -> doGetNameSequence(id));
   }
 
   @NotNull
@@ -1170,7 +1275,7 @@ public class FSRecords {
   }
 
   public static String getNameByNameId(int nameId) {
-    return readAndHandleErrors(() -> doGetNameByNameId(nameId));
+    return readRecordsAndHandleErrors(() -> doGetNameByNameId(nameId));
   }
 
   private static String doGetNameByNameId(int nameId) throws IOException {
@@ -1186,7 +1291,7 @@ public class FSRecords {
   }
 
   static int getFlags(int id) {
-    return readAndHandleErrors(() -> doGetFlags(id));
+    return readRecordsAndHandleErrors(() -> doGetFlags(id));
   }
 
   private static int doGetFlags(int id) {
@@ -1203,37 +1308,57 @@ public class FSRecords {
   }
 
   static long getLength(int id) {
-    return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, LENGTH_OFFSET)));
+    return readRecordsAndHandleErrors(() -> getRecordLong(id, LENGTH_OFFSET));
   }
 
   static void setLength(int id, long len) {
     writeAndHandleErrors(() -> {
-      ResizeableMappedFile records = getRecords();
-      int lengthOffset = getOffset(id, LENGTH_OFFSET);
-      if (records.getLong(lengthOffset) != len) {
+      if (getRecordLong(id, LENGTH_OFFSET) != len) {
         incModCount(id);
-        records.putLong(lengthOffset, len);
+        putRecordLong(id, LENGTH_OFFSET, len);
       }
     });
   }
 
   static long getTimestamp(int id) {
-    return readAndHandleErrors(() -> getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET)));
+    return readRecordsAndHandleErrors(() -> getRecordLong(id, TIMESTAMP_OFFSET));
   }
 
   static void setTimestamp(int id, long value) {
     writeAndHandleErrors(() -> {
-      int timeStampOffset = getOffset(id, TIMESTAMP_OFFSET);
-      ResizeableMappedFile records = getRecords();
-      if (records.getLong(timeStampOffset) != value) {
+      if (getRecordLong(id, TIMESTAMP_OFFSET) != value) {
         incModCount(id);
-        records.putLong(timeStampOffset, value);
+        putRecordLong(id, TIMESTAMP_OFFSET, value);
       }
     });
   }
 
+  /**
+   * Reads flags, timestamps and lengths of the records under a single acquisition of the records lock, so the values of all records
+   * are consistent with each other. Ids are expected to be sorted, as {@link #listAll} returns them, to read the records file sequentially.
+   */
+  static void readFlagsTimestampsAndLengths(int @NotNull [] ids, int @NotNull [] flags, long @NotNull [] timestamps, long @NotNull [] lengths) {
+    readRecordsAndHandleErrors(() -> {
+      ResizeableMappedFile records = getRecords();
+      boolean aligned = DbConnection.myRecordsAligned;
+      long stamp = aligned ? ourRecordsLock.readLock() : ourRecordsLock.writeLock();
+      try {
+        for (int i = 0; i < ids.length; i++) {
+          int id = ids[i];
+          flags[i] = records.getInt(getOffset(id, FLAGS_OFFSET));
+          timestamps[i] = records.getLong(getOffset(id, TIMESTAMP_OFFSET));
+          lengths[i] = records.getLong(getOffset(id, LENGTH_OFFSET));
+        }
+      }
+      finally {
+        ourRecordsLock.unlock(stamp);
+      }
+      return null;
+    });
+  }
+
   static int getModCount(int id) {
-    return readAndHandleErrors(() -> getRecordInt(id, MOD_COUNT_OFFSET));
+    return readRecordsAndHandleErrors(() -> getRecordInt(id, MOD_COUNT_OFFSET));
   }
 
   private static void setModCount(int id, int value) {
@@ -1257,11 +1382,77 @@ public class FSRecords {
   }
 
   private static int getRecordInt(int id, int offset) {
-    return getRecords().getInt(getOffset(id, offset));
+    return getRecordsInt(getOffset(id, offset));
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    putRecordsInt(getOffset(id, offset), value);
+  }
+
+  private static long getRecordLong(int id, int offset) {
+    return getRecordsLong(getOffset(id, offset));
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    long stamp = ourRecordsLock.writeLock();
+    try {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
+    finally {
+      ourRecordsLock.unlockWrite(stamp);
+    }
+  }
+
+  // records are updated only under w, concurrent readers don't take it and read under the read lock of ourRecordsLock instead:
+  // writers hold its write lock while the records file is resized and its pages are unmapped, so a reader never touches a freed buffer
+  private static int getRecordsInt(int address) {
+    ResizeableMappedFile records = getRecords();
+    if (DbConnection.myRecordsAligned) {
+      long stamp = ourRecordsLock.readLock();
+      try {
+        return records.getInt(address);
+      }
+      finally {
+        ourRecordsLock.unlockRead(stamp);
+      }
+    }
+    long stamp = ourRecordsLock.writeLock();
+    try {
+      return records.getInt(address);
+    }
+    finally {
+      ourRecordsLock.unlockWrite(stamp);
+    }
+  }
+
+  private static void putRecordsInt(int address, int value) {
+    long stamp = ourRecordsLock.writeLock();
+    try {
+      getRecords().putInt(address, value);
+    }
+    finally {
+      ourRecordsLock.unlockWrite(stamp);
+    }
+  }
+
+  private static long getRecordsLong(int address) {
+    ResizeableMappedFile records = getRecords();
+    if (DbConnection.myRecordsAligned) {
+      long stamp = ourRecordsLock.readLock();
+      try {
+        return records.getLong(address);
+      }
+      finally {
+        ourRecordsLock.unlockRead(stamp);
+      }
+    }
+    long stamp = ourRecordsLock.writeLock();
+    try {
+      return records.getLong(address);
+    }
+    finally {
+      ourRecordsLock.unlockWrite(stamp);
+    }
   }
 
   private static int getOffset(int id, int offset) {
@@ -1270,6 +1461,7 @@ public class FSRecords {
 
   @Nullable
   static DataInputStream readContent(int fileId) {
+    // under r: the record must not be deleted between the checks
     int page = readAndHandleErrors(() -> {
       checkFileIsValid(fileId);
       return getContentRecordId(fileId);
@@ -1311,25 +1503,71 @@ public class FSRecords {
 
   @Nullable
   public static DataInputStream readAttributeWithLock(int fileId, @NotNull FileAttribute att) {
-    return readAndHandleErrors(() -> {
-      try (DataInputStream stream = readAttribute(fileId, att)) {
-        if (stream != null && att.isVersioned()) {
-          try {
-            int actualVersion = DataInputOutputUtil.readINT(stream);
-            if (actualVersion != att.getVersion()) {
-              return null;
-            }
-          }
-          catch (IOException e) {
-            return null;
-          }
+    return readAttributesAndHandleErrors(() -> checkAttributeVersion(readAttribute(fileId, att), att));
+  }
+
+  /**
+   * Reads {@code att} of all the files under one acquisition of the attributes lock. Attribute records are visited in the order
+   * of their addresses rather than in the order of {@code fileIds}, so neighbouring records are read from already loaded pages.
+   *
+   * @return streams in the order of {@code fileIds}, an element is {@code null} when {@link #readAttributeWithLock} would return {@code null}
+   */
+  public static DataInputStream @NotNull [] readAttributesWithLock(int @NotNull [] fileIds, @NotNull FileAttribute att) {
+    DataInputStream[] result = new DataInputStream[fileIds.length];
+    if (fileIds.length == 0) return result;
+
+    return readAttributesAndHandleErrors(() -> {
+      int encodedAttrId = DbConnection.getAttributeId(att.getId());
+      // (record address << 32) | index in fileIds
+      long[] addresses = new long[fileIds.length];
+      int count = 0;
+      for (int i = 0; i < fileIds.length; i++) {
+        checkFileIsValid(fileIds[i]);
+        int recordId = getAttributeRecordId(fileIds[i]);
+        if (recordId != 0) addresses[count++] = (long)recordId << 32 | i;
+      }
+      Arrays.sort(addresses, 0, count);
+
+      // directory records are read first, pages of attributes not stored inline are collected in the already visited part of addresses
+      Ref<DataInputStream> inlineAttribute = new Ref<>();
+      int pageCount = 0;
+      for (int i = 0; i < count; i++) {
+        int index = (int)addresses[i];
+        int page = findAttributeInDirectoryRecord(fileIds[index], (int)(addresses[i] >>> 32), encodedAttrId, inlineAttribute);
+        if (page != 0) {
+          addresses[pageCount++] = (long)page << 32 | index;
+        }
+        else {
+          result[index] = checkAttributeVersion(inlineAttribute.get(), att);
         }
-        return stream;
       }
+      Arrays.sort(addresses, 0, pageCount);
+
+      for (int i = 0; i < pageCount; i++) {
+        int index = (int)addresses[i];
+        result[index] = checkAttributeVersion(readAttributePage(fileIds[index], (int)(addresses[i] >>> 32), encodedAttrId), att);
+      }
+      return result;
     });
   }
 
-  // must be called under r or w lock
+  @Nullable
+  private static DataInputStream checkAttributeVersion(@Nullable DataInputStream stream, @NotNull FileAttribute att) {
+    if (stream != null && att.isVersioned()) {
+      try {
+        int actualVersion = DataInputOutputUtil.readINT(stream);
+        if (actualVersion != att.getVersion()) {
+          return null;
+        }
+      }
+      catch (IOException e) {
+        return null;
+      }
+    }
+    return stream;
+  }
+
+  // must be called under ourAttributesLock
   @Nullable
   private static DataInputStream readAttribute(int fileId, @NotNull FileAttribute attribute) throws IOException {
     checkFileIsValid(fileId);
@@ -1338,11 +1576,17 @@ public class FSRecords {
     if (recordId == 0) return null;
     int encodedAttrId = DbConnection.getAttributeId(attribute.getId());
 
-    Storage storage = getAttributesStorage();
+    Ref<DataInputStream> inlineAttribute = new Ref<>();
+    int page = findAttributeInDirectoryRecord(fileId, recordId, encodedAttrId, inlineAttribute);
+    return page == 0 ? inlineAttribute.get() : readAttributePage(fileId, page, encodedAttrId);
+  }
 
-    int page = 0;
+  // returns the page of the attribute, or 0 when the attribute is absent or stored inline, in the latter case its content is set to inlineAttribute
+  private static int findAttributeInDirectoryRecord(int fileId, int recordId, int encodedAttrId,
+                                                    @NotNull Ref<DataInputStream> inlineAttribute) throws IOException {
+    inlineAttribute.set(null);
 
-    try (DataInputStream attrRefs = storage.readStream(recordId)) {
+    try (DataInputStream attrRefs = getAttributesStorage().readStream(recordId)) {
       if (bulkAttrReadSupport) skipRecordHeader(attrRefs, DbConnection.RESERVED_ATTR_ID, fileId);
 
       while (attrRefs.available() > 0) {
@@ -1358,17 +1602,18 @@ public class FSRecords {
           if (inlineAttributes && attrAddressOrSize < MAX_SMALL_ATTR_SIZE) {
             byte[] b = new byte[attrAddressOrSize];
             attrRefs.readFully(b);
-            return new DataInputStream(new UnsyncByteArrayInputStream(b));
+            inlineAttribute.set(new DataInputStream(new UnsyncByteArrayInputStream(b)));
+            return 0;
           }
-          page = inlineAttributes ? attrAddressOrSize - MAX_SMALL_ATTR_SIZE : attrAddressOrSize;
-          break;
+          return inlineAttributes ? attrAddressOrSize - MAX_SMALL_ATTR_SIZE : attrAddressOrSize;
         }
       }
     }
+    return 0;
+  }
 
-    if (page == 0) {
-      return null;
-    }
+  @NotNull
+  private static DataInputStream readAttributePage(int fileId, int page, int encodedAttrId) throws IOException {
     DataInputStream stream = getAttributesStorage().readStream(page);
     if (bulkAttrReadSupport) skipRecordHeader(stream, encodedAttrId, fileId);
     return stream;
@@ -1475,7 +1720,7 @@ public class FSRecords {
   }
 
   static int getContentId(int fileId) {
-    return readAndHandleErrors(() -> getContentRecordId(fileId));
+    return readRecordsAndHandleErrors(() -> getContentRecordId(fileId));
   }
 
   static byte[] getContentHash(int fileId) {
@@ -1498,10 +1743,11 @@ public class FSRecords {
   }
 
   static int storeUnlinkedContent(byte[] bytes) {
+    byte[] contentHash = WE_HAVE_CONTENT_HASHES ? calculateContentHash(bytes, 0, bytes.length) : null;
     return writeAndHandleErrors(() -> {
       int recordId;
       if (WE_HAVE_CONTENT_HASHES) {
-        recordId = findOrCreateContentRecord(bytes, 0, bytes.length);
+        recordId = findOrCreateContentRecord(contentHash, bytes.length);
         if (recordId > 0) return recordId;
         recordId = -recordId;
       }
@@ -1548,6 +1794,7 @@ public class FSRecords {
     }
 
     private void writeBytes(ByteArraySequence bytes) {
+      byte[] contentHash = WE_HAVE_CONTENT_HASHES ? calculateContentHash(bytes.getBytes(), bytes.getOffset(), bytes.getLength()) : null;
       writeAndHandleErrors(() -> {
         RefCountingStorage contentStorage = getContentStorage();
         checkFileIsValid(myFileId);
@@ -1555,7 +1802,7 @@ public class FSRecords {
         int page;
         final boolean fixedSize;
         if (WE_HAVE_CONTENT_HASHES) {
-          page = findOrCreateContentRecord(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+          page = findOrCreateContentRecord(contentHash, bytes.getLength());
 
           if (page < 0 || getContentId(myFileId) != page) {
             incModCount(myFileId);
@@ -1595,37 +1842,105 @@ public class FSRecords {
   }
 
   private static final boolean DUMP_STATISTICS = WE_HAVE_CONTENT_HASHES;  // TODO: remove once not needed
-  private static long totalContents;
-  private static long totalReuses;
-  private static long time;
-  private static int contents;
-  private static int reuses;
+  private static final ContentStatistics ourContentStatistics = new ContentStatistics();
 
-  private static final MessageDigest CONTENT_HASH_DIGEST = DigestUtil.sha1();
+  // hashes are calculated by writing threads before taking the write lock, so each thread reuses its own digest
+  private static final ThreadLocal<MessageDigest> CONTENT_HASH_DIGEST = ThreadLocal.withInitial(DigestUtil::sha1);
 
-  private static int findOrCreateContentRecord(byte[] bytes, int offset, int length) throws IOException {
-    assert WE_HAVE_CONTENT_HASHES;
+  /**
+   * Counters of storing contents since the application start: content hashes are calculated by all writing threads in parallel,
+   * while enumeration of hashes and allocation of content records are serialized by the write lock.
+   */
+  public static final class ContentStatistics {
+    private final LongAdder myHashedContents = new LongAdder();
+    private final LongAdder myHashedBytes = new LongAdder();
+    private final LongAdder myHashingNanos = new LongAdder();
+    private final LongAdder myReusedContents = new LongAdder();
+    private final LongAdder myReusedBytes = new LongAdder();
+    private final LongAdder myEnumeratingNanos = new LongAdder();
+
+    private ContentStatistics() {
+    }
+
+    public long getHashedContents() {
+      return myHashedContents.sum();
+    }
+
+    public long getHashedBytes() {
+      return myHashedBytes.sum();
+    }
 
-    long started = DUMP_STATISTICS ? System.nanoTime():0;
-    byte[] contentHash = DigestUtil.calculateContentHash(CONTENT_HASH_DIGEST, bytes, offset, length);
-    long done = DUMP_STATISTICS ? System.nanoTime() - started : 0;
-    time += done;
+    /**
+     * @return total time of hashing in all threads
+     */
+    public long getHashingNanos() {
+      return myHashingNanos.sum();
+    }
+
+    /**
+     * @return number of contents already present in the storage, which were stored by reference
+     */
+    public long getReusedContents() {
+      return myReusedContents.sum();
+    }
 
-    ++contents;
-    totalContents += length;
+    public long getReusedBytes() {
+      return myReusedBytes.sum();
+    }
+
+    /**
+     * @return time spent under the write lock enumerating hashes
+     */
+    public long getEnumeratingNanos() {
+      return myEnumeratingNanos.sum();
+    }
 
-    if (DUMP_STATISTICS && (contents & 0x3FFF) == 0) {
-      LOG.info("Contents:" + contents + " of " + totalContents + ", reuses:" + reuses + " of " + totalReuses + " for " + time / 1000000);
+    /**
+     * @return bytes hashed per second of hashing time of a single thread
+     */
+    public double getHashingThroughput() {
+      long nanos = getHashingNanos();
+      return nanos == 0 ? 0 : getHashedBytes() * 1e9 / nanos;
     }
 
+    @Override
+    public String toString() {
+      return "Contents:" + getHashedContents() + " of " + getHashedBytes() + ", reuses:" + getReusedContents() + " of " + getReusedBytes() +
+             ", hashing:" + getHashingNanos() / 1000000 + "ms, enumerating:" + getEnumeratingNanos() / 1000000 + "ms";
+    }
+  }
+
+  @NotNull
+  public static ContentStatistics getContentStatistics() {
+    return ourContentStatistics;
+  }
+
+  private static byte @NotNull [] calculateContentHash(byte @NotNull [] bytes, int offset, int length) {
+    long started = System.nanoTime();
+    byte[] contentHash = DigestUtil.calculateContentHashInPlace(CONTENT_HASH_DIGEST.get(), bytes, offset, length);
+    ourContentStatistics.myHashingNanos.add(System.nanoTime() - started);
+    ourContentStatistics.myHashedBytes.add(length);
+    ourContentStatistics.myHashedContents.increment();
+    return contentHash;
+  }
+
+  private static int findOrCreateContentRecord(byte @NotNull [] contentHash, int length) throws IOException {
+    assert WE_HAVE_CONTENT_HASHES;
+
+    long started = System.nanoTime();
     ContentHashEnumerator hashesEnumerator = getContentHashesEnumerator();
     final int largestId = hashesEnumerator.getLargestId();
     int page = hashesEnumerator.enumerate(contentHash);
+    ourContentStatistics.myEnumeratingNanos.add(System.nanoTime() - started);
+
+    if (DUMP_STATISTICS && (ourContentStatistics.getHashedContents() & 0x3FFF) == 0) {
+      LOG.info(ourContentStatistics.toString());
+    }
 
     if (page <= largestId) {
-      ++reuses;
+      ourContentStatistics.myReusedContents.increment();
+      ourContentStatistics.myReusedBytes.add(length);
       getContentStorage().acquireRecord(page);
-      totalReuses += length;
 
       return page;
     }
@@ -1651,7 +1966,7 @@ public class FSRecords {
     @Override
     public void close() throws IOException {
       super.close();
-      writeAndHandleErrors(() -> {
+      writeAttributesAndHandleErrors(() -> {
         final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
 
         if (inlineAttributes && _out.size() < MAX_SMALL_ATTR_SIZE) {
@@ -10,6 +10,7 @@ import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VFileProperty;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
@@ -31,15 +32,20 @@ import java.nio.file.attribute.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 import static com.intellij.openapi.util.Pair.pair;
 import static com.intellij.openapi.vfs.newvfs.persistent.VfsEventGenerationHelper.LOG;
 
 class LocalFileSystemRefreshWorker {
+  private static final Statistics ourStatistics = new Statistics();
+
   private final boolean myIsRecursive;
   private final NewVirtualFile myRefreshRoot;
   private final VfsEventGenerationHelper myHelper = new VfsEventGenerationHelper();
+  // events of refreshed directories, merged into myHelper once the refresh is finished
+  private final ConcurrentLinkedQueue<VfsEventGenerationHelper> myDirectoryEvents = new ConcurrentLinkedQueue<>();
   private volatile boolean myCancelled;
 
   LocalFileSystemRefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
@@ -76,6 +82,11 @@ class LocalFileSystemRefreshWorker {
     RefreshContext context = createRefreshContext(fs, PersistentFS.getInstance(), FilePathHashingStrategy.create(fs.isCaseSensitive()));
     context.submitRefreshRequest(() -> processFile(root, context));
     context.waitForRefreshToFinish();
+
+    for (VfsEventGenerationHelper helper : myDirectoryEvents) {
+      myHelper.addAllEventsFrom(helper);
+    }
+    myDirectoryEvents.clear();
   }
 
   @NotNull
@@ -148,8 +159,10 @@ class LocalFileSystemRefreshWorker {
   }
 
   private void addAllEventsFrom(@NotNull RefreshingFileVisitor refreshingFileVisitor) {
-    synchronized (myHelper) {
-      myHelper.addAllEventsFrom(refreshingFileVisitor.getHelper());
+    VfsEventGenerationHelper helper = refreshingFileVisitor.getHelper();
+    if (!helper.getEvents().isEmpty()) {
+      ourStatistics.myEvents.add(helper.getEvents().size());
+      myDirectoryEvents.add(helper);
     }
   }
 
@@ -265,6 +278,62 @@ class LocalFileSystemRefreshWorker {
     ourTestListener = testListener;
   }
 
+  /**
+   * Counts file system and FSRecords accesses of all refreshes, so the cost of a refresh can be told apart from its wall time.
+   */
+  static final class Statistics {
+    private final LongAdder myDirectories = new LongAdder();
+    private final LongAdder myChildren = new LongAdder();
+    private final LongAdder myAttributeReads = new LongAdder();
+    private final LongAdder myRecords = new LongAdder();
+    private final LongAdder myEvents = new LongAdder();
+
+    private Statistics() {
+    }
+
+    long getListedDirectories() {
+      return myDirectories.sum();
+    }
+
+    long getVisitedChildren() {
+      return myChildren.sum();
+    }
+
+    /**
+     * @return number of attribute reads issued for single files, i.e. not counting attributes which came with a directory listing
+     */
+    long getAttributeReads() {
+      return myAttributeReads.sum();
+    }
+
+    long getReadRecords() {
+      return myRecords.sum();
+    }
+
+    long getEvents() {
+      return myEvents.sum();
+    }
+
+    void reset() {
+      myDirectories.reset();
+      myChildren.reset();
+      myAttributeReads.reset();
+      myRecords.reset();
+      myEvents.reset();
+    }
+
+    @Override
+    public String toString() {
+      return "Directories:" + getListedDirectories() + ", children:" + getVisitedChildren() + ", attribute reads:" + getAttributeReads() +
+             ", records:" + getReadRecords() + ", events:" + getEvents();
+    }
+  }
+
+  @NotNull
+  static Statistics getStatistics() {
+    return ourStatistics;
+  }
+
   private static class SequentialRefreshContext extends RefreshContext {
     private final Queue<Runnable> myRefreshRequests = new Queue<>(100);
 
@@ -324,9 +393,21 @@ class LocalFileSystemRefreshWorker {
     }
   }
 
+  // a persistent child along with its attributes recorded in FSRecords
+  private static class PersistentChild {
+    final NewVirtualFile file;
+    @PersistentFS.Attributes int flags;
+    long timestamp;
+    long length;
+
+    PersistentChild(@NotNull NewVirtualFile file) {
+      this.file = file;
+    }
+  }
+
   private class RefreshingFileVisitor extends SimpleFileVisitor<Path> {
     private final VfsEventGenerationHelper myHelper = new VfsEventGenerationHelper();
-    private final Map<String, VirtualFile> myPersistentChildren;
+    private final Map<String, PersistentChild> myPersistentChildren;
     private final Set<String> myChildrenWeAreInterested; // null - no limit
 
     private final NewVirtualFile myFileOrDir;
@@ -341,11 +422,36 @@ class LocalFileSystemRefreshWorker {
       myPersistentChildren = new THashMap<>(existingPersistentChildren.size(), refreshContext.strategy);
       myChildrenWeAreInterested = childrenToRefresh == null ? null : new THashSet<>(childrenToRefresh, refreshContext.strategy);
 
+      PersistentChild[] children = new PersistentChild[existingPersistentChildren.size()];
+      int i = 0;
       for (VirtualFile child : existingPersistentChildren) {
+        PersistentChild persistentChild = children[i++] = new PersistentChild((NewVirtualFile)child);
         String name = child.getName();
-        myPersistentChildren.put(name, child);
+        myPersistentChildren.put(name, persistentChild);
         if (myChildrenWeAreInterested != null) myChildrenWeAreInterested.add(name);
       }
+      readRecordedAttributes(children);
+    }
+
+    // the whole directory is compared against the records of its children read at once instead of a lookup per attribute of every child
+    private void readRecordedAttributes(PersistentChild @NotNull [] children) {
+      if (children.length == 0) return;
+      Arrays.sort(children, Comparator.comparingInt(child -> ((VirtualFileWithId)child.file).getId()));
+      int[] ids = new int[children.length];
+      for (int i = 0; i < children.length; i++) {
+        ids[i] = ((VirtualFileWithId)children[i].file).getId();
+      }
+      int[] flags = new int[ids.length];
+      long[] timestamps = new long[ids.length];
+      long[] lengths = new long[ids.length];
+      FSRecords.readFlagsTimestampsAndLengths(ids, flags, timestamps, lengths);
+      for (int i = 0; i < children.length; i++) {
+        //noinspection MagicConstant
+        children[i].flags = flags[i];
+        children[i].timestamp = timestamps[i];
+        children[i].length = lengths[i];
+      }
+      ourStatistics.myRecords.add(ids.length);
     }
 
     @Override
@@ -356,7 +462,9 @@ class LocalFileSystemRefreshWorker {
         return FileVisitResult.CONTINUE;
       }
 
-      NewVirtualFile child = (NewVirtualFile)myPersistentChildren.remove(name);
+      ourStatistics.myChildren.increment();
+      PersistentChild persistentChild = myPersistentChildren.remove(name);
+      NewVirtualFile child = persistentChild == null ? null : persistentChild.file;
       boolean isDirectory = attributes.isDirectory();
       boolean isSpecial = attributes.isOther();
       boolean isLink = attributes.isSymbolicLink();
@@ -369,6 +477,7 @@ class LocalFileSystemRefreshWorker {
 
       if (isLink) {
         try {
+          ourStatistics.myAttributeReads.increment();
           attributes = Files.readAttributes(file, BasicFileAttributes.class);
         }
         catch (FileSystemException ignore) {
@@ -378,6 +487,7 @@ class LocalFileSystemRefreshWorker {
       }
       else if (myFileOrDir.is(VFileProperty.SYMLINK)) {
         try {
+          ourStatistics.myAttributeReads.increment();
           attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
         }
         catch (NoSuchFileException | AccessDeniedException ignore) {
@@ -437,11 +547,11 @@ class LocalFileSystemRefreshWorker {
 
       if (!isDirectory) {
         myHelper.checkContentChanged(child,
-                                     myRefreshContext.persistence.getTimeStamp(child), attributes.lastModifiedTime().toMillis(),
-                                     myRefreshContext.persistence.getLastRecordedLength(child), attributes.size());
+                                     persistentChild.timestamp, attributes.lastModifiedTime().toMillis(),
+                                     persistentChild.length, attributes.size());
       }
 
-      myHelper.checkWritableAttributeChange(child, myRefreshContext.persistence.isWritable(child), isWritable(file, attributes, isDirectory));
+      myHelper.checkWritableAttributeChange(child, PersistentFS.isWritable(persistentChild.flags), isWritable(file, attributes, isDirectory));
 
       if (attributes instanceof DosFileAttributes) {
         myHelper.checkHiddenAttributeChange(child, child.is(VFileProperty.HIDDEN), ((DosFileAttributes)attributes).isHidden());
@@ -469,6 +579,7 @@ class LocalFileSystemRefreshWorker {
         Path path = Paths.get(fileOrDir.getPath());
         if (fileOrDir.isDirectory()) {
           if (myChildrenWeAreInterested == null) {
+            ourStatistics.myDirectories.increment();
             // Files.walkFileTree is more efficient than File.openDirectoryStream / readAttributes because former provides access to cached
             // file attributes of visited children, see usages of BasicFileAttributesHolder in FileTreeWalker.getAttributes
             EnumSet<FileVisitOption> options =
@@ -479,6 +590,7 @@ class LocalFileSystemRefreshWorker {
             for (String child : myChildrenWeAreInterested) {
               try {
                 Path subPath = fixCaseIfNeeded(path.resolve(child), fileOrDir);
+                ourStatistics.myAttributeReads.increment();
                 BasicFileAttributes attrs = Files.readAttributes(subPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
                 FileVisitResult result = visitFile(subPath, attrs);
                 if (result == FileVisitResult.TERMINATE) break;
@@ -489,6 +601,7 @@ class LocalFileSystemRefreshWorker {
         }
         else {
           Path file = fixCaseIfNeeded(path, fileOrDir);
+          ourStatistics.myAttributeReads.increment();
           BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
           visitFile(file, attrs);
         }
@@ -503,8 +616,8 @@ class LocalFileSystemRefreshWorker {
     VfsEventGenerationHelper getHelper() {
       if (!myPersistentChildren.isEmpty()) {
         if (!myCancelled) {
-          for (VirtualFile child : myPersistentChildren.values()) {
-            myHelper.scheduleDeletion(child);
+          for (PersistentChild child : myPersistentChildren.values()) {
+            myHelper.scheduleDeletion(child.file);
           }
         }
         myPersistentChildren.clear();
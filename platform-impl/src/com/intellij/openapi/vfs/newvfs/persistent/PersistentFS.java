@@ -6,6 +6,7 @@ import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.impl.win32.Win32LocalFileSystem;
+import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
@@ -14,6 +15,7 @@ import org.intellij.lang.annotations.MagicConstant;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.List;
 
@@ -93,6 +95,12 @@ public abstract class PersistentFS extends ManagingFS {
   // true if FS persisted at least one child or it has never been queried for children
   public abstract boolean mayHaveChildren(int id);
 
+  /**
+   * Reads {@code att} of many files at once, which is cheaper than {@link #readAttribute} per file.
+   * @return streams in the order of {@code fileIds}, {@code null} elements for files without the attribute
+   */
+  public abstract DataInputStream @NotNull [] readAttributes(int @NotNull [] fileIds, @NotNull FileAttribute att);
+
   @NotNull
   public static FileAttributes toFileAttributes(int attributes) {
     final boolean isDirectory = isSet(attributes, IS_DIRECTORY_FLAG);
@@ -53,6 +53,7 @@ import java.util.function.Function;
  */
 public final class PersistentFSImpl extends PersistentFS implements Disposable {
   private static final Logger LOG = Logger.getInstance(PersistentFS.class);
+  private static final boolean ourUseSnapshot = SystemProperties.getBooleanProperty("idea.vfs.snapshot", false);
 
   private final Map<String, VirtualFileSystemEntry> myRoots =
     ConcurrentCollectionFactory.createMap(10, 0.4f, JobSchedulerImpl.getCPUCoresCount(), FileUtil.PATH_HASHING_STRATEGY);
@@ -75,6 +76,17 @@ public final class PersistentFSImpl extends PersistentFS implements Disposable {
     Activity activity = StartUpMeasurer.startActivity("connect FSRecords");
     FSRecords.connect();
     activity.end();
+
+    if (ourUseSnapshot) {
+      activity = StartUpMeasurer.startActivity("read VFS snapshot");
+      myVfsData.readSnapshot(getSnapshotFile(), FSRecords.getCreationTimestamp(), FSRecords.getModCount());
+      activity.end();
+    }
+  }
+
+  @NotNull
+  private static File getSnapshotFile() {
+    return new File(FSRecords.basePath(), "snapshot.dat");
   }
 
   @NotNull
@@ -96,6 +108,9 @@ public final class PersistentFSImpl extends PersistentFS implements Disposable {
   private void performShutdown() {
     if (myShutDown.compareAndSet(false, true)) {
       LOG.info("VFS dispose started");
+      if (ourUseSnapshot) {
+        myVfsData.writeSnapshot(getSnapshotFile(), FSRecords.getCreationTimestamp(), FSRecords.getModCount());
+      }
       FSRecords.dispose();
       LOG.info("VFS dispose completed");
     }
@@ -213,6 +228,11 @@ public final class PersistentFSImpl extends PersistentFS implements Disposable {
     return FSRecords.readAttributeWithLock(getFileId(file), att);
   }
 
+  @Override
+  public DataInputStream @NotNull [] readAttributes(int @NotNull [] fileIds, @NotNull FileAttribute att) {
+    return FSRecords.readAttributesWithLock(fileIds, att);
+  }
+
   @Override
   @NotNull
   public DataOutputStream writeAttribute(@NotNull VirtualFile file, @NotNull FileAttribute att) {
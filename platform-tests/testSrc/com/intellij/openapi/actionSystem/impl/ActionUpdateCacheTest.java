@@ -0,0 +1,88 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.actionSystem.impl;
+
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.project.Project;
+import com.intellij.testFramework.LightPlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ActionUpdateCacheTest extends LightPlatformTestCase {
+  public void testPlaceIndependentUpdateIsSharedBetweenToolbars() {
+    CountingAction shared = new SharedAction();
+    CountingAction ordinary = new CountingAction();
+    DefaultActionGroup group = new DefaultActionGroup(shared, ordinary);
+    DataContext context = SimpleDataContext.getSimpleContext(PlatformDataKeys.CONTEXT_COMPONENT.getName(), new JPanel());
+
+    for (String place : new String[]{ActionPlaces.MAIN_TOOLBAR, ActionPlaces.NAVIGATION_BAR_TOOLBAR}) {
+      List<AnAction> actions = createToolbarUpdater(context, place).expandActionGroup(group, false);
+      assertEquals(2, actions.size());
+    }
+    assertEquals(1, shared.updateCount);
+    assertEquals(2, ordinary.updateCount);
+
+    PresentationFactory factory = new PresentationFactory();
+    new ActionUpdater(false, factory, context, ActionPlaces.MAIN_TOOLBAR, false, true, false).expandActionGroup(group, false);
+    assertEquals("Shared text", factory.getPresentation(shared).getText());
+    assertFalse(factory.getPresentation(shared).isEnabled());
+    assertEquals(1, shared.updateCount);
+  }
+
+  public void testToolbarsOfTheSameProjectShareUpdates() {
+    CountingAction shared = new SharedAction();
+    DefaultActionGroup group = new DefaultActionGroup(shared);
+    for (int i = 0; i < 2; i++) {
+      // every toolbar is the context component of its own data context
+      createToolbarUpdater(createContext(getProject(), new JPanel()), ActionPlaces.MAIN_TOOLBAR).expandActionGroup(group, false);
+    }
+    assertEquals(1, shared.updateCount);
+  }
+
+  public void testDifferentProjectsDoNotShareUpdates() {
+    CountingAction shared = new SharedAction();
+    DefaultActionGroup group = new DefaultActionGroup(shared);
+    createToolbarUpdater(createContext(getProject(), new JPanel()), ActionPlaces.MAIN_TOOLBAR).expandActionGroup(group, false);
+    createToolbarUpdater(createContext(null, new JPanel()), ActionPlaces.MAIN_TOOLBAR).expandActionGroup(group, false);
+    assertEquals(2, shared.updateCount);
+  }
+
+  @NotNull
+  private static DataContext createContext(@Nullable Project project, @NotNull JComponent component) {
+    Map<String, Object> data = new HashMap<>();
+    data.put(PlatformDataKeys.CONTEXT_COMPONENT.getName(), component);
+    if (project != null) data.put(CommonDataKeys.PROJECT.getName(), project);
+    return SimpleDataContext.getSimpleContext(data, null);
+  }
+
+  @NotNull
+  private static ActionUpdater createToolbarUpdater(@NotNull DataContext context, @NotNull String place) {
+    return new ActionUpdater(false, new PresentationFactory(), context, place, false, true, false);
+  }
+
+  private static class CountingAction extends AnAction {
+    int updateCount;
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+      updateCount++;
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+    }
+  }
+
+  private static class SharedAction extends CountingAction implements PlaceIndependentUpdate {
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+      super.update(e);
+      e.getPresentation().setText("Shared text");
+      e.getPresentation().setEnabled(false);
+    }
+  }
+}
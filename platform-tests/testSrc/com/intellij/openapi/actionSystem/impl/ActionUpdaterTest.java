@@ -0,0 +1,164 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.actionSystem.impl;
+
+import com.intellij.ide.impl.DataManagerImpl;
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ActionUpdaterTest extends LightPlatformTestCase {
+  public void testParallelExpansionKeepsChildrenOrder() {
+    List<BackgroundAction> actions = new ArrayList<>();
+    ActionGroup group = createNestedGroup(actions);
+
+    List<AnAction> parallel = expandAsync(group, new PresentationFactory());
+    Registry.get("actionSystem.update.actions.parallel.expand").setValue(false, getTestRootDisposable());
+    List<AnAction> sequential = expandAsync(group, new PresentationFactory());
+
+    assertEquals(actions, parallel);
+    assertEquals(actions, sequential);
+  }
+
+  public void testActionInSeveralSubgroupsIsUpdatedOnceInParallelExpansion() {
+    BackgroundAction shared = new BackgroundAction("shared");
+    DefaultActionGroup group = new DefaultActionGroup();
+    for (int i = 0; i < 4; i++) {
+      group.add(new DefaultActionGroup(shared, new BackgroundAction("a" + i)));
+    }
+    PresentationFactory factory = new PresentationFactory();
+
+    List<AnAction> actions = expandAsync(group, factory);
+
+    assertEquals(8, actions.size());
+    assertEquals(1, shared.updateCount.get());
+    assertEquals("shared updated", factory.getPresentation(shared).getText());
+  }
+
+  public void testUpdateGetsClonedPresentation() {
+    List<BackgroundAction> actions = new ArrayList<>();
+    ActionGroup group = createNestedGroup(actions);
+    PresentationFactory factory = new PresentationFactory();
+    for (AnAction action : actions) {
+      factory.getPresentation(action).setDescription("before update");
+    }
+
+    assertEquals(actions, expandAsync(group, factory));
+    for (BackgroundAction action : actions) {
+      assertEquals("before update", action.descriptionBeforeUpdate);
+      assertNotSame(factory.getPresentation(action), action.updatedPresentation);
+      assertEquals(action.getTemplatePresentation().getText() + " updated", factory.getPresentation(action).getText());
+    }
+  }
+
+  public void testUpdateTimingsAreCollectedPerClass() {
+    AnAction slow = new SlowTimingAction();
+    ActionUpdateTimings.record(slow, TimeUnit.MILLISECONDS.toNanos(150));
+    ActionUpdateTimings.record(slow, TimeUnit.MILLISECONDS.toNanos(50));
+
+    String statistics = ActionUpdateTimings.getStatistics(Integer.MAX_VALUE);
+    assertTrue(statistics, statistics.contains(SlowTimingAction.class.getName() + ": total 200ms, count 2, max 150ms"));
+    assertFalse(ActionUpdateTimings.getStatistics(0).contains(SlowTimingAction.class.getName()));
+  }
+
+  public void testDataContextCanBeQueriedConcurrently() throws Exception {
+    Registry.get("actionSystem.cache.data").setValue(true, getTestRootDisposable());
+    AtomicInteger computations = new AtomicInteger();
+    DataContext context = new DataManagerImpl.MyDataContext(null) {
+      @Override
+      protected Object calcData(@NotNull String dataId, Component focused) {
+        computations.incrementAndGet();
+        return "value of " + dataId;
+      }
+    };
+    Key<String> userKey = Key.create("test.user.data");
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 10_000; i++) {
+            String dataId = "key" + (i % 100);
+            assertEquals("value of " + dataId, context.getData(dataId));
+            ((DataManagerImpl.MyDataContext)context).putUserData(userKey, dataId);
+            assertNotNull(((DataManagerImpl.MyDataContext)context).getUserData(userKey));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    assertTrue(computations.get() >= 100);
+  }
+
+  /**
+   * @param leaves receives the actions of the group in the order of expansion
+   */
+  @NotNull
+  private static ActionGroup createNestedGroup(@NotNull List<? super BackgroundAction> leaves) {
+    DefaultActionGroup group = new DefaultActionGroup();
+    for (int i = 0; i < 4; i++) {
+      DefaultActionGroup subgroup = new DefaultActionGroup();
+      for (int j = 0; j < 4; j++) {
+        BackgroundAction action = new BackgroundAction("a" + leaves.size());
+        leaves.add(action);
+        subgroup.add(action);
+      }
+      group.add(subgroup);
+      BackgroundAction action = new BackgroundAction("a" + leaves.size());
+      leaves.add(action);
+      group.add(action);
+    }
+    return group;
+  }
+
+  @NotNull
+  private List<AnAction> expandAsync(@NotNull ActionGroup group, @NotNull PresentationFactory factory) {
+    DataContext context = SimpleDataContext.getProjectContext(getProject());
+    ActionUpdater updater = new ActionUpdater(false, factory, context, ActionPlaces.MAIN_TOOLBAR, false, true, false);
+    List<AnAction> result = PlatformTestUtil.assertPromiseSucceeds(updater.expandActionGroupAsync(group, false));
+    assertNotNull(result);
+    return result;
+  }
+
+  private static class BackgroundAction extends AnAction implements UpdateInBackground {
+    final AtomicInteger updateCount = new AtomicInteger();
+    volatile Presentation updatedPresentation;
+    volatile String descriptionBeforeUpdate;
+
+    BackgroundAction(@NotNull String text) {
+      super(text);
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+      updateCount.incrementAndGet();
+      updatedPresentation = e.getPresentation();
+      descriptionBeforeUpdate = e.getPresentation().getDescription();
+      e.getPresentation().setText(getTemplatePresentation().getText() + " updated");
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+    }
+  }
+
+  private static class SlowTimingAction extends AnAction {
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+    }
+  }
+}
@@ -20,6 +20,7 @@ import org.jetbrains.annotations.NotNull;
 import javax.swing.*;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -635,6 +636,30 @@ public class LaterInvocatorTest extends HeavyPlatformTestCase {
 
   }
 
+  public void testInvokeLaterFromManyThreadsPerformance() {
+    int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    int perThread = 250_000;
+
+    AtomicInteger counter = new AtomicInteger();
+    Runnable r = () -> counter.incrementAndGet();
+
+    PlatformTestUtil.startPerformanceTest("Application invokeLater from " + threads + " threads", 1500, () -> {
+      List<Future<?>> producers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        producers.add(ApplicationManager.getApplication().executeOnPooledThread(() -> {
+          for (int i = 0; i < perThread; i++) {
+            ApplicationManager.getApplication().invokeLater(r);
+          }
+        }));
+      }
+      for (Future<?> producer : producers) {
+        producer.get();
+      }
+      ApplicationManager.getApplication().invokeAndWait(EmptyRunnable.getInstance());
+      assertEquals(threads * perThread, counter.getAndSet(0));
+    }).assertTiming();
+  }
+
   private final JDialog myModalDialog = new JDialog((Dialog)null, true);
 
   public void testModalityStateForNonDisplayedDialogGetsActualizedWhenItIsDisplayed() {
@@ -0,0 +1,88 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.impl;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.SkipSlowTestLocally;
+import com.intellij.util.IntSLRUCache;
+import com.intellij.util.containers.IntObjectLinkedMap;
+import com.intellij.util.text.ByteArrayCharSequence;
+import com.intellij.util.text.CharArrayUtil;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Compares building of paths from names of {@link FileNameTable} with the striped SLRU cache it has replaced in {@link FileNameCache}.
+ */
+@SkipSlowTestLocally
+public class FileNameTablePerformanceTest extends TestCase {
+  private static final int NAME_COUNT = 200000;
+  private static final int PATH_COUNT = 2000000;
+  private static final int PATH_DEPTH = 8;
+
+  private final int[] myNameIds = new int[PATH_COUNT * PATH_DEPTH];
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Random random = new Random(42);
+    for (int i = 0; i < myNameIds.length; i++) {
+      myNameIds[i] = random.nextInt(NAME_COUNT) + 1;
+    }
+  }
+
+  public void testNameTable() {
+    FileNameTable table = new FileNameTable();
+    for (int id = 1; id <= NAME_COUNT; id++) {
+      table.put(id, name(id));
+    }
+
+    PlatformTestUtil.startPerformanceTest("building paths from name table", 1500, () -> {
+      char[] path = new char[1000];
+      long total = 0;
+      for (int i = 0; i < myNameIds.length; i += PATH_DEPTH) {
+        int end = 0;
+        for (int j = i; j < i + PATH_DEPTH; j++) {
+          path[end++] = '/';
+          end = table.copyChars(myNameIds[j], path, end);
+        }
+        total += end;
+      }
+      assertTrue(total > 0);
+    }).assertTiming();
+  }
+
+  public void testStripedSLRUCache() {
+    @SuppressWarnings("unchecked") IntSLRUCache<CharSequence>[] caches = new IntSLRUCache[16];
+    for (int i = 0; i < caches.length; i++) {
+      caches[i] = new IntSLRUCache<>(40000 / caches.length, 20000 / caches.length);
+    }
+
+    PlatformTestUtil.startPerformanceTest("building paths from striped SLRU cache", 6000, () -> {
+      char[] path = new char[1000];
+      long total = 0;
+      for (int i = 0; i < myNameIds.length; i += PATH_DEPTH) {
+        int end = 0;
+        for (int j = i; j < i + PATH_DEPTH; j++) {
+          int id = myNameIds[j];
+          IntSLRUCache<CharSequence> cache = caches[id % caches.length];
+          IntObjectLinkedMap.MapEntry<CharSequence> entry;
+          //noinspection SynchronizationOnLocalVariableOrMethodParameter
+          synchronized (cache) {
+            entry = cache.getCachedEntry(id);
+            if (entry == null) entry = cache.cacheEntry(id, ByteArrayCharSequence.convertToBytesIfPossible(name(id)));
+          }
+          path[end++] = '/';
+          CharArrayUtil.getChars(entry.value, path, 0, end, entry.value.length());
+          end += entry.value.length();
+        }
+        total += end;
+      }
+      assertTrue(total > 0);
+    }).assertTiming();
+  }
+
+  private static String name(int id) {
+    return "name" + id + ".java";
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.impl;
+
+import com.intellij.openapi.util.text.StringUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FileNameTableTest extends TestCase {
+  public void testNames() {
+    FileNameTable table = new FileNameTable();
+    String[] names = {"a", "", "Foo.java", "café", "файл.txt", "😀.png", "ÿĀ", StringUtil.repeat("long", 100)};
+    for (int i = 0; i < names.length; i++) {
+      table.put(i + 1, names[i]);
+    }
+    table.put(1, "ignored");
+
+    for (int i = 0; i < names.length; i++) {
+      assertName(table, i + 1, names[i]);
+    }
+    assertEquals(-1, table.getLength(names.length + 1));
+    assertEquals(-1, table.copyChars(100000, new char[0], 0));
+    assertNull(table.getName(100000));
+  }
+
+  public void testNamesSpanManyChunks() {
+    FileNameTable table = new FileNameTable();
+    int count = 300000;
+    for (int id = 1; id <= count; id++) {
+      table.put(id, name(id));
+    }
+    for (int id = 1; id <= count; id++) {
+      assertName(table, id, name(id));
+    }
+  }
+
+  public void testUnpairedSurrogateIsNotStored() {
+    FileNameTable table = new FileNameTable();
+    table.put(1, "a\ud800");
+    assertEquals(-1, table.getLength(1));
+  }
+
+  public void testConcurrentReadsOfAddedNames() throws Exception {
+    FileNameTable table = new FileNameTable();
+    int count = 100000;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      futures.add(executor.submit(() -> {
+        for (int id = 1; id <= count; id++) table.put(id, name(id));
+      }));
+      for (int i = 0; i < 3; i++) {
+        futures.add(executor.submit(() -> {
+          char[] chars = new char[100];
+          for (int id = 1; id <= count; id++) {
+            int end;
+            while ((end = table.copyChars(id, chars, 0)) < 0) Thread.yield();
+            assertEquals(name(id), new String(chars, 0, end));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @NotNull
+  private static String name(int id) {
+    return id % 7 == 0 ? "ф" + id : "file" + id + ".txt";
+  }
+
+  private static void assertName(@NotNull FileNameTable table, int id, @NotNull String name) {
+    assertEquals(name.length(), table.getLength(id));
+    char[] chars = new char[name.length() + 2];
+    assertEquals(name.length() + 1, table.copyChars(id, chars, 1));
+    assertEquals(name, new String(chars, 1, name.length()));
+    CharSequence sequence = table.getName(id);
+    assertNotNull(sequence);
+    assertEquals(name, sequence.toString());
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.impl;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.HeavyPlatformTestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class VfsSnapshotTest extends HeavyPlatformTestCase {
+  public void testSnapshotIsVerifiedAgainstStorage() throws IOException {
+    File dir = createTempDirectory();
+    FileUtil.writeToFile(new File(dir, "a.txt"), "a");
+    assertTrue(new File(dir, "empty").mkdir());
+    File snapshotFile = new File(createTempDirectory(), "snapshot.dat");
+
+    VirtualDirectoryImpl vDir = (VirtualDirectoryImpl)LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    assertEquals(2, vDir.getChildren().length);
+    VirtualFile vEmpty = vDir.findChild("empty");
+    assertNotNull(vEmpty);
+    assertEquals(0, vEmpty.getChildren().length);
+
+    vDir.mySegment.vfsData.writeSnapshot(snapshotFile, 42, 7);
+    assertNull(VfsSnapshot.read(snapshotFile, 42, 8));
+    assertNull(VfsSnapshot.read(snapshotFile, 41, 7));
+
+    VfsSnapshot snapshot = VfsSnapshot.read(snapshotFile, 42, 7);
+    assertNotNull(snapshot);
+    // both directories were created in this session, so their records differ from what a previous session could have written
+    assertEquals(-1, snapshot.findDirectory(vDir.getId()));
+    assertEquals(-1, snapshot.findDirectory(((VirtualFileSystemEntry)vEmpty).getId()));
+  }
+
+  public void testNewSnapshotReplacesPreviousOne() throws IOException {
+    File snapshotFile = new File(createTempDirectory(), "snapshot.dat");
+    VirtualDirectoryImpl vDir = (VirtualDirectoryImpl)LocalFileSystem.getInstance().refreshAndFindFileByIoFile(createTempDirectory());
+    assertNotNull(vDir);
+    vDir.getChildren();
+
+    VfsData data = vDir.mySegment.vfsData;
+    data.writeSnapshot(snapshotFile, 42, 1);
+    data.writeSnapshot(snapshotFile, 42, 2);
+    assertNull(VfsSnapshot.read(snapshotFile, 42, 1));
+    assertNotNull(VfsSnapshot.read(snapshotFile, 42, 2));
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.vfs.newvfs.FileAttribute;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.SkipSlowTestLocally;
+import com.intellij.testFramework.fixtures.BareTestFixtureTestCase;
+import com.intellij.util.io.DataInputOutputUtil;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+@SkipSlowTestLocally
+public class FSRecordsPerformanceTest extends BareTestFixtureTestCase {
+  private static final int FILE_COUNT = 1_000_000;
+
+  @Test
+  public void testBulkAttributeRead() throws IOException {
+    FileAttribute attribute = new FileAttribute("test.bulk.read.performance", 1, false);
+    int[] fileIds = new int[FILE_COUNT];
+    for (int i = 0; i < FILE_COUNT; i++) {
+      int fileId = fileIds[i] = FSRecords.createRecord();
+      try (DataOutputStream output = FSRecords.writeAttribute(fileId, attribute)) {
+        DataInputOutputUtil.writeINT(output, fileId);
+      }
+    }
+    // callers usually ask for children in the order unrelated to the order their attributes were written in
+    Random random = new Random(42);
+    for (int i = FILE_COUNT - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int id = fileIds[i];
+      fileIds[i] = fileIds[j];
+      fileIds[j] = id;
+    }
+
+    try {
+      PlatformTestUtil.startPerformanceTest("reading attribute file by file", 10000, () -> {
+        for (int fileId : fileIds) {
+          try (DataInputStream stream = FSRecords.readAttributeWithLock(fileId, attribute)) {
+            assertNotNull(stream);
+            assertEquals(fileId, DataInputOutputUtil.readINT(stream));
+          }
+        }
+      }).ioBound().assertTiming();
+
+      PlatformTestUtil.startPerformanceTest("reading attribute in bulk", 4000, () -> {
+        DataInputStream[] streams = FSRecords.readAttributesWithLock(fileIds, attribute);
+        for (int i = 0; i < fileIds.length; i++) {
+          assertNotNull(streams[i]);
+          assertEquals(fileIds[i], DataInputOutputUtil.readINT(streams[i]));
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      for (int fileId : fileIds) {
+        FSRecords.deleteRecordRecursively(fileId);
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.SkipSlowTestLocally;
+import com.intellij.testFramework.fixtures.BareTestFixtureTestCase;
+import com.intellij.testFramework.rules.TempDirectory;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Refreshes a synthetic tree with {@link LocalFileSystemRefreshWorker} and reports the wall time along with file system accesses.
+ * The tree has 100k files by default; run with {@code -Didea.refresh.benchmark.files=2000000} to measure trees of millions of files.
+ */
+@SkipSlowTestLocally
+public class LocalFileSystemRefreshWorkerPerformanceTest extends BareTestFixtureTestCase {
+  private static final Logger LOG = Logger.getInstance(LocalFileSystemRefreshWorkerPerformanceTest.class);
+  private static final int FILE_COUNT = Integer.getInteger("idea.refresh.benchmark.files", 100_000);
+  private static final int FILES_PER_DIRECTORY = 100;
+  private static final int DIRECTORIES_PER_DIRECTORY = 10;
+  private static final int CHANGED_FILES_RATIO = 100;
+
+  @Rule public TempDirectory tempDir = new TempDirectory();
+
+  private final List<File> myFiles = new ArrayList<>();
+  private NewVirtualFile myRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    Registry.get("vfs.use.nio-based.local.refresh.worker").setValue(true, getTestRootDisposable());
+
+    List<File> directories = new ArrayList<>();
+    directories.add(tempDir.getRoot());
+    for (int i = 1; i < FILE_COUNT / FILES_PER_DIRECTORY; i++) {
+      File directory = new File(directories.get((i - 1) / DIRECTORIES_PER_DIRECTORY), "dir" + i);
+      assertTrue(directory.mkdir());
+      directories.add(directory);
+    }
+    for (File directory : directories) {
+      for (int i = 0; i < FILES_PER_DIRECTORY; i++) {
+        File file = new File(directory, "file" + i + ".txt");
+        assertTrue(file.createNewFile());
+        myFiles.add(file);
+      }
+    }
+
+    myRoot = (NewVirtualFile)LocalFileSystem.getInstance().refreshAndFindFileByIoFile(tempDir.getRoot());
+    assertNotNull(myRoot);
+    // loads all children, so the refresh compares every directory in full
+    VfsUtilCore.visitChildrenRecursively(myRoot, new VirtualFileVisitor<Void>() { });
+  }
+
+  @Test
+  public void testRefreshOfUnchangedTree() {
+    measureRefresh("refreshing unchanged tree of " + FILE_COUNT + " files", 5000, () -> { }, 0);
+  }
+
+  @Test
+  public void testRefreshOfTreeWithChangedFiles() {
+    long[] timestamp = {System.currentTimeMillis() / 1000 * 1000};
+    measureRefresh("refreshing tree of " + FILE_COUNT + " files with every " + CHANGED_FILES_RATIO + "th file changed", 6000, () -> {
+      timestamp[0] += 2000;
+      for (int i = 0; i < myFiles.size(); i += CHANGED_FILES_RATIO) {
+        assertTrue(myFiles.get(i).setLastModified(timestamp[0]));
+      }
+    }, (myFiles.size() + CHANGED_FILES_RATIO - 1) / CHANGED_FILES_RATIO);
+  }
+
+  private void measureRefresh(@NotNull String what, int expectedMs, @NotNull Runnable change, int expectedEvents) {
+    LocalFileSystemRefreshWorker.Statistics statistics = LocalFileSystemRefreshWorker.getStatistics();
+    PlatformTestUtil.startPerformanceTest(what, expectedMs, () -> {
+      long start = System.nanoTime();
+      myRoot.refresh(false, true);
+      LOG.info(what + ": " + (System.nanoTime() - start) / 1000000 + "ms, " + statistics);
+      assertEquals(expectedEvents, statistics.getEvents());
+    }).setup(() -> {
+      change.run();
+      myRoot.markDirtyRecursively();
+      statistics.reset();
+    }).ioBound().assertTiming();
+  }
+}
@@ -26,6 +26,7 @@ import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
 import com.intellij.testFramework.HeavyPlatformTestCase;
 import com.intellij.testFramework.LoggedErrorProcessor;
 import com.intellij.testFramework.UsefulTestCase;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.ObjectUtils;
 import com.intellij.util.PathUtil;
 import com.intellij.util.containers.ContainerUtil;
@@ -35,13 +36,16 @@ import com.intellij.util.messages.MessageBusConnection;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.jar.JarFile;
 
 import static org.junit.Assert.assertArrayEquals;
@@ -114,6 +118,28 @@ public class PersistentFsTest extends HeavyPlatformTestCase {
     assertArrayEquals(hash, fs.getContentHashIfStored(vFile));
   }
 
+  public void testContentsStoredConcurrentlyAreDeduplicated() throws Exception {
+    if (!FSRecords.WE_HAVE_CONTENT_HASHES) return;
+
+    byte[] content = ("content stored concurrently " + System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+    FSRecords.ContentStatistics statistics = FSRecords.getContentStatistics();
+    long hashedBefore = statistics.getHashedContents();
+    long reusedBefore = statistics.getReusedContents();
+
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(() -> FSRecords.storeUnlinkedContent(content)));
+    }
+    int contentId = futures.get(0).get();
+    for (Future<Integer> future : futures) {
+      assertEquals(contentId, future.get().intValue());
+    }
+
+    assertTrue(statistics.getHashedContents() >= hashedBefore + futures.size());
+    assertTrue(statistics.getReusedContents() >= reusedBefore + futures.size() - 1);
+    assertArrayEquals(content, myFs.contentsToByteArray(contentId));
+  }
+
   public void testFindRootShouldNotBeFooledByRelativePath() throws Exception {
     File tmp = createTempDirectory();
     File x = new File(tmp, "x.jar");
@@ -371,6 +397,107 @@ public class PersistentFsTest extends HeavyPlatformTestCase {
     assertFalse(FSRecords.isDirty());
   }
 
+  public void testBulkAttributeReadMatchesReadsOfSingleFiles() throws IOException {
+    FileAttribute attribute = new FileAttribute("test.bulk.attribute", 1, false);
+    int[] fileIds = new int[100];
+    for (int i = 0; i < fileIds.length; i++) {
+      int fileId = fileIds[i] = FSRecords.createRecord();
+      if (i % 5 == 0) continue;
+      // small values are stored inline in the directory record, large ones on separate pages
+      try (DataOutputStream output = FSRecords.writeAttribute(fileId, attribute)) {
+        output.writeUTF(StringUtil.repeat(String.valueOf(i), i % 2 == 0 ? 1 : 100));
+      }
+    }
+    fileIds = ArrayUtil.reverseArray(fileIds);
+
+    DataInputStream[] streams = FSRecords.readAttributesWithLock(fileIds, attribute);
+    assertEquals(fileIds.length, streams.length);
+    for (int i = 0; i < fileIds.length; i++) {
+      try (DataInputStream expected = FSRecords.readAttributeWithLock(fileIds[i], attribute); DataInputStream actual = streams[i]) {
+        if (expected == null) {
+          assertNull(actual);
+        }
+        else {
+          assertNotNull(actual);
+          assertEquals(expected.readUTF(), actual.readUTF());
+        }
+      }
+    }
+
+    assertEmpty(FSRecords.readAttributesWithLock(ArrayUtil.EMPTY_INT_ARRAY, attribute));
+  }
+
+  public void testRecordsAndAttributesAreReadConsistentlyWhileWritten() throws Exception {
+    VirtualFile vFile = setupFile();
+    int fileId = ((VirtualFileWithId)vFile).getId();
+    int parentId = ((VirtualFileWithId)vFile.getParent()).getId();
+    int nameId = FSRecords.getNameId(fileId);
+    FileAttribute attribute = new FileAttribute("test.concurrent.attribute", 1, false);
+
+    Future<?> writer = ApplicationManager.getApplication().executeOnPooledThread(() -> {
+      for (int i = 1; i <= 10000; i++) {
+        FSRecords.setTimestamp(fileId, i);
+        try (DataOutputStream output = FSRecords.writeAttribute(fileId, attribute)) {
+          DataInputOutputUtil.writeINT(output, i);
+          DataInputOutputUtil.writeINT(output, -i);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    long lastTimestamp = 0;
+    while (!writer.isDone()) {
+      assertEquals(parentId, FSRecords.getParent(fileId));
+      assertEquals(nameId, FSRecords.getNameId(fileId));
+      long timestamp = FSRecords.getTimestamp(fileId);
+      assertTrue(timestamp + " < " + lastTimestamp, timestamp >= lastTimestamp);
+      lastTimestamp = timestamp;
+
+      try (DataInputStream input = FSRecords.readAttributeWithLock(fileId, attribute)) {
+        if (input != null) {
+          assertEquals(-DataInputOutputUtil.readINT(input), DataInputOutputUtil.readINT(input));
+        }
+      }
+    }
+    writer.get();
+    assertEquals(10000, FSRecords.getTimestamp(fileId));
+  }
+
+  public void testRecordsAreReadWhileOthersAreCreated() throws Exception {
+    int[] fileIds = new int[100];
+    for (int i = 0; i < fileIds.length; i++) {
+      fileIds[i] = FSRecords.createRecord();
+      FSRecords.setTimestamp(fileIds[i], fileIds[i] * 2L);
+    }
+    // new records grow the records file, its pages are remapped under the readers
+    int[] createdIds = new int[50_000];
+    Future<?> writer = ApplicationManager.getApplication().executeOnPooledThread(() -> {
+      for (int i = 0; i < createdIds.length; i++) {
+        createdIds[i] = FSRecords.createRecord();
+      }
+    });
+
+    try {
+      while (!writer.isDone()) {
+        for (int fileId : fileIds) {
+          assertEquals(fileId * 2L, FSRecords.getTimestamp(fileId));
+          assertEquals(0, FSRecords.getParent(fileId));
+        }
+      }
+      writer.get();
+    }
+    finally {
+      for (int fileId : fileIds) {
+        FSRecords.deleteRecordRecursively(fileId);
+      }
+      for (int fileId : createdIds) {
+        if (fileId != 0) FSRecords.deleteRecordRecursively(fileId);
+      }
+    }
+  }
+
   public void testProcessEventsMustIgnoreDeleteDuplicates() {
     VirtualFile vFile = setupFile();
     checkEvents("Before:[VFileDeleteEvent->file.txt]\nAfter:[VFileDeleteEvent->file.txt]\n",
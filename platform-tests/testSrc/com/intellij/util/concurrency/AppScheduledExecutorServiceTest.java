@@ -288,6 +288,27 @@ public class AppScheduledExecutorServiceTest extends TestCase {
     assertEquals(log.toString(), N, log.size());
   }
 
+  public void testCancelledTasksLeaveQueueAndAreCounted() throws Exception {
+    int N = 1000;
+    List<ScheduledFuture<?>> futures =
+      ContainerUtil.map(Collections.nCopies(N, ""), __ -> service.schedule(EmptyRunnable.getInstance(), 1, TimeUnit.HOURS));
+    assertEquals(N, service.delayQueue.size());
+    for (int i = 0; i < N; i += 2) {
+      assertTrue(futures.get(i).cancel(false));
+    }
+    assertEquals(N / 2, service.delayQueue.size());
+
+    long start = System.nanoTime();
+    ScheduledFuture<?> future = service.schedule(EmptyRunnable.getInstance(), 10, TimeUnit.MILLISECONDS);
+    future.get(1, TimeUnit.MINUTES);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+
+    assertEquals(N + 1, service.getScheduledTaskCount());
+    assertEquals(N / 2, service.getCancelledTaskCount());
+    assertEquals(1, service.getFiredTaskCount());
+    assertEquals(N / 2, service.delayQueue.size());
+  }
+
   private static void waitFor(@NotNull BooleanSupplier runnable) throws RuntimeException {
     long start = System.currentTimeMillis();
     while (System.currentTimeMillis() < start + 60000) {
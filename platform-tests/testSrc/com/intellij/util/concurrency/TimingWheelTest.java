@@ -0,0 +1,90 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.concurrency;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TimingWheelTest extends TestCase {
+  public void testElementsExpireAtTheirDeadlinesOnAllLevels() {
+    TimingWheel<Long> wheel = new TimingWheel<>(0);
+    long[] deadlines = {1, 63, 64, 65, 4095, 4096, 100_000, 1L << 30, (1L << 36) - 1, 1L << 36, 1L << 40};
+    for (long deadline : deadlines) {
+      wheel.add(deadline, deadline);
+    }
+    assertEquals(deadlines.length, wheel.size());
+
+    List<Long> expired = new ArrayList<>();
+    for (long deadline : deadlines) {
+      wheel.advanceTo(deadline - 1, expired);
+      assertEquals(Collections.emptyList(), expired);
+      assertTrue(wheel.nextTick() <= deadline);
+
+      wheel.advanceTo(deadline, expired);
+      assertEquals(Collections.singletonList(deadline), expired);
+      expired.clear();
+    }
+    assertEquals(0, wheel.size());
+    assertEquals(Long.MAX_VALUE, wheel.nextTick());
+  }
+
+  public void testRandomDeadlinesExpireInOrder() {
+    Random random = new Random(42);
+    TimingWheel<Long> wheel = new TimingWheel<>(random.nextInt(1_000_000));
+    List<Long> expected = new ArrayList<>();
+    List<Long> expired = new ArrayList<>();
+    for (int round = 0; round < 100; round++) {
+      for (int i = 0; i < 100; i++) {
+        long deadline = wheel.getTick() + (random.nextBoolean() ? random.nextInt(100) : random.nextInt(10_000_000));
+        wheel.add(deadline, deadline);
+        expected.add(deadline);
+      }
+      long tick = wheel.getTick() + random.nextInt(5_000_000);
+      wheel.advanceTo(tick, expired);
+      for (int i = 1; i < expired.size(); i++) {
+        assertTrue(expired.get(i - 1) <= expired.get(i));
+      }
+      for (Long deadline : expired) {
+        assertTrue(deadline <= tick);
+      }
+      expired.clear();
+      expected.removeIf(deadline -> deadline <= tick);
+      assertEquals(expected.size(), wheel.size());
+      assertTrue(wheel.nextTick() > tick);
+    }
+  }
+
+  public void testRemovedElementsDoNotExpire() {
+    TimingWheel<String> wheel = new TimingWheel<>(10);
+    TimingWheel.Node<String> a = wheel.add("a", 20);
+    wheel.add("b", 20);
+    TimingWheel.Node<String> c = wheel.add("c", 5000);
+    TimingWheel.Node<String> d = wheel.add("d", 5);
+    assertTrue(wheel.remove(a));
+    assertFalse(wheel.remove(a));
+    assertTrue(wheel.remove(c));
+    assertTrue(wheel.remove(d));
+    assertEquals(Collections.singletonList("b"), wheel.values());
+    assertEquals(20, wheel.nextTick());
+
+    List<String> expired = new ArrayList<>();
+    wheel.advanceTo(10_000, expired);
+    assertEquals(Collections.singletonList("b"), expired);
+    assertEquals(0, wheel.size());
+  }
+
+  public void testSameDeadlineExpiresInAdditionOrder() {
+    TimingWheel<String> wheel = new TimingWheel<>(0);
+    wheel.add("a", 100);
+    List<String> expired = new ArrayList<>();
+    wheel.advanceTo(70, expired);
+    wheel.add("b", 100);
+    wheel.add("c", 50);
+    wheel.advanceTo(100, expired);
+    assertEquals(Arrays.asList("c", "a", "b"), expired);
+  }
+}
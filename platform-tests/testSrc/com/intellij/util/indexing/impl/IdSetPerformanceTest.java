@@ -0,0 +1,199 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.SkipSlowTestLocally;
+import com.intellij.util.IntIntFunction;
+import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
+import com.intellij.util.io.DataOutputStream;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares {@link RoaringIdSet} with the forms large id sets were kept in before it:
+ * sorted int arrays (SortedIdSet) and bitmaps spanning the range from the smallest to the largest id (IdBitSet).
+ */
+@SkipSlowTestLocally
+public class IdSetPerformanceTest extends TestCase {
+  private static final Logger LOG = Logger.getInstance(IdSetPerformanceTest.class);
+  private static final int MAX_ID = 2_000_000;
+  // ids of popular keys: from keys present in every tenth file to keys present in almost every file
+  private static final int[] SET_SIZES = {MAX_ID / 10, MAX_ID / 4, MAX_ID / 2, MAX_ID * 9 / 10};
+
+  public void testMemoryOfPopularKeys() {
+    Random random = new Random(1);
+    for (int size : SET_SIZES) {
+      int[] ids = randomIds(random, size);
+      RoaringIdSet set = toRoaringIdSet(ids);
+      long arrayMemory = 16 + ids.length * 4L;
+      long bitSetMemory = 16 + toBitSet(ids).length * 8L;
+      long roaringMemory = set.getMemorySize();
+      LOG.info("memory of " + ids.length + " ids: int[] " + arrayMemory + ", IdBitSet " + bitSetMemory + ", RoaringIdSet " + roaringMemory);
+
+      assertTrue(roaringMemory + " >= " + arrayMemory, roaringMemory < arrayMemory);
+      // bitmap chunks take as much as the bitmap of the whole range, the headers of chunks are all that is added
+      assertTrue(roaringMemory + " > " + bitSetMemory, roaringMemory <= bitSetMemory + bitSetMemory / 20);
+    }
+  }
+
+  public void testIntersectionOfPopularKeys() {
+    Random random = new Random(1);
+    int[][] arrays = new int[8][];
+    long[][] bitSets = new long[arrays.length][];
+    RoaringIdSet[] sets = new RoaringIdSet[arrays.length];
+    for (int i = 0; i < sets.length; i++) {
+      arrays[i] = randomIds(random, MAX_ID / (i + 2));
+      bitSets[i] = toBitSet(arrays[i]);
+      sets[i] = toRoaringIdSet(arrays[i]);
+    }
+
+    int[] expected = arrays[0];
+    for (int i = 1; i < arrays.length; i++) {
+      expected = intersect(expected, arrays[i]);
+    }
+    assertEquals(expected.length, cardinality(intersectAll(bitSets)));
+    assertEquals(expected.length, intersectAll(sets).size());
+
+    long arrayTime = measure("intersection of popular keys as int[]", 3000, () -> intersectAll(arrays));
+    long bitSetTime = measure("intersection of popular keys as IdBitSet", 1500, () -> intersectAll(bitSets));
+    long roaringTime = measure("intersection of popular keys as RoaringIdSet", 1500, () -> intersectAll(sets));
+    LOG.info("intersection of popular keys: int[] " + arrayTime + "ms, IdBitSet " + bitSetTime + "ms, RoaringIdSet " + roaringTime + "ms");
+
+    PlatformTestUtil.startPerformanceTest("union and difference of popular keys", 1500, () -> {
+      for (int it = 0; it < 100; it++) {
+        RoaringIdSet.andNot(RoaringIdSet.or(sets[0], sets[1]), sets[2]);
+      }
+    }).assertTiming();
+  }
+
+  public void testSaveAndReadOfPopularKey() throws IOException {
+    Random random = new Random(1);
+    ValueContainerImpl<String> container = new ValueContainerImpl<>();
+    for (int i = 0; i < MAX_ID / 2; i++) {
+      container.addValue(1 + random.nextInt(MAX_ID), "popular");
+    }
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    container.saveTo(new DataOutputStream(bytes), EnumeratorStringDescriptor.INSTANCE);
+
+    PlatformTestUtil.startPerformanceTest("save and read of popular key", 3000, () -> {
+      for (int it = 0; it < 20; it++) {
+        BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(bytes.size());
+        container.saveTo(new DataOutputStream(out), EnumeratorStringDescriptor.INSTANCE);
+        ValueContainerImpl<String> read = new ValueContainerImpl<>();
+        read.readFrom(new DataInputStream(new UnsyncByteArrayInputStream(out.getInternalBuffer(), 0, out.size())),
+                      EnumeratorStringDescriptor.INSTANCE, IntIntFunction.IDENTITY);
+      }
+    }).assertTiming();
+  }
+
+  /**
+   * @return time of the fastest of the attempts in ms
+   */
+  private static long measure(String what, int expectedMs, Runnable intersection) {
+    long[] best = {Long.MAX_VALUE};
+    PlatformTestUtil.startPerformanceTest(what, expectedMs, () -> {
+      long start = System.nanoTime();
+      for (int it = 0; it < 20; it++) {
+        intersection.run();
+      }
+      best[0] = Math.min(best[0], (System.nanoTime() - start) / 1_000_000);
+    }).assertTiming();
+    return best[0];
+  }
+
+  private static int[] intersectAll(int[][] arrays) {
+    int[] result = arrays[0];
+    for (int i = 1; i < arrays.length && result.length > 0; i++) {
+      result = intersect(result, arrays[i]);
+    }
+    return result;
+  }
+
+  private static long[] intersectAll(long[][] bitSets) {
+    long[] result = bitSets[0].clone();
+    for (int i = 1; i < bitSets.length; i++) {
+      long[] bitSet = bitSets[i];
+      for (int word = 0; word < result.length; word++) {
+        result[word] &= word < bitSet.length ? bitSet[word] : 0;
+      }
+    }
+    return result;
+  }
+
+  private static RoaringIdSet intersectAll(RoaringIdSet[] sets) {
+    RoaringIdSet result = sets[0];
+    for (int i = 1; i < sets.length && !result.isEmpty(); i++) {
+      result = RoaringIdSet.and(result, sets[i]);
+    }
+    return result;
+  }
+
+  private static int[] intersect(int[] first, int[] second) {
+    int[] result = new int[Math.min(first.length, second.length)];
+    int count = 0;
+    for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+      if (first[i] < second[j]) {
+        i++;
+      }
+      else if (first[i] > second[j]) {
+        j++;
+      }
+      else {
+        result[count++] = first[i];
+        i++;
+        j++;
+      }
+    }
+    int[] trimmed = new int[count];
+    System.arraycopy(result, 0, trimmed, 0, count);
+    return trimmed;
+  }
+
+  private static int[] randomIds(Random random, int count) {
+    RoaringIdSet set = new RoaringIdSet();
+    while (set.size() < count) {
+      set.add(1 + random.nextInt(MAX_ID));
+    }
+    int[] ids = new int[count];
+    int index = 0;
+    for (IntIdsIterator iterator = set.intIterator(); iterator.hasNext(); ) {
+      ids[index++] = iterator.next();
+    }
+    return ids;
+  }
+
+  private static RoaringIdSet toRoaringIdSet(int[] sortedIds) {
+    RoaringIdSet set = new RoaringIdSet();
+    for (int id : sortedIds) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  /**
+   * Bitmap of ids starting from 0, like IdBitSet with the base rounded down to the first word, which is about the same for popular keys.
+   */
+  private static long[] toBitSet(int[] sortedIds) {
+    long[] bitSet = new long[(sortedIds[sortedIds.length - 1] >> 6) + 1];
+    for (int id : sortedIds) {
+      bitSet[id >> 6] |= 1L << id;
+    }
+    return bitSet;
+  }
+
+  private static int cardinality(long[] bitSet) {
+    int result = 0;
+    for (long word : bitSet) {
+      result += Long.bitCount(word);
+    }
+    return result;
+  }
+}
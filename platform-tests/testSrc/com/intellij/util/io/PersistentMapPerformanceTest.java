@@ -374,6 +374,53 @@ public class PersistentMapPerformanceTest extends PersistentMapTestBase {
                             new File(myDataFile.getParentFile(), myDataFile.getName() + AbstractStorage.DATA_EXTENSION).length()));
   }
 
+  public void testReadonlyMappedValuesPerformance() throws IOException {
+    clearMap(myFile, myMap);
+    Boolean compressionFlag = PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.get();
+    PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.set(Boolean.FALSE);
+    try {
+      final List<String> keys = new ArrayList<>(100000);
+      myMap = new PersistentHashMap<>(myFile, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+      for (int i = 0; i < 100000; ++i) {
+        final String string = createRandomString();
+        keys.add(string);
+        myMap.put(string, StringUtil.repeat(string, 10));
+      }
+      myMap.close();
+
+      PersistentHashMapValueStorage.CreationTimeOptions.READONLY.set(Boolean.TRUE);
+      runReadonlyGetTest("read-only get, mapped values", true, keys);
+      runReadonlyGetTest("read-only get, file cache", false, keys);
+    }
+    finally {
+      PersistentHashMapValueStorage.CreationTimeOptions.READONLY.set(null);
+      PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.set(compressionFlag);
+    }
+  }
+
+  private void runReadonlyGetTest(String name, boolean mapValues, List<String> keys) throws IOException {
+    boolean previous = PersistentHashMapValueStorage.setMapReadOnlyValues(mapValues);
+    try {
+      myMap = new PersistentHashMap<>(myFile, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+      PlatformTestUtil.startPerformanceTest(name, 1500, () -> {
+        for (int i = 0; i < 4; ++i) {
+          keys.parallelStream().forEach(key -> {
+            try {
+              assertNotNull(myMap.get(key));
+            }
+            catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          });
+        }
+      }).ioBound().assertTiming();
+      myMap.close();
+    }
+    finally {
+      PersistentHashMapValueStorage.setMapReadOnlyValues(previous);
+    }
+  }
+
   public void testPerformance1() throws IOException {
     final List<String> strings = new ArrayList<>(2000);
     for (int i = 0; i < 100000; ++i) {
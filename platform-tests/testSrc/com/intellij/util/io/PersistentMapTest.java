@@ -26,6 +26,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugene Zhuravlev
@@ -463,6 +464,33 @@ public class PersistentMapTest extends PersistentMapTestBase {
     }
   }
   
+  public void testReadonlyMapWithoutCompression() throws IOException {
+    clearMap(myFile, myMap);
+    Boolean compressionFlag = PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.get();
+    try {
+      PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.set(Boolean.FALSE);
+      myMap = new PersistentHashMap<>(myFile, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+      for (int i = 0; i < 1000; i++) {
+        myMap.put("Foo" + i, "Bar" + i);
+      }
+      myMap.appendData("Foo0", out -> out.writeUTF("Baz"));
+      myMap.close();
+
+      PersistentHashMapValueStorage.CreationTimeOptions.READONLY.set(Boolean.TRUE);
+      myMap = new PersistentHashMap<>(myFile, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+      // chunked value is read through regular path, the rest are read right from the mapped file
+      assertEquals("Bar0", myMap.get("Foo0"));
+      for (int i = 1; i < 1000; i++) {
+        assertEquals("Bar" + i, myMap.get("Foo" + i));
+      }
+      assertNull(myMap.get("Baz"));
+    }
+    finally {
+      PersistentHashMapValueStorage.CreationTimeOptions.READONLY.set(null);
+      PersistentHashMapValueStorage.CreationTimeOptions.DO_COMPRESSION.set(compressionFlag);
+    }
+  }
+
   public void testFailedReadWriteSetsCorruptedFlag() throws IOException {
     EnumeratorStringDescriptor throwingException = new EnumeratorStringDescriptor() {
       @Override
@@ -488,6 +516,125 @@ public class PersistentMapTest extends PersistentMapTestBase {
     runIteration(mapConstructorWithBrokenValueDescriptor);
   }
 
+  public void testConcurrentGetWithPutAndCompact() throws Exception {
+    final int keys = 1000;
+    for (int i = 0; i < keys; ++i) {
+      myMap.put("key" + i, "value" + i);
+    }
+
+    List<Thread> readers = new ArrayList<>();
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    for (int t = 0; t < 4; ++t) {
+      Thread reader = new Thread(() -> {
+        try {
+          for (int iteration = 0; iteration < 20; ++iteration) {
+            for (int i = 0; i < keys; ++i) {
+              assertEquals("value" + i, myMap.get("key" + i));
+            }
+          }
+        }
+        catch (Throwable e) {
+          errors.add(e);
+        }
+      }, "PersistentMapTest reader " + t);
+      readers.add(reader);
+      reader.start();
+    }
+
+    for (int iteration = 0; iteration < 5; ++iteration) {
+      for (int i = 0; i < keys; ++i) {
+        myMap.put("key" + i, "value" + i);
+      }
+      myMap.compact();
+    }
+
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+  }
+
+  public void testCompactInBackground() throws Exception {
+    final int keys = 1000;
+    for (int iteration = 0; iteration < 3; ++iteration) {
+      for (int i = 0; i < keys; ++i) {
+        myMap.put("key" + i, "value" + i + "_" + iteration);
+      }
+    }
+    int garbageSize = myMap.getGarbageSize();
+    assertTrue(garbageSize > 0);
+
+    Future<?> compaction = myMap.compactInBackground();
+    for (int i = 0; i < keys; i += 2) {
+      myMap.put("key" + i, "newValue" + i);
+    }
+    myMap.remove("key1");
+    myMap.put("newKey", "newValue");
+    compaction.get();
+
+    // only the changes made after switching to the compacted storage remain garbage
+    assertTrue(myMap.getGarbageSize() < garbageSize);
+    myMap.close();
+    myMap = new PersistentHashMap<>(myFile, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+    assertEquals(keys, myMap.getSize());
+    assertNull(myMap.get("key1"));
+    assertEquals("newValue", myMap.get("newKey"));
+    for (int i = 0; i < keys; ++i) {
+      if (i == 1) continue;
+      assertEquals(i % 2 == 0 ? "newValue" + i : "value" + i + "_2", myMap.get("key" + i));
+    }
+  }
+
+  public void testPutAllAndAppendDataBatch() throws IOException {
+    myMap.put("key0", "oldValue");
+    Map<String, String> values = new HashMap<>();
+    for (int i = 0; i < 100; ++i) {
+      values.put("key" + i, "value" + i);
+    }
+    myMap.putAll(values);
+
+    assertEquals(100, myMap.getSize());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals("value" + i, myMap.get("key" + i));
+    }
+
+    File file = FileUtil.createTempFile("persistent", "map");
+    PersistentHashMap<Integer, List<String>> map = new PersistentHashMap<>(file, EnumeratorIntegerDescriptor.INSTANCE, new DataExternalizer<List<String>>() {
+      @Override
+      public void save(@NotNull DataOutput out, List<String> value) throws IOException {
+        for (String str : value) {
+          IOUtil.writeUTF(out, str);
+        }
+      }
+
+      @Override
+      public List<String> read(@NotNull DataInput in) throws IOException {
+        List<String> result = new ArrayList<>();
+        while (((InputStream)in).available() > 0) {
+          result.add(IOUtil.readUTF(in));
+        }
+        return result;
+      }
+    });
+    try {
+      for (int iteration = 0; iteration < 3; ++iteration) {
+        Map<Integer, PersistentHashMap.ValueDataAppender> appenders = new HashMap<>();
+        for (int i = 0; i < 100; ++i) {
+          String toAppend = i + "_" + iteration;
+          appenders.put(i, out -> IOUtil.writeUTF(out, toAppend));
+        }
+        map.appendData(appenders);
+      }
+
+      for (int i = 0; i < 100; ++i) {
+        assertEquals(Arrays.asList(i + "_0", i + "_1", i + "_2"), map.get(i));
+      }
+    }
+    finally {
+      clearMap(file, map);
+    }
+  }
+
   public void testExistingKeys() throws IOException {
     myMap.put("key", "_value");
     myMap.put("key", "value");
@@ -0,0 +1,79 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.SkipSlowTestLocally;
+import gnu.trove.TIntArrayList;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares read throughput of {@link RefCountingStorage} records written by different {@link RecordCompressionCodec}s.
+ */
+@SkipSlowTestLocally
+public class RecordCompressionCodecPerformanceTest extends TestCase {
+  private static final int RECORD_COUNT = 2000;
+
+  public void testDeflateRead() throws IOException {
+    runReadTest(RecordCompressionCodec.DEFLATE, 4000);
+  }
+
+  public void testLZ4Read() throws IOException {
+    runReadTest(RecordCompressionCodec.LZ4, 1500);
+  }
+
+  private static void runReadTest(@NotNull RecordCompressionCodec codec, int expectedMs) throws IOException {
+    File dir = FileUtil.createTempDirectory("codec", codec.getName());
+    RefCountingStorage storage = new RefCountingStorage(new File(dir, "contents").getPath(), CapacityAllocationPolicy.DEFAULT, codec);
+    try {
+      Random random = new Random(42);
+      TIntArrayList records = new TIntArrayList();
+      long totalSize = 0;
+      for (int i = 0; i < RECORD_COUNT; i++) {
+        byte[] content = createSourceLikeContent(random);
+        int record = storage.acquireNewRecord();
+        storage.writeBytes(record, new ByteArraySequence(content), false);
+        records.add(record);
+        totalSize += content.length;
+      }
+      storage.force();
+
+      long expectedSize = totalSize;
+      byte[] buffer = new byte[64 * 1024];
+      PlatformTestUtil.startPerformanceTest("reading " + codec.getName() + " records", expectedMs, () -> {
+        for (int it = 0; it < 10; it++) {
+          long readSize = 0;
+          for (int record : records.toNativeArray()) {
+            try (DataInputStream stream = storage.readStream(record)) {
+              int read;
+              while ((read = stream.read(buffer)) > 0) readSize += read;
+            }
+          }
+          assertEquals(expectedSize, readSize);
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      storage.dispose();
+      FileUtil.delete(dir);
+    }
+  }
+
+  private static byte @NotNull [] createSourceLikeContent(@NotNull Random random) {
+    StringBuilder builder = new StringBuilder();
+    int lines = 100 + random.nextInt(1000);
+    for (int i = 0; i < lines; i++) {
+      builder.append("  public int method").append(random.nextInt(100)).append("(String arg").append(i).append(") {")
+        .append(" return arg.length() + ").append(random.nextInt()).append("; }\n");
+    }
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
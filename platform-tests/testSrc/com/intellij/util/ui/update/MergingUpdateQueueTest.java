@@ -201,6 +201,44 @@ public class MergingUpdateQueueTest extends UsefulTestCase {
     assertAfterProcessing(food, false, false);
   }
 
+  public void testUpdatesOfOtherPriorityAreNotEaten() {
+    final MyQueue queue = new MyQueue();
+    queue.showNotify();
+
+    final MyUpdate food = new MyUpdate("food", Update.HIGH_PRIORITY);
+    MyUpdate hungry = new MyUpdate("hungry") {
+      @Override
+      public boolean canEat(Update update) {
+        return true;
+      }
+    };
+    queue.queue(food);
+    queue.queue(hungry);
+
+    waitForExecution(queue);
+
+    assertAfterProcessing(hungry, true, true);
+    assertAfterProcessing(food, true, true);
+  }
+
+  public void testQueueingManyDistinctUpdatesPerformance() {
+    AtomicInteger count = new AtomicInteger();
+    PlatformTestUtil.startPerformanceTest("queueing distinct updates", 500, () -> {
+      MyQueue queue = new MyQueue();
+      for (int i = 0; i < 200_000; i++) {
+        queue.queue(new Update(i) {
+          @Override
+          public void run() {
+            count.incrementAndGet();
+          }
+        });
+      }
+      queue.showNotify();
+      waitForExecution(queue);
+    }).setup(() -> count.set(0)).assertTiming();
+    assertEquals(200_000, count.get());
+  }
+
   public void testConcurrentFlushing() {
     final MyQueue queue = new MyQueue();
     queue.showNotify();
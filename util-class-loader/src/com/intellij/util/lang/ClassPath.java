@@ -3,18 +3,23 @@ package com.intellij.util.lang;
 
 import com.intellij.openapi.diagnostic.LoggerRt;
 import com.intellij.util.containers.Stack;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Attributes;
+import java.util.zip.ZipFile;
 
 public final class ClassPath {
   private static final ResourceStringLoaderIterator ourResourceIterator = new ResourceStringLoaderIterator();
@@ -42,6 +47,15 @@ public final class ClassPath {
   final boolean myLogErrorOnMissingJar;
   @Nullable
   private final LinkedHashSet<String> myJarAccessLog;
+  @Nullable private final ClasspathJarIndex myJarIndex;
+  // jars of the class path being opened ahead of their loaders, by the path passed to JarLoader#createZipFile
+  @Nullable private final Map<String, Future<ZipFile>> myOpeningZipFiles;
+  private final Map<String, PreloadedResource> myPreloadedResources = new ConcurrentHashMap<String, PreloadedResource>();
+  private final AtomicLong myPreloadedSize = new AtomicLong();
+  private static final long MAX_PRELOADED_SIZE = 32 * 1024 * 1024;
+  // names looked up on demand while resources are preloaded, they are not worth preloading anymore
+  private final Set<String> myDemandedResources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile boolean myPreloading;
 
   public ClassPath(List<URL> urls,
                    boolean canLockJars,
@@ -54,7 +68,8 @@ public final class ClassPath {
                    boolean logErrorOnMissingJar,
                    boolean lazyClassloadingCaches,
                    @NotNull Set<URL> urlsWithProtectionDomain,
-                   boolean logJarAccess) {
+                   boolean logJarAccess,
+                   @Nullable File jarIndexFile) {
     myLazyClassloadingCaches = lazyClassloadingCaches;
     myCanLockJars = canLockJars;
     myCanUseCache = canUseCache && !myLazyClassloadingCaches;
@@ -66,7 +81,73 @@ public final class ClassPath {
     myLogErrorOnMissingJar = logErrorOnMissingJar;
     myURLsWithProtectionDomain = urlsWithProtectionDomain;
     myJarAccessLog = logJarAccess ? new LinkedHashSet<String>() : null;
+    myJarIndex = jarIndexFile != null && myCanUseCache ? ClasspathJarIndex.load(jarIndexFile) : null;
+    // opened zip files are kept by the loaders only when jars can be locked
+    myOpeningZipFiles = ourParallelJarOpening && canLockJars && !lazyClassloadingCaches
+                        ? new ConcurrentHashMap<String, Future<ZipFile>>() : null;
     push(urls);
+    if (myOpeningZipFiles != null) {
+      startOpeningJars(urls);
+    }
+  }
+
+  private void startOpeningJars(@NotNull List<URL> urls) {
+    assert myOpeningZipFiles != null;
+    for (URL url : urls) {
+      if (!"file".equals(url.getProtocol()) || myURLsWithProtectionDomain.contains(url)) continue;
+      final String path = JarLoader.urlToFilePath(url);
+      if (!path.endsWith(".jar") || myOpeningZipFiles.containsKey(path)) continue;
+      myOpeningZipFiles.put(path, JarOpeningExecutor.ourExecutor.submit(new Callable<ZipFile>() {
+        @Override
+        public ZipFile call() throws IOException {
+          return new ZipFile(path);
+        }
+      }));
+    }
+  }
+
+  /**
+   * @return the zip file opened ahead for the loader of the jar, or null if it wasn't opened or failed to open
+   */
+  @Nullable
+  ZipFile takeOpenedZipFile(@NotNull String path) {
+    Future<ZipFile> future = myOpeningZipFiles == null ? null : myOpeningZipFiles.remove(path);
+    if (future == null) return null;
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (ExecutionException e) {
+      return null; // the loader opens the jar once more and reports the error
+    }
+  }
+
+  /**
+   * Closes the jars opened ahead which no loader took, e.g. when their loaders got cached data and don't need the jar yet.
+   */
+  private void closeUnusedOpenedZipFiles() {
+    if (myOpeningZipFiles == null || myOpeningZipFiles.isEmpty()) return;
+    for (String path : new ArrayList<String>(myOpeningZipFiles.keySet())) {
+      final Future<ZipFile> future = myOpeningZipFiles.remove(path);
+      if (future == null || future.cancel(false)) continue;
+      // opened or being opened, close it without waiting here
+      JarOpeningExecutor.ourExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.get().close();
+          }
+          catch (Exception ignore) { }
+        }
+      });
+    }
+  }
+
+  int getOpeningZipFileCount() {
+    return myOpeningZipFiles == null ? 0 : myOpeningZipFiles.size();
   }
 
   /**
@@ -93,45 +174,117 @@ public final class ClassPath {
     final long started = startTiming();
     Resource resource = null;
     try {
-      String shortName = ClasspathCache.transformName(s);
+      if (myPreloading) myDemandedResources.add(s);
+      resource = takePreloadedResource(s);
+      if (resource == null) {
+        resource = findResource(s);
+      }
+      return resource;
+    }
+    finally {
+      logInfo(this, started, s, resource);
+    }
+  }
 
-      int i;
-      if (myCanUseCache) {
-        boolean allUrlsWereProcessed = myAllUrlsWereProcessed;
-        i = allUrlsWereProcessed ? 0 : myLastLoaderProcessed.get();
+  @Nullable
+  private Resource findResource(@NotNull String s) {
+    Resource resource;
+    String shortName = ClasspathCache.transformName(s);
 
-        resource = myCache.iterateLoaders(s, ourResourceIterator, s, this, shortName);
-        if (resource != null || allUrlsWereProcessed) {
-          return resource;
-        }
-      }
-      else {
-        i = 0;
+    int i;
+    if (myCanUseCache) {
+      boolean allUrlsWereProcessed = myAllUrlsWereProcessed;
+      i = allUrlsWereProcessed ? 0 : myLastLoaderProcessed.get();
+
+      resource = myCache.iterateLoaders(s, ourResourceIterator, s, this, shortName);
+      if (resource != null || allUrlsWereProcessed) {
+        return resource;
       }
+    }
+    else {
+      i = 0;
+    }
 
-      Loader loader;
-      while ((loader = getLoader(i++)) != null) {
-        if (myCanUseCache) {
-          if (!loader.containsName(s, shortName)) continue;
-        }
-        resource = loader.getResource(s);
-        if (resource != null) {
-          if (myJarAccessLog != null) {
-            synchronized (myJarAccessLog) {
-              myJarAccessLog.add(loader.getBaseURL().toString());
-            }
+    Loader loader;
+    while ((loader = getLoader(i++)) != null) {
+      if (myCanUseCache) {
+        if (!loader.containsName(s, shortName)) continue;
+      }
+      resource = loader.getResource(s);
+      if (resource != null) {
+        if (myJarAccessLog != null) {
+          synchronized (myJarAccessLog) {
+            myJarAccessLog.add(loader.getBaseURL().toString());
           }
-          return resource;
         }
+        return resource;
       }
     }
-    finally {
-      logInfo(this, started, s, resource);
-    }
 
     return null;
   }
 
+  /**
+   * Preloading is expected to go as {@link #startPreloading()}, {@link #preloadResource} calls, {@link #finishPreloading()}
+   * and {@link #dropPreloadedResources()} once the preloaded resources are not going to be requested anymore.
+   */
+  void startPreloading() {
+    myPreloading = true;
+  }
+
+  void finishPreloading() {
+    myPreloading = false;
+    myDemandedResources.clear();
+  }
+
+  /**
+   * Frees the memory taken by the preloaded resources no lookup has claimed.
+   */
+  void dropPreloadedResources() {
+    for (String name : myPreloadedResources.keySet()) {
+      takePreloadedResource(name);
+    }
+  }
+
+  long getPreloadedSize() {
+    return myPreloadedSize.get();
+  }
+
+  /**
+   * Reads the resource ahead of demand, so its lookup gets the content from memory. Nothing is read while resource loading is logged,
+   * to keep the log in the order of demand, and resources that were already looked up on demand are skipped.
+   *
+   * @return false if the resources read ahead and not requested yet already take too much memory
+   */
+  boolean preloadResource(@NotNull String name) {
+    if (ourResourceLoadingLogger != null) return false;
+    if (myPreloadedSize.get() > MAX_PRELOADED_SIZE) return false;
+    if (myPreloadedResources.containsKey(name) || myDemandedResources.contains(name)) return true;
+
+    Resource resource = findResource(name);
+    if (resource != null) {
+      try {
+        byte[] content = resource.getBytes();
+        myPreloadedSize.addAndGet(content.length);
+        myPreloadedResources.put(name, new PreloadedResource(resource, content));
+        // the lookup that won the race has missed the resource, nothing is going to claim it
+        if (myDemandedResources.contains(name)) takePreloadedResource(name);
+      }
+      catch (IOException ignore) { } // reported on demand
+    }
+    return true;
+  }
+
+  @Nullable
+  private Resource takePreloadedResource(@NotNull String name) {
+    if (myPreloadedResources.isEmpty()) return null;
+    PreloadedResource resource = myPreloadedResources.remove(name);
+    if (resource != null) {
+      myPreloadedSize.addAndGet(-resource.myContent.length);
+    }
+    return resource;
+  }
+
   public Enumeration<URL> getResources(final String name) {
     return new MyEnumeration(name);
   }
@@ -151,9 +304,7 @@ public final class ClassPath {
       URL url;
       synchronized (myUrls) {
         if (myUrls.empty()) {
-          if (myCanUseCache) {
-            myAllUrlsWereProcessed = true;
-          }
+          allUrlsProcessed();
           return null;
         }
         url = myUrls.pop();
@@ -161,17 +312,29 @@ public final class ClassPath {
 
       if (myLoadersMap.containsKey(url)) continue;
 
+      long started = System.nanoTime();
       try {
         initLoaders(url, myLoaders.size());
       }
       catch (IOException e) {
         LoggerRt.getInstance(ClassPath.class).info("url: " + url, e);
       }
+      finally {
+        ourLoadersCreationTime.addAndGet(System.nanoTime() - started);
+      }
     }
 
     return myLoaders.get(i);
   }
 
+  private void allUrlsProcessed() {
+    if (myCanUseCache) {
+      myAllUrlsWereProcessed = true;
+      if (myJarIndex != null) myJarIndex.saveIfChanged();
+    }
+    closeUnusedOpenedZipFiles();
+  }
+
   @NotNull
   public List<URL> getBaseUrls() {
     List<URL> result = new ArrayList<URL>();
@@ -210,7 +373,7 @@ public final class ClassPath {
       File file = new File(path);
       Loader loader = createLoader(url, index, file, file.getName().startsWith(CLASSPATH_JAR_FILE_NAME_PREFIX));
       if (loader != null) {
-        initLoader(url, loader);
+        initLoader(url, file, loader);
       }
     }
   }
@@ -247,25 +410,36 @@ public final class ClassPath {
     return null;
   }
 
-  private void initLoader(@NotNull URL url, @NotNull Loader loader) throws IOException {
+  private void initLoader(@NotNull URL url, @NotNull File file, @NotNull Loader loader) throws IOException {
+    ourLoadersCount.incrementAndGet();
     if (myCanUseCache) {
       ClasspathCache.LoaderData data = myCachePool == null ? null : myCachePool.getCachedData(url);
-      if (data == null) {
-        data = loader.buildData();
+      boolean indexed = myJarIndex != null && loader instanceof JarLoader;
+      if (data != null) {
+        if (indexed) myJarIndex.markUsed(file);
+      }
+      else {
+        data = indexed ? myJarIndex.getData(file) : null;
+        if (data != null) {
+          ourIndexedLoadersCount.incrementAndGet();
+        }
+        else {
+          data = loader.buildData();
+          if (indexed) myJarIndex.putData(file, data);
+        }
         if (myCachePool != null && myCachingCondition != null && myCachingCondition.shouldCacheData(url)) {
           myCachePool.cacheData(url, data);
         }
       }
       myCache.applyLoaderData(data, loader);
+    }
 
-      boolean lastOne;
-      synchronized (myUrls) {
-        lastOne = myUrls.isEmpty();
-      }
-
-      if (lastOne) {
-        myAllUrlsWereProcessed = true;
-      }
+    boolean lastOne;
+    synchronized (myUrls) {
+      lastOne = myUrls.isEmpty();
+    }
+    if (lastOne) {
+      allUrlsProcessed();
     }
     myLoaders.add(loader);
     myLoadersMap.put(url, loader);
@@ -399,6 +573,45 @@ public final class ClassPath {
     }
   }
 
+  private static class PreloadedResource extends Resource {
+    private final Resource myDelegate;
+    private final byte[] myContent;
+
+    PreloadedResource(@NotNull Resource delegate, @NotNull byte[] content) {
+      myDelegate = delegate;
+      myContent = content;
+    }
+
+    @NotNull
+    @Override
+    public URL getURL() {
+      return myDelegate.getURL();
+    }
+
+    @NotNull
+    @Override
+    public InputStream getInputStream() {
+      return new UnsyncByteArrayInputStream(myContent);
+    }
+
+    @NotNull
+    @Override
+    public byte[] getBytes() {
+      return myContent;
+    }
+
+    @Override
+    public String getValue(@NotNull Attribute key) {
+      return myDelegate.getValue(key);
+    }
+
+    @Nullable
+    @Override
+    public ProtectionDomain getProtectionDomain() {
+      return myDelegate.getProtectionDomain();
+    }
+  }
+
   private static class LoaderCollector extends ClasspathCache.LoaderIterator<Object, Collection<Loader>, Object> {
     @Override
     Object process(@NotNull Loader loader, @NotNull Collection<Loader> parameter, @NotNull Object parameter2, @NotNull String shortName) {
@@ -433,6 +646,23 @@ public final class ClassPath {
   private static final AtomicInteger ourTotalRequests = new AtomicInteger();
   private static final ThreadLocal<Boolean> ourDoingTiming = new ThreadLocal<Boolean>();
 
+  private static final AtomicLong ourLoadersCreationTime = new AtomicLong();
+  private static final AtomicInteger ourLoadersCount = new AtomicInteger();
+  private static final AtomicInteger ourIndexedLoadersCount = new AtomicInteger();
+  private static final boolean ourParallelJarOpening = Boolean.parseBoolean(System.getProperty("idea.classpath.parallel.jar.opening", "true"));
+
+  /**
+   * @return time spent by all class paths so far in creation of loaders, and in resource lookups with {@code idea.log.classpath.info},
+   * e.g. to report class loading costs of startup
+   */
+  @NotNull
+  public static String getLoadingStatistics() {
+    String lookups = ourClassLoadingInfo ? "requests: " + ourTotalRequests.get() + ", time: " + ourTotalTime.get() / 1000000 + "ms, " : "";
+    return lookups +
+           "loaders: " + ourLoadersCount.get() + " (" + ourIndexedLoadersCount.get() + " from jar index), " +
+           "loaders creation time: " + ourLoadersCreationTime.get() / 1000000 + "ms";
+  }
+
   private static long startTiming() {
     if (!ourClassLoadingInfo) return 0;
     if (ourDoingTiming.get() != null) {
@@ -487,6 +717,29 @@ public final class ClassPath {
     }
   }
 
+  // created on the first class path that opens jars ahead; the threads exit when idle
+  private static final class JarOpeningExecutor {
+    private static final ExecutorService ourExecutor;
+
+    static {
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                           new ThreadFactory() {
+        private final AtomicInteger myCount = new AtomicInteger();
+
+        @NotNull
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+          Thread thread = new Thread(r, "ClassPath jar opening " + myCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      executor.allowCoreThreadTimeOut(true);
+      ourExecutor = executor;
+    }
+  }
+
   private static String[] loadManifestClasspath(JarLoader loader) {
     try {
       String classPath = loader.getClassPathManifestAttribute();
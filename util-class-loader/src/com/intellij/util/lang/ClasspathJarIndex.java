@@ -0,0 +1,143 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.lang;
+
+import com.intellij.openapi.diagnostic.LoggerRt;
+import com.intellij.openapi.util.io.DataInputOutputUtilRt;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent {@link ClasspathCache.LoaderData} of jars in a class path, i.e. package hashes and name filters of the loaders, so
+ * {@link ClassPath} registers a jar in its {@link ClasspathCache} without enumerating its entries. The index is written at install time
+ * or by the first run, and an entry is used while the length and the modification time of its jar stay the same.
+ * Entries of the jars which are no longer in the class path are dropped when the index is written.
+ */
+final class ClasspathJarIndex {
+  private static final int VERSION = 1;
+
+  private final File myFile;
+  private final Map<String, Entry> myEntries;
+  // jars of the class path seen so far, entries of other jars are stale
+  private final Set<String> myUsedPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile boolean myChanged;
+
+  private ClasspathJarIndex(@NotNull File file, @NotNull Map<String, Entry> entries) {
+    myFile = file;
+    myEntries = entries;
+  }
+
+  @NotNull
+  static ClasspathJarIndex load(@NotNull File file) {
+    Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    if (!file.isFile()) return new ClasspathJarIndex(file, entries);
+
+    try {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (DataInputOutputUtilRt.readINT(input) == VERSION) {
+          for (int i = 0, count = DataInputOutputUtilRt.readINT(input); i < count; i++) {
+            String path = input.readUTF();
+            long length = input.readLong();
+            long timestamp = input.readLong();
+            entries.put(path, new Entry(length, timestamp, new ClasspathCache.LoaderData(input)));
+          }
+        }
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException e) {
+      LoggerRt.getInstance(ClasspathJarIndex.class).warn("Cannot read classpath index " + file, e);
+      entries.clear();
+    }
+    return new ClasspathJarIndex(file, entries);
+  }
+
+  @Nullable
+  ClasspathCache.LoaderData getData(@NotNull File jar) {
+    markUsed(jar);
+    Entry entry = myEntries.get(jar.getPath());
+    if (entry == null || entry.myLength != jar.length() || entry.myTimestamp != jar.lastModified()) return null;
+    return entry.myData;
+  }
+
+  void putData(@NotNull File jar, @NotNull ClasspathCache.LoaderData data) {
+    markUsed(jar);
+    myEntries.put(jar.getPath(), new Entry(jar.length(), jar.lastModified(), data));
+    myChanged = true;
+  }
+
+  /**
+   * Keeps the entry of a jar of the class path whose data was taken from elsewhere.
+   */
+  void markUsed(@NotNull File jar) {
+    myUsedPaths.add(jar.getPath());
+  }
+
+  /**
+   * Writes the index unless all the jars were found in it and all its entries belong to the class path.
+   * The index is written to a temporary file first, so a concurrent reader never sees it partially written.
+   */
+  synchronized void saveIfChanged() {
+    Map<String, Entry> entries = new HashMap<String, Entry>(myEntries);
+    entries.keySet().retainAll(myUsedPaths);
+    if (!myChanged && entries.size() == myEntries.size()) return;
+    myChanged = false;
+    myEntries.keySet().retainAll(entries.keySet());
+
+    File temp = null;
+    try {
+      File parent = myFile.getAbsoluteFile().getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Cannot create " + parent);
+      }
+      temp = File.createTempFile(myFile.getName(), ".tmp", parent);
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        DataInputOutputUtilRt.writeINT(output, VERSION);
+        DataInputOutputUtilRt.writeINT(output, entries.size());
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          output.writeUTF(mapEntry.getKey());
+          output.writeLong(entry.myLength);
+          output.writeLong(entry.myTimestamp);
+          entry.myData.save(output);
+        }
+      }
+      finally {
+        output.close();
+      }
+      // File.renameTo doesn't replace an existing file on Windows
+      if (!temp.renameTo(myFile) && !(myFile.delete() && temp.renameTo(myFile))) {
+        throw new IOException("Cannot rename " + temp + " to " + myFile);
+      }
+    }
+    catch (IOException e) {
+      LoggerRt.getInstance(ClasspathJarIndex.class).warn("Cannot write classpath index " + myFile, e);
+      if (temp != null) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final long myLength;
+    private final long myTimestamp;
+    private final ClasspathCache.LoaderData myData;
+
+    Entry(long length, long timestamp, @NotNull ClasspathCache.LoaderData data) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myData = data;
+    }
+  }
+}
@@ -80,7 +80,7 @@ class JarLoader extends Loader {
   }
 
   @NotNull
-  private static String urlToFilePath(@NotNull URL url) {
+  static String urlToFilePath(@NotNull URL url) {
     try {
       return new File(url.toURI()).getPath();
     }
@@ -329,7 +329,8 @@ class JarLoader extends Loader {
 
   @NotNull
   protected ZipFile createZipFile(@NotNull String path) throws IOException {
-    return new ZipFile(path);
+    ZipFile zipFile = myConfiguration.takeOpenedZipFile(path);
+    return zipFile != null ? zipFile : new ZipFile(path);
   }
 
   protected void releaseZipFile(@NotNull ZipFile zipFile) throws IOException {
@@ -7,9 +7,7 @@ import com.intellij.util.PathUtilRt;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -76,6 +74,8 @@ public class UrlClassLoader extends ClassLoader {
   }
 
   private static final boolean ourClassPathIndexEnabled = Boolean.parseBoolean(System.getProperty("idea.classpath.index.enabled", "true"));
+  // preloaded resources no lookup has claimed this long after preloading are dropped
+  private static final long UNCLAIMED_PRELOADED_RESOURCES_TIMEOUT_MS = 60 * 1000;
 
   @NotNull
   protected ClassPath getClassPath() {
@@ -110,6 +110,10 @@ public class UrlClassLoader extends ClassLoader {
     private boolean myLazyClassloadingCaches;
     private boolean myLogJarAccess;
     @Nullable
+    private File myJarIndexFile;
+    @Nullable
+    private File myPreloadListFile;
+    @Nullable
     private CachePoolImpl myCachePool;
     @Nullable
     private CachingCondition myCachingCondition;
@@ -164,6 +168,22 @@ public class UrlClassLoader extends ClassLoader {
       return this;
     }
 
+    /**
+     * Loads package / name information of jars from the given file instead of reading it from every jar, which is what the loader
+     * is busy with on a cold start. The information of jars that are missing in the file or were changed is written to it once all
+     * the jars are opened, so the file may be prepared at install time or left to the first run. Works together with {@link #useCache()}.
+     */
+    @NotNull
+    public Builder useJarIndex(@Nullable File indexFile) { myJarIndexFile = indexFile; return this; }
+
+    /**
+     * Starts a thread that reads resources listed in the given file (a name per line, in the order of expected requests, e.g. the preload
+     * list produced from a startup profile by com.intellij.util.loader.StartupProfileMain) ahead of demand, so class loading gets
+     * their content from memory instead of waiting for the disk.
+     */
+    @NotNull
+    public Builder preloadResources(@Nullable File listFile) { myPreloadListFile = listFile; return this; }
+
     @NotNull
     public Builder logJarAccess(boolean logJarAccess) { myLogJarAccess = logJarAccess; return this; }
 
@@ -238,9 +258,17 @@ public class UrlClassLoader extends ClassLoader {
     this(build().urls(((URLClassLoader)parent).getURLs()).parent(parent.getParent()).allowLock().useCache()
            .usePersistentClasspathIndexForLocalClassDirectories()
            .useLazyClassloadingCaches(Boolean.parseBoolean(System.getProperty("idea.lazy.classloading.caches", "false")))
+           .useJarIndex(getFileFromProperty("idea.classpath.jar.index.file"))
+           .preloadResources(getFileFromProperty("idea.classpath.preload.list.file"))
            .autoAssignUrlsWithProtectionDomain());
   }
 
+  @Nullable
+  private static File getFileFromProperty(@NotNull String name) {
+    String path = System.getProperty(name);
+    return path != null ? new File(path) : null;
+  }
+
   protected UrlClassLoader(@NotNull Builder builder) {
     super(builder.myParent);
 
@@ -260,6 +288,47 @@ public class UrlClassLoader extends ClassLoader {
     myClassPath = createClassPath(builder);
     myAllowBootstrapResources = builder.myAllowBootstrapResources;
     myClassLoadingLocks = ourParallelCapableLoaders != null && ourParallelCapableLoaders.contains(getClass()) ? new ClassLoadingLocks() : null;
+
+    if (builder.myPreloadListFile != null) {
+      startPreloading(myClassPath, builder.myPreloadListFile);
+    }
+  }
+
+  private static void startPreloading(@NotNull final ClassPath classPath, @NotNull final File listFile) {
+    classPath.startPreloading();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(listFile), "UTF-8"));
+          try {
+            String name;
+            while ((name = reader.readLine()) != null) {
+              if (name.isEmpty() || name.startsWith("#")) continue;
+              if (!classPath.preloadResource(name)) break;
+            }
+          }
+          finally {
+            reader.close();
+          }
+        }
+        catch (IOException e) {
+          LoggerRt.getInstance(UrlClassLoader.class).info("Cannot preload resources from " + listFile, e);
+        }
+        finally {
+          classPath.finishPreloading();
+        }
+
+        // the list is recorded by another run, resources this run hasn't requested by the deadline are unlikely to be requested at all
+        try {
+          Thread.sleep(UNCLAIMED_PRELOADED_RESOURCES_TIMEOUT_MS);
+        }
+        catch (InterruptedException ignore) { }
+        classPath.dropPreloadedResources();
+      }
+    }, "UrlClassLoader resource preloading");
+    thread.setDaemon(true);
+    thread.start();
   }
 
   @NotNull
@@ -272,7 +341,7 @@ public class UrlClassLoader extends ClassLoader {
     return new ClassPath(myURLs, builder.myLockJars, builder.myUseCache, builder.myAcceptUnescaped, builder.myPreload,
                          builder.myUsePersistentClasspathIndex, builder.myCachePool, builder.myCachingCondition,
                          builder.myErrorOnMissingJar, builder.myLazyClassloadingCaches, urlsWithProtectionDomain,
-                         builder.myLogJarAccess);
+                         builder.myLogJarAccess, builder.myJarIndexFile);
   }
 
   /**
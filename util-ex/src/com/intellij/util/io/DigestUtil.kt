@@ -21,12 +21,24 @@ object DigestUtil {
     calculateContentHash(digest, bytes, 0, bytes.size)
 
   @JvmStatic
-  fun calculateContentHash(digest: MessageDigest, bytes: ByteArray, offset: Int, length: Int): ByteArray {
-    val cloned = cloneDigest(digest)
-    cloned.update(length.toString().toByteArray())
-    cloned.update("\u0000".toByteArray())
-    cloned.update(bytes, offset, length)
-    return cloned.digest()
+  fun calculateContentHash(digest: MessageDigest, bytes: ByteArray, offset: Int, length: Int): ByteArray =
+    digestContent(cloneDigest(digest), bytes, offset, length)
+
+  /**
+   * Same as [calculateContentHash], but resets and uses [digest] itself instead of its clone,
+   * e.g. for digests reused by one thread.
+   */
+  @JvmStatic
+  fun calculateContentHashInPlace(digest: MessageDigest, bytes: ByteArray, offset: Int, length: Int): ByteArray {
+    digest.reset()
+    return digestContent(digest, bytes, offset, length)
+  }
+
+  private fun digestContent(digest: MessageDigest, bytes: ByteArray, offset: Int, length: Int): ByteArray {
+    digest.update(length.toString().toByteArray())
+    digest.update("\u0000".toByteArray())
+    digest.update(bytes, offset, length)
+    return digest.digest()
   }
 
   @JvmStatic
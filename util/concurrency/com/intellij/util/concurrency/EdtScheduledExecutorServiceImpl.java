@@ -20,7 +20,7 @@ class EdtScheduledExecutorServiceImpl extends SchedulingWrapper implements EdtSc
   @NotNull
   @Override
   public ScheduledFuture<?> schedule(@NotNull Runnable command, @NotNull ModalityState modalityState, long delay, TimeUnit unit) {
-    MyScheduledFutureTask<?> task = new MyScheduledFutureTask<Void>(command, null, triggerTime(delayQueue, delay, unit)){
+    MyScheduledFutureTask<?> task = new MyScheduledFutureTask<Void>(command, null, triggerTime(delay, unit)){
       @Override
       void executeMeInBackendExecutor() {
         EdtExecutorService.getInstance().execute(this, modalityState);
@@ -4,39 +4,58 @@ package com.intellij.util.concurrency;
 import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.concurrent.DelayQueue;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class implements the global delayed queue which is used by
  * {@link AppScheduledExecutorService} and {@link BoundedScheduledExecutorService}.
  * It starts the background thread which polls the queue for tasks ready to run and sends them to the appropriate executor.
  * The {@link #shutdown()} must be called before disposal.
+ * <p>
+ * The tasks are kept in a {@link TimingWheel} with the {@link #TICK_NANOS} resolution, so adding and removing (i.e. cancelling) a task
+ * takes constant time regardless of the number of the queued ones. A task is never sent to its executor before its trigger time.
  */
-final class AppDelayQueue extends DelayQueue<SchedulingWrapper.MyScheduledFutureTask<?>> {
+final class AppDelayQueue extends AbstractCollection<SchedulingWrapper.MyScheduledFutureTask<?>> {
   private static final Logger LOG = Logger.getInstance(AppDelayQueue.class);
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long RUNNING = Long.MIN_VALUE;
+
   private final Thread scheduledToPooledTransferrer;
   private final AtomicBoolean shutdown = new AtomicBoolean();
+  private final long startTime = System.nanoTime();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  // guarded by lock
+  private final TimingWheel<SchedulingWrapper.MyScheduledFutureTask<?>> wheel = new TimingWheel<>(0);
+  // the tick scheduledToPooledTransferrer sleeps until (Long.MAX_VALUE if there is nothing to wait for) or RUNNING; guarded by lock
+  private long wakeUpTick = RUNNING;
 
   AppDelayQueue() {
     /* this thread takes the ready-to-execute scheduled tasks off the queue and passes them for immediate execution to {@link SchedulingWrapper#backendExecutorService} */
     scheduledToPooledTransferrer = new Thread(() -> {
+      List<SchedulingWrapper.MyScheduledFutureTask<?>> tasks = new ArrayList<>();
       while (!shutdown.get()) {
         try {
-          SchedulingWrapper.MyScheduledFutureTask<?> task = take();
-          if (LOG.isTraceEnabled()) {
-            LOG.trace("Took "+BoundedTaskExecutor.info(task));
-          }
-          if (!task.isDone()) {  // can be cancelled already
-            try {
-              task.executeMeInBackendExecutor();
+          takeExpired(tasks);
+          for (SchedulingWrapper.MyScheduledFutureTask<?> task : tasks) {
+            if (LOG.isTraceEnabled()) {
+              LOG.trace("Took "+BoundedTaskExecutor.info(task));
             }
-            catch (Throwable e) {
+            if (!task.isDone()) {  // can be cancelled already
               try {
-                LOG.error("Error executing "+task, e);
+                task.fire();
               }
-              catch (Throwable ignored) {
-                // do not let it stop the thread
+              catch (Throwable e) {
+                try {
+                  LOG.error("Error executing "+task, e);
+                }
+                catch (Throwable ignored) {
+                  // do not let it stop the thread
+                }
               }
             }
           }
@@ -46,6 +65,9 @@ final class AppDelayQueue extends DelayQueue<SchedulingWrapper.MyScheduledFuture
             LOG.error(e);
           }
         }
+        finally {
+          tasks.clear();
+        }
       }
       LOG.debug("scheduledToPooledTransferrer Stopped");
     }, "Periodic tasks thread");
@@ -53,6 +75,96 @@ final class AppDelayQueue extends DelayQueue<SchedulingWrapper.MyScheduledFuture
     scheduledToPooledTransferrer.start();
   }
 
+  /**
+   * Waits until some tasks reach their trigger time and moves them from the queue to {@code result}.
+   */
+  private void takeExpired(@NotNull List<? super SchedulingWrapper.MyScheduledFutureTask<?>> result) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        wheel.advanceTo((System.nanoTime() - startTime) / TICK_NANOS, result);
+        if (!result.isEmpty()) return;
+
+        wakeUpTick = wheel.nextTick();
+        if (wakeUpTick == Long.MAX_VALUE) {
+          available.await();
+        }
+        else {
+          available.awaitNanos(startTime + wakeUpTick * TICK_NANOS - System.nanoTime());
+        }
+        wakeUpTick = RUNNING;
+      }
+    }
+    finally {
+      wakeUpTick = RUNNING;
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean add(@NotNull SchedulingWrapper.MyScheduledFutureTask<?> task) {
+    // round up so the tick comes not earlier than the trigger time
+    long elapsed = task.getTriggerTime() - startTime;
+    long deadline = elapsed <= 0 ? 0 : (elapsed - 1) / TICK_NANOS + 1;
+    lock.lock();
+    try {
+      task.wheelNode = wheel.add(task, deadline);
+      if (deadline < wakeUpTick) {
+        // the transferrer sleeps longer than needed for this task
+        wakeUpTick = RUNNING;
+        available.signal();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof SchedulingWrapper.MyScheduledFutureTask)) return false;
+    SchedulingWrapper.MyScheduledFutureTask<?> task = (SchedulingWrapper.MyScheduledFutureTask<?>)o;
+    lock.lock();
+    try {
+      TimingWheel.Node<SchedulingWrapper.MyScheduledFutureTask<?>> node = task.wheelNode;
+      if (node == null) return false;
+      task.wheelNode = null;
+      return wheel.remove(node);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return wheel.size();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Iterates over a snapshot of the queued tasks.
+   */
+  @NotNull
+  @Override
+  public Iterator<SchedulingWrapper.MyScheduledFutureTask<?>> iterator() {
+    List<SchedulingWrapper.MyScheduledFutureTask<?>> tasks;
+    lock.lock();
+    try {
+      tasks = wheel.values();
+    }
+    finally {
+      lock.unlock();
+    }
+    return Collections.unmodifiableList(tasks).iterator();
+  }
+
   void shutdown() {
     if (shutdown.getAndSet(true)) {
       throw new IllegalStateException("Already shutdown");
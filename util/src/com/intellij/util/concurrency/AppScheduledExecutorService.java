@@ -109,7 +109,7 @@ public final class AppScheduledExecutorService extends SchedulingWrapper {
   @NotNull
   @TestOnly
   public String statistics() {
-    return myName + " threads created counter = " + myCountingThreadFactory.counter;
+    return myName + " threads created counter = " + myCountingThreadFactory.counter + ", " + getTaskStatistics();
   }
 
   @TestOnly
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Makes a {@link ScheduledExecutorService} from the supplied plain, non-scheduling {@link ExecutorService} by awaiting scheduled tasks in a separate thread
@@ -21,6 +22,9 @@ class SchedulingWrapper implements ScheduledExecutorService {
   private final AtomicBoolean shutdown = new AtomicBoolean();
   @NotNull final ExecutorService backendExecutorService;
   final AppDelayQueue delayQueue;
+  private final LongAdder scheduledCount = new LongAdder();
+  private final LongAdder cancelledCount = new LongAdder();
+  private final LongAdder firedCount = new LongAdder();
 
   SchedulingWrapper(@NotNull ExecutorService backendExecutorService, @NotNull AppDelayQueue delayQueue) {
     this.delayQueue = delayQueue;
@@ -58,7 +62,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
     List<MyScheduledFutureTask<?>> result = new ArrayList<>();
     for (MyScheduledFutureTask<?> task : delayQueue) {
       if (task.getBackendExecutorService() == backendExecutorService) {
-        task.cancel(false);
+        task.cancel(false); // removes it from the queue
         result.add(task);
       }
     }
@@ -67,7 +71,6 @@ class SchedulingWrapper implements ScheduledExecutorService {
       return Collections.emptyList();
     }
 
-    delayQueue.removeAll(result);
     //noinspection unchecked,rawtypes
     return (List)result;
   }
@@ -77,6 +80,33 @@ class SchedulingWrapper implements ScheduledExecutorService {
     return shutdown.get();
   }
 
+  /**
+   * @return the number of tasks scheduled by this executor
+   */
+  public long getScheduledTaskCount() {
+    return scheduledCount.sum();
+  }
+
+  /**
+   * @return the number of tasks of this executor cancelled before they completed
+   */
+  public long getCancelledTaskCount() {
+    return cancelledCount.sum();
+  }
+
+  /**
+   * @return the number of times tasks of this executor reached their trigger time and were passed to the backend executor;
+   * every run of a periodic task counts
+   */
+  public long getFiredTaskCount() {
+    return firedCount.sum();
+  }
+
+  @NotNull
+  String getTaskStatistics() {
+    return "scheduled tasks: " + getScheduledTaskCount() + ", cancelled: " + getCancelledTaskCount() + ", fired: " + getFiredTaskCount();
+  }
+
   @Override
   public boolean isTerminated() {
     return isShutdown();
@@ -122,6 +152,11 @@ class SchedulingWrapper implements ScheduledExecutorService {
      */
     private final long period;
 
+    /**
+     * The position in {@link AppDelayQueue} while queued, guarded by its lock
+     */
+    TimingWheel.Node<MyScheduledFutureTask<?>> wheelNode;
+
     /**
      * Creates a one-shot action with given nanoTime-based trigger time.
      */
@@ -155,6 +190,9 @@ class SchedulingWrapper implements ScheduledExecutorService {
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
       boolean canceled = super.cancel(mayInterruptIfRunning);
+      if (canceled) {
+        cancelledCount.increment();
+      }
       delayQueue.remove(this);
       return canceled;
     }
@@ -206,7 +244,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
         time += p;
       }
       else {
-        time = triggerTime(delayQueue, -p);
+        time = triggerTime(-p);
       }
     }
 
@@ -222,7 +260,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
       }
       else if (runAndReset()) {
         setNextRunTime();
-        delayQueue.offer(this);
+        delayQueue.add(this);
       }
     }
 
@@ -232,11 +270,20 @@ class SchedulingWrapper implements ScheduledExecutorService {
       return "Delay: " + getDelay(TimeUnit.MILLISECONDS) + "ms; " + (info == this ? super.toString() : info) + " backendExecutorService: "+backendExecutorService;
     }
 
+    long getTriggerTime() {
+      return time;
+    }
+
     @NotNull
     private ExecutorService getBackendExecutorService() {
       return backendExecutorService;
     }
 
+    void fire() {
+      firedCount.increment();
+      executeMeInBackendExecutor();
+    }
+
     void executeMeInBackendExecutor() {
       backendExecutorService.execute(this);
     }
@@ -255,8 +302,8 @@ class SchedulingWrapper implements ScheduledExecutorService {
   /**
    * Returns the trigger time of a delayed action.
    */
-  static long triggerTime(@NotNull AppDelayQueue queue, long delay, TimeUnit unit) {
-    return triggerTime(queue, unit.toNanos(delay < 0 ? 0 : delay));
+  static long triggerTime(long delay, TimeUnit unit) {
+    return triggerTime(unit.toNanos(delay < 0 ? 0 : delay));
   }
 
   private static long now() {
@@ -265,27 +312,10 @@ class SchedulingWrapper implements ScheduledExecutorService {
 
   /**
    * Returns the trigger time of a delayed action.
+   * The delay is capped to keep the trigger times of all tasks within Long.MAX_VALUE of each other, to avoid overflow in compareTo.
    */
-  private static long triggerTime(@NotNull AppDelayQueue queue, long delay) {
-    return now() + (delay < Long.MAX_VALUE >> 1 ? delay : overflowFree(queue, delay));
-  }
-
-  /**
-   * Constrains the values of all delays in the queue to be within
-   * Long.MAX_VALUE of each other, to avoid overflow in compareTo.
-   * This may occur if a task is eligible to be dequeued, but has
-   * not yet been, while some other task is added with a delay of
-   * Long.MAX_VALUE.
-   */
-  private static long overflowFree(@NotNull AppDelayQueue queue, long delay) {
-    Delayed head = queue.peek();
-    if (head != null) {
-      long headDelay = head.getDelay(TimeUnit.NANOSECONDS);
-      if (headDelay < 0 && delay - headDelay < 0) {
-        delay = Long.MAX_VALUE + headDelay;
-      }
-    }
-    return delay;
+  private static long triggerTime(long delay) {
+    return now() + Math.min(delay, Long.MAX_VALUE >> 1);
   }
 
   @NotNull
@@ -293,7 +323,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
   public ScheduledFuture<?> schedule(@NotNull Runnable command,
                                      long delay,
                                      @NotNull TimeUnit unit) {
-    MyScheduledFutureTask<?> t = new MyScheduledFutureTask<Void>(command, null, triggerTime(delayQueue, delay, unit));
+    MyScheduledFutureTask<?> t = new MyScheduledFutureTask<Void>(command, null, triggerTime(delay, unit));
     return delayedExecute(t);
   }
 
@@ -303,6 +333,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
       throw new RejectedExecutionException("Already shutdown");
     }
     delayQueue.add(t);
+    scheduledCount.increment();
     if (t.getDelay(TimeUnit.DAYS) > 31 && !t.isPeriodic()) {
       // guard against inadvertent queue overflow
       throw new IllegalArgumentException("Unsupported crazy delay " + t.getDelay(TimeUnit.DAYS) + " days: " + BoundedTaskExecutor.info(t));
@@ -315,7 +346,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
   public <V> ScheduledFuture<V> schedule(@NotNull Callable<V> callable,
                                          long delay,
                                          @NotNull TimeUnit unit) {
-    MyScheduledFutureTask<V> t = new MyScheduledFutureTask<>(callable, triggerTime(delayQueue, delay, unit));
+    MyScheduledFutureTask<V> t = new MyScheduledFutureTask<>(callable, triggerTime(delay, unit));
     return delayedExecute(t);
   }
 
@@ -339,7 +370,7 @@ class SchedulingWrapper implements ScheduledExecutorService {
     }
     MyScheduledFutureTask<Void> sft = new MyScheduledFutureTask<>(command,
                                                                   null,
-                                                                  triggerTime(delayQueue, initialDelay, unit),
+                                                                  triggerTime(initialDelay, unit),
                                                                   unit.toNanos(-delay));
     return delayedExecute(sft);
   }
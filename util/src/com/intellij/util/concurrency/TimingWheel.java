@@ -0,0 +1,223 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.concurrency;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed hierarchical timing wheel: {@link #LEVELS} wheels of {@link #SLOTS} slots, a slot of the level {@code L} spanning
+ * {@code SLOTS^L} ticks. An element is put into the slot of the highest tick digit (in base {@link #SLOTS}) its deadline differs from
+ * the current tick in, and is moved down to the lower levels when the current tick reaches that slot, so {@link #add} and {@link #remove}
+ * take constant time and {@link #advanceTo} takes time proportional to the number of the expired and moved elements.
+ * Deadlines beyond the span of the wheels wait in a separate list until the top level turns over.
+ * <p>
+ * Ticks are abstract here, {@link AppDelayQueue} maps them to time. Not thread-safe.
+ */
+final class TimingWheel<T> {
+  private static final int SLOT_BITS = 6;
+  static final int SLOTS = 1 << SLOT_BITS;
+  static final int LEVELS = 6;
+  private static final long SPAN_MASK = (1L << SLOT_BITS * LEVELS) - 1;
+
+  private final Slot<T>[][] slots;
+  private final long[] occupied = new long[LEVELS]; // bit i is set iff the slot i of the level is not empty
+  private final Slot<T> expired = new Slot<>(-1, -1);
+  private final Slot<T> beyondSpan = new Slot<>(-1, -1);
+  private long tick;
+  private int size;
+
+  TimingWheel(long tick) {
+    this.tick = tick;
+    //noinspection unchecked
+    slots = new Slot[LEVELS][SLOTS];
+    for (int level = 0; level < LEVELS; level++) {
+      for (int index = 0; index < SLOTS; index++) {
+        slots[level][index] = new Slot<>(level, index);
+      }
+    }
+  }
+
+  long getTick() {
+    return tick;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds the value which expires when the wheel is advanced to the {@code deadline} tick, or on the next {@link #advanceTo} call
+   * if the deadline has passed already.
+   */
+  @NotNull
+  Node<T> add(@NotNull T value, long deadline) {
+    Node<T> node = new Node<>(value, deadline);
+    place(node);
+    size++;
+    return node;
+  }
+
+  /**
+   * @return false if the node has expired or has been removed already
+   */
+  boolean remove(@NotNull Node<T> node) {
+    if (node.slot == null) return false;
+    unlink(node);
+    size--;
+    return true;
+  }
+
+  /**
+   * @return the tick the next {@link #advanceTo} call would expire or move some elements at, or {@link Long#MAX_VALUE} if the wheel is empty
+   */
+  long nextTick() {
+    if (expired.first != null) return tick;
+    long result = beyondSpan.first == null ? Long.MAX_VALUE : (tick | SPAN_MASK) + 1;
+    for (int level = 0; level < LEVELS; level++) {
+      long mask = occupied[level];
+      if (mask != 0) {
+        // all the occupied slots are ahead of the current tick digit on their level
+        int shift = level * SLOT_BITS;
+        long slotTick = tick >>> shift + SLOT_BITS << shift + SLOT_BITS | (long)Long.numberOfTrailingZeros(mask) << shift;
+        result = Math.min(result, slotTick);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Moves the current tick forward to the given one, removing the elements with deadlines up to it and adding them to {@code result}
+   * in the order of the deadlines; the elements with the same deadline tick come in the order they were added in.
+   */
+  void advanceTo(long newTick, @NotNull List<? super T> result) {
+    long next;
+    while ((next = nextTick()) <= newTick) {
+      tick = Math.max(tick, next);
+      if ((tick & SPAN_MASK) == 0) {
+        replace(beyondSpan);
+      }
+      for (int level = LEVELS - 1; level >= 0; level--) {
+        int shift = level * SLOT_BITS;
+        if ((tick & (1L << shift) - 1) == 0) {
+          replace(slots[level][(int)(tick >>> shift) & SLOTS - 1]);
+        }
+      }
+      for (Node<T> node = expired.first; node != null; ) {
+        Node<T> nextNode = node.next;
+        node.slot = null;
+        node.prev = node.next = null;
+        size--;
+        result.add(node.value);
+        node = nextNode;
+      }
+      expired.first = expired.last = null;
+    }
+    tick = Math.max(tick, newTick);
+  }
+
+  @NotNull
+  List<T> values() {
+    List<T> result = new ArrayList<>(size);
+    collectValues(expired, result);
+    for (Slot<T>[] level : slots) {
+      for (Slot<T> slot : level) {
+        collectValues(slot, result);
+      }
+    }
+    collectValues(beyondSpan, result);
+    return result;
+  }
+
+  private static <T> void collectValues(@NotNull Slot<T> slot, @NotNull List<? super T> result) {
+    for (Node<T> node = slot.first; node != null; node = node.next) {
+      result.add(node.value);
+    }
+  }
+
+  private void place(@NotNull Node<T> node) {
+    long deadline = node.deadline;
+    if (deadline <= tick) {
+      link(expired, node);
+    }
+    else if (deadline > (tick | SPAN_MASK)) {
+      link(beyondSpan, node);
+    }
+    else {
+      int level = (63 - Long.numberOfLeadingZeros(deadline ^ tick)) / SLOT_BITS;
+      link(slots[level][(int)(deadline >>> level * SLOT_BITS) & SLOTS - 1], node);
+    }
+  }
+
+  /**
+   * Places the nodes of the slot again relative to the current tick, which moves them to the lower levels or to the expired ones.
+   */
+  private void replace(@NotNull Slot<T> slot) {
+    Node<T> node = slot.first;
+    if (node == null) return;
+    slot.first = slot.last = null;
+    if (slot.level >= 0) {
+      occupied[slot.level] &= ~(1L << slot.index);
+    }
+    while (node != null) {
+      Node<T> next = node.next;
+      node.prev = node.next = null;
+      place(node);
+      node = next;
+    }
+  }
+
+  private void link(@NotNull Slot<T> slot, @NotNull Node<T> node) {
+    node.slot = slot;
+    node.prev = slot.last;
+    if (slot.last == null) {
+      slot.first = node;
+      if (slot.level >= 0) {
+        occupied[slot.level] |= 1L << slot.index;
+      }
+    }
+    else {
+      slot.last.next = node;
+    }
+    slot.last = node;
+  }
+
+  private void unlink(@NotNull Node<T> node) {
+    Slot<T> slot = node.slot;
+    assert slot != null;
+    if (node.prev == null) slot.first = node.next; else node.prev.next = node.next;
+    if (node.next == null) slot.last = node.prev; else node.next.prev = node.prev;
+    if (slot.first == null && slot.level >= 0) {
+      occupied[slot.level] &= ~(1L << slot.index);
+    }
+    node.slot = null;
+    node.prev = node.next = null;
+  }
+
+  private static final class Slot<T> {
+    private final int level;
+    private final int index;
+    private Node<T> first;
+    private Node<T> last;
+
+    private Slot(int level, int index) {
+      this.level = level;
+      this.index = index;
+    }
+  }
+
+  static final class Node<T> {
+    private final T value;
+    private final long deadline;
+    @Nullable private Slot<T> slot; // null when expired or removed
+    private Node<T> prev;
+    private Node<T> next;
+
+    private Node(@NotNull T value, long deadline) {
+      this.value = value;
+      this.deadline = deadline;
+    }
+  }
+}
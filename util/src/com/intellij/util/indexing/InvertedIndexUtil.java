@@ -17,14 +17,33 @@ package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.util.containers.EmptyIntHashSet;
+import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
+import com.intellij.util.indexing.containers.SortedFileIdSetIterator;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
+import gnu.trove.TLongArrayList;
 import org.jetbrains.annotations.ApiStatus;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 public class InvertedIndexUtil {
+  // candidates are looked up in value predicates instead of walking value ids when there are that many times more ids than candidates
+  private static final int PREDICATE_LOOKUP_RATIO = 8;
+  // ids of a value are kept in RoaringIdSet once there are that many of them (see ChangeBufferingList.MAX_FILES),
+  // keys having at least that many ids are intersected as such sets chunk by chunk instead of id by id
+  private static final int LARGE_ID_SET_SIZE = 20000;
+
+  /**
+   * Intersects input ids of the keys starting from the key with the smallest estimated number of ids,
+   * so the candidate set is as small as possible from the very beginning and the intersection stops as soon as it becomes empty.
+   * When even the smallest key has many ids, the keys are intersected as {@link RoaringIdSet}s.
+   */
   @NotNull
   public static <K, V, I> TIntHashSet collectInputIdsContainingAllKeys(@NotNull InvertedIndex<? super K, V, I> index,
                                                                        @NotNull Collection<? extends K> dataKeys,
@@ -32,47 +51,189 @@ public class InvertedIndexUtil {
                                                                        @Nullable Condition<? super V> valueChecker,
                                                                        @Nullable ValueContainer.IntPredicate idChecker)
     throws StorageException {
-    TIntHashSet mainIntersection = null;
+    List<ValueContainer<V>> containers = new ArrayList<>(dataKeys.size());
+    TLongArrayList estimatesAndIndices = new TLongArrayList(dataKeys.size());
 
     for (K dataKey : dataKeys) {
       if (keyChecker != null && !keyChecker.value(dataKey)) continue;
 
-      final TIntHashSet copy = new TIntHashSet();
-      final ValueContainer<V> container = index.getData(dataKey);
+      ValueContainer<V> container = index.getData(dataKey);
+      int estimate = estimateInputIdCount(container, valueChecker);
+      if (estimate == 0) return EmptyIntHashSet.INSTANCE;
+      estimatesAndIndices.add(((long)estimate << 32) | containers.size());
+      containers.add(container);
+    }
+    if (containers.isEmpty()) return EmptyIntHashSet.INSTANCE;
+    estimatesAndIndices.sort();
+    if (estimatesAndIndices.getQuick(0) >>> 32 >= LARGE_ID_SET_SIZE) {
+      return intersectLargeIdSets(containers, estimatesAndIndices, valueChecker, idChecker);
+    }
+
+    int[] candidates = null;
+    int candidateCount = 0;
+    for (int i = 0; i < estimatesAndIndices.size(); i++) {
+      ValueContainer<V> container = containers.get((int)estimatesAndIndices.getQuick(i));
+      if (candidates == null) {
+        candidates = collectSortedInputIds(container, valueChecker, idChecker);
+        candidateCount = candidates.length;
+      }
+      else {
+        candidateCount = retainInputIds(candidates, candidateCount, container, valueChecker);
+      }
+      if (candidateCount == 0) return EmptyIntHashSet.INSTANCE;
+    }
+
+    TIntHashSet result = new TIntHashSet(candidateCount);
+    for (int i = 0; i < candidateCount; i++) {
+      result.add(candidates[i]);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static <V> TIntHashSet intersectLargeIdSets(@NotNull List<ValueContainer<V>> containers,
+                                                      @NotNull TLongArrayList estimatesAndIndices,
+                                                      @Nullable Condition<? super V> valueChecker,
+                                                      @Nullable ValueContainer.IntPredicate idChecker) {
+    RoaringIdSet candidates = null;
+    for (int i = 0; i < estimatesAndIndices.size(); i++) {
+      RoaringIdSet ids = collectIdSet(containers.get((int)estimatesAndIndices.getQuick(i)), valueChecker);
+      candidates = candidates == null ? ids : RoaringIdSet.and(candidates, ids);
+      if (candidates.isEmpty()) return EmptyIntHashSet.INSTANCE;
+    }
+
+    assert candidates != null;
+    TIntHashSet result = new TIntHashSet(candidates.size());
+    for (IntIdsIterator iterator = candidates.intIterator(); iterator.hasNext(); ) {
+      int id = iterator.next();
+      if (idChecker == null || idChecker.contains(id)) result.add(id);
+    }
+    return result;
+  }
 
-      for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-        final V value = valueIt.next();
-        if (valueChecker != null && !valueChecker.value(value)) {
-          continue;
+  /**
+   * @return union of ids of the values of the container, it may be the set of the container itself, so it must not be modified
+   */
+  @NotNull
+  private static <V> RoaringIdSet collectIdSet(@NotNull ValueContainer<V> container, @Nullable Condition<? super V> valueChecker) {
+    RoaringIdSet result = null;
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) continue;
+
+      ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      if (iterator.size() == 0) continue;
+      RoaringIdSet ids = RoaringIdSet.getIteratedSet(iterator);
+      if (ids == null) {
+        ids = new RoaringIdSet();
+        while (iterator.hasNext()) {
+          ids.add(iterator.next());
         }
+      }
+      result = result == null ? ids : RoaringIdSet.or(result, ids);
+    }
+    return result != null ? result : new RoaringIdSet();
+  }
 
-        ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
-
-        final ValueContainer.IntPredicate predicate;
-        if (mainIntersection == null || iterator.size() < mainIntersection.size() || (predicate = valueIt.getValueAssociationPredicate()) == null) {
-          while (iterator.hasNext()) {
-            final int id = iterator.next();
-            if (mainIntersection == null && (idChecker == null || idChecker.contains(id)) ||
-                mainIntersection != null && mainIntersection.contains(id)
-              ) {
-              copy.add(id);
-            }
+  private static <V> int estimateInputIdCount(@NotNull ValueContainer<V> container, @Nullable Condition<? super V> valueChecker) {
+    long estimate = 0;
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) continue;
+      estimate += valueIt.getInputIdsIterator().size();
+    }
+    return (int)Math.min(estimate, Integer.MAX_VALUE);
+  }
+
+  private static <V> int @NotNull [] collectSortedInputIds(@NotNull ValueContainer<V> container,
+                                                          @Nullable Condition<? super V> valueChecker,
+                                                          @Nullable ValueContainer.IntPredicate idChecker) {
+    TIntArrayList ids = new TIntArrayList();
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) continue;
+
+      ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      while (iterator.hasNext()) {
+        int id = iterator.next();
+        if (idChecker == null || idChecker.contains(id)) ids.add(id);
+      }
+    }
+
+    int[] result = ids.toNativeArray();
+    Arrays.sort(result);
+    int count = 0;
+    for (int i = 0; i < result.length; i++) {
+      if (count == 0 || result[count - 1] != result[i]) result[count++] = result[i];
+    }
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Keeps in the beginning of sorted {@code candidates} array only ids that are associated with some value of the container.
+   *
+   * @return number of kept candidates
+   */
+  private static <V> int retainInputIds(int @NotNull [] candidates,
+                                        int candidateCount,
+                                        @NotNull ValueContainer<V> container,
+                                        @Nullable Condition<? super V> valueChecker) {
+    boolean[] found = new boolean[candidateCount];
+
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) continue;
+
+      ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      if (iterator.size() == 0) continue;
+
+      ValueContainer.IntPredicate predicate;
+      if (iterator.size() / PREDICATE_LOOKUP_RATIO > candidateCount && (predicate = valueIt.getValueAssociationPredicate()) != null) {
+        for (int i = 0; i < candidateCount; i++) {
+          if (!found[i] && predicate.contains(candidates[i])) found[i] = true;
+        }
+      }
+      else if (iterator instanceof IntIdsIterator) {
+        IntIdsIterator sorted = (IntIdsIterator)iterator;
+        if (!sorted.hasAscendingOrder()) sorted = SortedFileIdSetIterator.getTransientIterator(sorted);
+
+        int from = 0;
+        while (from < candidateCount && sorted.hasNext()) {
+          int pos = gallop(candidates, from, candidateCount, sorted.next());
+          if (pos >= 0) {
+            found[pos] = true;
+            from = pos + 1;
+          }
+          else {
+            from = -pos - 1;
           }
         }
-        else {
-          mainIntersection.forEach(id -> {
-            if (predicate.contains(id)) copy.add(id);
-            return true;
-          });
+      }
+      else {
+        while (iterator.hasNext()) {
+          int pos = Arrays.binarySearch(candidates, 0, candidateCount, iterator.next());
+          if (pos >= 0) found[pos] = true;
         }
       }
+    }
 
-      mainIntersection = copy;
-      if (mainIntersection.isEmpty()) {
-        return EmptyIntHashSet.INSTANCE;
-      }
+    int count = 0;
+    for (int i = 0; i < candidateCount; i++) {
+      if (found[i]) candidates[count++] = candidates[i];
     }
+    return count;
+  }
 
-    return mainIntersection == null ? EmptyIntHashSet.INSTANCE : mainIntersection;
+  /**
+   * Exponential search of the key in the sorted range of the array, cheap when the key is close to its beginning.
+   *
+   * @return the same as {@link Arrays#binarySearch(int[], int, int, int)}
+   */
+  private static int gallop(int @NotNull [] array, int from, int to, int key) {
+    int bound = 1;
+    while (from + bound < to && array[from + bound] < key) {
+      bound <<= 1;
+    }
+    return Arrays.binarySearch(array, from + (bound >> 1), Math.min(from + bound + 1, to), key);
   }
 }
@@ -17,6 +17,7 @@ package com.intellij.util.indexing.containers;
 
 import com.intellij.util.indexing.ValueContainer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Arrays;
 
@@ -41,20 +42,14 @@ public class ChangeBufferingList implements Cloneable {
   public ChangeBufferingList() { this(3); }
   public ChangeBufferingList(int length) {
     if (length > MAX_FILES) {
-      randomAccessContainer = new IdBitSet(length);
+      randomAccessContainer = new RoaringIdSet();
     } else {
       changes = new int[length];
     }
   }
 
-  static int @NotNull [] calcMinMax(int[] set, int length) {
-    int max = Integer.MIN_VALUE;
-    int min = Integer.MAX_VALUE;
-    for(int i = 0; i < length; ++i) {
-      max = Math.max(max, set[i]);
-      min = Math.min(min, set[i]);
-    }
-    return new int[] {min, max};
+  public ChangeBufferingList(@NotNull RoaringIdSet set) {
+    randomAccessContainer = set;
   }
 
   public void add(int value) {
@@ -119,9 +114,7 @@ public class ChangeBufferingList implements Cloneable {
       if (randomAccessContainer == null) {
         int someElementsNumberEstimation = length;
 
-        // todo we can check these lengths instead of only relying upon reaching MAX_FILES
-        //int lengthOfBitSet = IdBitSet.sizeInBytes(minMax[1], minMax[0]);
-        //int lengthOfIntSet = 4 * length;
+        // todo we can switch to RoaringIdSet earlier: it takes at most 2 bytes per id while SortedIdSet takes 4
 
         if (someElementsNumberEstimation < MAX_FILES) {
           if (!hasRemovals) {
@@ -136,10 +129,10 @@ public class ChangeBufferingList implements Cloneable {
           }
         }
         else if (!hasRemovals) {
-          idSet = new IdBitSet(changes, length, 0);
+          idSet = new RoaringIdSet(changes, length);
           copyChanges = false;
         } else {
-          idSet = new IdBitSet(calcMinMax(changes, length), 0);
+          idSet = new RoaringIdSet();
         }
       } else {
         idSet = randomAccessContainer;
@@ -263,6 +256,15 @@ public class ChangeBufferingList implements Cloneable {
     return getRandomAccessContainer().intIterator();
   }
 
+  /**
+   * @return compressed set the list switched to once it became large, or null if the list is small
+   */
+  @Nullable
+  public RoaringIdSet getRoaringIdSet() {
+    RandomAccessIntContainer intContainer = randomAccessContainer;
+    return intContainer instanceof RoaringIdSet ? (RoaringIdSet)intContainer : null;
+  }
+
   public IntIdsIterator sortedIntIterator() {
     IntIdsIterator intIterator = intIterator();
 
@@ -0,0 +1,650 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataInputOutputUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of positive ids in the spirit of roaring bitmaps: ids are split into chunks by their high 16 bits,
+ * low 16 bits of sparse chunks are kept in sorted char arrays and dense chunks are kept as 65536-bit bitmaps.
+ * The set takes at most 2 bytes per id, and {@link #and}, {@link #or}, {@link #andNot} work chunk by chunk without boxing or hashing.
+ * <p>
+ * Like other containers of {@link ChangeBufferingList} the set is not thread-safe.
+ */
+public final class RoaringIdSet implements Cloneable, RandomAccessIntContainer {
+  // array chunk of this size takes as much memory as a bitmap chunk
+  static final int ARRAY_CHUNK_MAX_SIZE = 4096;
+  private static final int BITMAP_WORDS = 1 << 10;
+  private static final int CHUNK_HEADER_MAX_SIZE = 10;
+
+  private char[] myKeys;
+  private Object[] myChunks; // char[] or long[]
+  private int[] myChunkSizes;
+  private int myChunkCount;
+  private int mySize;
+
+  public RoaringIdSet() {
+    this(4);
+  }
+
+  private RoaringIdSet(int chunkCapacity) {
+    chunkCapacity = Math.max(1, chunkCapacity);
+    myKeys = new char[chunkCapacity];
+    myChunks = new Object[chunkCapacity];
+    myChunkSizes = new int[chunkCapacity];
+  }
+
+  RoaringIdSet(int[] set, int count) {
+    this();
+    for (int i = 0; i < count; ++i) add(set[i]);
+  }
+
+  RoaringIdSet(@NotNull RandomAccessIntContainer set) {
+    this();
+    ValueContainer.IntIterator iterator = set.intIterator();
+    while (iterator.hasNext()) {
+      add(iterator.next());
+    }
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  @Override
+  public boolean add(int value) {
+    assert value > 0;
+    char key = highBits(value);
+    char low = (char)value;
+    int index = findChunk(key);
+    if (index < 0) {
+      insertChunk(-index - 1, key, new char[]{low, 0, 0, 0}, 1);
+      ++mySize;
+      return true;
+    }
+
+    Object chunk = myChunks[index];
+    int chunkSize = myChunkSizes[index];
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      if (bitmapContains(bitmap, low)) return false;
+      bitmap[low >>> 6] |= 1L << low;
+    }
+    else {
+      char[] array = (char[])chunk;
+      // most of the time during bulk indexing we add near the end
+      int pos = array[chunkSize - 1] < low ? -chunkSize - 1 : Arrays.binarySearch(array, 0, chunkSize, low);
+      if (pos >= 0) return false;
+      pos = -pos - 1;
+
+      if (chunkSize == ARRAY_CHUNK_MAX_SIZE) {
+        long[] bitmap = toBitmap(array, chunkSize);
+        bitmap[low >>> 6] |= 1L << low;
+        myChunks[index] = bitmap;
+      }
+      else {
+        if (chunkSize == array.length) {
+          array = Arrays.copyOf(array, nextArraySize(chunkSize));
+          myChunks[index] = array;
+        }
+        System.arraycopy(array, pos, array, pos + 1, chunkSize - pos);
+        array[pos] = low;
+      }
+    }
+    ++myChunkSizes[index];
+    ++mySize;
+    return true;
+  }
+
+  @Override
+  public boolean remove(int value) {
+    if (value <= 0) return false;
+    int index = findChunk(highBits(value));
+    if (index < 0) return false;
+    char low = (char)value;
+
+    Object chunk = myChunks[index];
+    int chunkSize = myChunkSizes[index];
+    if (chunk instanceof long[]) {
+      long[] bitmap = (long[])chunk;
+      if (!bitmapContains(bitmap, low)) return false;
+      bitmap[low >>> 6] &= ~(1L << low);
+      // switch back to array a bit later than we switched to bitmap to avoid flipping on add / remove sequences
+      if (chunkSize - 1 <= ARRAY_CHUNK_MAX_SIZE / 2) myChunks[index] = toArray(bitmap, chunkSize - 1);
+    }
+    else {
+      char[] array = (char[])chunk;
+      int pos = Arrays.binarySearch(array, 0, chunkSize, low);
+      if (pos < 0) return false;
+      System.arraycopy(array, pos + 1, array, pos, chunkSize - pos - 1);
+    }
+
+    --mySize;
+    if (--myChunkSizes[index] == 0) removeChunk(index);
+    return true;
+  }
+
+  @Override
+  public boolean contains(int value) {
+    if (value <= 0) return false;
+    int index = Arrays.binarySearch(myKeys, 0, myChunkCount, highBits(value));
+    if (index < 0) return false;
+    Object chunk = myChunks[index];
+    char low = (char)value;
+    return chunk instanceof long[] ? bitmapContains((long[])chunk, low) : Arrays.binarySearch((char[])chunk, 0, myChunkSizes[index], low) >= 0;
+  }
+
+  @Override
+  public IntIdsIterator intIterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public ValueContainer.IntPredicate intPredicate() {
+    return new ValueContainer.IntPredicate() {
+      @Override
+      public boolean contains(int id) {
+        return RoaringIdSet.this.contains(id);
+      }
+    };
+  }
+
+  @Override
+  public void compact() {
+    if (myKeys.length > 8 && 2 * myChunkCount < myKeys.length) {
+      setChunkCapacity(myChunkCount + myChunkCount / 2 + 1);
+    }
+  }
+
+  @Override
+  public RandomAccessIntContainer ensureContainerCapacity(int diff) {
+    return this; // chunks grow on their own
+  }
+
+  @Override
+  public RoaringIdSet clone() {
+    try {
+      RoaringIdSet clone = (RoaringIdSet)super.clone();
+      clone.myKeys = myKeys.clone();
+      clone.myChunkSizes = myChunkSizes.clone();
+      clone.myChunks = new Object[myChunks.length];
+      for (int i = 0; i < myChunkCount; ++i) {
+        clone.myChunks[i] = copyChunk(myChunks[i], myChunkSizes[i]);
+      }
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return new set with ids contained in both sets
+   */
+  @NotNull
+  public static RoaringIdSet and(@NotNull RoaringIdSet first, @NotNull RoaringIdSet second) {
+    RoaringIdSet result = new RoaringIdSet(Math.min(first.myChunkCount, second.myChunkCount));
+    int i = 0, j = 0;
+    while (i < first.myChunkCount && j < second.myChunkCount) {
+      char firstKey = first.myKeys[i];
+      char secondKey = second.myKeys[j];
+      if (firstKey < secondKey) {
+        ++i;
+      }
+      else if (firstKey > secondKey) {
+        ++j;
+      }
+      else {
+        result.appendChunk(firstKey, andChunks(first.myChunks[i], first.myChunkSizes[i], second.myChunks[j], second.myChunkSizes[j]));
+        ++i;
+        ++j;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return new set with ids contained in any of the sets
+   */
+  @NotNull
+  public static RoaringIdSet or(@NotNull RoaringIdSet first, @NotNull RoaringIdSet second) {
+    RoaringIdSet result = new RoaringIdSet(first.myChunkCount + second.myChunkCount);
+    int i = 0, j = 0;
+    while (i < first.myChunkCount || j < second.myChunkCount) {
+      char firstKey = i < first.myChunkCount ? first.myKeys[i] : Character.MAX_VALUE;
+      char secondKey = j < second.myChunkCount ? second.myKeys[j] : Character.MAX_VALUE;
+      if (j == second.myChunkCount || i < first.myChunkCount && firstKey < secondKey) {
+        result.appendChunk(firstKey, copyChunk(first.myChunks[i], first.myChunkSizes[i]));
+        ++i;
+      }
+      else if (i == first.myChunkCount || firstKey > secondKey) {
+        result.appendChunk(secondKey, copyChunk(second.myChunks[j], second.myChunkSizes[j]));
+        ++j;
+      }
+      else {
+        result.appendChunk(firstKey, orChunks(first.myChunks[i], first.myChunkSizes[i], second.myChunks[j], second.myChunkSizes[j]));
+        ++i;
+        ++j;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return new set with ids of the first set that are not contained in the second one
+   */
+  @NotNull
+  public static RoaringIdSet andNot(@NotNull RoaringIdSet first, @NotNull RoaringIdSet second) {
+    RoaringIdSet result = new RoaringIdSet(first.myChunkCount);
+    int j = 0;
+    for (int i = 0; i < first.myChunkCount; ++i) {
+      char key = first.myKeys[i];
+      while (j < second.myChunkCount && second.myKeys[j] < key) ++j;
+      if (j < second.myChunkCount && second.myKeys[j] == key) {
+        result.appendChunk(key, andNotChunks(first.myChunks[i], first.myChunkSizes[i], second.myChunks[j], second.myChunkSizes[j]));
+      }
+      else {
+        result.appendChunk(key, copyChunk(first.myChunks[i], first.myChunkSizes[i]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the set the iterator walks through if the iterator was obtained by {@link #intIterator()}, null otherwise
+   */
+  @Nullable
+  public static RoaringIdSet getIteratedSet(@NotNull ValueContainer.IntIterator iterator) {
+    return iterator instanceof Iterator ? ((Iterator)iterator).getSet() : null;
+  }
+
+  /**
+   * @return approximate number of bytes the set takes in memory, object headers are counted as 16 bytes and references as 8 bytes
+   */
+  @TestOnly
+  public long getMemorySize() {
+    long size = 16 + 3 * 8 + 2 * 4 + 3 * 16 + myKeys.length * 2L + myChunks.length * 8L + myChunkSizes.length * 4L;
+    for (int i = 0; i < myChunkCount; ++i) {
+      Object chunk = myChunks[i];
+      size += 16 + (chunk instanceof long[] ? ((long[])chunk).length * 8L : ((char[])chunk).length * 2L);
+    }
+    return size;
+  }
+
+  /**
+   * @return upper bound of the number of bytes written by {@link #writeTo(DataOutput)}
+   */
+  public int serializedSizeUpperBound() {
+    int result = 5;
+    for (int i = 0; i < myChunkCount; ++i) {
+      int chunkSize = myChunkSizes[i];
+      result += CHUNK_HEADER_MAX_SIZE + (chunkSize > ARRAY_CHUNK_MAX_SIZE ? BITMAP_WORDS * Long.BYTES : chunkSize * Character.BYTES);
+    }
+    return result;
+  }
+
+  public void writeTo(@NotNull DataOutput out) throws IOException {
+    DataInputOutputUtil.writeINT(out, myChunkCount);
+    for (int i = 0; i < myChunkCount; ++i) {
+      Object chunk = myChunks[i];
+      int chunkSize = myChunkSizes[i];
+      DataInputOutputUtil.writeINT(out, myKeys[i]);
+      DataInputOutputUtil.writeINT(out, chunkSize);
+
+      // chunk kind is defined by its size only, in-memory bitmaps that became sparse after removals are written as arrays
+      if (chunkSize > ARRAY_CHUNK_MAX_SIZE) {
+        long[] bitmap = chunk instanceof long[] ? (long[])chunk : toBitmap((char[])chunk, chunkSize);
+        for (long word : bitmap) out.writeLong(word);
+      }
+      else {
+        char[] array = chunk instanceof char[] ? (char[])chunk : toArray((long[])chunk, chunkSize);
+        for (int k = 0; k < chunkSize; ++k) out.writeChar(array[k]);
+      }
+    }
+  }
+
+  @NotNull
+  public static RoaringIdSet readFrom(@NotNull DataInput in) throws IOException {
+    int chunkCount = DataInputOutputUtil.readINT(in);
+    RoaringIdSet set = new RoaringIdSet(chunkCount);
+    for (int i = 0; i < chunkCount; ++i) {
+      char key = (char)DataInputOutputUtil.readINT(in);
+      int chunkSize = DataInputOutputUtil.readINT(in);
+      Object chunk;
+      if (chunkSize > ARRAY_CHUNK_MAX_SIZE) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int k = 0; k < BITMAP_WORDS; ++k) bitmap[k] = in.readLong();
+        chunk = bitmap;
+      }
+      else {
+        char[] array = new char[chunkSize];
+        for (int k = 0; k < chunkSize; ++k) array[k] = in.readChar();
+        chunk = array;
+      }
+      set.myKeys[i] = key;
+      set.myChunks[i] = chunk;
+      set.myChunkSizes[i] = chunkSize;
+      set.mySize += chunkSize;
+    }
+    set.myChunkCount = chunkCount;
+    return set;
+  }
+
+  private static char highBits(int value) {
+    return (char)(value >>> 16);
+  }
+
+  private int findChunk(char key) {
+    int last = myChunkCount - 1;
+    if (last >= 0 && myKeys[last] == key) return last;
+    return Arrays.binarySearch(myKeys, 0, myChunkCount, key);
+  }
+
+  private void insertChunk(int index, char key, Object chunk, int chunkSize) {
+    if (myChunkCount == myKeys.length) {
+      setChunkCapacity(myChunkCount < 64 ? myChunkCount << 1 : myChunkCount + myChunkCount / 4);
+    }
+    int tail = myChunkCount - index;
+    System.arraycopy(myKeys, index, myKeys, index + 1, tail);
+    System.arraycopy(myChunks, index, myChunks, index + 1, tail);
+    System.arraycopy(myChunkSizes, index, myChunkSizes, index + 1, tail);
+    myKeys[index] = key;
+    myChunks[index] = chunk;
+    myChunkSizes[index] = chunkSize;
+    ++myChunkCount;
+  }
+
+  private void appendChunk(char key, Object chunk) {
+    if (chunk == null) return;
+    int chunkSize = chunk instanceof char[] ? ((char[])chunk).length : cardinality((long[])chunk);
+    insertChunk(myChunkCount, key, chunk, chunkSize);
+    mySize += chunkSize;
+  }
+
+  private void removeChunk(int index) {
+    int tail = myChunkCount - index - 1;
+    System.arraycopy(myKeys, index + 1, myKeys, index, tail);
+    System.arraycopy(myChunks, index + 1, myChunks, index, tail);
+    System.arraycopy(myChunkSizes, index + 1, myChunkSizes, index, tail);
+    --myChunkCount;
+    myChunks[myChunkCount] = null;
+  }
+
+  private void setChunkCapacity(int capacity) {
+    myKeys = Arrays.copyOf(myKeys, capacity);
+    myChunks = Arrays.copyOf(myChunks, capacity);
+    myChunkSizes = Arrays.copyOf(myChunkSizes, capacity);
+  }
+
+  private static int nextArraySize(int size) {
+    return Math.min(ARRAY_CHUNK_MAX_SIZE, size < 1024 ? size << 1 : size + size / 4);
+  }
+
+  private static boolean bitmapContains(long[] bitmap, char low) {
+    return (bitmap[low >>> 6] & (1L << low)) != 0;
+  }
+
+  private static int cardinality(long[] bitmap) {
+    int result = 0;
+    for (long word : bitmap) result += Long.bitCount(word);
+    return result;
+  }
+
+  private static int nextSetBit(long[] bitmap, int fromIndex) {
+    int wordIndex = fromIndex >>> 6;
+    if (wordIndex >= BITMAP_WORDS) return -1;
+    long word = bitmap[wordIndex] & (-1L << fromIndex);
+    while (true) {
+      if (word != 0) return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+      if (++wordIndex == BITMAP_WORDS) return -1;
+      word = bitmap[wordIndex];
+    }
+  }
+
+  private static long[] toBitmap(char[] array, int size) {
+    long[] bitmap = new long[BITMAP_WORDS];
+    for (int i = 0; i < size; ++i) {
+      char low = array[i];
+      bitmap[low >>> 6] |= 1L << low;
+    }
+    return bitmap;
+  }
+
+  private static char[] toArray(long[] bitmap, int size) {
+    char[] array = new char[size];
+    int index = 0;
+    for (int wordIndex = 0; wordIndex < BITMAP_WORDS; ++wordIndex) {
+      long word = bitmap[wordIndex];
+      while (word != 0) {
+        array[index++] = (char)((wordIndex << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return array;
+  }
+
+  private static Object copyChunk(Object chunk, int size) {
+    return chunk instanceof long[] ? ((long[])chunk).clone() : Arrays.copyOf((char[])chunk, size);
+  }
+
+  /**
+   * @return bitmap if it is dense enough, sorted array of its bits otherwise, or null if it is empty
+   */
+  private static Object normalize(long[] bitmap) {
+    int size = cardinality(bitmap);
+    if (size == 0) return null;
+    return size > ARRAY_CHUNK_MAX_SIZE ? bitmap : toArray(bitmap, size);
+  }
+
+  private static char[] trim(char[] array, int size) {
+    if (size == 0) return null;
+    return size == array.length ? array : Arrays.copyOf(array, size);
+  }
+
+  private static Object andChunks(Object first, int firstSize, Object second, int secondSize) {
+    if (first instanceof char[]) {
+      return second instanceof char[] ? intersect((char[])first, firstSize, (char[])second, secondSize)
+                                      : filter((char[])first, firstSize, (long[])second, true);
+    }
+    if (second instanceof char[]) return filter((char[])second, secondSize, (long[])first, true);
+
+    long[] result = ((long[])first).clone();
+    long[] other = (long[])second;
+    for (int i = 0; i < BITMAP_WORDS; ++i) result[i] &= other[i];
+    return normalize(result);
+  }
+
+  private static Object orChunks(Object first, int firstSize, Object second, int secondSize) {
+    if (first instanceof char[] && second instanceof char[]) {
+      return union((char[])first, firstSize, (char[])second, secondSize);
+    }
+    if (first instanceof char[]) {
+      return orChunks(second, secondSize, first, firstSize);
+    }
+
+    long[] result = ((long[])first).clone();
+    if (second instanceof long[]) {
+      long[] other = (long[])second;
+      for (int i = 0; i < BITMAP_WORDS; ++i) result[i] |= other[i];
+    }
+    else {
+      char[] other = (char[])second;
+      for (int i = 0; i < secondSize; ++i) result[other[i] >>> 6] |= 1L << other[i];
+    }
+    return normalize(result);
+  }
+
+  private static Object andNotChunks(Object first, int firstSize, Object second, int secondSize) {
+    if (first instanceof char[]) {
+      return second instanceof char[] ? difference((char[])first, firstSize, (char[])second, secondSize)
+                                      : filter((char[])first, firstSize, (long[])second, false);
+    }
+
+    long[] result = ((long[])first).clone();
+    if (second instanceof long[]) {
+      long[] other = (long[])second;
+      for (int i = 0; i < BITMAP_WORDS; ++i) result[i] &= ~other[i];
+    }
+    else {
+      char[] other = (char[])second;
+      for (int i = 0; i < secondSize; ++i) result[other[i] >>> 6] &= ~(1L << other[i]);
+    }
+    return normalize(result);
+  }
+
+  private static char[] filter(char[] array, int size, long[] bitmap, boolean keepContained) {
+    char[] result = new char[size];
+    int resultSize = 0;
+    for (int i = 0; i < size; ++i) {
+      char low = array[i];
+      if (bitmapContains(bitmap, low) == keepContained) result[resultSize++] = low;
+    }
+    return trim(result, resultSize);
+  }
+
+  private static char[] intersect(char[] first, int firstSize, char[] second, int secondSize) {
+    if (firstSize > secondSize) return intersect(second, secondSize, first, firstSize);
+
+    char[] result = new char[firstSize];
+    int resultSize = 0;
+    if (firstSize * 32 < secondSize) {
+      // too small to walk through both arrays, look up ids of the smaller array narrowing the search range
+      int from = 0;
+      for (int i = 0; i < firstSize && from < secondSize; ++i) {
+        int pos = Arrays.binarySearch(second, from, secondSize, first[i]);
+        if (pos >= 0) {
+          result[resultSize++] = first[i];
+          from = pos + 1;
+        }
+        else {
+          from = -pos - 1;
+        }
+      }
+    }
+    else {
+      int i = 0, j = 0;
+      while (i < firstSize && j < secondSize) {
+        char a = first[i];
+        char b = second[j];
+        if (a < b) {
+          ++i;
+        }
+        else if (a > b) {
+          ++j;
+        }
+        else {
+          result[resultSize++] = a;
+          ++i;
+          ++j;
+        }
+      }
+    }
+    return trim(result, resultSize);
+  }
+
+  private static Object union(char[] first, int firstSize, char[] second, int secondSize) {
+    char[] result = new char[firstSize + secondSize];
+    int resultSize = 0;
+    int i = 0, j = 0;
+    while (i < firstSize || j < secondSize) {
+      if (j == secondSize || i < firstSize && first[i] < second[j]) {
+        result[resultSize++] = first[i++];
+      }
+      else if (i == firstSize || first[i] > second[j]) {
+        result[resultSize++] = second[j++];
+      }
+      else {
+        result[resultSize++] = first[i++];
+        ++j;
+      }
+    }
+    return resultSize > ARRAY_CHUNK_MAX_SIZE ? toBitmap(result, resultSize) : trim(result, resultSize);
+  }
+
+  private static char[] difference(char[] first, int firstSize, char[] second, int secondSize) {
+    char[] result = new char[firstSize];
+    int resultSize = 0;
+    int j = 0;
+    for (int i = 0; i < firstSize; ++i) {
+      char a = first[i];
+      while (j < secondSize && second[j] < a) ++j;
+      if (j == secondSize || second[j] != a) result[resultSize++] = a;
+    }
+    return trim(result, resultSize);
+  }
+
+  private class Iterator implements IntIdsIterator {
+    private int myChunkIndex;
+    private int myPosition; // index in array chunk or bit index in bitmap chunk to continue from
+    private int myNext;
+
+    Iterator() {
+      myNext = findNext();
+    }
+
+    private int findNext() {
+      while (myChunkIndex < myChunkCount) {
+        Object chunk = myChunks[myChunkIndex];
+        int high = myKeys[myChunkIndex] << 16;
+        if (chunk instanceof long[]) {
+          int bit = nextSetBit((long[])chunk, myPosition);
+          if (bit >= 0) {
+            myPosition = bit + 1;
+            return high | bit;
+          }
+        }
+        else if (myPosition < myChunkSizes[myChunkIndex]) {
+          return high | ((char[])chunk)[myPosition++];
+        }
+        ++myChunkIndex;
+        myPosition = 0;
+      }
+      return -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myNext != -1;
+    }
+
+    @Override
+    public int next() {
+      int result = myNext;
+      myNext = findNext();
+      return result;
+    }
+
+    @Override
+    public int size() {
+      return RoaringIdSet.this.size();
+    }
+
+    @Override
+    public boolean hasAscendingOrder() {
+      return true;
+    }
+
+    @Override
+    public IntIdsIterator createCopyInInitialState() {
+      return new Iterator();
+    }
+
+    @NotNull
+    RoaringIdSet getSet() {
+      return RoaringIdSet.this;
+    }
+  }
+}
@@ -211,7 +211,7 @@ public class SortedIdSet implements Cloneable, RandomAccessIntContainer {
     int newSize = mySetLength + count;
     if (newSize < mySet.length) return this;
     if (newSize > ChangeBufferingList.MAX_FILES) {
-      return new IdBitSet(this, count);
+      return new RoaringIdSet(this);
     }
 
     newSize = ChangeBufferingList.calcNextArraySize(mySet.length, newSize);
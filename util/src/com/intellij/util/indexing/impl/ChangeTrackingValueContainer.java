@@ -22,6 +22,7 @@ import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.DataOutput;
 import java.io.IOException;
@@ -91,6 +92,11 @@ public class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer
     myMerged = null;
   }
 
+  @Nullable
+  ValueContainerImpl<Value> getMergedDataIfComputed() {
+    return myMerged;
+  }
+
   // need 'synchronized' to ensure atomic initialization of merged data
   // because several threads that acquired read lock may simultaneously execute the method
   private ValueContainerImpl<Value> getMergedData() {
@@ -160,7 +166,14 @@ public class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer
   
   @Override
   public void saveTo(DataOutput out, DataExternalizer<? super Value> externalizer) throws IOException {
-    if (needsCompacting()) {
+    saveTo(out, externalizer, needsCompacting());
+  }
+
+  /**
+   * @param compact save merged data instead of the diff to the value on disk
+   */
+  void saveTo(DataOutput out, DataExternalizer<? super Value> externalizer, boolean compact) throws IOException {
+    if (compact) {
       getMergedData().saveTo(out, externalizer);
     } else {
       final TIntHashSet set = myInvalidated;
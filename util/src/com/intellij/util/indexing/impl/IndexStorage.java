@@ -22,6 +22,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * @author Eugene Zhuravlev
@@ -30,6 +31,15 @@ public interface IndexStorage<Key, Value> extends Flushable {
   
   void addValue(Key key, int inputId, Value value) throws StorageException;
 
+  /**
+   * Adds values of all the keys of the input at once, storages may write them faster than a sequence of {@link #addValue} calls.
+   */
+  default void addValues(int inputId, @NotNull Map<Key, Value> values) throws StorageException {
+    for (Map.Entry<Key, Value> entry : values.entrySet()) {
+      addValue(entry.getKey(), inputId, entry.getValue());
+    }
+  }
+
   void removeAllValues(@NotNull Key key, int inputId) throws StorageException;
 
   void clear() throws StorageException;
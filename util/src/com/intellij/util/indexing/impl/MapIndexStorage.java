@@ -19,6 +19,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.IntIntFunction;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.indexing.StorageException;
 import com.intellij.util.indexing.ValueContainer;
@@ -29,6 +30,7 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -37,6 +39,8 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
   private static final Logger LOG = Logger.getInstance(MapIndexStorage.class);
   protected PersistentMap<Key, UpdatableValueContainer<Value>> myMap;
   protected SLRUCache<Key, ChangeTrackingValueContainer<Value>> myCache;
+  // second level cache for containers dropped from myCache
+  @Nullable private OffHeapValueContainerCache<Key, Value> myOffHeapCache;
   protected final Path myBaseStorageFile;
   protected final KeyDescriptor<Key> myKeyDescriptor;
   private final int myCacheSize;
@@ -46,6 +50,10 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
   private final boolean myKeyIsUniqueForIndexedFile;
   private final boolean myReadOnly;
   @NotNull private final IntIntFunction myInputRemapping;
+  // dirty containers dropped from myCache during a batch update under l, they are written to myMap at once
+  @Nullable private Map<Key, ChangeTrackingValueContainer<Value>> myDroppedContainers;
+
+  private static final long OFF_HEAP_CACHE_SIZE = SystemProperties.getIntProperty("idea.index.off.heap.cache.size.kb", 0) * 1024L;
 
   protected MapIndexStorage(@NotNull Path storageFile,
                          @NotNull KeyDescriptor<Key> keyDescriptor,
@@ -105,6 +113,9 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
         PersistentHashMapValueStorage.CreationTimeOptions.HAS_NO_CHUNKS.set(Boolean.FALSE);
       }
     }
+    long offHeapCacheSize = getOffHeapCacheSize();
+    OffHeapValueContainerCache<Key, Value> offHeapCache =
+      offHeapCacheSize > 0 ? new OffHeapValueContainerCache<>(offHeapCacheSize, myKeyDescriptor, myDataExternalizer) : null;
     myCache = new SLRUCache<Key, ChangeTrackingValueContainer<Value>>(myCacheSize, (int)(Math.ceil(myCacheSize * 0.25)) /* 25% from the main cache size*/, myKeyDescriptor) {
       @Override
       @NotNull
@@ -113,7 +124,9 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
           @NotNull
           @Override
           public Object getLock() {
-            return map.getDataAccessLock();
+            // per key lock: ValueContainerMap reads values of different keys concurrently.
+            // It is taken before the map lock, so containers are stored with ValueContainerMap.putContainer
+            return this;
           }
 
           @NotNull
@@ -121,7 +134,10 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
           public ValueContainer<Value> compute() {
             ValueContainer<Value> value;
             try {
-              value = map.get(key);
+              value = offHeapCache != null ? offHeapCache.take(key) : null;
+              if (value == null) {
+                value = map.get(key);
+              }
               if (value == null) {
                 value = new ValueContainerImpl<>();
               }
@@ -136,18 +152,56 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
 
       @Override
       protected void onDropFromCache(final Key key, @NotNull final ChangeTrackingValueContainer<Value> valueContainer) {
-        if (!myReadOnly && valueContainer.isDirty()) {
-          try {
-            map.put(key, valueContainer);
+        boolean dirty = !myReadOnly && valueContainer.isDirty();
+        try {
+          if (dirty) {
+            Map<Key, ChangeTrackingValueContainer<Value>> droppedContainers = myDroppedContainers;
+            if (droppedContainers != null) {
+              droppedContainers.put(key, valueContainer);
+            }
+            else {
+              map.putContainer(key, valueContainer);
+            }
           }
-          catch (IOException e) {
-            throw new RuntimeException(e);
+          if (offHeapCache != null) {
+            ValueContainerImpl<Value> merged = valueContainer.getMergedDataIfComputed();
+            if (merged != null) {
+              offHeapCache.put(key, merged);
+            }
+            else if (dirty) {
+              offHeapCache.remove(key);
+            }
           }
         }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
       }
     };
 
     myMap = map;
+    myOffHeapCache = offHeapCache;
+  }
+
+  /**
+   * @return byte budget of the second level cache that keeps containers dropped from the heap cache serialized in direct buffers,
+   * 0 disables it
+   */
+  protected long getOffHeapCacheSize() {
+    return OFF_HEAP_CACHE_SIZE;
+  }
+
+  private void disposeOffHeapCache() {
+    OffHeapValueContainerCache<Key, Value> offHeapCache = myOffHeapCache;
+    if (offHeapCache != null) {
+      myOffHeapCache = null;
+      offHeapCache.dispose();
+    }
+  }
+
+  private void invalidateOffHeapCache(Key key) {
+    OffHeapValueContainerCache<Key, Value> offHeapCache = myOffHeapCache;
+    if (offHeapCache != null) offHeapCache.remove(key);
   }
 
   protected abstract void checkCanceled();
@@ -162,19 +216,34 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
     l.lock();
     try {
       if (!myMap.isClosed()) {
+        myDroppedContainers = new HashMap<>();
         myCache.clear();
+        writeDroppedContainers();
         if (myMap.isDirty()) myMap.force();
       }
     }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
     finally {
+      myDroppedContainers = null;
       l.unlock();
     }
   }
 
+  private void writeDroppedContainers() throws IOException {
+    Map<Key, ChangeTrackingValueContainer<Value>> droppedContainers = myDroppedContainers;
+    if (droppedContainers != null && !droppedContainers.isEmpty()) {
+      ((ValueContainerMap<Key, Value>)myMap).putContainers(droppedContainers);
+      droppedContainers.clear();
+    }
+  }
+
   @Override
   public void close() throws StorageException {
     try {
       flush();
+      disposeOffHeapCache();
       myMap.close();
     }
     catch (IOException e) {
@@ -193,6 +262,7 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
     catch (IOException | RuntimeException e) {
       LOG.info(e);
     }
+    disposeOffHeapCache();
     try {
       IOUtil.deleteAllFilesStartingWith(getStorageFile().toFile());
       initMapAndCache();
@@ -247,6 +317,7 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
       // do not pollute the cache with keys unique to indexed file
       ChangeTrackingValueContainer<Value> valueContainer = new ChangeTrackingValueContainer<>(null);
       valueContainer.addValue(inputId, value);
+      invalidateOffHeapCache(key);
       myMap.put(key, valueContainer);
     }
     catch (IOException e) {
@@ -254,6 +325,66 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
     }
   }
 
+  @Override
+  public void addValues(int inputId, @NotNull Map<Key, Value> values) throws StorageException {
+    if (myReadOnly) {
+      throw new IncorrectOperationException("Index storage is read-only");
+    }
+    try {
+      myMap.markDirty();
+      if (!myKeyIsUniqueForIndexedFile) {
+        addValuesToCachedContainers(inputId, values);
+        return;
+      }
+      Map<Key, UpdatableValueContainer<Value>> containers = new HashMap<>(values.size());
+      l.lock();
+      try {
+        for (Map.Entry<Key, Value> entry : values.entrySet()) {
+          ChangeTrackingValueContainer<Value> cached = myCache.getIfCached(entry.getKey());
+          if (cached != null) {
+            cached.addValue(inputId, entry.getValue());
+            continue;
+          }
+          // do not pollute the cache with keys unique to indexed file
+          ChangeTrackingValueContainer<Value> valueContainer = new ChangeTrackingValueContainer<>(null);
+          valueContainer.addValue(inputId, entry.getValue());
+          invalidateOffHeapCache(entry.getKey());
+          containers.put(entry.getKey(), valueContainer);
+        }
+      }
+      finally {
+        l.unlock();
+      }
+      myMap.putAll(containers);
+    }
+    catch (IOException e) {
+      throw new StorageException(e);
+    }
+  }
+
+  /**
+   * Values are accumulated in cached containers, and the containers they push out of the cache are written at once.
+   */
+  private void addValuesToCachedContainers(int inputId, @NotNull Map<Key, Value> values) throws IOException, StorageException {
+    l.lock();
+    try {
+      myDroppedContainers = new HashMap<>();
+      for (Map.Entry<Key, Value> entry : values.entrySet()) {
+        // the dropped container of the key has to be on disk before the key is read again
+        if (myDroppedContainers.containsKey(entry.getKey())) writeDroppedContainers();
+        myCache.get(entry.getKey()).addValue(inputId, entry.getValue());
+      }
+      writeDroppedContainers();
+    }
+    catch (RuntimeException e) {
+      unwrapCauseAndRethrow(e);
+    }
+    finally {
+      myDroppedContainers = null;
+      l.unlock();
+    }
+  }
+
   @Override
   public void removeAllValues(@NotNull Key key, int inputId) throws StorageException {
     try {
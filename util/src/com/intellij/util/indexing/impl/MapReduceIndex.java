@@ -22,6 +22,8 @@ import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.ExceptionUtil;
+import com.intellij.util.ObjectUtils;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.indexing.*;
 import com.intellij.util.indexing.impl.forward.ForwardIndex;
@@ -35,7 +37,15 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -43,6 +53,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<Key, Value, Input> {
   private static final Logger LOG = Logger.getInstance(MapReduceIndex.class);
+  private static final int PARALLEL_UPDATE_BATCH_SIZE = 64;
+  private static final Object SKIPPED_INPUT = ObjectUtils.sentinel("SKIPPED_INPUT");
   @NotNull protected final IndexId<Key, Value> myIndexId;
   @NotNull protected final IndexStorage<Key, Value> myStorage;
 
@@ -247,14 +259,7 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
         updateWithMap(updateData);
       }
       catch (StorageException | ProcessCanceledException ex) {
-        String message = "An exception during updateWithMap(). Index " + myIndexId.getName() + " will be rebuilt.";
-        //noinspection InstanceofCatchParameter
-        if (ex instanceof ProcessCanceledException) {
-          LOG.error(message, ex);
-        } else {
-          LOG.info(message, ex);
-        }
-        requestRebuild(ex);
+        onUpdateFailed(ex);
         return Boolean.FALSE;
       }
 
@@ -262,6 +267,154 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
     };
   }
 
+  private void onUpdateFailed(@NotNull Exception ex) {
+    String message = "An exception during updateWithMap(). Index " + myIndexId.getName() + " will be rebuilt.";
+    if (ex instanceof ProcessCanceledException) {
+      LOG.error(message, ex);
+    } else {
+      LOG.info(message, ex);
+    }
+    requestRebuild(ex);
+  }
+
+  /**
+   * Updates the index with many inputs at once. Inputs are mapped by {@link DataIndexer} and diffed with the forward index in parallel
+   * on {@code executor}, while the calling thread applies computed changes to the storage in batches, each under one write lock acquisition.
+   * <p>
+   * The executor must run tasks asynchronously, and inputs must not be updated in another way until the method returns,
+   * since their changes are computed ahead of being applied. Failure of {@link DataIndexer#map} is rethrown after all other inputs
+   * are processed, as it is thrown by {@link #update}.
+   *
+   * @param inputs input ids mapped to their contents, null content removes the input from the index
+   * @return false if applying the changes failed and index rebuild was requested
+   */
+  public boolean updateAll(@NotNull Map<Integer, ? extends Input> inputs, @NotNull Executor executor, int parallelism) {
+    List<Map.Entry<Integer, ? extends Input>> entries = new ArrayList<>(inputs.entrySet());
+    AtomicInteger nextEntry = new AtomicInteger();
+    AtomicBoolean stopped = new AtomicBoolean();
+    // bounds memory taken by mapped but not yet applied inputs
+    BlockingQueue<Object> prepared = new ArrayBlockingQueue<>(PARALLEL_UPDATE_BATCH_SIZE * 4);
+
+    Runnable worker = () -> {
+      int index;
+      while ((index = nextEntry.getAndIncrement()) < entries.size()) {
+        Map.Entry<Integer, ? extends Input> entry = entries.get(index);
+        // every taken input produces exactly one result so the applying thread knows when to stop waiting
+        Object result = stopped.get() ? SKIPPED_INPUT : prepareChanges(entry.getKey(), entry.getValue());
+        putUninterruptibly(prepared, result);
+      }
+    };
+    for (int i = 0, workers = Math.max(1, Math.min(parallelism, entries.size())); i < workers; i++) {
+      executor.execute(worker);
+    }
+
+    boolean successful = true;
+    Throwable mappingFailure = null;
+    List<Object> batch = new ArrayList<>(PARALLEL_UPDATE_BATCH_SIZE);
+    for (int processed = 0; processed < entries.size(); processed += batch.size()) {
+      batch.clear();
+      batch.add(takeUninterruptibly(prepared));
+      prepared.drainTo(batch, PARALLEL_UPDATE_BATCH_SIZE - 1);
+
+      for (Object result : batch) {
+        if (result instanceof MappingFailure && mappingFailure == null) {
+          mappingFailure = ((MappingFailure)result).myCause;
+          stopped.set(true);
+        }
+      }
+      if (successful && !applyBatch(batch)) {
+        successful = false;
+        stopped.set(true);
+      }
+    }
+
+    if (mappingFailure != null) ExceptionUtil.rethrowAllAsUnchecked(mappingFailure);
+    return successful;
+  }
+
+  /**
+   * @return {@link InputChanges}, {@link MappingFailure} or exception thrown when the changes were computed
+   */
+  @NotNull
+  private Object prepareChanges(int inputId, @Nullable Input content) {
+    UpdateData<Key, Value> updateData;
+    try {
+      updateData = calculateUpdateData(inputId, content);
+    }
+    catch (Throwable e) {
+      return new MappingFailure(e);
+    }
+
+    Lock lock = getReadLock();
+    lock.lock();
+    try {
+      return computeChanges(updateData);
+    }
+    catch (Throwable e) {
+      return e;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean applyBatch(@NotNull List<Object> batch) {
+    getWriteLock().lock();
+    IndexId<?, ?> oldIndexId = DebugAssertions.DEBUG_INDEX_ID.get();
+    try {
+      DebugAssertions.DEBUG_INDEX_ID.set(myIndexId);
+      for (Object result : batch) {
+        if (result instanceof Throwable) throw (Throwable)result;
+        //noinspection unchecked
+        if (result instanceof InputChanges) applyChanges((InputChanges<Key, Value>)result);
+      }
+      return true;
+    }
+    catch (StorageException | ProcessCanceledException e) {
+      onUpdateFailed(e);
+    }
+    catch (Throwable e) {
+      onUpdateFailed(new StorageException(e));
+    }
+    finally {
+      DebugAssertions.DEBUG_INDEX_ID.set(oldIndexId);
+      getWriteLock().unlock();
+    }
+    return false;
+  }
+
+  private static void putUninterruptibly(@NotNull BlockingQueue<Object> queue, @NotNull Object element) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(element);
+        break;
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  @NotNull
+  private static Object takeUninterruptibly(@NotNull BlockingQueue<Object> queue) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return queue.take();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
   @NotNull
   protected UpdateData<Key, Value> calculateUpdateData(final int inputId, @Nullable Input content) {
     final InputData<Key, Value> data = mapInput(inputId, content);
@@ -325,40 +478,13 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
     return myModificationStamp.get();
   }
 
-  private final RemovedKeyProcessor<Key>
-    myRemovedKeyProcessor = new RemovedKeyProcessor<Key>() {
-    @Override
-    public void process(Key key, int inputId) throws StorageException {
-      myModificationStamp.incrementAndGet();
-      myStorage.removeAllValues(key, inputId);
-    }
-  };
-
-  private final KeyValueUpdateProcessor<Key, Value> myAddedKeyProcessor = new KeyValueUpdateProcessor<Key, Value>() {
-    @Override
-    public void process(Key key, Value value, int inputId) throws StorageException {
-      myModificationStamp.incrementAndGet();
-      myStorage.addValue(key, inputId, value);
-    }
-  };
-
-  private final KeyValueUpdateProcessor<Key, Value> myUpdatedKeyProcessor = new KeyValueUpdateProcessor<Key, Value>() {
-    @Override
-    public void process(Key key, Value value, int inputId) throws StorageException {
-      myModificationStamp.incrementAndGet();
-      myStorage.removeAllValues(key, inputId);
-      myStorage.addValue(key, inputId, value);
-    }
-  };
-
   public void updateWithMap(@NotNull AbstractUpdateData<Key, Value> updateData) throws StorageException {
     getWriteLock().lock();
     try {
       IndexId<?, ?> oldIndexId = DebugAssertions.DEBUG_INDEX_ID.get();
       try {
         DebugAssertions.DEBUG_INDEX_ID.set(myIndexId);
-        boolean hasDifference = updateData.iterateKeys(myAddedKeyProcessor, myUpdatedKeyProcessor, myRemovedKeyProcessor);
-        if (hasDifference) updateData.updateForwardIndex();
+        applyChanges(computeChanges(updateData));
       }
       catch (ProcessCanceledException e) {
         throw e;
@@ -375,6 +501,66 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
     }
   }
 
+  @NotNull
+  private static <Key, Value> InputChanges<Key, Value> computeChanges(@NotNull AbstractUpdateData<Key, Value> updateData)
+    throws StorageException {
+    InputChanges<Key, Value> changes = new InputChanges<>(updateData);
+    changes.myHasDifference = updateData.iterateKeys(
+      (key, value, inputId) -> {
+        changes.myChangedKeyCount++;
+        changes.myAddedValues.put(key, value);
+      },
+      (key, value, inputId) -> {
+        changes.myChangedKeyCount++;
+        changes.myRemovedKeys.add(key);
+        changes.myAddedValues.put(key, value);
+      },
+      (key, inputId) -> {
+        changes.myChangedKeyCount++;
+        changes.myRemovedKeys.add(key);
+      });
+    return changes;
+  }
+
+  private void applyChanges(@NotNull InputChanges<Key, Value> changes) throws StorageException, IOException {
+    int inputId = changes.myUpdateData.getInputId();
+    // one modification per added, updated or removed key, an updated key is both removed and added below
+    myModificationStamp.addAndGet(changes.myChangedKeyCount);
+    for (Key key : changes.myRemovedKeys) {
+      myStorage.removeAllValues(key, inputId);
+    }
+    // added values of the input are passed to the storage at once after the removals
+    if (!changes.myAddedValues.isEmpty()) {
+      myStorage.addValues(inputId, changes.myAddedValues);
+    }
+    if (changes.myHasDifference) changes.myUpdateData.updateForwardIndex();
+  }
+
+  /**
+   * Difference between indexed and new data of an input computed without modifying the storage.
+   */
+  private static final class InputChanges<Key, Value> {
+    final AbstractUpdateData<Key, Value> myUpdateData;
+    // keys whose values are removed, including updated keys
+    final List<Key> myRemovedKeys = new ArrayList<>();
+    // added and updated keys with their new values
+    final Map<Key, Value> myAddedValues = new HashMap<>();
+    int myChangedKeyCount;
+    boolean myHasDifference;
+
+    InputChanges(@NotNull AbstractUpdateData<Key, Value> updateData) {
+      myUpdateData = updateData;
+    }
+  }
+
+  private static final class MappingFailure {
+    final Throwable myCause;
+
+    MappingFailure(@NotNull Throwable cause) {
+      myCause = cause;
+    }
+  }
+
   public static <Key, Value> void checkValuesHaveProperEqualsAndHashCode(@NotNull Map<Key, Value> data,
                                                                          @NotNull IndexId<Key, Value> indexId,
                                                                          @NotNull DataExternalizer<Value> valueExternalizer) {
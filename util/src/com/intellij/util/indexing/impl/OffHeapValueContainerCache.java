@@ -0,0 +1,149 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.IntIntFunction;
+import com.intellij.util.containers.hash.EqualityPolicy;
+import com.intellij.util.containers.hash.LinkedHashMap;
+import com.intellij.util.io.ByteBufferUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Second level cache of {@link MapIndexStorage}: keeps value containers dropped from the heap cache serialized in direct buffers,
+ * so they are neither kept on heap as lots of small objects nor read from the value storage again.
+ * <p>
+ * The memory budget is split into segments that are filled one after another. When all of them are used, the oldest segment is reused
+ * and its entries are dropped. An entry is removed when it is taken back into the heap cache, which becomes its only owner again.
+ */
+final class OffHeapValueContainerCache<Key, Value> {
+  private static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+  private static final int LENGTH_BITS = 23;
+  private static final int OFFSET_BITS = 23;
+  private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+  private final DataExternalizer<Value> myExternalizer;
+  private final int mySegmentSize;
+  private final ByteBuffer[] mySegments; // allocated lazily
+  private final List<Key>[] mySegmentKeys;
+  // key -> segment, offset and length of its serialized container
+  private final Map<Key, Long> myEntries;
+  private int myCurrentSegment;
+  private int myCurrentOffset;
+  private long myHits;
+  private long myMisses;
+
+  OffHeapValueContainerCache(long budgetBytes, @NotNull EqualityPolicy<? super Key> keyEquality, @NotNull DataExternalizer<Value> externalizer) {
+    myExternalizer = externalizer;
+    int segmentCount = (int)Math.max(2, Math.min(Short.MAX_VALUE, budgetBytes / MAX_SEGMENT_SIZE));
+    mySegmentSize = (int)Math.max(1024, Math.min(MAX_SEGMENT_SIZE, budgetBytes / segmentCount));
+    mySegments = new ByteBuffer[segmentCount];
+    //noinspection unchecked
+    mySegmentKeys = new List[segmentCount];
+    myEntries = new LinkedHashMap<>(10, 0.6f, keyEquality, false);
+  }
+
+  void put(Key key, @NotNull ValueContainerImpl<Value> container) throws IOException {
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      container.saveTo(out, myExternalizer);
+    }
+    int length = bytes.size();
+
+    synchronized (this) {
+      myEntries.remove(key);
+      if (length > mySegmentSize) return;
+      if (myCurrentOffset + length > mySegmentSize) {
+        reuseNextSegment();
+      }
+
+      ByteBuffer segment = mySegments[myCurrentSegment];
+      if (segment == null) {
+        segment = mySegments[myCurrentSegment] = ByteBuffer.allocateDirect(mySegmentSize);
+        mySegmentKeys[myCurrentSegment] = new ArrayList<>();
+      }
+      ByteBuffer target = segment.duplicate();
+      target.position(myCurrentOffset);
+      target.put(bytes.getInternalBuffer(), 0, length);
+
+      myEntries.put(key, ((long)myCurrentSegment << (OFFSET_BITS + LENGTH_BITS)) | ((long)myCurrentOffset << LENGTH_BITS) | length);
+      mySegmentKeys[myCurrentSegment].add(key);
+      myCurrentOffset += length;
+    }
+  }
+
+  private void reuseNextSegment() {
+    myCurrentSegment = (myCurrentSegment + 1) % mySegments.length;
+    myCurrentOffset = 0;
+    List<Key> keys = mySegmentKeys[myCurrentSegment];
+    if (keys == null) return;
+    for (Key key : keys) {
+      Long entry = myEntries.get(key);
+      // key might be taken or put again into another segment meanwhile
+      if (entry != null && segmentOf(entry) == myCurrentSegment) {
+        myEntries.remove(key);
+      }
+    }
+    keys.clear();
+  }
+
+  /**
+   * @return container cached for the key removing it from the cache, or null if there is no such container
+   */
+  @Nullable
+  ValueContainerImpl<Value> take(Key key) throws IOException {
+    byte[] bytes;
+    synchronized (this) {
+      Long entry = myEntries.remove(key);
+      if (entry == null) {
+        myMisses++;
+        return null;
+      }
+      myHits++;
+      ByteBuffer source = mySegments[segmentOf(entry)].duplicate();
+      source.position((int)((entry >>> LENGTH_BITS) & OFFSET_MASK));
+      bytes = new byte[(int)(entry & LENGTH_MASK)];
+      source.get(bytes);
+    }
+
+    ValueContainerImpl<Value> container = new ValueContainerImpl<>();
+    // input ids are already remapped when the container was read from the value storage first
+    container.readFrom(new DataInputStream(new UnsyncByteArrayInputStream(bytes)), myExternalizer, IntIntFunction.IDENTITY);
+    return container;
+  }
+
+  synchronized void remove(Key key) {
+    myEntries.remove(key);
+  }
+
+  synchronized void dispose() {
+    myEntries.clear();
+    for (int i = 0; i < mySegments.length; i++) {
+      if (mySegments[i] != null) {
+        ByteBufferUtil.cleanBuffer(mySegments[i]);
+        mySegments[i] = null;
+        mySegmentKeys[i] = null;
+      }
+    }
+  }
+
+  private static int segmentOf(long entry) {
+    return (int)(entry >>> (OFFSET_BITS + LENGTH_BITS));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "entries=" + myEntries.size() + ", hits=" + myHits + ", misses=" + myMisses;
+  }
+}
@@ -22,6 +22,7 @@ import com.intellij.util.SmartList;
 import com.intellij.util.indexing.ValueContainer;
 import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.THashMap;
@@ -449,8 +450,14 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         IntIdsIterator intIterator = originalInput.sortedIntIterator();
         if (DebugAssertions.DEBUG) DebugAssertions.assertTrue(intIterator.hasAscendingOrder());
 
+        RoaringIdSet roaringIdSet = originalInput.getRoaringIdSet();
+
         if (intIterator.size() == 1) {
           DataInputOutputUtil.writeINT(out, intIterator.next());
+        } else if (roaringIdSet != null && roaringIdSet.serializedSizeUpperBound() < intIterator.size()) {
+          // delta encoding takes at least a byte per id, dense sets are smaller as bitmaps
+          DataInputOutputUtil.writeINT(out, COMPRESSED_ID_SET_MARKER);
+          roaringIdSet.writeTo(out);
         } else {
           DataInputOutputUtil.writeINT(out, -intIterator.size());
           int prev = 0;
@@ -466,6 +473,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   }
 
   static final int NUMBER_OF_VALUES_THRESHOLD = 20;
+  // negated id count is never equal to it, followed by serialized RoaringIdSet; ValueContainerMap.VERSION 1 introduced it
+  private static final int COMPRESSED_ID_SET_MARKER = Integer.MIN_VALUE;
 
   public void readFrom(@NotNull DataInputStream stream,
                        @NotNull DataExternalizer<? extends Value> externalizer,
@@ -500,6 +509,20 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
           if (idCountOrSingleValue > 0) {
             addValue(inputRemapping.fun(idCountOrSingleValue), value);
             if (mapping != null) mapping.associateFileIdToValue(inputRemapping.fun(idCountOrSingleValue), value);
+          } else if (idCountOrSingleValue == COMPRESSED_ID_SET_MARKER) {
+            RoaringIdSet idSet = RoaringIdSet.readFrom(stream);
+            if (inputRemapping == IntIntFunction.IDENTITY && mapping == null && getFileSetObject(value) == null) {
+              attachFileSetForNewValue(value, new ChangeBufferingList(idSet));
+            }
+            else {
+              ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idSet.size());
+              for (IntIdsIterator iterator = idSet.intIterator(); iterator.hasNext(); ) {
+                int remappedInputId = inputRemapping.fun(iterator.next());
+                if (changeBufferingList != null) changeBufferingList.add(remappedInputId);
+                else addValue(remappedInputId, value);
+                if (mapping != null) mapping.associateFileIdToValue(remappedInputId, value);
+              }
+            }
           } else {
             idCountOrSingleValue = -idCountOrSingleValue;
             ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idCountOrSingleValue);
@@ -15,6 +15,8 @@
  */
 package com.intellij.util.indexing.impl;
 
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteArraySequence;
 import com.intellij.util.IntIntFunction;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
@@ -23,11 +25,17 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Dmitry Avdeev
  */
 class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, UpdatableValueContainer<Value>> {
+  // version of the value container format, see ValueContainerImpl.saveTo and readFrom; storages of other versions are rebuilt
+  private static final int VERSION = 1;
+
   @NotNull private final DataExternalizer<Value> myValueExternalizer;
   private final boolean myKeyIsUniqueForIndexedFile;
 
@@ -36,25 +44,49 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, UpdatableValu
                     @NotNull DataExternalizer<Value> valueExternalizer,
                     boolean keyIsUniqueForIndexedFile,
                     @NotNull IntIntFunction inputRemapping) throws IOException {
-    super(file, keyKeyDescriptor, new ValueContainerExternalizer<>(valueExternalizer, inputRemapping));
+    super(file, keyKeyDescriptor, new ValueContainerExternalizer<>(valueExternalizer, inputRemapping), INITIAL_INDEX_SIZE, VERSION);
     myValueExternalizer = valueExternalizer;
     myKeyIsUniqueForIndexedFile = keyIsUniqueForIndexedFile;
   }
 
-  @NotNull
-  Object getDataAccessLock() {
-    return myEnumerator;
+  /**
+   * Stores the container saving it before the map lock is taken: saving a container that needs compacting merges it
+   * with its value on disk under the container initializer lock, and the initializer reads this map under that lock.
+   */
+  void putContainer(Key key, ChangeTrackingValueContainer<Value> container) throws IOException {
+    putContainers(Collections.singletonMap(key, container));
+  }
+
+  /**
+   * Batch version of {@link #putContainer}: diffs of the containers are appended with one {@link #appendData(Map)} call
+   * and the containers to rewrite are put with one {@link #putAllSaved} call, each taking the map lock once.
+   */
+  void putContainers(@NotNull Map<Key, ChangeTrackingValueContainer<Value>> containers) throws IOException {
+    Map<Key, PersistentHashMap.ValueDataAppender> appenders = new HashMap<>();
+    Map<Key, ByteArraySequence> rewritten = new HashMap<>();
+    for (Map.Entry<Key, ChangeTrackingValueContainer<Value>> entry : containers.entrySet()) {
+      ChangeTrackingValueContainer<Value> container = entry.getValue();
+      boolean compact = container.needsCompacting();
+      BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      container.saveTo(new DataOutputStream(bytes), myValueExternalizer, compact);
+      if (shouldAppend(compact)) {
+        appenders.put(entry.getKey(), out -> out.write(bytes.getInternalBuffer(), 0, bytes.size()));
+      }
+      else {
+        rewritten.put(entry.getKey(), bytes.toByteArraySequence());
+      }
+    }
+    if (!appenders.isEmpty()) appendData(appenders);
+    if (!rewritten.isEmpty()) putAllSaved(rewritten);
   }
 
   @Override
-  protected void doPut(Key key, UpdatableValueContainer<Value> container) throws IOException {
+  protected void doPut(Key key, UpdatableValueContainer<Value> valueContainer) throws IOException {
     synchronized (myEnumerator) {
-      final ChangeTrackingValueContainer<Value> valueContainer = (ChangeTrackingValueContainer<Value>)container;
-
       // try to accumulate index value calculated for particular key to avoid fragmentation: usually keys are scattered across many files
       // note that keys unique for indexed file have their value calculated at once (e.g. key is file id, index calculates something for particular
       // file) and there is no benefit to accumulate values for particular key because only one value exists
-      if (!valueContainer.needsCompacting() && !myKeyIsUniqueForIndexedFile) {
+      if (shouldAppend(valueContainer.needsCompacting())) {
         appendData(key, new PersistentHashMap.ValueDataAppender() {
           @Override
           public void append(@NotNull final DataOutput out) throws IOException {
@@ -69,6 +101,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, UpdatableValu
     }
   }
 
+  private boolean shouldAppend(boolean needsCompacting) {
+    return !needsCompacting && !myKeyIsUniqueForIndexedFile;
+  }
+
   private static final class ValueContainerExternalizer<T> implements DataExternalizer<UpdatableValueContainer<T>> {
     @NotNull private final DataExternalizer<T> myValueExternalizer;
     @NotNull private final IntIntFunction myInputRemapping;
@@ -0,0 +1,44 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.io;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bytes between position and limit of the buffer, advancing its position. Not thread-safe.
+ */
+final class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer myBuffer;
+
+  ByteBufferInputStream(@NotNull ByteBuffer buffer) {
+    myBuffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte @NotNull [] b, int off, int len) {
+    if (len == 0) return 0;
+    if (!myBuffer.hasRemaining()) return -1;
+    len = Math.min(len, myBuffer.remaining());
+    myBuffer.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skipped = (int)Math.max(0, Math.min(n, myBuffer.remaining()));
+    myBuffer.position(myBuffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return myBuffer.remaining();
+  }
+}
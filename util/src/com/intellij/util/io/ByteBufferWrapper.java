@@ -26,6 +26,7 @@ public abstract class ByteBufferWrapper {
   protected final long myPosition;
   protected final long myLength;
   protected volatile boolean myDirty;
+  private volatile boolean myRecentlyUsed; // reference bit for clock eviction in PagedFileStorage.StorageLock
 
   protected ByteBufferWrapper(Path file, final long offset, final long length) {
     myFile = file;
@@ -44,6 +45,19 @@ public abstract class ByteBufferWrapper {
     return myDirty;
   }
 
+  final void markRecentlyUsed() {
+    if (!myRecentlyUsed) myRecentlyUsed = true;
+  }
+
+  /**
+   * @return whether the buffer was used since the previous call
+   */
+  final boolean clearRecentlyUsed() {
+    if (!myRecentlyUsed) return false;
+    myRecentlyUsed = false;
+    return true;
+  }
+
   public abstract ByteBuffer getBuffer() throws IOException;
 
   public abstract void unmap();
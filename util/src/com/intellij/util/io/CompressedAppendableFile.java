@@ -27,6 +27,9 @@ import java.util.Set;
  * tail that is smaller that buffer size. Main file contains compressed data chunks, there are also chunk length table (.s) and incomplete
  * chunk file (.at).
  * (Decompressed) chunks are cached.
+ * <p>
+ * Chunks are immutable once written, so they are read and decompressed concurrently; the lock of the file guards only the append buffer
+ * and the tables, which readers take a snapshot of when they open a stream.
  */
 // TODO clear fields (lengths, tables) on low memory, requires fsync somehow
 public class CompressedAppendableFile {
@@ -37,17 +40,19 @@ public class CompressedAppendableFile {
   private int myBufferPosition;
   private boolean myDirty;
 
-  private short[] myChunkLengthTable;
-  private int myChunkTableLength;
+  // tables are written under the lock and read out of it for chunks below a myChunkTableLength snapshot, which are never changed:
+  // new entries are set before the volatile write of the length, and the tables are reallocated with all the entries copied
+  private volatile short[] myChunkLengthTable;
+  private volatile int myChunkTableLength;
   private static final int FACTOR = 32;
-  private long [] myChunkOffsetTable; // one long offset per FACTOR compressed chunks
+  private volatile long [] myChunkOffsetTable; // one long offset per FACTOR compressed chunks
   private static final boolean doDebug = SystemProperties.getBooleanProperty("idea.compressed.file.self.check", false);
   private final TLongArrayList myCompressedChunksFileOffsets = doDebug ? new TLongArrayList() : null;
 
   public static final int PAGE_LENGTH = SystemProperties.getIntProperty("idea.compressed.file.page.length", 32768);
   private static final int MAX_PAGE_LENGTH = 0xFFFF;
 
-  private long myFileLength;
+  private volatile long myFileLength;
   private long myUncompressedFileLength = -1;
 
   private final int myAppendBufferLength;
@@ -73,19 +78,21 @@ public class CompressedAppendableFile {
     }
   }
 
-  public synchronized <Data> Data read(final long addr, KeyDescriptor<Data> descriptor) throws IOException {
+  public <Data> Data read(final long addr, KeyDescriptor<Data> descriptor) throws IOException {
     try (DataInputStream stream = getStream(addr)) {
       return descriptor.read(stream);
     }
   }
 
   @NotNull
-  public synchronized DataInputStream getStream(final long addr) throws IOException {
-    initChunkLengthTable();
-    loadAppendBuffer();
-    return new DataInputStream(
-      new SegmentedChunkInputStream(addr, myChunkTableLength, myNextChunkBuffer, myBufferPosition)
-    );
+  public DataInputStream getStream(final long addr) throws IOException {
+    SegmentedChunkInputStream stream;
+    synchronized (this) {
+      initChunkLengthTable();
+      loadAppendBuffer();
+      stream = new SegmentedChunkInputStream(addr, myChunkTableLength, myNextChunkBuffer, myBufferPosition);
+    }
+    return new DataInputStream(stream);
   }
 
   protected Path getChunkLengthFile() {
@@ -162,9 +169,9 @@ public class CompressedAppendableFile {
     }
   }
 
-  private synchronized byte @NotNull [] loadChunk(int chunkNumber) throws IOException {
+  // the chunk is below the table length snapshot of a stream, so neither the chunk nor its entries in the tables change
+  private byte @NotNull [] loadChunk(int chunkNumber) throws IOException {
     try {
-      if (myChunkLengthTable == null) initChunkLengthTable();
       assert chunkNumber < myChunkTableLength;
 
       try (DataInputStream keysStream = getChunkStream(getChunksFile(), chunkNumber)) {
@@ -207,8 +214,9 @@ public class CompressedAppendableFile {
     final int calculatedOffset = (pageNumber + 1) / FACTOR;
     long offset = calculatedOffset > 0 ? myChunkOffsetTable[calculatedOffset - 1]:0;
     final int baseOffset = calculatedOffset * FACTOR;
+    short[] chunkLengthTable = myChunkLengthTable;
     for(int index = 0, len = (pageNumber + 1) % FACTOR; index < len; ++index) {
-      offset += myChunkLengthTable[baseOffset + index] & MAX_PAGE_LENGTH;
+      offset += chunkLengthTable[baseOffset + index] & MAX_PAGE_LENGTH;
     }
     if (doDebug) {
       assert myCompressedChunksFileOffsets.get(pageNumber) == offset;
@@ -312,21 +320,23 @@ public class CompressedAppendableFile {
       myFileLength += compressedOut.size();
       if (doDebug) myCompressedChunksFileOffsets.add(myFileLength);
 
-      if (myChunkLengthTable.length == myChunkTableLength) {
+      int chunkTableLength = myChunkTableLength;
+      if (myChunkLengthTable.length == chunkTableLength) {
         myChunkLengthTable = reallocShortTable(myChunkLengthTable);
       }
 
-      myChunkLengthTable[myChunkTableLength++] = (short)compressedOut.size();
-      if (myChunkTableLength / FACTOR > myChunkOffsetTable.length) {
+      myChunkLengthTable[chunkTableLength++] = (short)compressedOut.size();
+      if (chunkTableLength / FACTOR > myChunkOffsetTable.length) {
         long[] newChunkOffsetTable = new long[myChunkOffsetTable.length + 1];
         System.arraycopy(myChunkOffsetTable, 0, newChunkOffsetTable, 0, myChunkOffsetTable.length);
         newChunkOffsetTable[myChunkOffsetTable.length] = myFileLength;
         myChunkOffsetTable = newChunkOffsetTable;
       }
+      myChunkTableLength = chunkTableLength;
 
-      byte[] bytes = new byte[myAppendBufferLength];
-      System.arraycopy(myNextChunkBuffer, 0, bytes, 0, myAppendBufferLength);
-      FileChunkReadCache.ourDecompressedCache.put(this, myChunkTableLength - 1, bytes);
+      // streams may still read the buffer as the tail of the file, so it's handed over to the cache as is instead of being reused
+      FileChunkReadCache.ourDecompressedCache.put(this, chunkTableLength - 1, myNextChunkBuffer);
+      myNextChunkBuffer = new byte[myAppendBufferLength];
     }
   }
 
@@ -424,55 +434,82 @@ public class CompressedAppendableFile {
     return myDirty;
   }
 
-  private static class FileChunkReadCache extends SLRUMap<FileChunkKey<CompressedAppendableFile>, byte[]> {
+  // chunks are spread over stripes by their owner and number, so readers of different chunks rarely contend for a stripe
+  private static class FileChunkReadCache {
+    private static final int STRIPE_COUNT = 16;
     private static final FileChunkReadCache ourDecompressedCache = new FileChunkReadCache();
 
     static {
       @SuppressWarnings("unused") // TODO disable watcher when it's not needed (on index close?)
-      LowMemoryWatcher registered = LowMemoryWatcher.register(() -> {
-        synchronized (ourDecompressedCache) {
-          ourDecompressedCache.clear();
-        }
-      });
+      LowMemoryWatcher registered = LowMemoryWatcher.register(() -> ourDecompressedCache.clear());
     }
 
-    private final FileChunkKey<CompressedAppendableFile> myKey = new FileChunkKey<>(null, 0);
+    private final Stripe[] myStripes = new Stripe[STRIPE_COUNT];
 
     FileChunkReadCache() {
-      super(64, 64);
+      for (int i = 0; i < myStripes.length; i++) {
+        myStripes[i] = new Stripe();
+      }
     }
 
     byte @NotNull [] get(CompressedAppendableFile file, int page) throws IOException {
+      Stripe stripe = getStripe(file, page);
       byte[] bytes;
-      synchronized (this) {
-        myKey.setup(file, page);
-        bytes = get(myKey);
+      synchronized (stripe) {
+        stripe.myKey.setup(file, page);
+        bytes = stripe.get(stripe.myKey);
         if (bytes != null) return bytes;
       }
 
       bytes = file.loadChunk(page);   // out of lock
-      synchronized (this) {
-        put(file, page, bytes);
-      }
+      put(file, page, bytes);
       return bytes;
     }
 
     void put(CompressedAppendableFile file, long page, byte[] bytes) {
-      synchronized (this) {
-        myKey.setup(file, page);
-        put(myKey, bytes);
+      Stripe stripe = getStripe(file, page);
+      synchronized (stripe) {
+        stripe.myKey.setup(file, page);
+        stripe.put(stripe.myKey, bytes);
       }
     }
 
     void clear(CompressedAppendableFile file) {
-      Set<FileChunkKey<CompressedAppendableFile>> toClean = new THashSet<>();
-      iterateKeys(key -> {
-        if (key.getOwner() == file) {
-          toClean.add(key);
+      for (Stripe stripe : myStripes) {
+        synchronized (stripe) {
+          Set<FileChunkKey<CompressedAppendableFile>> toClean = new THashSet<>();
+          stripe.iterateKeys(key -> {
+            if (key.getOwner() == file) {
+              toClean.add(key);
+            }
+          });
+          for (FileChunkKey<CompressedAppendableFile> key : toClean) {
+            stripe.remove(key);
+          }
+        }
+      }
+    }
+
+    void clear() {
+      for (Stripe stripe : myStripes) {
+        synchronized (stripe) {
+          stripe.clear();
         }
-      });
-      for (FileChunkKey<CompressedAppendableFile> key : toClean) {
-        remove(key);
+      }
+    }
+
+    @NotNull
+    private Stripe getStripe(@NotNull CompressedAppendableFile file, long page) {
+      int hash = (int)(file.hashCode() * 31 + page);
+      return myStripes[(hash ^ hash >>> 16) & (STRIPE_COUNT - 1)];
+    }
+
+    private static class Stripe extends SLRUMap<FileChunkKey<CompressedAppendableFile>, byte[]> {
+      private final FileChunkKey<CompressedAppendableFile> myKey = new FileChunkKey<>(null, 0);
+
+      // the same 64 + 64 chunks in total as a single cache would hold
+      Stripe() {
+        super(64 / STRIPE_COUNT, 64 / STRIPE_COUNT);
       }
     }
   }
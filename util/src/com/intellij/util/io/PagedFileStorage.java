@@ -7,9 +7,10 @@ import com.intellij.openapi.util.SystemInfo;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
-import com.intellij.util.containers.hash.LinkedHashMap;
+import com.intellij.util.containers.IntObjectMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -92,6 +93,8 @@ public class PagedFileStorage implements Forceable {
   private final byte[] myTypedIOBuffer;
   private volatile boolean isDirty;
   private final Path myFile;
+  // released on close, acquired again when the closed storage is accessed
+  private PagedFileStorageStatistics myStatistics;
   protected volatile long mySize = -1;
   protected final int myPageSize;
   protected final boolean myValuesAreBufferAligned;
@@ -106,6 +109,7 @@ public class PagedFileStorage implements Forceable {
                           boolean valuesAreBufferAligned,
                           boolean nativeBytesOrder) throws IOException {
     myFile = file;
+    myStatistics = PagedFileStorageStatistics.acquire(file);
     myStorageLockContext = storageLockContext != null ? storageLockContext : ourLock.myDefaultStorageLockContext;
     myPageSize = Math.max(pageSize > 0 ? pageSize : BUFFER_SIZE, Page.PAGE_SIZE);
     myValuesAreBufferAligned = valuesAreBufferAligned;
@@ -130,6 +134,11 @@ public class PagedFileStorage implements Forceable {
     return myFile;
   }
 
+  @NotNull
+  public PagedFileStorageStatistics getStatistics() {
+    return myStatistics;
+  }
+
   public void putInt(long addr, int value) {
     if (myValuesAreBufferAligned) {
       long page = addr / myPageSize;
@@ -290,6 +299,7 @@ public class PagedFileStorage implements Forceable {
     finally {
       unmapAll();
       myStorageLockContext.myStorageLock.myIndex2Storage.remove(myStorageIndex);
+      if (myStorageIndex != -1) PagedFileStorageStatistics.release(myStatistics);
       myStorageIndex = -1;
     }
   }
@@ -383,18 +393,21 @@ public class PagedFileStorage implements Forceable {
         ByteBuffer buf = myLastBuffer.getCachedBuffer();
         if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
           if (modify) markDirty(myLastBuffer);
+          myStatistics.pageHit();
           return myLastBuffer;
         }
       } else if (myLastPage2 == page) {
         ByteBuffer buf = myLastBuffer2.getCachedBuffer();
         if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
           if (modify) markDirty(myLastBuffer2);
+          myStatistics.pageHit();
           return myLastBuffer2;
         }
       } else if (myLastPage3 == page) {
         ByteBuffer buf = myLastBuffer3.getCachedBuffer();
         if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
           if (modify) markDirty(myLastBuffer3);
+          myStatistics.pageHit();
           return myLastBuffer3;
         }
       }
@@ -405,8 +418,9 @@ public class PagedFileStorage implements Forceable {
 
       if (myStorageIndex == -1) {
         myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
+        myStatistics = PagedFileStorageStatistics.acquire(myFile);
       }
-      ByteBufferWrapper byteBufferWrapper = myStorageLockContext.myStorageLock.get(myStorageIndex | (int)page); // TODO: long page
+      ByteBufferWrapper byteBufferWrapper = myStorageLockContext.myStorageLock.get(myStorageIndex | (int)page, myStatistics); // TODO: long page
       if (modify) markDirty(byteBufferWrapper);
       ByteBuffer buf = byteBufferWrapper.getBuffer();
       if (myNativeBytesOrder && buf.order() != ourNativeByteOrder) {
@@ -448,8 +462,10 @@ public class PagedFileStorage implements Forceable {
   public void force() {
     long started = IOStatistics.DEBUG ? System.currentTimeMillis():0;
     if (isDirty) {
+      long forceStarted = System.nanoTime();
       myStorageLockContext.myStorageLock.flushBuffersForOwner(myStorageIndex, myStorageLockContext);
       isDirty = false;
+      myStatistics.forced(System.nanoTime() - forceStarted);
     }
 
     if (IOStatistics.DEBUG) {
@@ -471,9 +487,10 @@ public class PagedFileStorage implements Forceable {
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentIntObjectMap<PagedFileStorage> myIndex2Storage = ContainerUtil.createConcurrentIntObjectMap();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final ReentrantLock mySegmentsAccessLock = new ReentrantLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    // page table: page hits only read it and set the reference bit of the found segment, so they take no lock
+    private final ConcurrentIntObjectMap<ByteBufferWrapper> mySegments = ContainerUtil.createConcurrentIntObjectMap();
+    // mapped segments in clock (second chance) order, protected by mySegmentsAllocationLock as well as mySize and myMappingChangeCount updates
+    private final ArrayDeque<ClockEntry> mySegmentsClock = new ArrayDeque<>();
 
     private final ReentrantLock mySegmentsAllocationLock = new ReentrantLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<>();
@@ -489,25 +506,12 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
       mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f, true) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
+    }
 
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
+    @TestOnly
+    StorageLock(boolean checkThreadAccess, long sizeLimit) {
+      this(checkThreadAccess);
+      mySizeLimit = sizeLimit;
     }
 
     public void lock() {
@@ -518,6 +522,11 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext.unlock();
     }
 
+    @TestOnly
+    long getMappedSize() {
+      return mySize;
+    }
+
     private int registerPagedFileStorage(@NotNull PagedFileStorage storage) {
       int registered = myIndex2Storage.size();
       assert registered <= MAX_LIVE_STORAGES_COUNT;
@@ -534,30 +543,27 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
-    private ByteBufferWrapper get(Integer key) throws IOException {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+    private ByteBufferWrapper get(int key, @NotNull PagedFileStorageStatistics statistics) throws IOException {
+      ByteBufferWrapper wrapper = mySegments.get(key); // fast path
+      if (wrapper != null) {
+        wrapper.markRecentlyUsed();
+        statistics.pageHit();
+        return wrapper;
       }
 
       mySegmentsAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
-        try {
-          wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
-        } finally {
-          mySegmentsAccessLock.unlock();
+        wrapper = mySegments.get(key);
+        if (wrapper != null) {
+          statistics.pageHit();
+          return wrapper;
         }
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
+        long mappingStarted = System.nanoTime();
         wrapper = createValue(key);
+        statistics.pageMapped(wrapper.myLength, System.nanoTime() - mappingStarted);
 
         if (IOStatistics.DEBUG) {
           long finished = System.currentTimeMillis();
@@ -567,14 +573,13 @@ public class PagedFileStorage implements Forceable {
           }
         }
 
-        mySegmentsAccessLock.lock();
-        try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
+        // new segment must survive the eviction below
+        wrapper.markRecentlyUsed();
+        mySegments.put(key, wrapper);
+        mySegmentsClock.addLast(new ClockEntry(key, wrapper));
+        mySize += wrapper.myLength;
+        // the clock hand skips unmapped segments, they are purged only when they outnumber mapped ones, so purging is amortized O(1)
+        if (mySegmentsClock.size() > 2 * mySegments.size()) purgeUnmappedFromClock();
 
         ensureSize(mySizeLimit);
 
@@ -585,13 +590,33 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
+    private void removeSegment(int key, @NotNull ByteBufferWrapper wrapper) {
+      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+      if (mySegments.remove(key, wrapper)) {
+        ++myMappingChangeCount;
+        mySegmentsToRemove.offer(wrapper);
+        mySize -= wrapper.myLength;
+      }
+    }
+
+    // segments unmapped not by the clock hand (on resize or close of their storage) stay in the clock until the hand or this purge drops them
+    private void purgeUnmappedFromClock() {
+      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+      mySegmentsClock.removeIf(entry -> mySegments.get(entry.key) != entry.wrapper);
+    }
+
     private void disposeRemovedSegments() {
       if (mySegmentsToRemove.isEmpty()) return;
 
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
       Iterator<ByteBufferWrapper> iterator = mySegmentsToRemove.iterator();
       while(iterator.hasNext()) {
-        iterator.next().dispose();
+        ByteBufferWrapper wrapper = iterator.next();
+        long started = System.nanoTime();
+        wrapper.dispose();
+        // the storage of the segment may be closed already
+        PagedFileStorageStatistics statistics = PagedFileStorageStatistics.get(wrapper.myFile);
+        if (statistics != null) statistics.pageUnmapped(System.nanoTime() - started);
         iterator.remove();
       }
     }
@@ -599,21 +624,28 @@ public class PagedFileStorage implements Forceable {
     private void ensureSize(long sizeLimit) {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
 
-      try {
-        mySegmentsAccessLock.lock();
-        while (mySize > sizeLimit) {
-          // we still have to drop something
-          mySegments.doRemoveEldestEntry();
+      // every segment gets at most one second chance, so concurrent hits can't keep the hand spinning
+      int secondChances = mySegmentsClock.size();
+      while (mySize > sizeLimit && !mySegmentsClock.isEmpty()) {
+        // we still have to drop something
+        ClockEntry entry = mySegmentsClock.pollFirst();
+        if (mySegments.get(entry.key) != entry.wrapper) continue; // already unmapped
+
+        if (secondChances > 0 && entry.wrapper.clearRecentlyUsed()) {
+          --secondChances;
+          mySegmentsClock.addLast(entry);
+          continue;
         }
-      } finally {
-        mySegmentsAccessLock.unlock();
+        removeSegment(entry.key, entry.wrapper);
+        PagedFileStorageStatistics statistics = PagedFileStorageStatistics.get(entry.wrapper.myFile);
+        if (statistics != null) statistics.pageEvicted();
       }
 
       disposeRemovedSegments();
     }
 
     @NotNull
-    private ByteBufferWrapper createValue(Integer key) throws IOException {
+    private ByteBufferWrapper createValue(int key) throws IOException {
       final int storageIndex = key & FILE_INDEX_MASK;
       PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(storageIndex);
       assert owner != null: "No storage for index " + storageIndex;
@@ -684,41 +716,28 @@ public class PagedFileStorage implements Forceable {
 
     @Nullable
     private Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
-      mySegmentsAccessLock.lock();
-      try {
-        checkThreadAccess(storageLockContext);
-        Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
-          if ((entry.getKey() & FILE_INDEX_MASK) == index) {
-            if (mineBuffers == null) {
-              mineBuffers = new TreeMap<>(Comparator.comparingInt(o -> o));
-            }
-            mineBuffers.put(entry.getKey(), entry.getValue());
+      checkThreadAccess(storageLockContext);
+      Map<Integer, ByteBufferWrapper> mineBuffers = null;
+      for (IntObjectMap.Entry<ByteBufferWrapper> entry : mySegments.entrySet()) {
+        if ((entry.getKey() & FILE_INDEX_MASK) == index) {
+          if (mineBuffers == null) {
+            mineBuffers = new TreeMap<>(Comparator.comparingInt(o -> o));
           }
+          mineBuffers.put(entry.getKey(), entry.getValue());
         }
-        return mineBuffers;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
       }
+      return mineBuffers;
     }
 
     private void unmapBuffersForOwner(int index, StorageLockContext storageLockContext) {
       final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
 
       if (buffers != null) {
-        mySegmentsAccessLock.lock();
-        try {
-          for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
-          }
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
-
         mySegmentsAllocationLock.lock();
         try {
+          for (Map.Entry<Integer, ByteBufferWrapper> entry : buffers.entrySet()) {
+            removeSegment(entry.getKey(), entry.getValue());
+          }
           disposeRemovedSegments();
         } finally {
           mySegmentsAllocationLock.unlock();
@@ -752,20 +771,28 @@ public class PagedFileStorage implements Forceable {
     }
 
     public void invalidateBuffer(int page) {
-      mySegmentsAccessLock.lock();
-      try {
-        mySegments.remove(page);
-      } finally {
-        mySegmentsAccessLock.unlock();
-      }
       mySegmentsAllocationLock.lock();
       try {
+        ByteBufferWrapper wrapper = mySegments.get(page);
+        if (wrapper != null) {
+          removeSegment(page, wrapper);
+        }
         disposeRemovedSegments();
       }
       finally {
         mySegmentsAllocationLock.unlock();
       }
     }
+
+    private static final class ClockEntry {
+      final int key;
+      final ByteBufferWrapper wrapper;
+
+      ClockEntry(int key, @NotNull ByteBufferWrapper wrapper) {
+        this.key = key;
+        this.wrapper = wrapper;
+      }
+    }
   }
 
   public static class StorageLockContext {
@@ -0,0 +1,165 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.io;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Page cache counters of {@link PagedFileStorage}s, collected per file so storages that thrash the shared segment cache
+ * can be found at runtime (see {@link #getAll()}). Counters of a file are shared by all its open storages
+ * and are dropped when the last of them is closed.
+ */
+public final class PagedFileStorageStatistics {
+  private static final ConcurrentMap<Path, PagedFileStorageStatistics> ourStatistics = new ConcurrentHashMap<>();
+  // upper bounds (exclusive) of force latency histogram buckets, the last bucket counts everything slower
+  private static final long[] FORCE_LATENCY_BUCKETS_MS = {1, 10, 100, 1000};
+
+  private final Path myFile;
+  private final LongAdder myHits = new LongAdder();
+  private final LongAdder myMisses = new LongAdder();
+  private final LongAdder myMappedBytes = new LongAdder();
+  private final LongAdder myEvictions = new LongAdder();
+  private final LongAdder myMapTimeNanos = new LongAdder();
+  private final LongAdder myUnmapTimeNanos = new LongAdder();
+  private final AtomicLongArray myForceLatencyHistogram = new AtomicLongArray(FORCE_LATENCY_BUCKETS_MS.length + 1);
+  // changed only in ourStatistics.compute
+  private int myOpenStorages;
+
+  private PagedFileStorageStatistics(@NotNull Path file) {
+    myFile = file;
+  }
+
+  /**
+   * Registers an opened storage of the file, it has to be followed by {@link #release} when the storage is closed.
+   */
+  @NotNull
+  static PagedFileStorageStatistics acquire(@NotNull Path file) {
+    return ourStatistics.compute(file, (__, statistics) -> {
+      if (statistics == null) statistics = new PagedFileStorageStatistics(file);
+      statistics.myOpenStorages++;
+      return statistics;
+    });
+  }
+
+  static void release(@NotNull PagedFileStorageStatistics statistics) {
+    ourStatistics.computeIfPresent(statistics.myFile, (__, current) -> {
+      if (current != statistics) return current;
+      return --current.myOpenStorages > 0 ? current : null;
+    });
+  }
+
+  @NotNull
+  public static Collection<PagedFileStorageStatistics> getAll() {
+    return new ArrayList<>(ourStatistics.values());
+  }
+
+  @Nullable
+  public static PagedFileStorageStatistics get(@NotNull Path file) {
+    return ourStatistics.get(file);
+  }
+
+  /**
+   * Zeroes the counters of all files, the statistics objects stay the same.
+   */
+  public static void resetAll() {
+    for (PagedFileStorageStatistics statistics : ourStatistics.values()) {
+      statistics.reset();
+    }
+  }
+
+  private void reset() {
+    myHits.reset();
+    myMisses.reset();
+    myMappedBytes.reset();
+    myEvictions.reset();
+    myMapTimeNanos.reset();
+    myUnmapTimeNanos.reset();
+    for (int i = 0; i < myForceLatencyHistogram.length(); i++) {
+      myForceLatencyHistogram.set(i, 0);
+    }
+  }
+
+  /**
+   * @return upper bounds in milliseconds of all {@link #getForceLatencyHistogram()} buckets except the last one
+   */
+  public static long @NotNull [] getForceLatencyBucketBoundsMs() {
+    return FORCE_LATENCY_BUCKETS_MS.clone();
+  }
+
+  void pageHit() {
+    myHits.increment();
+  }
+
+  void pageMapped(long bytes, long nanos) {
+    myMisses.increment();
+    myMappedBytes.add(bytes);
+    myMapTimeNanos.add(nanos);
+  }
+
+  void pageEvicted() {
+    myEvictions.increment();
+  }
+
+  void pageUnmapped(long nanos) {
+    myUnmapTimeNanos.add(nanos);
+  }
+
+  void forced(long nanos) {
+    long millis = nanos / 1_000_000;
+    int bucket = 0;
+    while (bucket < FORCE_LATENCY_BUCKETS_MS.length && millis >= FORCE_LATENCY_BUCKETS_MS[bucket]) bucket++;
+    myForceLatencyHistogram.incrementAndGet(bucket);
+  }
+
+  @NotNull
+  public Path getFile() {
+    return myFile;
+  }
+
+  public long getHits() {
+    return myHits.sum();
+  }
+
+  public long getMisses() {
+    return myMisses.sum();
+  }
+
+  public long getMappedBytes() {
+    return myMappedBytes.sum();
+  }
+
+  public long getEvictions() {
+    return myEvictions.sum();
+  }
+
+  public long getMapTimeNanos() {
+    return myMapTimeNanos.sum();
+  }
+
+  public long getUnmapTimeNanos() {
+    return myUnmapTimeNanos.sum();
+  }
+
+  public long @NotNull [] getForceLatencyHistogram() {
+    long[] result = new long[myForceLatencyHistogram.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = myForceLatencyHistogram.get(i);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return myFile + ": hits=" + getHits() + ", misses=" + getMisses() + ", mapped=" + getMappedBytes() / PagedFileStorage.MB + "MB" +
+           ", evictions=" + getEvictions() + ", map=" + getMapTimeNanos() / 1_000_000 + "ms" +
+           ", unmap=" + getUnmapTimeNanos() / 1_000_000 + "ms";
+  }
+}
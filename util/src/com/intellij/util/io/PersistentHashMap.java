@@ -5,22 +5,32 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.ThreadLocalCachedValue;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteArraySequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.*;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author Eugene Zhuravlev
@@ -49,10 +59,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private final Path myStorageFile;
   private final boolean myIsReadOnly;
   private final KeyDescriptor<Key> myKeyDescriptor;
-  private PersistentHashMapValueStorage myValueStorage;
+  private volatile PersistentHashMapValueStorage myValueStorage;
   protected final DataExternalizer<Value> myValueExternalizer;
   private static final long NULL_ADDR = 0;
-  private static final int INITIAL_INDEX_SIZE;
+  protected static final int INITIAL_INDEX_SIZE;
 
   static {
     String property = System.getProperty("idea.initialIndexSize");
@@ -76,7 +86,18 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int myLargeIndexWatermarkId;  // starting with this id we store offset in adjacent file in long format
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
-  private volatile boolean myBusyReading;
+  private final AtomicInteger myBusyReaders = new AtomicInteger();
+  // guards lifetime of myValueStorage for readers that work outside of myEnumerator monitor, write lock is only taken under the monitor
+  private final ReadWriteLock myValueStorageLock = new ReentrantReadWriteLock();
+  // guarded by myEnumerator monitor
+  @Nullable
+  private BackgroundCompaction myBackgroundCompaction;
+
+  private static final boolean ourCompactInBackground = SystemProperties.getBooleanProperty("idea.phm.background.compaction", false);
+  // one compaction at a time, they are IO bound anyway
+  private static final ExecutorService ourCompactionExecutor =
+    SequentialTaskExecutor.createSequentialApplicationPoolExecutor("PersistentHashMap Background Compaction");
+  private static final int BACKGROUND_COMPACTION_BATCH_BYTES = 4 * 1024 * 1024;
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -395,17 +416,76 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
-  protected void doPut(Key key, Value value) throws IOException {
-    long newValueOffset = -1;
+  /**
+   * Puts the values taking the map lock once. Values are written in the order of key records,
+   * so both the value storage and the key records are updated mostly sequentially.
+   */
+  @Override
+  public final void putAll(@NotNull Map<? extends Key, ? extends Value> values) throws IOException {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    synchronized (myEnumerator) {
+      try {
+        for (Key key : sortByKeyAddress(values.keySet())) {
+          doPut(key, values.get(key));
+        }
+      }
+      catch (IOException ex) {
+        myEnumerator.markCorrupted();
+        throw ex;
+      }
+    }
+  }
 
+  /**
+   * Puts the values that are already saved by the value externalizer of the map, taking the map lock once,
+   * see {@link #putAll} for the order of writes.
+   */
+  protected final void putAllSaved(@NotNull Map<? extends Key, ? extends ByteArraySequence> values) throws IOException {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    assert !myIntMapping;
+    synchronized (myEnumerator) {
+      try {
+        for (Key key : sortByKeyAddress(values.keySet())) {
+          doPutSaved(key, values.get(key));
+        }
+      }
+      catch (IOException ex) {
+        myEnumerator.markCorrupted();
+        throw ex;
+      }
+    }
+  }
+
+  protected void doPut(Key key, Value value) throws IOException {
     if (!myIntMapping) {
       final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
       AppendStream appenderStream = ourFlyweightAppenderStream.getValue();
       appenderStream.setOut(bytes);
       myValueExternalizer.save(appenderStream, value);
       appenderStream.setOut(null);
-      newValueOffset = myValueStorage.appendBytes(bytes.toByteArraySequence(), 0);
+      doPutSaved(key, bytes.toByteArraySequence());
+      return;
+    }
+
+    myEnumerator.lockStorage();
+    try {
+      myEnumerator.markDirty(true);
+      myAppendCache.remove(key);
+
+      if (myDirectlyStoreLongFileOffsetMode) {
+        ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, (Integer)value);
+      }
+      else {
+        myEnumerator.myStorage.putInt(enumerate(key) + myParentValueRefOffset, (Integer)value);
+      }
     }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
+
+  private void doPutSaved(Key key, @NotNull ByteArraySequence bytes) throws IOException {
+    long newValueOffset = myValueStorage.appendBytes(bytes, 0);
 
     myEnumerator.lockStorage();
     try {
@@ -414,20 +494,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
       long oldValueOffset;
       if (myDirectlyStoreLongFileOffsetMode) {
-        if (myIntMapping) {
-          ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, (Integer)value);
-          return;
-        }
         oldValueOffset = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
         ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, newValueOffset);
       }
       else {
         final int id = enumerate(key);
-        if (myIntMapping) {
-          myEnumerator.myStorage.putInt(id + myParentValueRefOffset, (Integer)value);
-          return;
-        }
-
         oldValueOffset = readValueId(id);
         updateValueId(id, newValueOffset, oldValueOffset, key, 0);
       }
@@ -477,6 +548,52 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  /**
+   * Batch version of {@link #appendData(Object, ValueDataAppender)}: the map lock is taken once and chunks are appended
+   * in the order of key records.
+   */
+  public final void appendData(@NotNull Map<? extends Key, ? extends ValueDataAppender> appenders) throws IOException {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    synchronized (myEnumerator) {
+      try {
+        for (Key key : sortByKeyAddress(appenders.keySet())) {
+          doAppendData(key, appenders.get(key));
+        }
+      }
+      catch (IOException ex) {
+        myEnumerator.markCorrupted();
+        throw ex;
+      }
+    }
+  }
+
+  @NotNull
+  private List<Key> sortByKeyAddress(@NotNull Collection<? extends Key> keys) throws IOException {
+    List<Key> result = new ArrayList<>(keys);
+    if (result.size() < 2 || myDirectlyStoreLongFileOffsetMode) return result;
+
+    // key record address in high bits, index in result in low bits
+    long[] order = new long[result.size()];
+    myEnumerator.lockStorage();
+    try {
+      for (int i = 0; i < order.length; i++) {
+        int id = tryEnumerate(result.get(i));
+        // new keys go last, their records are created in the order of enumeration
+        order[i] = ((long)(id == PersistentEnumeratorBase.NULL_ID ? Integer.MAX_VALUE : id) << 32) | i;
+      }
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+    Arrays.sort(order);
+
+    List<Key> sorted = new ArrayList<>(order.length);
+    for (long o : order) {
+      sorted.add(result.get((int)o));
+    }
+    return sorted;
+  }
+
   private static final ThreadLocalCachedValue<AppendStream> ourFlyweightAppenderStream = new ThreadLocalCachedValue<AppendStream>() {
     @NotNull
     @Override
@@ -540,96 +657,171 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  /**
+   * Only resolving the key to the value record address happens under the map lock. The value record itself is read and deserialized
+   * without it, so several threads can read values of the same map at once. {@link #compact()} and {@link #close()} wait for such readers
+   * via {@link #myValueStorageLock} before they replace or dispose the value storage.
+   */
   @Override
   public final Value get(Key key) throws IOException {
-    synchronized (myEnumerator) {
-      myBusyReading = true;
+    if (myIntMapping) {
+      synchronized (myEnumerator) {
+        try {
+          return doGetIntValue(key);
+        }
+        catch (IOException ex) {
+          myEnumerator.markCorrupted();
+          throw ex;
+        }
+      }
+    }
+
+    myBusyReaders.incrementAndGet();
+    try {
+      final Lock valueStorageReadLock = myValueStorageLock.readLock();
+      final PersistentHashMapValueStorage valueStorage;
+      final long valueOffset;
+      synchronized (myEnumerator) {
+        try {
+          valueOffset = readValueOffset(key);
+        }
+        catch (IOException ex) {
+          myEnumerator.markCorrupted();
+          throw ex;
+        }
+        if (valueOffset == NULL_ADDR) {
+          return null;
+        }
+        // write lock is only taken under myEnumerator monitor, so this never blocks
+        valueStorageReadLock.lock();
+        valueStorage = myValueStorage;
+      }
+
+      final PersistentHashMapValueStorage.ReadResult readResult;
+      final Value valueRead;
       try {
-        return doGet(key);
+        try {
+          ByteBuffer mappedValue = valueStorage.readMappedValue(valueOffset);
+          if (mappedValue != null) {
+            // read-only storage: deserialize right from the mapped value file
+            readResult = null;
+            try (DataInputStream input = new DataInputStream(new ByteBufferInputStream(mappedValue))) {
+              valueRead = myValueExternalizer.read(input);
+            }
+          }
+          else {
+            readResult = valueStorage.readBytes(valueOffset);
+            try (DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer))) {
+              valueRead = myValueExternalizer.read(input);
+            }
+          }
+        }
+        finally {
+          valueStorageReadLock.unlock();
+        }
       }
       catch (IOException ex) {
         myEnumerator.markCorrupted();
         throw ex;
       }
-      finally {
-        myBusyReading = false;
+
+      if (readResult != null && valueStorage.performChunksCompaction(readResult.chunksCount, readResult.buffer.length)) {
+        synchronized (myEnumerator) {
+          try {
+            compactChunksIfUnchanged(key, valueOffset, valueRead, readResult);
+          }
+          catch (IOException ex) {
+            myEnumerator.markCorrupted();
+            throw ex;
+          }
+        }
       }
+      return valueRead;
+    }
+    finally {
+      myBusyReaders.decrementAndGet();
     }
   }
 
   public boolean isBusyReading() {
-    return myBusyReading;
+    return myBusyReaders.get() > 0;
   }
 
   @Nullable
-  protected Value doGet(Key key) throws IOException {
+  private Value doGetIntValue(Key key) throws IOException {
     myEnumerator.lockStorage();
-    final long valueOffset;
-    final int id;
     try {
-      myAppendCache.remove(key);
-
       if (myDirectlyStoreLongFileOffsetMode) {
-        valueOffset = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
-        if (myIntMapping) {
-          return (Value)(Integer)(int)valueOffset;
-        }
-        id = -1;
+        return (Value)(Integer)(int)((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
       }
-      else {
-        id = tryEnumerate(key);
-        if (id == PersistentEnumeratorBase.NULL_ID) {
-          return null;
-        }
-
-        if (myIntMapping) {
-          return (Value)(Integer)myEnumerator.myStorage.getInt(id + myParentValueRefOffset);
-        }
-
-        valueOffset = readValueId(id);
-      }
-
-      if (valueOffset == NULL_ADDR) {
+      final int id = tryEnumerate(key);
+      if (id == PersistentEnumeratorBase.NULL_ID) {
         return null;
       }
+      return (Value)(Integer)myEnumerator.myStorage.getInt(id + myParentValueRefOffset);
     }
     finally {
       myEnumerator.unlockStorage();
     }
+  }
 
-    final PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(valueOffset);
+  private long readValueOffset(Key key) throws IOException {
+    myEnumerator.lockStorage();
+    try {
+      myAppendCache.remove(key);
+      return readValueOffsetNoFlush(key);
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
 
-    final Value valueRead;
-    try (DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer))) {
-      valueRead = myValueExternalizer.read(input);
+  private long readValueOffsetNoFlush(Key key) throws IOException {
+    if (myDirectlyStoreLongFileOffsetMode) {
+      return ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonNegativeValue(key);
     }
+    final int id = tryEnumerate(key);
+    return id == PersistentEnumeratorBase.NULL_ID ? NULL_ADDR : readValueId(id);
+  }
 
-    if (myValueStorage.performChunksCompaction(readResult.chunksCount, readResult.buffer.length)) {
-      long newValueOffset = myValueStorage.compactChunks(new ValueDataAppender() {
-        @Override
-        public void append(DataOutput out) throws IOException {
-          myValueExternalizer.save(out, valueRead);
-        }
-      }, readResult);
+  private void compactChunksIfUnchanged(Key key,
+                                        long valueOffset,
+                                        final Value valueRead,
+                                        @NotNull PersistentHashMapValueStorage.ReadResult readResult) throws IOException {
+    final int id;
+    myEnumerator.lockStorage();
+    try {
+      // the value might have been rewritten, removed or compacted while it was read without the map lock
+      if (readValueOffsetNoFlush(key) != valueOffset) return;
+      id = myDirectlyStoreLongFileOffsetMode ? -1 : tryEnumerate(key);
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
 
-      myEnumerator.lockStorage();
-      try {
-        myEnumerator.markDirty(true);
+    long newValueOffset = myValueStorage.compactChunks(new ValueDataAppender() {
+      @Override
+      public void append(DataOutput out) throws IOException {
+        myValueExternalizer.save(out, valueRead);
+      }
+    }, readResult);
 
-        if (myDirectlyStoreLongFileOffsetMode) {
-          ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, newValueOffset);
-        }
-        else {
-          updateValueId(id, newValueOffset, valueOffset, key, 0);
-        }
-        myLiveAndGarbageKeysCounter++;
-        myReadCompactionGarbageSize += readResult.buffer.length;
+    myEnumerator.lockStorage();
+    try {
+      myEnumerator.markDirty(true);
+
+      if (myDirectlyStoreLongFileOffsetMode) {
+        ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonNegativeValue(key, newValueOffset);
       }
-      finally {
-        myEnumerator.unlockStorage();
+      else {
+        updateValueId(id, newValueOffset, valueOffset, key, 0);
       }
+      myLiveAndGarbageKeysCounter++;
+      myReadCompactionGarbageSize += readResult.buffer.length;
+    }
+    finally {
+      myEnumerator.unlockStorage();
     }
-    return valueRead;
   }
 
   public final boolean containsMapping(Key key) throws IOException {
@@ -706,6 +898,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     if (myDoTrace) LOG.info("Forcing " + myStorageFile);
     synchronized (myEnumerator) {
       doForce();
+      if (ourCompactInBackground && myBackgroundCompaction == null && makesSenseToCompact()) {
+        compactInBackground();
+      }
     }
   }
 
@@ -732,12 +927,17 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final void close() throws IOException {
     if (myDoTrace) LOG.info("Closed " + myStorageFile);
+    BackgroundCompaction backgroundCompaction;
     synchronized (myEnumerator) {
+      backgroundCompaction = cancelBackgroundCompaction();
       doClose();
     }
+    // outside of the lock: cancelled compaction might need it to finish
+    if (backgroundCompaction != null) backgroundCompaction.waitForCompletion();
   }
 
   private void doClose() throws IOException {
+    myValueStorageLock.writeLock().lock();
     myEnumerator.lockStorage();
     try {
       try {
@@ -765,6 +965,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
     finally {
       myEnumerator.unlockStorage();
+      myValueStorageLock.writeLock().unlock();
     }
   }
 
@@ -786,77 +987,276 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public void compact() throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
-      force();
-      LOG.info("Compacting " + myEnumerator.myFile);
-      LOG.info("Live keys:" + (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK) +
-               ", dead keys:" + (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK) +
-               ", read compaction size:" + myReadCompactionGarbageSize);
+      cancelBackgroundCompaction();
+      myValueStorageLock.writeLock().lock();
+      try {
+        doCompact();
+      }
+      finally {
+        myValueStorageLock.writeLock().unlock();
+      }
+    }
+  }
 
-      final long now = System.currentTimeMillis();
+  private void doCompact() throws IOException {
+    doForce();
+    LOG.info("Compacting " + myEnumerator.myFile);
+    LOG.info("Live keys:" + (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK) +
+             ", dead keys:" + (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK) +
+             ", read compaction size:" + myReadCompactionGarbageSize);
 
-      Path oldDataFile = getDataFile(myEnumerator.myFile);
-      final File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile);
+    final long now = System.currentTimeMillis();
 
-      final Path newPath = oldDataFile.resolveSibling(oldDataFile.getFileName() + ".new");
-      PersistentHashMapValueStorage.CreationTimeOptions options = myValueStorage.getOptions();
-      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath, options);
-      myValueStorage.switchToCompactionMode();
-      myEnumerator.markDirty(true);
-      long sizeBefore = myValueStorage.getSize();
+    Path oldDataFile = getDataFile(myEnumerator.myFile);
+    final File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile);
 
-      myLiveAndGarbageKeysCounter = 0;
-      myReadCompactionGarbageSize = 0;
+    final Path newPath = oldDataFile.resolveSibling(oldDataFile.getFileName() + ".new");
+    PersistentHashMapValueStorage.CreationTimeOptions options = myValueStorage.getOptions();
+    final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath, options);
+    myValueStorage.switchToCompactionMode();
+    myEnumerator.markDirty(true);
+    long sizeBefore = myValueStorage.getSize();
+
+    myLiveAndGarbageKeysCounter = 0;
+    myReadCompactionGarbageSize = 0;
 
+    try {
+      if (doNewCompact()) {
+        newCompact(newStorage);
+      }
+      else {
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            final long record = readValueId(keyId);
+            if (record != NULL_ADDR) {
+              PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+              long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+              updateValueId(keyId, value, record, null, getCurrentKey());
+              myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+            }
+            return true;
+          }
+        });
+      }
+    }
+    finally {
+      newStorage.dispose();
+    }
+
+    final long newSize = newStorage.getSize();
+    replaceValueStorage(oldDataFile, oldFiles, newPath, options);
+    LOG.info("Compacted " + myEnumerator.myFile + ":" + sizeBefore + " bytes into " +
+             newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+    myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+    myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+    if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
+  }
+
+  private void replaceValueStorage(@NotNull Path oldDataFile,
+                                   File @NotNull [] oldFiles,
+                                   @NotNull Path newPath,
+                                   @NotNull PersistentHashMapValueStorage.CreationTimeOptions options) throws IOException {
+    myValueStorage.dispose();
+
+    for (File f : oldFiles) {
+      assert FileUtil.deleteWithRenaming(f);
+    }
+
+    final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newPath);
+
+    // newFiles should get the same names as oldDataFiles
+    File parentFile = newPath.getParent().toFile();
+    final String newBaseName = newPath.getFileName().toString();
+    final String oldDataFileBaseName = oldDataFile.getFileName().toString();
+    for (File f : newFiles) {
+      String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
+      FileUtil.rename(f, new File(parentFile, nameAfterRename));
+    }
+
+    myValueStorage = PersistentHashMapValueStorage.create(oldDataFile, options);
+  }
+
+  /**
+   * Starts {@link #compact()} counterpart that doesn't block the map: live values are copied into a new value storage on a background
+   * thread in bounded batches, while reads and writes go to the current storage. Only the values changed meanwhile are copied under the
+   * map lock right before switching to the new storage. Started automatically by {@link #force()} when {@link #makesSenseToCompact()}
+   * and {@code idea.phm.background.compaction} property is set, cancelled by {@link #compact()} and {@link #close()}.
+   *
+   * @return future that is done when the compaction finished or was cancelled
+   */
+  @NotNull
+  public Future<?> compactInBackground() {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    synchronized (myEnumerator) {
+      BackgroundCompaction compaction = myBackgroundCompaction;
+      if (compaction == null) {
+        compaction = new BackgroundCompaction();
+        compaction.myFuture = ourCompactionExecutor.submit(compaction::run);
+        myBackgroundCompaction = compaction;
+      }
+      return compaction.myFuture;
+    }
+  }
+
+  @Nullable
+  private BackgroundCompaction cancelBackgroundCompaction() {
+    BackgroundCompaction compaction = myBackgroundCompaction;
+    if (compaction != null) {
+      compaction.myCancelled = true;
+      myBackgroundCompaction = null;
+    }
+    return compaction;
+  }
+
+  private final class BackgroundCompaction {
+    private final Path myNewPath = myStorageFile.resolveSibling(myStorageFile.getFileName() + ".compacting" + DATA_FILE_EXTENSION);
+    private volatile boolean myCancelled;
+    private Future<?> myFuture;
+
+    private void run() {
+      PersistentHashMapValueStorage newStorage = null;
+      boolean switched = false;
       try {
-        if (doNewCompact()) {
-          newCompact(newStorage);
+        final List<CompactionRecordInfo> infos = new ArrayList<>();
+        final PersistentHashMapValueStorage oldStorage;
+        synchronized (myEnumerator) {
+          if (myCancelled) return;
+          doForce();
+          oldStorage = myValueStorage;
+          collectLiveRecords(infos);
         }
-        else {
-          traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-            @Override
-            public boolean process(final int keyId) throws IOException {
-              final long record = readValueId(keyId);
-              if (record != NULL_ADDR) {
-                PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
-                long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
-                updateValueId(keyId, value, record, null, getCurrentKey());
-                myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
-              }
-              return true;
+
+        long started = System.currentTimeMillis();
+        LOG.info("Compacting in background " + myEnumerator.myFile + ", live keys:" + infos.size());
+        deleteFilesStartingWith(myNewPath.toFile());
+        newStorage = PersistentHashMapValueStorage.create(myNewPath, oldStorage.getOptions());
+
+        // sequential reads of the old storage
+        infos.sort(Comparator.comparingLong(info -> info.valueAddress));
+        int next = 0;
+        while (next < infos.size()) {
+          Lock valueStorageReadLock = myValueStorageLock.readLock();
+          valueStorageReadLock.lock();
+          try {
+            // compact() and close() cancel us before replacing or disposing the old storage under the write lock
+            if (myCancelled) return;
+            long batchBytes = 0;
+            while (next < infos.size() && batchBytes < BACKGROUND_COMPACTION_BATCH_BYTES) {
+              CompactionRecordInfo info = infos.get(next++);
+              PersistentHashMapValueStorage.ReadResult readResult = oldStorage.readBytes(info.valueAddress);
+              info.newValueAddress = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+              batchBytes += readResult.buffer.length;
             }
-          });
+          }
+          finally {
+            valueStorageReadLock.unlock();
+          }
+        }
+        LOG.info("Copied values in background for:" + (System.currentTimeMillis() - started) + "ms, " + myEnumerator.myFile);
+
+        synchronized (myEnumerator) {
+          if (myCancelled) return;
+          myValueStorageLock.writeLock().lock();
+          try {
+            switched = true;
+            switchToCompactedStorage(infos, newStorage);
+          }
+          catch (IOException | RuntimeException e) {
+            myEnumerator.markCorrupted();
+            throw e;
+          }
+          finally {
+            myValueStorageLock.writeLock().unlock();
+          }
         }
+        LOG.info("Compacted in background " + myEnumerator.myFile + ":" + oldStorage.getSize() + " bytes into " + newStorage.getSize() +
+                 " bytes in " + (System.currentTimeMillis() - started) + "ms.");
+      }
+      catch (Throwable t) {
+        LOG.warn("Background compaction of " + myEnumerator.myFile + " failed", t);
       }
       finally {
-        newStorage.dispose();
+        if (!switched) {
+          if (newStorage != null) newStorage.dispose();
+          deleteFilesStartingWith(myNewPath.toFile());
+        }
+        synchronized (myEnumerator) {
+          if (myBackgroundCompaction == this) myBackgroundCompaction = null;
+        }
       }
+    }
 
-      myValueStorage.dispose();
-
-      for (File f : oldFiles) {
-        assert FileUtil.deleteWithRenaming(f);
+    private void switchToCompactedStorage(@NotNull List<CompactionRecordInfo> copiedInfos,
+                                          @NotNull PersistentHashMapValueStorage newStorage) throws IOException {
+      doForce();
+      TIntObjectHashMap<CompactionRecordInfo> copied = new TIntObjectHashMap<>(copiedInfos.size());
+      for (CompactionRecordInfo info : copiedInfos) {
+        copied.put(info.address, info);
       }
 
-      final long newSize = newStorage.getSize();
+      List<CompactionRecordInfo> infos = new ArrayList<>(copiedInfos.size());
+      collectLiveRecords(infos);
+      int changed = 0;
+      for (CompactionRecordInfo info : infos) {
+        CompactionRecordInfo copiedInfo = copied.get(info.address);
+        if (copiedInfo != null && copiedInfo.valueAddress == info.valueAddress) {
+          info.newValueAddress = copiedInfo.newValueAddress;
+        }
+        else {
+          // value was added or changed after copying started
+          PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(info.valueAddress);
+          info.newValueAddress = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+          ++changed;
+        }
+      }
+      LOG.info("Copied values changed during background compaction:" + changed + ", " + myEnumerator.myFile);
 
-      final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newPath);
+      PersistentHashMapValueStorage.CreationTimeOptions options = myValueStorage.getOptions();
+      Path oldDataFile = getDataFile(myEnumerator.myFile);
+      File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile);
+      newStorage.dispose();
 
-      // newFiles should get the same names as oldDataFiles
-      File parentFile = newPath.getParent().toFile();
-      final String newBaseName = newPath.getFileName().toString();
-      final String oldDataFileBaseName = oldDataFile.getFileName().toString();
-      for (File f : newFiles) {
-        String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
-        FileUtil.rename(f, new File(parentFile, nameAfterRename));
+      myEnumerator.markDirty(true);
+      myLiveAndGarbageKeysCounter = 0;
+      myReadCompactionGarbageSize = 0;
+      myEnumerator.lockStorage();
+      try {
+        for (CompactionRecordInfo info : infos) {
+          updateValueId(info.address, info.newValueAddress, info.valueAddress, null, info.key);
+          myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+        }
+      }
+      finally {
+        myEnumerator.unlockStorage();
       }
 
-      myValueStorage = PersistentHashMapValueStorage.create(oldDataFile, options);
-      LOG.info("Compacted " + myEnumerator.myFile + ":" + sizeBefore + " bytes into " +
-               newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+      replaceValueStorage(oldDataFile, oldFiles, myNewPath, options);
       myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
       myEnumerator.putMetaData2(myLargeIndexWatermarkId);
-      if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
     }
+
+    private void waitForCompletion() {
+      if (myFuture.cancel(false)) return;
+      try {
+        myFuture.get();
+      }
+      catch (InterruptedException | ExecutionException | CancellationException ignored) {
+      }
+    }
+  }
+
+  private void collectLiveRecords(@NotNull List<CompactionRecordInfo> infos) throws IOException {
+    traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+      @Override
+      public boolean process(final int keyId) {
+        final long record = readValueId(keyId);
+        if (record != NULL_ADDR) {
+          infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+        }
+        return true;
+      }
+    });
   }
 
   private static File[] getFilesInDirectoryWithNameStartingWith(@NotNull Path fileFromDirectory) throws IOException {
@@ -871,17 +1271,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private void newCompact(@NotNull PersistentHashMapValueStorage newStorage) throws IOException {
     long started = System.currentTimeMillis();
     final List<CompactionRecordInfo> infos = new ArrayList<>(10000);
-
-    traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-      @Override
-      public boolean process(final int keyId) {
-        final long record = readValueId(keyId);
-        if (record != NULL_ADDR) {
-          infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
-        }
-        return true;
-      }
-    });
+    collectLiveRecords(infos);
 
     LOG.info("Loaded mappings:" + (System.currentTimeMillis() - started) + "ms, keys:" + infos.size());
     started = System.currentTimeMillis();
@@ -167,9 +167,17 @@ public class PersistentHashMapValueStorage {
     };
 
   private final CompressedAppendableFile myCompressedAppendableFile;
+  @Nullable
+  private final MappedReader myMappedReader;
 
   public static final boolean COMPRESSION_ENABLED = SystemProperties.getBooleanProperty("idea.compression.enabled", true);
 
+  // read-only uncompressed value files are mapped into memory and read without file handle cache and heap copies
+  private static boolean ourMapReadOnlyValues = SystemProperties.getBooleanProperty("idea.phm.map.readonly.values", true);
+  private static final int MAPPED_REGION_SIZE = 1 << 30;
+  // chunk size (INT) and previous chunk address (LONG) are at most 5 + 9 bytes long
+  private static final int MAX_CHUNK_HEADER_SIZE = 14;
+
   private PersistentHashMapValueStorage(@NotNull Path path) throws IOException {
     this(path, CreationTimeOptions.threadLocalOptions());
   }
@@ -181,6 +189,16 @@ public class PersistentHashMapValueStorage {
     myCompressedAppendableFile = myOptions.myDoCompression ? new MyCompressedAppendableFile() : null;
     // volatile write
     mySize = myCompressedAppendableFile == null ? (Files.exists(myPath) ? Files.size(myPath) : 0) : myCompressedAppendableFile.length();
+    myMappedReader = ourMapReadOnlyValues && myOptions.myReadOnly && myCompressedAppendableFile == null && mySize > 0
+                     ? new MappedReader(myPath, mySize)
+                     : null;
+  }
+
+  @TestOnly
+  static boolean setMapReadOnlyValues(boolean mapReadOnlyValues) {
+    boolean previous = ourMapReadOnlyValues;
+    ourMapReadOnlyValues = mapReadOnlyValues;
+    return previous;
   }
 
   public long appendBytes(ByteArraySequence data, long prevChunkAddress) throws IOException {
@@ -303,7 +321,7 @@ public class PersistentHashMapValueStorage {
       myBufferStreamWrapper.init(buffer, recordStartInBuffer, buffer.length);
       int available = myBufferStreamWrapper.available();
       int chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
-      long prevChunkAddress = readPrevChunkAddress(info.valueAddress);
+      long prevChunkAddress = readPrevChunkAddress(myBufferDataStreamWrapper, info.valueAddress);
       assert prevChunkAddress == 0;
       int dataOffset = available - myBufferStreamWrapper.available() + recordStartInBuffer;
 
@@ -393,7 +411,7 @@ public class PersistentHashMapValueStorage {
 
           int available = myBufferStreamWrapper.available();
           int chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
-          final long prevChunkAddress = readPrevChunkAddress(info.valueAddress);
+          final long prevChunkAddress = readPrevChunkAddress(myBufferDataStreamWrapper, info.valueAddress);
           final int dataOffset = available - myBufferStreamWrapper.available();
 
           byte[] accumulatedChunksBuffer;
@@ -526,21 +544,26 @@ public class PersistentHashMapValueStorage {
   private int myLastReportedChunksCount;
 
   /**
-   * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
+   * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed.
+   * Can be called concurrently from several threads as long as the storage is not disposed or switched to compaction mode meanwhile.
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
-    forceAppender(myPath);
+    MappedReader mappedReader = getMappedReader();
+    // read-only storage has nothing to flush
+    if (mappedReader == null) forceAppender(myPath);
 
     checkCancellation();
     long startedTime = ourDumpChunkRemovalTime ? System.nanoTime() : 0;
 
-    RAReader reader = myCompactionModeReader;
+    RAReader reader = mappedReader != null ? mappedReader : myCompactionModeReader;
     FileAccessorCache.Handle<RAReader> readerHandle = null;
     if (reader == null) {
       readerHandle = myCompressedAppendableFile != null ? null : ourReadersCache.get(myPath);
       reader = myCompressedAppendableFile != null ? null : readerHandle.get();
     }
 
+    UnsyncByteArrayInputStream bufferStreamWrapper = new UnsyncByteArrayInputStream(ArrayUtilRt.EMPTY_BYTE_ARRAY);
+    DataInputStream bufferDataStreamWrapper = new DataInputStream(bufferStreamWrapper);
     int chunkCount = 0;
     byte[] result = null;
     try {
@@ -559,14 +582,14 @@ public class PersistentHashMapValueStorage {
         else {
           reader.get(chunk, buffer, 0, len);
         }
-        myBufferStreamWrapper.init(buffer, 0, len);
+        bufferStreamWrapper.init(buffer, 0, len);
 
-        final int chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
+        final int chunkSize = DataInputOutputUtil.readINT(bufferDataStreamWrapper);
         if (chunkSize < 0) {
           throw new IOException("Value storage corrupted: negative chunk size: " + chunkSize);
         }
-        final long prevChunkAddress = readPrevChunkAddress(chunk);
-        final int headerOffset = len - myBufferStreamWrapper.available();
+        final long prevChunkAddress = readPrevChunkAddress(bufferDataStreamWrapper, chunk);
+        final int headerOffset = len - bufferStreamWrapper.available();
 
         byte[] b = new byte[(result != null ? result.length : 0) + chunkSize];
         if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
@@ -621,6 +644,40 @@ public class PersistentHashMapValueStorage {
     return new ReadResult(result, chunkCount);
   }
 
+  /**
+   * Returns read-only view of the value stored at tailChunkAddress right in the memory mapped value file,
+   * or null when the storage isn't mapped or the value can't be viewed as a single buffer (it has several chunks or crosses mapped regions).
+   * The view stays valid until the storage is disposed.
+   */
+  @Nullable
+  ByteBuffer readMappedValue(long tailChunkAddress) throws IOException {
+    MappedReader reader = getMappedReader();
+    if (reader == null) return null;
+    if (tailChunkAddress <= 0 || tailChunkAddress >= reader.myLength) throw new PersistentEnumeratorBase.CorruptedException(myPath);
+
+    checkCancellation();
+    ByteBuffer header = reader.slice(tailChunkAddress, (int)Math.min(MAX_CHUNK_HEADER_SIZE, reader.myLength - tailChunkAddress));
+    if (header == null) return null;
+
+    DataInputStream headerStream = new DataInputStream(new ByteBufferInputStream(header));
+    final int chunkSize = DataInputOutputUtil.readINT(headerStream);
+    if (chunkSize < 0) {
+      throw new IOException("Value storage corrupted: negative chunk size: " + chunkSize);
+    }
+    if (readPrevChunkAddress(headerStream, tailChunkAddress) != 0) return null;
+
+    long valueAddress = tailChunkAddress + header.position();
+    if (valueAddress + chunkSize > reader.myLength) throw new PersistentEnumeratorBase.CorruptedException(myPath);
+    return reader.slice(valueAddress, chunkSize);
+  }
+
+  @Nullable
+  private MappedReader getMappedReader() {
+    MappedReader reader = myMappedReader;
+    // appends (if any happened regardless of read-only mode) are not visible through the mapping
+    return reader != null && myCompactionModeReader == null && mySize <= reader.myLength ? reader : null;
+  }
+
   private boolean allowedToCompactChunks() {
     return !myCompactionMode && !myOptions.myReadOnly;
   }
@@ -669,9 +726,9 @@ public class PersistentHashMapValueStorage {
     if (myOptions.myExceptionalIOCancellationCallback != null) myOptions.myExceptionalIOCancellationCallback.checkCancellation();
   }
 
-  private long readPrevChunkAddress(long chunk) throws IOException {
+  private long readPrevChunkAddress(@NotNull DataInput in, long chunk) throws IOException {
     if (myOptions.myHasNoChunks) return 0;
-    final long prevOffsetDiff = DataInputOutputUtil.readLONG(myBufferDataStreamWrapper);
+    final long prevOffsetDiff = DataInputOutputUtil.readLONG(in);
     if (prevOffsetDiff >= chunk) {
       throw new IOException("readPrevChunkAddress:" + chunk + "," + prevOffsetDiff + "," + mySize + "," + myPath);
     }
@@ -733,6 +790,9 @@ public class PersistentHashMapValueStorage {
         myCompactionModeReader.dispose();
         myCompactionModeReader = null;
       }
+      if (myMappedReader != null) {
+        myMappedReader.dispose();
+      }
     }
   }
 
@@ -794,9 +854,8 @@ public class PersistentHashMapValueStorage {
       FileAccessorCache.Handle<RandomAccessFileWithLengthAndSizeTracking> fileAccessor = ourRandomAccessFileCache.get(myPath);
 
       try {
-        RandomAccessFileWithLengthAndSizeTracking file = fileAccessor.get();
-        file.seek(addr);
-        file.read(dst, off, len);
+        // positional read does not move the file pointer used by appends, so readers do not need to be serialized with them
+        fileAccessor.get().read(addr, dst, off, len);
       }
       finally {
         fileAccessor.release();
@@ -822,8 +881,7 @@ public class PersistentHashMapValueStorage {
 
     @Override
     public void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
-      myFile.position(addr);
-      myFile.read(ByteBuffer.wrap(dst, off, len));
+      myFile.read(ByteBuffer.wrap(dst, off, len), addr);
     }
 
     @Override
@@ -837,6 +895,59 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  private static final class MappedReader implements RAReader {
+    private final ByteBuffer[] myRegions;
+    private final long myLength;
+
+    private MappedReader(@NotNull Path path, long length) throws IOException {
+      myLength = length;
+      myRegions = new ByteBuffer[(int)((length + MAPPED_REGION_SIZE - 1) / MAPPED_REGION_SIZE)];
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        for (int i = 0; i < myRegions.length; i++) {
+          long start = (long)i * MAPPED_REGION_SIZE;
+          myRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAPPED_REGION_SIZE, length - start));
+        }
+      }
+      catch (IOException | RuntimeException e) {
+        dispose();
+        throw e;
+      }
+    }
+
+    @Override
+    public void get(long addr, byte[] dst, int off, int len) throws IOException {
+      if (addr < 0 || addr + len > myLength) throw new EOFException("Reading " + len + " bytes at " + addr + " beyond " + myLength);
+      while (len > 0) {
+        // duplicates have own positions, so concurrent readers don't interfere
+        ByteBuffer region = myRegions[(int)(addr / MAPPED_REGION_SIZE)].duplicate();
+        int offsetInRegion = (int)(addr % MAPPED_REGION_SIZE);
+        int bytes = Math.min(len, region.limit() - offsetInRegion);
+        region.position(offsetInRegion);
+        region.get(dst, off, bytes);
+        addr += bytes;
+        off += bytes;
+        len -= bytes;
+      }
+    }
+
+    @Nullable
+    ByteBuffer slice(long addr, int len) {
+      ByteBuffer region = myRegions[(int)(addr / MAPPED_REGION_SIZE)].duplicate();
+      int offsetInRegion = (int)(addr % MAPPED_REGION_SIZE);
+      if (offsetInRegion + len > region.limit()) return null;
+      region.position(offsetInRegion);
+      region.limit(offsetInRegion + len);
+      return region.slice();
+    }
+
+    @Override
+    public void dispose() {
+      for (ByteBuffer region : myRegions) {
+        if (region != null) ByteBufferUtil.cleanBuffer(region);
+      }
+    }
+  }
+
   private static class OutputStreamOverRandomAccessFileCache extends OutputStream {
     private final Path myPath;
 
@@ -4,6 +4,7 @@ import com.intellij.util.Processor;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * @author Dmitry Avdeev
@@ -16,4 +17,13 @@ public interface PersistentMap<K, V> extends KeyValueStore<K, V> {
   boolean isDirty();
 
   void markDirty() throws IOException;
+
+  /**
+   * Puts all the mappings at once, implementations may write them faster than a sequence of {@link #put} calls.
+   */
+  default void putAll(@NotNull Map<? extends K, ? extends V> values) throws IOException {
+    for (Map.Entry<? extends K, ? extends V> entry : values.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
 }
@@ -116,6 +116,16 @@ class RandomAccessFileWithLengthAndSizeTracking {
     return read;
   }
 
+  /**
+   * Reads from the given position without changing the file pointer, safe to call concurrently with other reads and writes
+   */
+  int read(long position, byte[] b, int off, int len) throws IOException {
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("read:" + this + "," + Thread.currentThread() + "," + len + "," + position);
+    }
+    return myChannel.read(ByteBuffer.wrap(b, off, len), position);
+  }
+
   void close() throws IOException {
     if (LOG.isTraceEnabled()) {
       LOG.trace("Closed:" + this + "," + Thread.currentThread() );
@@ -0,0 +1,178 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.util.CompressionUtil;
+import com.intellij.util.io.DataOutputStream;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compression of {@link RefCountingStorage} records. Every compressed record starts with the marker byte of the codec that wrote it,
+ * so a storage reads records written by any registered codec and its codec can be changed without rebuilding the storage.
+ * <p>
+ * {@link #DEFLATE} records are plain zlib streams, which start with 0x78 for the default window size, so they need no extra marker
+ * and records written before codecs were introduced are read as is. Markers of other codecs must not be valid first bytes of a zlib stream,
+ * i.e. their low 4 bits must not be 8.
+ */
+public abstract class RecordCompressionCodec {
+  // codecs by their markers, copied on registration so records are decoded without locking
+  private static volatile RecordCompressionCodec[] ourCodecs = new RecordCompressionCodec[256];
+  private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+  public static final RecordCompressionCodec DEFLATE = register(new DeflateCodec());
+  public static final RecordCompressionCodec LZ4 = register(new LZ4Codec());
+
+  private final String myName;
+  private final byte myMarker;
+
+  protected RecordCompressionCodec(@NotNull String name, byte marker) {
+    myName = name;
+    myMarker = marker;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  public byte getMarker() {
+    return myMarker;
+  }
+
+  /**
+   * Writes compressed bytes starting with {@link #getMarker()} to {@code out}. Called concurrently.
+   */
+  public abstract void compress(@NotNull ByteArraySequence bytes, @NotNull BufferExposingByteArrayOutputStream out) throws IOException;
+
+  /**
+   * @param record bytes written by {@link #compress}, including the marker. Called concurrently.
+   */
+  @NotNull
+  public abstract ByteArraySequence decompress(byte @NotNull [] record) throws IOException;
+
+  @NotNull
+  public static synchronized <T extends RecordCompressionCodec> T register(@NotNull T codec) {
+    int index = codec.getMarker() & 0xFF;
+    RecordCompressionCodec registered = ourCodecs[index];
+    if (registered != null && registered != codec) {
+      throw new IllegalArgumentException("Codec " + registered.getName() + " is already registered for marker " + index);
+    }
+    if (!(codec instanceof DeflateCodec) && (index & 0x0F) == 8) {
+      throw new IllegalArgumentException("Marker " + index + " of codec " + codec.getName() + " can be confused with zlib stream");
+    }
+    RecordCompressionCodec[] codecs = ourCodecs.clone();
+    codecs[index] = codec;
+    ourCodecs = codecs;
+    return codec;
+  }
+
+  @Nullable
+  public static RecordCompressionCodec findByName(@NotNull String name) {
+    for (RecordCompressionCodec codec : ourCodecs) {
+      if (codec != null && codec.getName().equals(name)) return codec;
+    }
+    return null;
+  }
+
+  @NotNull
+  static ByteArraySequence decompressRecord(byte @NotNull [] record) throws IOException {
+    if (record.length == 0) return new ByteArraySequence(record);
+    RecordCompressionCodec codec = ourCodecs[record[0] & 0xFF];
+    if (codec == null) throw new IOException("Unknown compression codec marker " + (record[0] & 0xFF));
+    return codec.decompress(record);
+  }
+
+  @Override
+  public String toString() {
+    return myName;
+  }
+
+  private static final class DeflateCodec extends RecordCompressionCodec {
+    // inflaters and deflaters hold native memory, reuse them instead of waiting for finalization
+    private final BlockingQueue<Inflater> myInflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Deflater> myDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    DeflateCodec() {
+      super("deflate", (byte)0x78);
+    }
+
+    @Override
+    public void compress(@NotNull ByteArraySequence bytes, @NotNull BufferExposingByteArrayOutputStream out) throws IOException {
+      Deflater deflater = myDeflaters.poll();
+      if (deflater == null) deflater = new Deflater();
+      try (DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater)) {
+        stream.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+      }
+      finally {
+        deflater.reset();
+        if (!myDeflaters.offer(deflater)) deflater.end();
+      }
+    }
+
+    @NotNull
+    @Override
+    public ByteArraySequence decompress(byte @NotNull [] record) throws IOException {
+      Inflater inflater = myInflaters.poll();
+      if (inflater == null) inflater = new Inflater();
+      try {
+        inflater.setInput(record);
+        // sources are usually zipped with 4x ratio
+        byte[] result = new byte[Math.max(256, record.length * 4)];
+        int size = 0;
+        while (!inflater.finished()) {
+          if (size == result.length) result = Arrays.copyOf(result, size * 2);
+          int inflated = inflater.inflate(result, size, result.length - size);
+          if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new EOFException("Unexpected end of ZLIB input stream");
+          }
+          size += inflated;
+        }
+        return new ByteArraySequence(result, 0, size);
+      }
+      catch (DataFormatException e) {
+        throw new ZipException(e.getMessage());
+      }
+      finally {
+        inflater.reset();
+        if (!myInflaters.offer(inflater)) inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Records are compressed with LZ4 by {@link CompressionUtil}, whose decompressor is stateless and needs no pooling.
+   */
+  private static final class LZ4Codec extends RecordCompressionCodec {
+    LZ4Codec() {
+      super("lz4", (byte)0x01);
+    }
+
+    @Override
+    public void compress(@NotNull ByteArraySequence bytes, @NotNull BufferExposingByteArrayOutputStream out) throws IOException {
+      out.write(getMarker());
+      CompressionUtil.writeCompressed(new DataOutputStream(out), bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+    }
+
+    @NotNull
+    @Override
+    public ByteArraySequence decompress(byte @NotNull [] record) throws IOException {
+      byte[] bytes = CompressionUtil.readCompressed(new DataInputStream(new UnsyncByteArrayInputStream(record, 1, record.length - 1)));
+      return new ByteArraySequence(bytes);
+    }
+  }
+}
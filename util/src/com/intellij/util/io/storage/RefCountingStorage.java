@@ -21,23 +21,18 @@ package com.intellij.util.io.storage;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteArraySequence;
-import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.PagePool;
-import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 public class RefCountingStorage extends AbstractStorage {
   private final Map<Integer, Future<?>> myPendingWriteRequests = ContainerUtil.newConcurrentMap();
@@ -50,7 +45,7 @@ public class RefCountingStorage extends AbstractStorage {
       .newNamedThreadFactory("RefCountingStorage write content helper"));
   }
 
-  private final boolean myDoNotZipCaches;
+  @Nullable private final RecordCompressionCodec myCodec; // null if records are not compressed
   private static final int MAX_PENDING_WRITE_SIZE = 20 * 1024 * 1024;
 
   public RefCountingStorage(String path) throws IOException {
@@ -62,24 +57,32 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy, boolean doNotZipCaches) throws IOException {
+    this(path, capacityAllocationPolicy, doNotZipCaches ? null : RecordCompressionCodec.DEFLATE);
+  }
+
+  /**
+   * @param codec compresses new records, records written by other codecs are still readable; null means records are not compressed at all
+   */
+  public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy, @Nullable RecordCompressionCodec codec)
+    throws IOException {
     super(path, capacityAllocationPolicy);
-    myDoNotZipCaches = doNotZipCaches;
+    myCodec = codec;
   }
 
   @Override
   public DataInputStream readStream(int record) throws IOException {
-    if (myDoNotZipCaches) return super.readStream(record);
-    BufferExposingByteArrayOutputStream stream = internalReadStream(record);
-    return new DataInputStream(stream.toInputStream());
+    if (myCodec == null) return super.readStream(record);
+    return internalReadStream(record).toInputStream();
   }
 
   @Override
   protected byte[] readBytes(int record) throws IOException {
-    if (myDoNotZipCaches) return super.readBytes(record);
-    return internalReadStream(record).toByteArray();
+    if (myCodec == null) return super.readBytes(record);
+    ByteArraySequence bytes = internalReadStream(record);
+    return bytes.getOffset() == 0 && bytes.getLength() == bytes.getBytes().length ? bytes.getBytes() : bytes.toBytes();
   }
 
-  private BufferExposingByteArrayOutputStream internalReadStream(int record) throws IOException {
+  private ByteArraySequence internalReadStream(int record) throws IOException {
     waitForPendingWriteForRecord(record);
     byte[] result;
 
@@ -87,33 +90,7 @@ public class RefCountingStorage extends AbstractStorage {
       result = super.readBytes(record);
     }
 
-    try (InflaterInputStream in = new CustomInflaterInputStream(result)) {
-      final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
-      StreamUtil.copyStreamContent(in, outputStream);
-      return outputStream;
-    }
-  }
-
-  private static class CustomInflaterInputStream extends InflaterInputStream {
-    CustomInflaterInputStream(byte[] compressedData) {
-      super(new UnsyncByteArrayInputStream(compressedData), new Inflater(), 1);
-      // force to directly use compressed data, this ensures less round trips with native extraction code and copy streams
-      this.buf = compressedData;
-      this.len = -1;
-    }
-
-    @Override
-    protected void fill() throws IOException {
-      if (len >= 0) throw new EOFException();
-      len = buf.length;
-      inf.setInput(buf, 0, len);
-    }
-
-    @Override
-    public void close() throws IOException {
-      super.close();
-      inf.end(); // custom inflater need explicit dispose
-    }
+    return RecordCompressionCodec.decompressRecord(result);
   }
 
   private void waitForPendingWriteForRecord(int record) {
@@ -136,7 +113,7 @@ public class RefCountingStorage extends AbstractStorage {
   @Override
   public void writeBytes(final int record, final ByteArraySequence bytes, final boolean fixedSize) throws IOException {
 
-    if (myDoNotZipCaches) {
+    if (myCodec == null) {
       super.writeBytes(record, bytes, fixedSize);
       return;
     }
@@ -158,9 +135,7 @@ public class RefCountingStorage extends AbstractStorage {
 
   private void zipAndWrite(ByteArraySequence bytes, int record, boolean fixedSize) throws IOException {
     BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-    try (DeflaterOutputStream out = new DeflaterOutputStream(s)) {
-      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
-    }
+    myCodec.compress(bytes, s);
 
     synchronized (myLock) {
       doWrite(record, fixedSize, s);
@@ -40,77 +40,87 @@ public class ReorderJarsMain {
 
       final Map<String, List<String>> toReorder = getOrder(new File(orderTxtPath));
       final Set<String> ignoredJars = libPath == null ? Collections.emptySet() : loadIgnoredJars(libPath);
+      reorderJars(toReorder, jarsPath, destinationPath, ignoredJars);
+    }
+    catch (Throwable t) {
+      t.printStackTrace();
+      System.exit(1);
+    }
+  }
 
-      for (String jarUrl : toReorder.keySet()) {
-        if (ignoredJars.contains(StringUtil.trimStart(jarUrl, "/lib/")) ||
-            jarUrl.startsWith("/lib/ant")) {
-          System.out.println("Ignored jar: " + jarUrl);
-          continue;
-        }
+  /**
+   * Writes the jars with their entries in the given order to the destination.
+   *
+   * @param toReorder   entry names in the loading order by jar paths relative to {@code jarsPath}
+   * @param ignoredJars jars relative to the lib directory that are left intact
+   */
+  public static void reorderJars(Map<String, List<String>> toReorder, String jarsPath, String destinationPath, Set<String> ignoredJars)
+    throws IOException {
+    for (String jarUrl : toReorder.keySet()) {
+      if (ignoredJars.contains(StringUtil.trimStart(jarUrl, "/lib/")) ||
+          jarUrl.startsWith("/lib/ant")) {
+        System.out.println("Ignored jar: " + jarUrl);
+        continue;
+      }
 
-        final File jarFile = new File(jarsPath, jarUrl);
-        if (!jarFile.isFile()) {
-          System.out.println("Cannot find jar: " + jarUrl);
-          continue;
+      final File jarFile = new File(jarsPath, jarUrl);
+      if (!jarFile.isFile()) {
+        System.out.println("Cannot find jar: " + jarUrl);
+        continue;
+      }
+      System.out.println("Reorder jar: " + jarUrl);
+      
+      final JBZipFile zipFile = new JBZipFile(jarFile);
+      final List<JBZipEntry> entries = zipFile.getEntries();
+      final List<String> orderedEntries = toReorder.get(jarUrl);
+      assert orderedEntries.size() <= Short.MAX_VALUE : jarUrl;
+      entries.sort((o1, o2) -> {
+        if ("META-INF/plugin.xml".equals(o2.getName())) return Integer.MAX_VALUE;
+        if ("META-INF/plugin.xml".equals(o1.getName())) return -Integer.MAX_VALUE;
+        if (orderedEntries.contains(o1.getName())) {
+          return orderedEntries.contains(o2.getName()) ? orderedEntries.indexOf(o1.getName()) - orderedEntries.indexOf(o2.getName()) : -1;
         }
-        System.out.println("Reorder jar: " + jarUrl);
-        
-        final JBZipFile zipFile = new JBZipFile(jarFile);
-        final List<JBZipEntry> entries = zipFile.getEntries();
-        final List<String> orderedEntries = toReorder.get(jarUrl);
-        assert orderedEntries.size() <= Short.MAX_VALUE : jarUrl;
-        entries.sort((o1, o2) -> {
-          if ("META-INF/plugin.xml".equals(o2.getName())) return Integer.MAX_VALUE;
-          if ("META-INF/plugin.xml".equals(o1.getName())) return -Integer.MAX_VALUE;
-          if (orderedEntries.contains(o1.getName())) {
-            return orderedEntries.contains(o2.getName()) ? orderedEntries.indexOf(o1.getName()) - orderedEntries.indexOf(o2.getName()) : -1;
-          }
-          else {
-            return orderedEntries.contains(o2.getName()) ? 1 : 0;
-          }
-        });
+        else {
+          return orderedEntries.contains(o2.getName()) ? 1 : 0;
+        }
+      });
 
-        final File tempJarFile = FileUtil.createTempFile("__reorder__", "__reorder__", true);
-        final JBZipFile file = new JBZipFile(tempJarFile);
+      final File tempJarFile = FileUtil.createTempFile("__reorder__", "__reorder__", true);
+      final JBZipFile file = new JBZipFile(tempJarFile);
 
-        final JBZipEntry sizeEntry = file.getOrCreateEntry(JarMemoryLoader.SIZE_ENTRY);
-        sizeEntry.setData(ZipShort.getBytes(orderedEntries.size()));
+      final JBZipEntry sizeEntry = file.getOrCreateEntry(JarMemoryLoader.SIZE_ENTRY);
+      sizeEntry.setData(ZipShort.getBytes(orderedEntries.size()));
 
-        for (JBZipEntry entry : entries) {
-          final JBZipEntry zipEntry = file.getOrCreateEntry(entry.getName());
-          zipEntry.setData(entry.getData());
-        }
-        file.close();
+      for (JBZipEntry entry : entries) {
+        final JBZipEntry zipEntry = file.getOrCreateEntry(entry.getName());
+        zipEntry.setData(entry.getData());
+      }
+      file.close();
 
-        final File resultJarFile = new File(destinationPath, jarUrl);
-        final File resultDir = resultJarFile.getParentFile();
-        if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
-          throw new IOException("Cannot create: " + resultDir);
-        }
-        try {
-          FileUtil.rename(tempJarFile, resultJarFile);
-        }
-        catch (Exception e) {
-          FileUtil.delete(resultJarFile);
-          throw e;
-        }
-        FileUtil.delete(tempJarFile);
+      final File resultJarFile = new File(destinationPath, jarUrl);
+      final File resultDir = resultJarFile.getParentFile();
+      if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+        throw new IOException("Cannot create: " + resultDir);
       }
-    }
-    catch (Throwable t) {
-      t.printStackTrace();
-      System.exit(1);
+      try {
+        FileUtil.rename(tempJarFile, resultJarFile);
+      }
+      catch (Exception e) {
+        FileUtil.delete(resultJarFile);
+        throw e;
+      }
+      FileUtil.delete(tempJarFile);
     }
   }
 
-  private static Set<String> loadIgnoredJars(String libPath) throws IOException {
+  public static Set<String> loadIgnoredJars(String libPath) throws IOException {
     final File ignoredJarsFile = new File(libPath, "required_for_dist.txt");
     final Set<String> ignoredJars = new HashSet<>();
     ContainerUtil.addAll(ignoredJars, FileUtil.loadFile(ignoredJarsFile).split("\r\n"));
     return ignoredJars;
   }
 
-  private static Map<String, List<String>> getOrder(final File loadingFile) throws IOException {
+  public static Map<String, List<String>> getOrder(final File loadingFile) throws IOException {
     final Map<String, List<String>> entriesOrder = new HashMap<>();
     final String[] lines = FileUtil.loadFile(loadingFile).split("\n");
     for (String line : lines) {
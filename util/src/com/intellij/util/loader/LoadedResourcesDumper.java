@@ -19,17 +19,22 @@ import java.util.Set;
 
 /**
  * Pass '-Dintellij.class.resources.loading.logger=com.intellij.util.loader.LoadedResourcesDumper' JVM option to dump relative paths of loaded classes
- * to order.txt file.
+ * to order.txt file, and the startup profile with load times and sizes to startup-profile.txt file for {@link StartupProfileMain}.
  */
 @SuppressWarnings("unused")
 public class LoadedResourcesDumper implements ClassPath.ResourceLoadingLogger {
+  public static final String PROFILE_FILE = "startup-profile.txt";
+
   private PrintStream myOrder;
+  private PrintStream myProfile;
   private long myOrderSize;
+  private long myStartTime;
   private final Set<String> myOrderedUrls = new HashSet<>();
 
   @SuppressWarnings("UseOfSystemOutOrSystemErr")
   @Override
-  public void logResource(String url, URL baseLoaderURL, long resourceSize) {
+  public synchronized void logResource(String url, URL baseLoaderURL, long resourceSize) {
+    long time = System.nanoTime();
     if (!myOrderedUrls.add(url)) return;
 
     String home = FileUtil.toSystemIndependentName(PathManager.getHomePath());
@@ -39,9 +44,12 @@ public class LoadedResourcesDumper implements ClassPath.ResourceLoadingLogger {
 
     if (myOrder == null) {
       final File orderFile = new File(PathManager.getBinPath(), "order.txt");
+      final File profileFile = new File(PathManager.getBinPath(), PROFILE_FILE);
       try {
-        if (!FileUtil.ensureCanCreateFile(orderFile)) return;
+        if (!FileUtil.ensureCanCreateFile(orderFile) || !FileUtil.ensureCanCreateFile(profileFile)) return;
         myOrder = new PrintStream(new FileOutputStream(orderFile, true));
+        myProfile = new PrintStream(new FileOutputStream(profileFile, false));
+        myStartTime = time;
         ShutDownTracker.getInstance().registerShutdownTask(this::closeOrderStream);
       }
       catch (IOException e) {
@@ -56,6 +64,7 @@ public class LoadedResourcesDumper implements ClassPath.ResourceLoadingLogger {
         jarURL = jarURL.replaceFirst(home, "");
         jarURL = StringUtil.trimEnd(jarURL, "!/");
         myOrder.println(url + ":" + jarURL);
+        myProfile.println(new StartupProfileMain.ProfileEntry((time - myStartTime) / 1000, resourceSize, jarURL, url).toLine());
       }
     }
   }
@@ -63,6 +72,7 @@ public class LoadedResourcesDumper implements ClassPath.ResourceLoadingLogger {
   @SuppressWarnings("UseOfSystemOutOrSystemErr")
   private synchronized void closeOrderStream() {
     myOrder.close();
+    myProfile.close();
     System.out.println(myOrderSize);
   }
 }
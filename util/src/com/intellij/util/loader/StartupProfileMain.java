@@ -0,0 +1,152 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.loader;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.zip.ReorderJarsMain;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Turns a startup profile recorded by {@link LoadedResourcesDumper} into the artifacts that speed up the next startups:
+ * <ul>
+ *   <li>jars with entries in the loading order (see {@link ReorderJarsMain}), along with the order.txt they are reordered by;</li>
+ *   <li>{@link #CLASS_LIST_FILE}, names of loaded classes in the loading order in the format of -XX:SharedClassListFile,
+ *   to dump an AppCDS archive of classes loaded by the JVM class loaders (classes of IDE class loaders need the id / source format of
+ *   com.intellij.platform.cdsAgent.LogLoadedApplicationClassesAgent);</li>
+ *   <li>{@link #PRELOAD_LIST_FILE}, resources in the loading order, for {@code UrlClassLoader.Builder#preloadResources}.</li>
+ * </ul>
+ * Usage: {@code StartupProfileMain <profile> <jars home> <output dir> [<lib dir with required_for_dist.txt>]}
+ */
+@SuppressWarnings("CallToPrintStackTrace")
+public final class StartupProfileMain {
+  public static final String ORDER_FILE = "order.txt";
+  public static final String CLASS_LIST_FILE = "classes.lst";
+  public static final String PRELOAD_LIST_FILE = "preload.txt";
+
+  private static final String CLASS_EXTENSION = ".class";
+
+  private StartupProfileMain() { }
+
+  public static void main(String[] args) {
+    try {
+      File profileFile = new File(args[0]);
+      String jarsPath = args[1];
+      File outputDir = new File(args[2]);
+      String libPath = args.length > 3 ? args[3] : null;
+
+      List<ProfileEntry> profile = readProfile(profileFile);
+      Map<String, List<String>> order = getEntriesOrder(profile);
+      writeLines(new File(outputDir, ORDER_FILE), getOrderLines(order));
+      writeLines(new File(outputDir, CLASS_LIST_FILE), getClassList(profile));
+      writeLines(new File(outputDir, PRELOAD_LIST_FILE), getPreloadList(profile));
+
+      Set<String> ignoredJars = libPath == null ? Collections.emptySet() : ReorderJarsMain.loadIgnoredJars(libPath);
+      ReorderJarsMain.reorderJars(order, jarsPath, new File(outputDir, "jars").getPath(), ignoredJars);
+    }
+    catch (Throwable t) {
+      t.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * A resource loaded at startup: its path in the jar, the jar path relative to the IDE home, the size if known (or -1), and the time
+   * of the request in microseconds since the first recorded one.
+   */
+  static final class ProfileEntry {
+    final long time;
+    final long size;
+    final String jar;
+    final String name;
+
+    ProfileEntry(long time, long size, @NotNull String jar, @NotNull String name) {
+      this.time = time;
+      this.size = size;
+      this.jar = jar;
+      this.name = name;
+    }
+
+    @NotNull
+    String toLine() {
+      return time + "\t" + size + "\t" + jar + "\t" + name;
+    }
+
+    @NotNull
+    static ProfileEntry fromLine(@NotNull String line) throws IOException {
+      List<String> parts = StringUtil.split(line, "\t");
+      if (parts.size() != 4) throw new IOException("Malformed profile line: " + line);
+      try {
+        return new ProfileEntry(Long.parseLong(parts.get(0)), Long.parseLong(parts.get(1)), parts.get(2), parts.get(3));
+      }
+      catch (NumberFormatException e) {
+        throw new IOException("Malformed profile line: " + line, e);
+      }
+    }
+  }
+
+  @NotNull
+  static List<ProfileEntry> readProfile(@NotNull File file) throws IOException {
+    List<ProfileEntry> result = new ArrayList<>();
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.isEmpty()) {
+        result.add(ProfileEntry.fromLine(line));
+      }
+    }
+    result.sort(Comparator.comparingLong(entry -> entry.time));
+    return result;
+  }
+
+  @NotNull
+  static Map<String, List<String>> getEntriesOrder(@NotNull List<ProfileEntry> profile) {
+    Map<String, List<String>> order = new LinkedHashMap<>();
+    Set<String> seen = new HashSet<>();
+    for (ProfileEntry entry : profile) {
+      if (seen.add(entry.jar + "!" + entry.name)) {
+        order.computeIfAbsent(entry.jar, __ -> new ArrayList<>()).add(entry.name);
+      }
+    }
+    return order;
+  }
+
+  @NotNull
+  static List<String> getClassList(@NotNull List<ProfileEntry> profile) {
+    Set<String> classes = new LinkedHashSet<>();
+    for (ProfileEntry entry : profile) {
+      if (entry.name.endsWith(CLASS_EXTENSION) && !entry.name.startsWith("META-INF/")) {
+        classes.add(StringUtil.trimEnd(entry.name, CLASS_EXTENSION));
+      }
+    }
+    return new ArrayList<>(classes);
+  }
+
+  @NotNull
+  static List<String> getPreloadList(@NotNull List<ProfileEntry> profile) {
+    Set<String> names = new LinkedHashSet<>();
+    for (ProfileEntry entry : profile) {
+      names.add(entry.name);
+    }
+    return new ArrayList<>(names);
+  }
+
+  @NotNull
+  private static List<String> getOrderLines(@NotNull Map<String, List<String>> order) {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, List<String>> entry : order.entrySet()) {
+      for (String name : entry.getValue()) {
+        lines.add(name + ":" + entry.getKey());
+      }
+    }
+    return lines;
+  }
+
+  private static void writeLines(@NotNull File file, @NotNull List<String> lines) throws IOException {
+    FileUtil.createParentDirs(file);
+    Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+  }
+}
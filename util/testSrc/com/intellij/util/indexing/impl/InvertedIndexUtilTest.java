@@ -0,0 +1,113 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Condition;
+import com.intellij.util.indexing.InvertedIndex;
+import com.intellij.util.indexing.InvertedIndexUtil;
+import com.intellij.util.indexing.ValueContainer;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class InvertedIndexUtilTest extends TestCase {
+  public void testIntersectionOfKeys() throws Exception {
+    Random random = new Random(7);
+    MapBasedIndex index = new MapBasedIndex();
+    // key i is contained in about 1/(i+1) of inputs with values 0..2
+    for (int inputId = 1; inputId <= 30000; inputId++) {
+      for (int key = 0; key < 5; key++) {
+        if (random.nextInt(key + 1) == 0) index.add(key, inputId, inputId % 3);
+      }
+    }
+
+    assertIntersection(index, Arrays.asList(0, 1, 2, 3, 4), null, null);
+    assertIntersection(index, Arrays.asList(4, 0, 2), value -> value != 1, null);
+    assertIntersection(index, Arrays.asList(1, 3), null, id -> id % 7 == 0);
+    assertIntersection(index, Collections.singletonList(2), null, null);
+
+    index.add(5, 1, 0);
+    assertEquals(0, InvertedIndexUtil.collectInputIdsContainingAllKeys(index, Arrays.asList(0, 5, 1), null, null, id -> id > 1).size());
+    assertEquals(0, InvertedIndexUtil.collectInputIdsContainingAllKeys(index, Arrays.asList(0, 6), null, null, null).size());
+    assertEquals(0, InvertedIndexUtil.collectInputIdsContainingAllKeys(index, Collections.emptyList(), null, null, null).size());
+  }
+
+  public void testIntersectionOfLargeKeys() throws Exception {
+    Random random = new Random(11);
+    MapBasedIndex index = new MapBasedIndex();
+    // even the smallest key has enough ids to be intersected as compressed sets,
+    // ids of some values are kept as compressed sets and ids of the others are not
+    for (int inputId = 1; inputId <= 100000; inputId++) {
+      for (int key = 0; key < 4; key++) {
+        if (random.nextInt(key + 1) == 0) index.add(key, inputId, inputId % 3);
+      }
+    }
+
+    assertIntersection(index, Arrays.asList(0, 1, 2, 3), null, null);
+    assertIntersection(index, Arrays.asList(3, 0), value -> value != 1, null);
+    assertIntersection(index, Arrays.asList(1, 2), null, id -> id % 7 == 0);
+    assertIntersection(index, Collections.singletonList(0), null, null);
+    assertEquals(0, InvertedIndexUtil.collectInputIdsContainingAllKeys(index, Arrays.asList(0, 1), null, value -> value > 2, null).size());
+  }
+
+  private static void assertIntersection(@NotNull MapBasedIndex index,
+                                         @NotNull Collection<Integer> keys,
+                                         @Nullable Condition<? super Integer> valueChecker,
+                                         @Nullable ValueContainer.IntPredicate idChecker) throws Exception {
+    TIntHashSet expected = null;
+    for (int key : keys) {
+      TIntHashSet ids = new TIntHashSet();
+      index.getData(key).forEach((id, value) -> {
+        if ((valueChecker == null || valueChecker.value(value)) && (idChecker == null || idChecker.contains(id))) ids.add(id);
+        return true;
+      });
+      if (expected != null) ids.retainAll(expected.toArray());
+      expected = ids;
+    }
+
+    TIntHashSet actual = InvertedIndexUtil.collectInputIdsContainingAllKeys(index, keys, null, valueChecker, idChecker);
+    assertNotNull(expected);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, actual);
+  }
+
+  private static class MapBasedIndex implements InvertedIndex<Integer, Integer, Void> {
+    private final Map<Integer, ValueContainerImpl<Integer>> myData = new HashMap<>();
+
+    void add(int key, int inputId, int value) {
+      myData.computeIfAbsent(key, k -> new ValueContainerImpl<>()).addValue(inputId, value);
+    }
+
+    @NotNull
+    @Override
+    public ValueContainer<Integer> getData(@NotNull Integer key) {
+      ValueContainerImpl<Integer> container = myData.get(key);
+      return container != null ? container : new ValueContainerImpl<>();
+    }
+
+    @NotNull
+    @Override
+    public Computable<Boolean> update(int inputId, @Nullable Void content) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() { }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public void dispose() { }
+  }
+}
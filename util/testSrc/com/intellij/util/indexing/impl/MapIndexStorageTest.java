@@ -0,0 +1,94 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.indexing.impl;
+
+import com.intellij.testFramework.rules.TempDirectory;
+import com.intellij.util.indexing.StorageException;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MapIndexStorageTest {
+  private static final int KEY_COUNT = 100;
+
+  @Rule public TempDirectory tempDir = new TempDirectory();
+
+  @Test
+  public void testValuesOfContainersDroppedFromCacheDuringBatchUpdate() throws Exception {
+    Path file = tempDir.getRoot().toPath().resolve("index");
+    Random random = new Random(3);
+    // key -> input id -> value
+    Map<Integer, Map<Integer, Integer>> expected = new HashMap<>();
+
+    // the cache is much smaller than the number of keys of an input, so every batch drops containers
+    MapIndexStorage<Integer, Integer> storage = createStorage(file);
+    try {
+      for (int inputId = 1; inputId <= 300; inputId++) {
+        Map<Integer, Integer> values = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+          values.put(random.nextInt(KEY_COUNT), random.nextInt(5));
+        }
+        storage.addValues(inputId, values);
+        for (Map.Entry<Integer, Integer> entry : values.entrySet()) {
+          expected.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).put(inputId, entry.getValue());
+        }
+
+        // change a value of an earlier input, as an update of the input does
+        int changedInput = random.nextInt(inputId) + 1;
+        for (Map.Entry<Integer, Map<Integer, Integer>> entry : expected.entrySet()) {
+          if (entry.getValue().containsKey(changedInput)) {
+            storage.removeAllValues(entry.getKey(), changedInput);
+            entry.getValue().remove(changedInput);
+            Map<Integer, Integer> newValues = new HashMap<>();
+            newValues.put(entry.getKey(), 7);
+            storage.addValues(changedInput, newValues);
+            entry.getValue().put(changedInput, 7);
+            break;
+          }
+        }
+      }
+      assertStorageContent(expected, storage);
+    }
+    finally {
+      storage.close();
+    }
+
+    storage = createStorage(file);
+    try {
+      assertStorageContent(expected, storage);
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  private static void assertStorageContent(@NotNull Map<Integer, Map<Integer, Integer>> expected,
+                                           @NotNull MapIndexStorage<Integer, Integer> storage) throws StorageException {
+    for (int key = 0; key < KEY_COUNT; key++) {
+      Map<Integer, Integer> actual = new HashMap<>();
+      storage.read(key).forEach((id, value) -> {
+        assertNull(actual.put(id, value));
+        return true;
+      });
+      Map<Integer, Integer> expectedValues = expected.get(key);
+      assertEquals(String.valueOf(key), expectedValues == null ? new HashMap<Integer, Integer>() : expectedValues, actual);
+    }
+  }
+
+  @NotNull
+  private static MapIndexStorage<Integer, Integer> createStorage(@NotNull Path file) throws IOException {
+    return new MapIndexStorage<Integer, Integer>(file, EnumeratorIntegerDescriptor.INSTANCE, EnumeratorIntegerDescriptor.INSTANCE, 8, false) {
+      @Override
+      protected void checkCanceled() { }
+    };
+  }
+}
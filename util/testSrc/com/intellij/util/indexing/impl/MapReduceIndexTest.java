@@ -0,0 +1,266 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.IndexExtension;
+import com.intellij.util.indexing.IndexId;
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.indexing.impl.forward.ForwardIndex;
+import com.intellij.util.indexing.impl.forward.MapForwardIndexAccessor;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class MapReduceIndexTest extends TestCase {
+  private static final int KEY_COUNT = 50;
+
+  public void testModificationStampCountsChangedKeys() {
+    TestIndex index = new TestIndex();
+    assertTrue(index.update(1, data(1, 10, 2, 20)).compute());
+    assertEquals(2, index.getModificationStamp());
+
+    // key 1 is updated, key 2 is removed and key 3 is added
+    assertTrue(index.update(1, data(1, 11, 3, 30)).compute());
+    assertEquals(5, index.getModificationStamp());
+
+    assertTrue(index.update(1, data(1, 11, 3, 30)).compute());
+    assertEquals(5, index.getModificationStamp());
+
+    assertTrue(index.update(1, null).compute());
+    assertEquals(7, index.getModificationStamp());
+  }
+
+  public void testParallelUpdateIsEquivalentToSequentialUpdate() throws Exception {
+    Random random = new Random(11);
+    TestIndex sequential = new TestIndex();
+    TestIndex parallel = new TestIndex();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int round = 0; round < 5; round++) {
+        Map<Integer, Map<Integer, Integer>> inputs = new HashMap<>();
+        for (int inputId = 1; inputId <= 1000; inputId++) {
+          if (random.nextInt(3) == 0) continue;
+          // null content removes the input
+          inputs.put(inputId, random.nextInt(10) == 0 ? null : randomData(random));
+        }
+
+        for (Map.Entry<Integer, Map<Integer, Integer>> entry : inputs.entrySet()) {
+          assertTrue(sequential.update(entry.getKey(), entry.getValue()).compute());
+        }
+        assertTrue(parallel.updateAll(inputs, executor, 4));
+
+        assertEquals(sequential.getModificationStamp(), parallel.getModificationStamp());
+        for (int key = 0; key < KEY_COUNT; key++) {
+          assertEquals(String.valueOf(key), toMap(sequential.getData(key)), toMap(parallel.getData(key)));
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  public void testParallelUpdateRethrowsIndexerFailure() throws Exception {
+    TestIndex index = new TestIndex();
+    Map<Integer, Map<Integer, Integer>> inputs = new HashMap<>();
+    inputs.put(1, data(1, 10));
+    inputs.put(2, data(TestIndex.FAILING_KEY, 0));
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      index.updateAll(inputs, executor, 2);
+      fail("indexer failure expected");
+    }
+    catch (IllegalStateException e) {
+      assertEquals("failing input", e.getMessage());
+    }
+    finally {
+      executor.shutdownNow();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  @NotNull
+  private static Map<Integer, Integer> randomData(@NotNull Random random) {
+    Map<Integer, Integer> data = new HashMap<>();
+    for (int i = random.nextInt(6); i > 0; i--) {
+      data.put(random.nextInt(KEY_COUNT), random.nextInt(3));
+    }
+    return data;
+  }
+
+  @NotNull
+  private static Map<Integer, Integer> data(int... keysAndValues) {
+    Map<Integer, Integer> data = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      data.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return data;
+  }
+
+  @NotNull
+  private static Map<Integer, Integer> toMap(@NotNull ValueContainer<Integer> container) {
+    Map<Integer, Integer> result = new HashMap<>();
+    container.forEach((id, value) -> {
+      assertNull(result.put(id, value));
+      return true;
+    });
+    return result;
+  }
+
+  private static class TestIndex extends MapReduceIndex<Integer, Integer, Map<Integer, Integer>> {
+    static final int FAILING_KEY = -1;
+
+    TestIndex() {
+      super(new TestExtension(), new MemoryStorage(), new MemoryForwardIndex(), new MapForwardIndexAccessor<>(new MapExternalizer()));
+    }
+
+    @Override
+    public void checkCanceled() { }
+
+    @Override
+    protected void requestRebuild(@NotNull Throwable e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class TestExtension extends IndexExtension<Integer, Integer, Map<Integer, Integer>> {
+    private static final IndexId<Integer, Integer> ID = IndexId.create("MapReduceIndexTest");
+
+    @NotNull
+    @Override
+    public IndexId<Integer, Integer> getName() {
+      return ID;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<Integer, Integer, Map<Integer, Integer>> getIndexer() {
+      return inputData -> {
+        if (inputData.containsKey(TestIndex.FAILING_KEY)) throw new IllegalStateException("failing input");
+        return new HashMap<>(inputData);
+      };
+    }
+
+    @NotNull
+    @Override
+    public KeyDescriptor<Integer> getKeyDescriptor() {
+      return EnumeratorIntegerDescriptor.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public DataExternalizer<Integer> getValueExternalizer() {
+      return EnumeratorIntegerDescriptor.INSTANCE;
+    }
+
+    @Override
+    public int getVersion() {
+      return 0;
+    }
+  }
+
+  private static class MemoryStorage implements IndexStorage<Integer, Integer> {
+    private final Map<Integer, ValueContainerImpl<Integer>> myData = new HashMap<>();
+
+    @Override
+    public void addValue(Integer key, int inputId, Integer value) {
+      myData.computeIfAbsent(key, k -> new ValueContainerImpl<>()).addValue(inputId, value);
+    }
+
+    @Override
+    public void removeAllValues(@NotNull Integer key, int inputId) {
+      ValueContainerImpl<Integer> container = myData.get(key);
+      if (container != null) container.removeAssociatedValue(inputId);
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @NotNull
+    @Override
+    public ValueContainer<Integer> read(Integer key) {
+      ValueContainerImpl<Integer> container = myData.get(key);
+      return container != null ? container : new ValueContainerImpl<>();
+    }
+
+    @Override
+    public void clearCaches() { }
+
+    @Override
+    public void close() { }
+
+    @Override
+    public void flush() { }
+  }
+
+  // read concurrently by the threads computing changes of inputs
+  private static class MemoryForwardIndex implements ForwardIndex {
+    private final Map<Integer, ByteArraySequence> myData = new ConcurrentHashMap<>();
+
+    @Nullable
+    @Override
+    public ByteArraySequence get(@NotNull Integer key) {
+      return myData.get(key);
+    }
+
+    @Override
+    public void put(@NotNull Integer key, @Nullable ByteArraySequence value) {
+      if (value == null) {
+        myData.remove(key);
+      }
+      else {
+        myData.put(key, value);
+      }
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public void force() { }
+
+    @Override
+    public void close() { }
+  }
+
+  private static class MapExternalizer implements DataExternalizer<Map<Integer, Integer>> {
+    @Override
+    public void save(@NotNull DataOutput out, Map<Integer, Integer> value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.size());
+      for (Map.Entry<Integer, Integer> entry : value.entrySet()) {
+        DataInputOutputUtil.writeINT(out, entry.getKey());
+        DataInputOutputUtil.writeINT(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public Map<Integer, Integer> read(@NotNull DataInput in) throws IOException {
+      Map<Integer, Integer> result = new HashMap<>();
+      for (int size = DataInputOutputUtil.readINT(in); size > 0; size--) {
+        result.put(DataInputOutputUtil.readINT(in), DataInputOutputUtil.readINT(in));
+      }
+      return result;
+    }
+  }
+}
@@ -2,8 +2,10 @@
 package com.intellij.util.indexing.impl;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.IntIntFunction;
 import com.intellij.util.indexing.ValueContainer;
 import com.intellij.util.indexing.containers.ChangeBufferingList;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.DataOutputStream;
@@ -18,6 +20,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -140,6 +143,137 @@ public class ValueContainersTest extends TestCase {
     assertEquals(3, count.get());
   }
 
+  public void testOffHeapCache() throws IOException {
+    OffHeapValueContainerCache<String, String> cache =
+      new OffHeapValueContainerCache<>(1024 * 1024, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+    try {
+      ValueContainerImpl<String> container = new ValueContainerImpl<>();
+      for (int id = 1; id <= 100; id++) {
+        container.addValue(id, "value" + id % 3);
+      }
+      cache.put("key", container);
+
+      ValueContainerImpl<String> taken = cache.take("key");
+      assertNotNull(taken);
+      assertEquals(100, taken.size());
+      taken.forEach((id, value) -> {
+        assertEquals("value" + id % 3, value);
+        return true;
+      });
+      // taken entries are owned by the heap cache
+      assertNull(cache.take("key"));
+
+      cache.put("key", container);
+      cache.remove("key");
+      assertNull(cache.take("key"));
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  public void testOffHeapCacheDropsOldestEntriesWhenFull() throws IOException {
+    OffHeapValueContainerCache<String, String> cache =
+      new OffHeapValueContainerCache<>(4096, EnumeratorStringDescriptor.INSTANCE, EnumeratorStringDescriptor.INSTANCE);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        ValueContainerImpl<String> container = new ValueContainerImpl<>();
+        container.addValue(i + 1, "value" + i);
+        cache.put("key" + i, container);
+      }
+      assertNull(cache.take("key0"));
+      ValueContainerImpl<String> last = cache.take("key999");
+      assertNotNull(last);
+      assertEquals(1, last.size());
+    }
+    finally {
+      cache.dispose();
+    }
+  }
+
+  public void testRoaringIdSetOperations() {
+    Random random = new Random(42);
+    RoaringIdSet first = new RoaringIdSet();
+    RoaringIdSet second = new RoaringIdSet();
+    TIntHashSet firstIds = new TIntHashSet();
+    TIntHashSet secondIds = new TIntHashSet();
+    // dense chunks become bitmaps, sparse ones stay arrays
+    for (int i = 0; i < 50000; i++) {
+      int id = 1 + random.nextInt(100000);
+      assertEquals(firstIds.add(id), first.add(id));
+    }
+    for (int i = 0; i < 3000; i++) {
+      int id = 1 + random.nextInt(1000000);
+      assertEquals(secondIds.add(id), second.add(id));
+    }
+    for (int i = 0; i < 10000; i++) {
+      int id = 1 + random.nextInt(100000);
+      assertEquals(firstIds.remove(id), first.remove(id));
+    }
+    assertSameIds(firstIds, first);
+    assertSameIds(secondIds, second);
+
+    TIntHashSet and = new TIntHashSet();
+    TIntHashSet or = new TIntHashSet(firstIds.toArray());
+    TIntHashSet andNot = new TIntHashSet(firstIds.toArray());
+    secondIds.forEach(id -> {
+      if (firstIds.contains(id)) and.add(id);
+      or.add(id);
+      andNot.remove(id);
+      return true;
+    });
+    assertSameIds(and, RoaringIdSet.and(first, second));
+    assertSameIds(and, RoaringIdSet.and(second, first));
+    assertSameIds(or, RoaringIdSet.or(first, second));
+    assertSameIds(andNot, RoaringIdSet.andNot(first, second));
+    assertSameIds(firstIds, RoaringIdSet.and(first, first.clone()));
+  }
+
+  public void testLargeIdSetsAreSavedCompressed() throws IOException {
+    ValueContainerImpl<String> container = new ValueContainerImpl<>();
+    int count = 100000;
+    for (int id = 1; id <= count; id++) {
+      container.addValue(id, "dense");
+      if (id % 1000 == 0) container.addValue(id, "sparse");
+    }
+
+    BufferExposingByteArrayOutputStream os = new BufferExposingByteArrayOutputStream();
+    container.saveTo(new DataOutputStream(os), EnumeratorStringDescriptor.INSTANCE);
+    // delta encoding takes at least a byte per id
+    assertTrue(String.valueOf(os.size()), os.size() < count / 2);
+
+    for (int shift : new int[]{0, 5}) {
+      IntIntFunction remapping = shift == 0 ? IntIntFunction.IDENTITY : i -> i + shift;
+      ValueContainerImpl<String> read = new ValueContainerImpl<>();
+      read.readFrom(new DataInputStream(new ByteArrayInputStream(os.toByteArray())), EnumeratorStringDescriptor.INSTANCE, remapping);
+      assertEquals(2, read.size());
+      AtomicInteger denseCount = new AtomicInteger();
+      read.forEach((id, value) -> {
+        if ("dense".equals(value)) {
+          denseCount.incrementAndGet();
+        }
+        else {
+          assertEquals(0, (id - shift) % 1000);
+        }
+        return true;
+      });
+      assertEquals(count, denseCount.get());
+    }
+  }
+
+  private static void assertSameIds(TIntHashSet expected, RoaringIdSet actual) {
+    assertEquals(expected.size(), actual.size());
+    ValueContainer.IntIterator iterator = actual.intIterator();
+    int previous = 0;
+    while (iterator.hasNext()) {
+      int id = iterator.next();
+      assertTrue(id > previous);
+      assertTrue(expected.contains(id));
+      assertTrue(actual.contains(id));
+      previous = id;
+    }
+  }
+
   private static <T> void runSimpleAddRemoveIteration(T[] values, int[][] inputIds) {
     HashMap<T, TIntArrayList> valueToIdList = new HashMap<>();
     ValueContainerImpl<T> container = new ValueContainerImpl<>();
@@ -0,0 +1,163 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.io;
+
+import com.intellij.testFramework.rules.TempDirectory;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CompressedAppendableFileTest {
+  private static final int CHUNK_LENGTH = 32768;
+
+  @Rule public TempDirectory tempDir = new TempDirectory();
+
+  @Test
+  public void testReadWhileAppending() throws Exception {
+    Path path = tempDir.getRoot().toPath().resolve("file");
+    CompressedAppendableFile file = new CompressedAppendableFile(path);
+    // the values span about 60 chunks, more than the chunk cache holds
+    int valueCount = 500_000;
+    AtomicInteger appended = new AtomicInteger();
+    AtomicBoolean done = new AtomicBoolean();
+
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    try {
+      List<Future<?>> readers = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        int seed = thread;
+        readers.add(executor.submit(() -> {
+          Random random = new Random(seed);
+          while (!done.get()) {
+            int count = appended.get();
+            if (count == 0) continue;
+            int value = random.nextInt(count);
+            assertEquals(value, readInt(file, value));
+          }
+          return null;
+        }));
+      }
+
+      for (int value = 0; value < valueCount; value++) {
+        appendInt(file, value);
+        appended.set(value + 1);
+        if (value % 100_000 == 0) file.force();
+      }
+      done.set(true);
+      for (Future<?> reader : readers) {
+        reader.get(1, TimeUnit.MINUTES);
+      }
+    }
+    finally {
+      done.set(true);
+      executor.shutdownNow();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      file.dispose();
+    }
+
+    CompressedAppendableFile reopened = new CompressedAppendableFile(path);
+    try {
+      assertEquals(valueCount * 4L, reopened.length());
+      try (DataInputStream stream = reopened.getStream(0)) {
+        for (int value = 0; value < valueCount; value++) {
+          assertEquals(value, stream.readInt());
+        }
+      }
+    }
+    finally {
+      reopened.dispose();
+    }
+  }
+
+  @Test
+  public void testEvictedChunksAreLoadedAgain() throws IOException {
+    DecompressionCountingFile file = new DecompressionCountingFile(tempDir.getRoot().toPath().resolve("file"));
+    // every stripe of the cache receives more chunks than it holds
+    int chunkCount = 100;
+    try {
+      byte[] chunk = new byte[CHUNK_LENGTH];
+      for (int i = 0; i < chunkCount; i++) {
+        for (int j = 0; j < chunk.length; j++) {
+          chunk[j] = valueAt((long)i * CHUNK_LENGTH + j);
+        }
+        file.append(chunk, chunk.length);
+      }
+      // appended chunks are put into the cache as they are
+      assertEquals(0, file.decompressions.get());
+
+      assertChunkContent(file, 0);
+      assertEquals(1, file.decompressions.get());
+      assertChunkContent(file, 0);
+      assertEquals(1, file.decompressions.get());
+
+      assertChunkContent(file, chunkCount - 1);
+      assertEquals(1, file.decompressions.get());
+    }
+    finally {
+      file.dispose();
+    }
+
+    // chunks of a disposed file are dropped from the cache
+    file.decompressions.set(0);
+    try {
+      assertChunkContent(file, chunkCount - 1);
+      assertEquals(1, file.decompressions.get());
+    }
+    finally {
+      file.dispose();
+    }
+  }
+
+  private static void assertChunkContent(@NotNull CompressedAppendableFile file, int chunk) throws IOException {
+    byte[] bytes = new byte[CHUNK_LENGTH];
+    long offset = (long)chunk * CHUNK_LENGTH;
+    try (DataInputStream stream = file.getStream(offset)) {
+      stream.readFully(bytes);
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] != valueAt(offset + i)) {
+        fail("unexpected byte at " + (offset + i));
+      }
+    }
+  }
+
+  private static byte valueAt(long offset) {
+    return (byte)(offset % 251);
+  }
+
+  private static void appendInt(@NotNull CompressedAppendableFile file, int value) throws IOException {
+    byte[] bytes = {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+    file.append(bytes, bytes.length);
+  }
+
+  private static int readInt(@NotNull CompressedAppendableFile file, int index) throws IOException {
+    try (DataInputStream stream = file.getStream(index * 4L)) {
+      return stream.readInt();
+    }
+  }
+
+  private static class DecompressionCountingFile extends CompressedAppendableFile {
+    final AtomicInteger decompressions = new AtomicInteger();
+
+    DecompressionCountingFile(@NotNull Path file) throws IOException {
+      super(file);
+    }
+
+    @Override
+    protected byte @NotNull [] decompress(DataInputStream keysStream) throws IOException {
+      decompressions.incrementAndGet();
+      return super.decompress(keysStream);
+    }
+  }
+}
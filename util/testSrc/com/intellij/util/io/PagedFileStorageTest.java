@@ -124,6 +124,120 @@ public class PagedFileStorageTest {
     });
   }
 
+  @Test
+  public void testStatistics() throws IOException {
+    withLock(lock, () -> {
+      PagedFileStorageStatistics statistics = s.getStatistics();
+      assertSame(statistics, PagedFileStorageStatistics.get(f));
+      long misses = statistics.getMisses();
+      long hits = statistics.getHits();
+
+      s.resize(1000);
+      s.putInt(0, 42);
+      assertEquals(42, s.getInt(0));
+      assertTrue(statistics.getMisses() > misses);
+      assertTrue(statistics.getHits() > hits);
+      assertTrue(statistics.getMappedBytes() >= 1000);
+
+      long forced = sum(statistics.getForceLatencyHistogram());
+      s.force();
+      assertEquals(forced + 1, sum(statistics.getForceLatencyHistogram()));
+      assertTrue(PagedFileStorageStatistics.getAll().contains(statistics));
+    });
+  }
+
+  @Test
+  public void testStatisticsAreDroppedWithLastStorageOfFile() throws IOException {
+    withLock(lock, () -> {
+      PagedFileStorageStatistics statistics = s.getStatistics();
+      PagedFileStorage other = new PagedFileStorage(f, lock);
+      assertSame(statistics, other.getStatistics());
+      other.close();
+      other.close();
+      assertSame(statistics, PagedFileStorageStatistics.get(f));
+
+      s.close();
+      assertNull(PagedFileStorageStatistics.get(f));
+      assertFalse(PagedFileStorageStatistics.getAll().contains(statistics));
+
+      s = new PagedFileStorage(f, lock);
+      assertNotSame(statistics, s.getStatistics());
+      assertSame(s.getStatistics(), PagedFileStorageStatistics.get(f));
+    });
+  }
+
+  @Test
+  public void testResetAllKeepsStatisticsOfOpenStorages() throws IOException {
+    withLock(lock, () -> {
+      PagedFileStorageStatistics statistics = s.getStatistics();
+      s.resize(1000);
+      s.putInt(0, 42);
+      s.force();
+      assertTrue(statistics.getMisses() > 0);
+
+      PagedFileStorageStatistics.resetAll();
+      assertSame(statistics, PagedFileStorageStatistics.get(f));
+      assertEquals(0, statistics.getMisses());
+      assertEquals(0, statistics.getHits());
+      assertEquals(0, statistics.getMappedBytes());
+      assertEquals(0, sum(statistics.getForceLatencyHistogram()));
+
+      s.force();
+      assertEquals(1, sum(statistics.getForceLatencyHistogram()));
+    });
+  }
+
+  @Test
+  public void testClockEvictionGivesRecentlyUsedPagesSecondChance() throws IOException {
+    int pageSize = Page.PAGE_SIZE;
+    int cachedPages = 4;
+    PagedFileStorage.StorageLock smallLock = new PagedFileStorage.StorageLock(true, (long)cachedPages * pageSize);
+    Path file = tempDir.getRoot().toPath().resolve("clock");
+    Files.write(file, new byte[10 * pageSize]);
+
+    withLock(smallLock, () -> {
+      PagedFileStorage storage = new PagedFileStorage(file, smallLock.myDefaultStorageLockContext, pageSize, false, false);
+      try {
+        PagedFileStorageStatistics statistics = storage.getStatistics();
+        for (int page = 0; page < cachedPages; page++) {
+          storage.get((long)page * pageSize);
+        }
+        assertEquals(cachedPages, statistics.getMisses());
+        assertEquals(0, statistics.getEvictions());
+
+        // the sweep takes second chances from all pages and evicts the first one
+        storage.get((long)cachedPages * pageSize);
+        assertEquals(1, statistics.getEvictions());
+
+        // page 1 is used after the sweep, so the next one passes it and evicts page 2
+        storage.get(pageSize);
+        assertEquals(cachedPages + 1, statistics.getMisses());
+        storage.get((long)(cachedPages + 1) * pageSize);
+        assertEquals(2, statistics.getEvictions());
+
+        long misses = statistics.getMisses();
+        storage.get(pageSize);
+        assertEquals(misses, statistics.getMisses());
+        storage.get(2L * pageSize);
+        assertEquals(misses + 1, statistics.getMisses());
+
+        for (int page = 0; page < 10; page++) {
+          storage.get((long)page * pageSize);
+          assertTrue(smallLock.getMappedSize() <= (long)cachedPages * pageSize);
+        }
+      }
+      finally {
+        storage.close();
+      }
+    });
+  }
+
+  private static long sum(long[] values) {
+    long result = 0;
+    for (long value : values) result += value;
+    return result;
+  }
+
   private static void withLock(PagedFileStorage.StorageLock lock, ThrowableRunnable<IOException> block) throws IOException {
     lock.lock();
     try {
@@ -0,0 +1,106 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteArraySequence;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.rules.TempDirectory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RefCountingStorageTest {
+  @Rule public TempDirectory tempDir = new TempDirectory();
+
+  @Test
+  public void testCodecsRoundTrip() throws IOException {
+    for (RecordCompressionCodec codec : new RecordCompressionCodec[]{RecordCompressionCodec.DEFLATE, RecordCompressionCodec.LZ4, null}) {
+      RefCountingStorage storage = createStorage(codec == null ? "none" : codec.getName(), codec);
+      try {
+        byte[] small = "a".getBytes(StandardCharsets.UTF_8);
+        byte[] large = StringUtil.repeat("class Foo { int bar; }\n", 1000).getBytes(StandardCharsets.UTF_8);
+        int smallRecord = write(storage, small);
+        int largeRecord = write(storage, large);
+        storage.force();
+
+        assertArrayEquals(small, storage.readBytes(smallRecord));
+        assertArrayEquals(large, storage.readBytes(largeRecord));
+        try (DataInputStream stream = storage.readStream(largeRecord)) {
+          byte[] bytes = new byte[large.length];
+          stream.readFully(bytes);
+          assertArrayEquals(large, bytes);
+          assertEquals(-1, stream.read());
+        }
+      }
+      finally {
+        storage.dispose();
+      }
+    }
+  }
+
+  @Test
+  public void testRecordsOfPreviousCodecAreReadable() throws IOException {
+    byte[] deflated = StringUtil.repeat("deflated ", 100).getBytes(StandardCharsets.UTF_8);
+    byte[] lz4 = StringUtil.repeat("lz4 ", 100).getBytes(StandardCharsets.UTF_8);
+
+    RefCountingStorage storage = createStorage("storage", RecordCompressionCodec.DEFLATE);
+    int deflatedRecord = write(storage, deflated);
+    storage.dispose();
+
+    storage = createStorage("storage", RecordCompressionCodec.LZ4);
+    int lz4Record = write(storage, lz4);
+    assertArrayEquals(deflated, storage.readBytes(deflatedRecord));
+    storage.dispose();
+
+    storage = createStorage("storage", RecordCompressionCodec.DEFLATE);
+    try {
+      assertArrayEquals(deflated, storage.readBytes(deflatedRecord));
+      assertArrayEquals(lz4, storage.readBytes(lz4Record));
+    }
+    finally {
+      storage.dispose();
+    }
+  }
+
+  @Test
+  public void testCodecRegistration() {
+    assertSame(RecordCompressionCodec.LZ4, RecordCompressionCodec.findByName("lz4"));
+    assertSame(RecordCompressionCodec.DEFLATE, RecordCompressionCodec.findByName("deflate"));
+    assertNull(RecordCompressionCodec.findByName("unknown"));
+
+    try {
+      RecordCompressionCodec.register(new RecordCompressionCodec("zlib-like", (byte)0x58) {
+        @Override
+        public void compress(@NotNull ByteArraySequence bytes, @NotNull BufferExposingByteArrayOutputStream out) { }
+
+        @NotNull
+        @Override
+        public ByteArraySequence decompress(byte @NotNull [] record) {
+          return new ByteArraySequence(record);
+        }
+      });
+      fail("marker of zlib stream must be rejected");
+    }
+    catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  @NotNull
+  private RefCountingStorage createStorage(@NotNull String name, @Nullable RecordCompressionCodec codec) throws IOException {
+    return new RefCountingStorage(new File(tempDir.getRoot(), name).getPath(), CapacityAllocationPolicy.DEFAULT, codec);
+  }
+
+  private static int write(@NotNull RefCountingStorage storage, byte @NotNull [] bytes) throws IOException {
+    int record = storage.acquireNewRecord();
+    storage.writeBytes(record, new ByteArraySequence(bytes), false);
+    return record;
+  }
+}
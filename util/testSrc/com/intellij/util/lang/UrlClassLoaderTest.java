@@ -2,6 +2,7 @@
 package com.intellij.util.lang;
 
 import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.testFramework.rules.TempDirectory;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.ObjectUtils;
@@ -11,6 +12,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
@@ -172,6 +174,106 @@ public class UrlClassLoaderTest {
     }
   }
 
+  @Test
+  public void testJarIndex() throws IOException {
+    File first = createTestJar(createTestFile(tempDir.getRoot(), "1.jar"), "a/first.txt", "-");
+    File second = createTestJar(createTestFile(tempDir.getRoot(), "2.jar"), "b/second.txt", "-");
+    File index = new File(tempDir.getRoot(), "index/jars.index");
+    URL[] urls = {first.toURI().toURL(), second.toURI().toURL()};
+
+    UrlClassLoader building = UrlClassLoader.build().urls(urls).useCache().useJarIndex(index).get();
+    assertNotNull(findResource(building, "b/second.txt", false));
+    assertTrue(index.isFile());
+
+    UrlClassLoader indexed = UrlClassLoader.build().urls(urls).useCache().useJarIndex(index).get();
+    assertNotNull(findResource(indexed, "a/first.txt", false));
+    assertNotNull(findResource(indexed, "b/second.txt", false));
+    assertNull(findResource(indexed, "a/second.txt", false));
+
+    // a changed jar is read again instead of its stale entry
+    createTestJar(first, "c/first.txt", "-");
+    assertTrue(first.setLastModified(first.lastModified() - 10000));
+    UrlClassLoader reindexed = UrlClassLoader.build().urls(urls).useCache().useJarIndex(index).get();
+    assertNotNull(findResource(reindexed, "c/first.txt", false));
+  }
+
+  @Test
+  public void testJarIndexDropsJarsRemovedFromClassPath() throws IOException {
+    File first = createTestJar(createTestFile(tempDir.getRoot(), "1.jar"), "a/first.txt", "-");
+    File second = createTestJar(createTestFile(tempDir.getRoot(), "2.jar"), "b/second.txt", "-");
+    File index = new File(tempDir.getRoot(), "index/jars.index");
+
+    UrlClassLoader both = UrlClassLoader.build().urls(first.toURI().toURL(), second.toURI().toURL()).useCache().useJarIndex(index).get();
+    assertNull(findResource(both, "c/missing.txt", false));
+    assertNotNull(ClasspathJarIndex.load(index).getData(second));
+
+    UrlClassLoader onlyFirst = UrlClassLoader.build().urls(first.toURI().toURL()).useCache().useJarIndex(index).get();
+    assertNull(findResource(onlyFirst, "c/missing.txt", false));
+    ClasspathJarIndex reloaded = ClasspathJarIndex.load(index);
+    assertNotNull(reloaded.getData(first));
+    assertNull(reloaded.getData(second));
+    assertArrayEquals(new String[]{"jars.index"}, index.getParentFile().list());
+  }
+
+  @Test
+  public void testJarsOpenedAheadAreClosedWhenUnused() throws IOException {
+    File first = createTestJar(createTestFile(tempDir.getRoot(), "1.jar"), "a/first.txt", "-");
+    File second = createTestJar(createTestFile(tempDir.getRoot(), "2.jar"), "b/second.txt", "-");
+    URL[] urls = {first.toURI().toURL(), second.toURI().toURL()};
+    UrlClassLoader.CachePool pool = UrlClassLoader.createCachePool();
+
+    // fills the pool, so the loaders of the next class path don't open their jars to register them
+    UrlClassLoader filling = UrlClassLoader.build().urls(urls).allowLock().useCache(pool, url -> true).get();
+    assertNull(findResource(filling, "c/missing.txt", false));
+    assertEquals(0, filling.getClassPath().getOpeningZipFileCount());
+
+    UrlClassLoader cached = UrlClassLoader.build().urls(urls).allowLock().useCache(pool, url -> true).get();
+    assertNull(findResource(cached, "c/missing.txt", false));
+    assertEquals(0, cached.getClassPath().getOpeningZipFileCount());
+    assertNotNull(findResource(cached, "a/first.txt", false));
+    assertNotNull(findResource(cached, "b/second.txt", false));
+  }
+
+  @Test
+  public void testPreloadedResources() throws IOException {
+    File jar = createTestJar(createTestFile(tempDir.getRoot(), "1.jar"), "a/first.txt", "first", "b/second.txt", "second");
+    File list = createTestFile(tempDir.getRoot(), "preload.txt", "# comment\na/first.txt\nb/second.txt\nc/missing.txt\n");
+
+    UrlClassLoader loader = UrlClassLoader.build().urls(jar.toURI().toURL()).useCache().preloadResources(list).get();
+    // whether or not the resources are read ahead by now, they are the same as without preloading
+    for (int i = 0; i < 2; i++) {
+      assertEquals("first", loadResourceText(loader, "a/first.txt"));
+      assertEquals("second", loadResourceText(loader, "b/second.txt"));
+      assertNull(loader.getResourceAsStream("c/missing.txt"));
+    }
+  }
+
+  @Test
+  public void testUnclaimedPreloadedResourcesAreDropped() throws IOException {
+    File jar = createTestJar(createTestFile(tempDir.getRoot(), "1.jar"), "a/first.txt", "first", "b/second.txt", "second");
+    UrlClassLoader loader = UrlClassLoader.build().urls(jar.toURI().toURL()).useCache().get();
+    ClassPath classPath = loader.getClassPath();
+
+    classPath.startPreloading();
+    assertEquals("second", loadResourceText(loader, "b/second.txt"));
+    assertTrue(classPath.preloadResource("b/second.txt"));
+    // already loaded on demand
+    assertEquals(0, classPath.getPreloadedSize());
+
+    assertTrue(classPath.preloadResource("a/first.txt"));
+    assertEquals("first".length(), classPath.getPreloadedSize());
+    classPath.finishPreloading();
+    classPath.dropPreloadedResources();
+    assertEquals(0, classPath.getPreloadedSize());
+    assertEquals("first", loadResourceText(loader, "a/first.txt"));
+  }
+
+  private static String loadResourceText(UrlClassLoader loader, String name) throws IOException {
+    InputStream stream = loader.getResourceAsStream(name);
+    assertNotNull(name, stream);
+    return FileUtil.loadTextAndClose(stream);
+  }
+
   private static URL findResource(UrlClassLoader loader, String name, boolean findAll) {
     if (findAll) {
       try {
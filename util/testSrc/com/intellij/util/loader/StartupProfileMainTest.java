@@ -0,0 +1,36 @@
+// Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package com.intellij.util.loader;
+
+import com.intellij.util.loader.StartupProfileMain.ProfileEntry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class StartupProfileMainTest {
+  @Test
+  public void testArtifactsFollowLoadingOrder() throws IOException {
+    List<ProfileEntry> profile = Arrays.asList(
+      ProfileEntry.fromLine(new ProfileEntry(0, 100, "/lib/a.jar", "com/a/A.class").toLine()),
+      new ProfileEntry(10, -1, "/lib/b.jar", "messages/B.properties"),
+      new ProfileEntry(20, 50, "/lib/a.jar", "com/a/A$1.class"),
+      new ProfileEntry(30, 100, "/lib/a.jar", "com/a/A.class"),
+      new ProfileEntry(40, 70, "/lib/b.jar", "com/b/B.class"));
+
+    Map<String, List<String>> order = StartupProfileMain.getEntriesOrder(profile);
+    assertEquals(Arrays.asList("/lib/a.jar", "/lib/b.jar"), new ArrayList<>(order.keySet()));
+    assertEquals(Arrays.asList("com/a/A.class", "com/a/A$1.class"), order.get("/lib/a.jar"));
+    assertEquals(Arrays.asList("messages/B.properties", "com/b/B.class"), order.get("/lib/b.jar"));
+
+    assertEquals(Arrays.asList("com/a/A", "com/a/A$1", "com/b/B"), StartupProfileMain.getClassList(profile));
+    assertEquals(Arrays.asList("com/a/A.class", "messages/B.properties", "com/a/A$1.class", "com/b/B.class"),
+                 StartupProfileMain.getPreloadList(profile));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformedLine() throws IOException {
+    ProfileEntry.fromLine("10\t/lib/a.jar\tcom/a/A.class");
+  }
+}